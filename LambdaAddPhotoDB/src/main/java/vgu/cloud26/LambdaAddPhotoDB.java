@@ -2,53 +2,117 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import org.crac.Core;
+import org.crac.Resource;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
-import software.amazon.awssdk.services.lambda.model.InvokeResponse;
 import software.amazon.awssdk.services.rds.RdsUtilities;
 import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+import vgu.cloud26.InvokeClient.Policy;
 
-public class LambdaAddPhotoDB implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaAddPhotoDB implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
   // --- CONFIGURATION ---
   private static final String RDS_INSTANCE_HOSTNAME = "database-lam1303.cfk8w6wse6nw.ap-southeast-2.rds.amazonaws.com";
   private static final int RDS_INSTANCE_PORT = 3306;
   private static final String DB_USER = "cloud26";
-  private static final String JDBC_URL = "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT + "/Cloud26";
+  // Both overridable with system properties so LambdaLocalEmulator can run against an
+  // embedded database; a set password replaces the IAM auth token
+  private static final String JDBC_URL = System.getProperty("cloud26.jdbc.url",
+      "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT + "/Cloud26");
+  private static final String DB_PASSWORD = System.getProperty("cloud26.jdbc.password");
+  // Per user, across all environments: a burst of 10, then 30 a minute (UPLOAD_BURST and
+  // UPLOAD_RATE_PER_MINUTE override)
+  private static final RateLimiter UPLOADS = RateLimiter.fromEnvironment("UPLOAD", 30, 10);
+  // Written by ImageInfo.putInto; a single upload's arrive next to its key
+  private static final String[] IMAGE_FIELDS =
+      {"width", "height", "format", "byteSize", "orientation", "takenAt"};
+  // insertPhotos found a key or content of the upload being deleted from S3 right now
+  private static final int COLLECTING = -1;
 
   // VERIFIER CONFIG
-  private final LambdaClient lambdaClient;
+  private InvokeClient invoker;
   private static final String VERIFIER_FUNCTION_NAME = "LambdaTokenVerifier";
 
+  // Reused across invocations of this container, reopened when it goes stale
+  private Connection connection;
+  // Replaced after a SnapStart restore, see afterRestore
+  private static DefaultCredentialsProvider credentialsProvider = DefaultCredentialsProvider.builder().build();
+
   public LambdaAddPhotoDB() {
-    this.lambdaClient = LambdaClient.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+    Core.getGlobalContext().register(this);
   }
 
+  // --- SNAPSTART HOOKS ---
+
   @Override
-  public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+  public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+    // Load and initialize the request path into the snapshot, then drop pooled
+    // connections: sockets captured in a snapshot are dead after restore
+    prime(LambdaRuntime.getLogger()).finish();
+    InternalPrincipal.forget();
+    invoker.close();
+    closeConnection();
+  }
+
+  @Override
+  public void afterRestore(org.crac.Context<? extends Resource> context) {
+    // New clients resolve credentials from the restored environment and reconnect
+    invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+    // Credentials from before the snapshot are stale, and IAM DB tokens are signed with them
+    credentialsProvider.close();
+    credentialsProvider = DefaultCredentialsProvider.builder().build();
+    prime(LambdaRuntime.getLogger()).finish();
+  }
 
-    if (event.getBody() != null && event.getBody().contains("warmer")) {
-      return createResponse(200, "Warmed");
+  @Override
+  public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    Metrics metrics = Metrics.begin(context, event);
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = handle(event, context, metrics);
+      return response;
+    } finally {
+      metrics.flush(response);
     }
+  }
 
-    LambdaLogger logger = context.getLogger();
+  private APIGatewayProxyResponseEvent handle(
+      APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
+
+    Log logger = Log.begin(context);
+
+    if (Warmup.isWarmupEvent(event)) {
+      return prime(logger).toResponse();
+    }
 
     try {
       String jsonString = event.getBody();
-      JSONObject input = new JSONObject(jsonString);
+      // Direct callers may still send the image along; it is hashed in place, never copied out
+      JsonEnvelope.Envelope input = JsonEnvelope.parse(jsonString);
 
       // 1. Basic Validation (We check if token exists, but don't need to extract it
       // into a variable)
@@ -57,72 +121,265 @@ public class LambdaAddPhotoDB implements RequestHandler<APIGatewayProxyRequestEv
       }
 
       String email = input.getString("email");
-      String key = input.getString("key");
-      String description = input.has("description") ? input.getString("description") : "No description";
 
-      // 2. TOKEN VERIFICATION
-      // We pass the RAW jsonString (which contains the token) to the Verifier
-      JSONObject verifierPayload = new JSONObject();
-      verifierPayload.put("body", jsonString);
+      // 2. TOKEN VERIFICATION, unless the orchestrator that verified it signed for the email
+      boolean vouched = InternalPrincipal.verify(
+          input.optString(InternalPrincipal.FIELD, null), email, logger);
+      metrics.put("InternalPrincipal", vouched ? 1 : 0, Metrics.Unit.COUNT);
+      if (!vouched) {
+        // We pass only the credentials to the Verifier
+        JSONObject credentials = new JSONObject();
+        credentials.put("email", email);
+        credentials.put("token", input.getString("token"));
+        JSONObject verifierPayload = new JSONObject();
+        verifierPayload.put("body", credentials.toString());
 
-      String verificationResult = callLambda(VERIFIER_FUNCTION_NAME, verifierPayload.toString(), logger);
-      JSONObject verifyJson = new JSONObject(verificationResult);
+        String verificationResult = metrics.time("VerifierLatency", () -> invoker.call(
+            VERIFIER_FUNCTION_NAME, verifierPayload.toString(), Policy.READ, metrics.trace(), logger));
+        JSONObject verifyJson = new JSONObject(verificationResult);
 
-      // BETTER ERROR HANDLING: Check for internal errors from Verifier
-      if (verifyJson.has("error")) {
-        return createResponse(500, "{\"error\": \"Verifier Failed: " + verifyJson.getString("error") + "\"}");
+        // BETTER ERROR HANDLING: Check for internal errors from Verifier
+        if (verifyJson.has("error")) {
+          return createResponse(500, "{\"error\": \"Verifier Failed: " + verifyJson.getString("error") + "\"}");
+        }
+        if (!verifyJson.has("valid") || !verifyJson.getBoolean("valid")) {
+          return createResponse(401, "{\"error\": \"Unauthorized: Invalid Token\"}");
+        }
       }
-      if (!verifyJson.has("valid") || !verifyJson.getBoolean("valid")) {
-        return createResponse(401, "{\"error\": \"Unauthorized: Invalid Token\"}");
+
+      // One photo, or a batch upload's {"photos": [{"key", "description", "contentHash"}]}.
+      // Either may carry the ImageInfo fields the orchestrator read from the headers
+      List<JsonEnvelope.Envelope> entries =
+          input.has("photos") ? input.getObjects("photos") : List.of(input);
+      JSONArray photos = new JSONArray();
+      for (JsonEnvelope.Envelope entry : entries) {
+        JSONObject photo = new JSONObject()
+            .put("key", entry.getString("key"))
+            .put("description", entry.optString("description", null));
+        for (String field : IMAGE_FIELDS) {
+          photo.put(field, entry.optString(field, null));
+        }
+        String contentHash = entry.optString("contentHash", null);
+        if (entry.has("content")) {
+          // The bytes came along, so their address is ours to compute, not the caller's to name
+          try {
+            contentHash = ContentHash.ofBase64(entry, "content");
+          } catch (IllegalArgumentException e) {
+            return createResponse(400, "{\"error\": \"Invalid content\"}");
+          }
+        } else if (contentHash != null && !vouched) {
+          // Content is stored and counted by hash: a named hash would let anyone reference
+          // another user's photo, and free it with their delete. Only an orchestrator that
+          // signed for the user, having hashed the bytes itself, may send one
+          return createResponse(403, "{\"error\": \"contentHash needs a signed principal\"}");
+        } else if (contentHash != null && !ContentHash.isValid(contentHash)) {
+          return createResponse(400, "{\"error\": \"Invalid contentHash\"}");
+        }
+        String takenAt = photo.optString("takenAt", null);
+        if (takenAt != null && takenAt(takenAt) == null) {
+          return createResponse(400, "{\"error\": \"Invalid takenAt\"}");
+        }
+        photos.put(photo.put("contentHash", contentHash));
       }
 
-      // 3. Connect to DB
-      Class.forName("com.mysql.cj.jdbc.Driver");
-      Connection conn = DriverManager.getConnection(JDBC_URL, setMySqlConnectionProperties());
+      // 3. Admission. This is the upload's first activity, so a rejected upload has not
+      // written anything yet
+      Connection db = metrics.time("JdbcConnectLatency", this::getConnection);
+      long retryAfter = metrics.time("RateLimitLatency",
+          () -> admit(db, email, photos.length(), logger));
+      if (retryAfter > 0) {
+        logger.warn("Rate limited {}, retry in {} s", email, retryAfter);
+        return createResponse(429, new JSONObject()
+            .put("error", "Too many uploads, retry in " + retryAfter + " s")
+            .put("retryAfter", retryAfter)
+            .toString())
+            .withHeaders(Map.of("Retry-After", String.valueOf(retryAfter)));
+      }
 
       // 4. Insert Data
-      String sql = "INSERT INTO Photos (S3Key, Description, Email) VALUES (?, ?, ?)";
-      PreparedStatement pstmt = conn.prepareStatement(sql);
-      pstmt.setString(1, key);
-      pstmt.setString(2, description);
-      pstmt.setString(3, email);
-
-      pstmt.executeUpdate();
-      conn.close();
+      int duplicates = metrics.time("JdbcInsertLatency", () -> insertPhotos(db, email, photos));
+      if (duplicates == COLLECTING) {
+        // Nothing was written; in a few seconds the objects are gone and the upload stores anew
+        long wait = PendingDeletes.RETRY_AFTER_SECONDS;
+        logger.warn("Upload of {} waits for a delete in flight", email);
+        return createResponse(429, new JSONObject()
+            .put("error", "Photo is being deleted, retry in " + wait + " s")
+            .put("retryAfter", wait)
+            .toString())
+            .withHeaders(Map.of("Retry-After", String.valueOf(wait)));
+      }
+      metrics.put("PhotoRows", photos.length(), Metrics.Unit.COUNT);
 
-      logger.log("DB Insert Successful for: " + key);
-      return createResponse(200, "{\"message\": \"Metadata saved\"}");
+      logger.info("DB Insert Successful for {} photos, {} already stored", photos.length(), duplicates);
+      return createResponse(200, new JSONObject()
+          .put("message", "Metadata saved")
+          .put("count", photos.length())
+          .put("duplicates", duplicates)
+          .toString());
 
     } catch (Exception e) {
-      logger.log("DB Error: " + e.getMessage());
-      // Return 200 so Orchestrator doesn't crash
-      return createResponse(200, "{\"error\": \"DB Insert Failed: " + e.getMessage() + "\"}");
+      logger.error("DB Error: {}", e.getMessage());
+      // A failure status, so async jobs and callers judging by it see the row was not written
+      return createResponse(500, new JSONObject()
+          .put("error", "DB Insert Failed: " + e.getMessage())
+          .toString());
     }
   }
 
   // --- HELPER METHODS ---
 
-  public String callLambda(String functionName, String payload, LambdaLogger logger) {
+  private Warmup prime(LambdaLogger logger) {
+    return new Warmup(logger)
+        .step("lambdaInvoke", () -> invoker.client().invoke(InvokeRequest.builder()
+            .functionName(VERIFIER_FUNCTION_NAME)
+            .invocationType("DryRun")
+            .build()))
+        .step("principal", () -> InternalPrincipal.verify("warmup.warmup", "warmup", logger))
+        .step("jdbc", () -> {
+          try (PreparedStatement st = getConnection().prepareStatement("SELECT 1");
+              ResultSet rs = st.executeQuery()) {
+            rs.next();
+          }
+        });
+  }
+
+  /**
+   * Adds the Photos rows and their references to content in one transaction, so the Blobs counts
+   * always match the rows; a batch's rows go in one JDBC batch. Returns how many photos referenced
+   * content that was stored already, or {@link #COLLECTING} after rolling back.
+   */
+  private static int insertPhotos(Connection db, String email, JSONArray photos)
+      throws SQLException {
+    boolean autoCommit = db.getAutoCommit();
+    db.setAutoCommit(false);
     try {
-      InvokeRequest invokeRequest = InvokeRequest.builder()
-          .functionName(functionName)
-          .payload(SdkBytes.fromUtf8String(payload))
-          .invocationType("RequestResponse")
-          .build();
-
-      InvokeResponse invokeResult = lambdaClient.invoke(invokeRequest);
-      ByteBuffer responsePayload = invokeResult.payload().asByteBuffer();
-      String jsonResponse = StandardCharsets.UTF_8.decode(responsePayload).toString();
-
-      JSONObject responseObject = new JSONObject(jsonResponse);
-      if (responseObject.has("body")) {
-        return responseObject.getString("body");
+      try {
+        return insertPhotosInTransaction(db, email, photos);
+      } catch (SQLIntegrityConstraintViolationException e) {
+        // A concurrent first upload of the same bytes created a Blobs row; count on it instead
+        db.rollback();
+        return insertPhotosInTransaction(db, email, photos);
       }
-      return jsonResponse;
-    } catch (Exception e) {
-      logger.log("Error invoking " + functionName + ": " + e.getMessage());
-      return "{\"error\": \"Invocation Failed\"}";
+    } catch (SQLException e) {
+      db.rollback();
+      throw e;
+    } finally {
+      db.setAutoCommit(autoCommit);
+    }
+  }
+
+  private static int insertPhotosInTransaction(Connection db, String email, JSONArray photos)
+      throws SQLException {
+    int duplicates = 0;
+    try (PreparedStatement pstmt = db.prepareStatement(
+        "INSERT INTO Photos (S3Key, Description, Email, ContentHash, Width, Height, Format,"
+            + " ByteSize, Orientation, TakenAt) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+      for (int i = 0; i < photos.length(); i++) {
+        JSONObject photo = photos.getJSONObject(i);
+        String contentHash = photo.optString("contentHash", null);
+        if (contentHash != null && addReference(db, contentHash)) {
+          duplicates++;
+        }
+        pstmt.setString(1, photo.getString("key"));
+        pstmt.setString(2, photo.optString("description", "No description"));
+        pstmt.setString(3, email);
+        pstmt.setString(4, contentHash);
+        setNullable(pstmt, 5, Types.INTEGER, photo.optNumber("width", null));
+        setNullable(pstmt, 6, Types.INTEGER, photo.optNumber("height", null));
+        pstmt.setString(7, photo.optString("format", null));
+        setNullable(pstmt, 8, Types.BIGINT, photo.optNumber("byteSize", null));
+        setNullable(pstmt, 9, Types.SMALLINT, photo.optNumber("orientation", null));
+        String takenAt = photo.optString("takenAt", null);
+        pstmt.setTimestamp(10, takenAt == null ? null : Timestamp.valueOf(takenAt(takenAt)));
+        pstmt.addBatch();
+      }
+      pstmt.executeBatch();
+    }
+    // Keys and content deleted earlier may still be queued for LambdaCollectDeleted; referenced
+    // again, they stay. After the Photos and Blobs writes: the collector's round also locks
+    // PendingDeletes last
+    Set<String> names = new LinkedHashSet<>();
+    for (int i = 0; i < photos.length(); i++) {
+      JSONObject photo = photos.getJSONObject(i);
+      names.add(photo.getString("key"));
+      String contentHash = photo.optString("contentHash", null);
+      if (contentHash != null) {
+        names.add(ContentHash.contentKey(contentHash, ""));
+      }
+    }
+    if (!PendingDeletes.rescue(db, names)) {
+      db.rollback();
+      return COLLECTING;
+    }
+    // Last, so the version row is locked only for the commit; readers drop cached pages
+    TableVersion.bump(db, TableVersion.PHOTOS);
+    db.commit();
+    return duplicates;
+  }
+
+  // ISO local date and time, as ImageInfo writes it; null if it is not one
+  private static LocalDateTime takenAt(String text) {
+    try {
+      return LocalDateTime.parse(text);
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
+  // Rows from callers that did not read the image have none of these
+  private static void setNullable(PreparedStatement st, int index, int sqlType, Number value)
+      throws SQLException {
+    if (value == null) {
+      st.setNull(index, sqlType);
+    } else {
+      st.setLong(index, value.longValue());
+    }
+  }
+
+  // The UPDATE locks an existing row, so concurrent references cannot lose a count
+  private static boolean addReference(Connection db, String contentHash) throws SQLException {
+    try (PreparedStatement update = db.prepareStatement(
+        "UPDATE Blobs SET RefCount = RefCount + 1 WHERE ContentHash = ?")) {
+      update.setString(1, contentHash);
+      if (update.executeUpdate() > 0) {
+        return true;
+      }
+    }
+    try (PreparedStatement insert = db.prepareStatement(
+        "INSERT INTO Blobs (ContentHash, RefCount) VALUES (?, 1)")) {
+      insert.setString(1, contentHash);
+      insert.executeUpdate();
+      return false;
+    }
+  }
+
+  // Fails open: an outage of the limiter should not stop uploads. A batch takes a token per photo
+  private static long admit(Connection db, String email, int photos, Log logger) {
+    try {
+      return UPLOADS.acquire(db, email, photos);
+    } catch (SQLException e) {
+      logger.warn("Rate limit check failed, admitting: {}", e.getMessage());
+      return 0;
+    }
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (Exception e) {
+        // Already broken, nothing to release
+      }
+      connection = null;
+    }
+  }
+
+  private Connection getConnection() throws Exception {
+    if (connection == null || !connection.isValid(2)) {
+      Class.forName("com.mysql.cj.jdbc.Driver");
+      connection = DriverManager.getConnection(JDBC_URL, setMySqlConnectionProperties());
     }
+    return connection;
   }
 
   private APIGatewayProxyResponseEvent createResponse(int statusCode, String body) {
@@ -133,7 +390,7 @@ public class LambdaAddPhotoDB implements RequestHandler<APIGatewayProxyRequestEv
     Properties props = new Properties();
     props.setProperty("useSSL", "true");
     props.setProperty("user", DB_USER);
-    props.setProperty("password", generateAuthToken());
+    props.setProperty("password", DB_PASSWORD != null ? DB_PASSWORD : generateAuthToken());
     return props;
   }
 
@@ -144,7 +401,7 @@ public class LambdaAddPhotoDB implements RequestHandler<APIGatewayProxyRequestEv
         .port(RDS_INSTANCE_PORT)
         .username(DB_USER)
         .region(Region.AP_SOUTHEAST_2)
-        .credentialsProvider(DefaultCredentialsProvider.create())
+        .credentialsProvider(credentialsProvider)
         .build());
   }
 }
@@ -0,0 +1,105 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LambdaAddPhotoDBTest {
+
+  private static final String EMAIL = "student@vgu.edu.vn";
+  private static final String HASH =
+      "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+  private static FakeBackend backend;
+
+  @BeforeClass
+  public static void startBackend() throws Exception {
+    backend = FakeBackend.started();
+  }
+
+  @AfterClass
+  public static void stopBackend() {
+    backend.close();
+  }
+
+  @Test
+  public void recreatesAndPrimesItsClientsOnRestore() throws Exception {
+    JSONObject primed = SnapStartContract.verify(LambdaAddPhotoDB::new,
+        "lambdaInvoke", "principal");
+    // No database in tests: the step runs and is reported, and fails
+    assertEquals("failed", primed.get("jdbc"));
+  }
+
+  @Test
+  public void takesContentHashesOnlyFromASignedPrincipal() {
+    backend.functions.put("LambdaTokenVerifier", payload -> "{\"valid\": true}");
+    JSONObject photo = new JSONObject()
+        .put("email", EMAIL)
+        .put("token", "valid-token")
+        .put("key", "cat.jpg")
+        .put("contentHash", HASH);
+
+    APIGatewayProxyResponseEvent response = add(new LambdaAddPhotoDB(), photo);
+
+    assertEquals(403, (int) response.getStatusCode());
+    // Refused before anything was admitted or written
+    assertTrue(response.getBody(), response.getBody().contains("principal"));
+  }
+
+  @Test
+  public void batchRowsNeedTheSamePrincipal() {
+    backend.functions.put("LambdaTokenVerifier", payload -> "{\"valid\": true}");
+    JSONObject batch = new JSONObject()
+        .put("email", EMAIL)
+        .put("token", "valid-token")
+        .put("photos", new JSONArray()
+            .put(new JSONObject().put("key", "a.jpg"))
+            .put(new JSONObject().put("key", "b.jpg").put("contentHash", HASH)));
+
+    assertEquals(403, (int) add(new LambdaAddPhotoDB(), batch).getStatusCode());
+  }
+
+  @Test
+  public void aSignedPrincipalStillNeedsAWellFormedHash() {
+    backend.parameters.put("cloud26internalkey", "internal-test-key");
+    InternalPrincipal.forget();
+    JSONObject photo = new JSONObject()
+        .put("email", EMAIL)
+        .put("token", "valid-token")
+        .put(InternalPrincipal.FIELD,
+            InternalPrincipal.sign(EMAIL, "test", new TestContext().getLogger()))
+        .put("key", "cat.jpg")
+        .put("contentHash", "../" + HASH.substring(3));
+
+    assertEquals(400, (int) add(new LambdaAddPhotoDB(), photo).getStatusCode());
+  }
+
+  @Test
+  public void aFailedWriteAnswersAServerError() {
+    backend.functions.put("LambdaTokenVerifier", payload -> "{\"valid\": true}");
+    JSONObject photo = new JSONObject()
+        .put("email", EMAIL)
+        .put("token", "valid-token")
+        .put("key", "cat.jpg");
+
+    // No database in tests: the connection fails, and nothing is written
+    APIGatewayProxyResponseEvent response = add(new LambdaAddPhotoDB(), photo);
+
+    assertEquals(500, (int) response.getStatusCode());
+    assertTrue(response.getBody(),
+        new JSONObject(response.getBody()).getString("error").startsWith("DB Insert Failed"));
+  }
+
+  private static APIGatewayProxyResponseEvent add(LambdaAddPhotoDB handler, JSONObject body) {
+    APIGatewayProxyRequestEvent event =
+        new APIGatewayProxyRequestEvent().withBody(body.toString());
+    return handler.handleRequest(event, new TestContext());
+  }
+}
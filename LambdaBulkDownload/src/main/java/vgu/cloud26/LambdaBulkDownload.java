@@ -0,0 +1,389 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.crac.Core;
+import org.crac.Resource;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import vgu.cloud26.InvokeClient.Policy;
+
+/**
+ * Downloads many photos as one ZIP archive.
+ *
+ * <p>The body names the photos in one of three ways, and carries the caller's credentials, which
+ * are checked once for the whole archive:
+ *
+ * <pre>
+ * {"email": "...", "token": "...", "keys": ["cat.jpg", "dog.png"]}
+ * {"email": "...", "token": "...", "prefix": "holiday-"}
+ * {"email": "...", "token": "...", "mine": true}
+ * </pre>
+ *
+ * <p>A function response is limited to 6 MB and cannot be streamed from Java, so the archive is
+ * streamed into S3 instead, as a multipart upload under {@code exports/} in the jobs bucket, and
+ * the answer is a link to it that works for {@link #LINK_TTL}. Objects are fetched {@link
+ * #READ_AHEAD} at a time ahead of the one being written, and entries go into the archive in the
+ * order asked for. Memory stays at the read-ahead window plus one upload part however large the
+ * archive gets.
+ */
+public final class LambdaBulkDownload
+    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
+
+  // --- CONFIGURATION ---
+  private InvokeClient invoker;
+  private S3Client s3Client;
+  private S3Presigner presigner;
+  private ContentStore store;
+  private static final String VERIFIER_FUNCTION_NAME = "LambdaTokenVerifier";
+  private static final String PHOTOS_FUNCTION_NAME = "LambdaGetPhotosDB";
+  private static final String BUCKET_NAME = "bucket-lam1303";
+  // Shares the async upload jobs' bucket, which is already kept out of the gallery and expires
+  private static final String EXPORT_BUCKET =
+      System.getProperty("cloud26.jobs.bucket", "bucket-lam1303-jobs");
+  private static final Duration LINK_TTL = Duration.ofMinutes(15);
+  private static final int MAX_KEYS = 1000;
+  // Same cap as LambdaGetObject; larger objects are left out and reported
+  private static final long MAX_OBJECT_BYTES = 10 * 1024 * 1024;
+  private static final int READ_AHEAD = 4;
+  private static final ExecutorService READS = Executors.newFixedThreadPool(READ_AHEAD, task -> {
+    Thread thread = new Thread(task, "zip-read");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  public LambdaBulkDownload() {
+    this.invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+    this.s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.presigner = S3Presigner.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.store = new ContentStore(s3Client, BUCKET_NAME);
+    Core.getGlobalContext().register(this);
+  }
+
+  // --- SNAPSTART HOOKS ---
+
+  @Override
+  public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+    // Load and initialize the request path into the snapshot, then drop pooled
+    // connections: sockets captured in a snapshot are dead after restore
+    prime(LambdaRuntime.getLogger()).finish();
+    InternalPrincipal.forget();
+    invoker.close();
+    s3Client.close();
+    presigner.close();
+  }
+
+  @Override
+  public void afterRestore(org.crac.Context<? extends Resource> context) {
+    // New clients resolve credentials from the restored environment and reconnect
+    invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+    s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    presigner = S3Presigner.builder().region(Region.AP_SOUTHEAST_2).build();
+    store = new ContentStore(s3Client, BUCKET_NAME);
+    prime(LambdaRuntime.getLogger()).finish();
+  }
+
+  @Override
+  public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    Metrics metrics = Metrics.begin(context, event);
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = handle(event, context, metrics);
+      return response;
+    } finally {
+      metrics.flush(response);
+    }
+  }
+
+  private APIGatewayProxyResponseEvent handle(
+      APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
+
+    Log logger = Log.begin(context);
+
+    if (Warmup.isWarmupEvent(event)) {
+      return prime(logger).toResponse();
+    }
+
+    try {
+      String requestBody = event.getBody();
+      if (requestBody == null) {
+        return createResponse(400, "{\"error\": \"Missing request body\"}");
+      }
+      JSONObject bodyJSON = new JSONObject(requestBody);
+
+      // 1. SECURITY CHECK, once for every photo in the archive
+      if (!bodyJSON.has("email") || !bodyJSON.has("token")) {
+        return createResponse(401, "{\"error\": \"Missing email or token\"}");
+      }
+      String credentials = new JSONObject()
+          .put("body", new JSONObject()
+              .put("email", bodyJSON.getString("email"))
+              .put("token", bodyJSON.getString("token"))
+              .toString())
+          .toString();
+      String verificationResult = metrics.time("VerifierLatency", () -> invoker.call(
+          VERIFIER_FUNCTION_NAME, credentials, Policy.READ, metrics.trace(), logger));
+      JSONObject verifyJson = new JSONObject(verificationResult);
+      if (verifyJson.has("error")) {
+        return createResponse(500, new JSONObject()
+            .put("error", "Verifier Error: " + verifyJson.getString("error")).toString());
+      }
+      if (!verifyJson.has("valid") || !verifyJson.getBoolean("valid")) {
+        return createResponse(401, "{\"error\": \"Unauthorized: Invalid Token\"}");
+      }
+
+      // 2. WHICH PHOTOS
+      Set<String> keys;
+      if (bodyJSON.has("keys")) {
+        keys = new LinkedHashSet<>();
+        for (Object key : bodyJSON.getJSONArray("keys")) {
+          keys.add(String.valueOf(key));
+        }
+      } else if (bodyJSON.has("prefix")) {
+        keys = metrics.time("S3ListLatency", () -> listKeys(bodyJSON.getString("prefix")));
+      } else if (bodyJSON.optBoolean("mine")) {
+        // Vouches for the token checked above, so the listing does not check it again
+        String email = bodyJSON.getString("email");
+        String listing = new JSONObject()
+            .put("body", new JSONObject()
+                .put("email", email)
+                .put("token", bodyJSON.getString("token"))
+                .put(InternalPrincipal.FIELD,
+                    InternalPrincipal.sign(email, metrics.trace().traceId(), logger))
+                .toString())
+            .toString();
+        keys = metrics.time("PhotosLatency",
+            () -> photosOf(email, listing, metrics.trace(), logger));
+      } else {
+        return createResponse(400, "{\"error\": \"Give keys, prefix or mine\"}");
+      }
+      // Content keys are storage internals, not photos anyone asked for by name
+      keys.removeIf(ContentHash::isContentKey);
+      if (keys.isEmpty()) {
+        return createResponse(404, "{\"error\": \"No photos to download\"}");
+      }
+      if (keys.size() > MAX_KEYS) {
+        return createResponse(400, new JSONObject()
+            .put("error", "At most " + MAX_KEYS + " photos per archive, got " + keys.size())
+            .toString());
+      }
+      metrics.put("ArchiveEntries", keys.size(), Metrics.Unit.COUNT);
+
+      // 3. STREAM THE ARCHIVE INTO S3
+      String exportKey = "exports/" + UUID.randomUUID() + ".zip";
+      JSONArray skipped = new JSONArray();
+      long zipStart = System.nanoTime();
+      long bytes = writeArchive(exportKey, keys, skipped, metrics);
+      metrics.putMillisSince("ArchiveLatency", zipStart);
+      metrics.put("ArchiveBytes", bytes, Metrics.Unit.BYTES);
+      logger.info("Wrote {} photos, {} bytes, to {}",
+          keys.size() - skipped.length(), bytes, exportKey);
+
+      // 4. LINK TO IT
+      String url = presigner.presignGetObject(request -> request
+          .signatureDuration(LINK_TTL)
+          .getObjectRequest(get -> get
+              .bucket(EXPORT_BUCKET)
+              .key(exportKey)
+              .responseContentDisposition("attachment; filename=\"photos.zip\"")))
+          .url().toString();
+
+      return createResponse(200, new JSONObject()
+          .put("url", url)
+          .put("expiresIn", LINK_TTL.toSeconds())
+          .put("count", keys.size() - skipped.length())
+          .put("bytes", bytes)
+          .put("skipped", skipped)
+          .toString());
+
+    } catch (Exception e) {
+      logger.error("Error: {}", e.getMessage());
+      return createResponse(500, "{\"error\": \"Server Error\"}");
+    }
+  }
+
+  /**
+   * Writes the archive, reading up to {@link #READ_AHEAD} photos ahead of the entry being written.
+   * Photos that are gone or too large are left out and added to {@code skipped}.
+   *
+   * @return the archive's size in bytes
+   */
+  private long writeArchive(String exportKey, Set<String> keys, JSONArray skipped, Metrics metrics)
+      throws IOException, InterruptedException {
+    MultipartOutputStream upload =
+        new MultipartOutputStream(s3Client, EXPORT_BUCKET, exportKey, "application/zip");
+    Deque<Future<Photo>> reads = new ArrayDeque<>();
+    Iterator<String> pending = keys.iterator();
+    try {
+      ZipOutputStream zip = new ZipOutputStream(upload);
+      while (pending.hasNext() && reads.size() < READ_AHEAD) {
+        reads.add(READS.submit(read(pending.next())));
+      }
+      while (!reads.isEmpty()) {
+        Photo photo = reads.poll().get();
+        if (pending.hasNext()) {
+          reads.add(READS.submit(read(pending.next())));
+        }
+        if (photo.data == null) {
+          skipped.put(new JSONObject().put("key", photo.key).put("reason", photo.problem));
+          continue;
+        }
+        zip.putNextEntry(entry(photo));
+        zip.write(photo.data);
+        zip.closeEntry();
+      }
+      // Writes the central directory; closing the upload stream completes the upload
+      zip.close();
+      return upload.written();
+    } catch (ExecutionException e) {
+      abandon(reads, upload);
+      throw new IOException("Reading a photo failed", e.getCause());
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      abandon(reads, upload);
+      throw e;
+    }
+  }
+
+  // Nothing half-written is kept: a failed archive leaves no parts behind
+  private static void abandon(Deque<Future<Photo>> reads, MultipartOutputStream upload) {
+    reads.forEach(read -> read.cancel(true));
+    upload.abort();
+  }
+
+  private Callable<Photo> read(String key) {
+    return () -> {
+      // Uploaded photos are aliases of their content, see ContentStore
+      try (ResponseInputStream<GetObjectResponse> object = store.get(key)) {
+        Long size = object.response().contentLength();
+        if (size != null && size > MAX_OBJECT_BYTES) {
+          // Skip the rest of the body rather than reading it to close the stream
+          object.abort();
+          return new Photo(key, null, "too large");
+        }
+        return new Photo(key, object.readAllBytes(), null);
+      } catch (NoSuchKeyException e) {
+        return new Photo(key, null, "not found");
+      }
+    };
+  }
+
+  // JPEG and PNG are compressed already; storing them costs nothing and saves the deflate
+  private static ZipEntry entry(Photo photo) {
+    ZipEntry entry = new ZipEntry(photo.key);
+    String name = photo.key.toLowerCase(Locale.ROOT);
+    if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")) {
+      CRC32 crc = new CRC32();
+      crc.update(photo.data);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(photo.data.length);
+      entry.setCompressedSize(photo.data.length);
+      entry.setCrc(crc.getValue());
+    }
+    return entry;
+  }
+
+  private Set<String> listKeys(String prefix) {
+    Set<String> keys = new LinkedHashSet<>();
+    for (S3Object object : s3Client.listObjectsV2Paginator(request -> request
+        .bucket(BUCKET_NAME)
+        .prefix(prefix)).contents()) {
+      // Skipped before counting: content keys are not photos, and would use up the cap
+      if (ContentHash.isContentKey(object.key())) {
+        continue;
+      }
+      keys.add(object.key());
+      // One more than allowed is enough to turn the request down
+      if (keys.size() > MAX_KEYS) {
+        break;
+      }
+    }
+    return keys;
+  }
+
+  // The caller's photos, from the same listing the gallery shows
+  private Set<String> photosOf(String email, String payload, Trace trace, Log logger) {
+    String result = invoker.call(PHOTOS_FUNCTION_NAME, payload, Policy.READ, trace, logger);
+    Set<String> keys = new LinkedHashSet<>();
+    if (!result.startsWith("[")) {
+      throw new IllegalStateException("Photo listing failed: " + result);
+    }
+    for (Object item : new JSONArray(result)) {
+      JSONObject photo = (JSONObject) item;
+      if (email.equals(photo.optString("email"))) {
+        keys.add(photo.getString("key"));
+      }
+    }
+    return keys;
+  }
+
+  /** One photo read for the archive: its bytes, or why there are none. */
+  private static final class Photo {
+    final String key;
+    final byte[] data;
+    final String problem;
+
+    Photo(String key, byte[] data, String problem) {
+      this.key = key;
+      this.data = data;
+      this.problem = problem;
+    }
+  }
+
+  // --- HELPERS ---
+
+  private Warmup prime(LambdaLogger logger) {
+    return new Warmup(logger)
+        .step("lambdaInvoke", () -> invoker.client().invoke(InvokeRequest.builder()
+            .functionName(VERIFIER_FUNCTION_NAME)
+            .invocationType("DryRun")
+            .build()))
+        .step("s3", () -> Warmup.headProbe(s3Client, BUCKET_NAME))
+        .step("principal", () -> InternalPrincipal.sign("warmup", Warmup.PROBE_KEY, logger))
+        .step("presign", () -> presigner.presignGetObject(request -> request
+            .signatureDuration(LINK_TTL)
+            .getObjectRequest(get -> get.bucket(EXPORT_BUCKET).key(Warmup.PROBE_KEY))))
+        .step("zip", () -> {
+          ZipOutputStream zip = new ZipOutputStream(OutputStream.nullOutputStream());
+          zip.putNextEntry(entry(new Photo("warmup.jpg", new byte[1024], null)));
+          zip.write(new byte[1024]);
+          zip.close();
+        });
+  }
+
+  private APIGatewayProxyResponseEvent createResponse(int statusCode, String body) {
+    return new APIGatewayProxyResponseEvent()
+        .withStatusCode(statusCode)
+        .withBody(body)
+        .withHeaders(java.util.Collections.singletonMap("Content-Type", "application/json"));
+  }
+}
@@ -0,0 +1,113 @@
+package vgu.cloud26;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+
+/**
+ * Writes one S3 object of unknown length as a multipart upload, holding at most one part in
+ * memory.
+ *
+ * <p>Every part but the last has to be at least 5 MB, so bytes are collected into a {@link
+ * #PART_BYTES} buffer and sent whenever it fills. {@link #close} sends the rest and completes the
+ * upload; {@link #abort} throws it away, otherwise S3 keeps the parts (and bills them) until a
+ * lifecycle rule removes incomplete uploads.
+ */
+final class MultipartOutputStream extends OutputStream {
+
+  static final int PART_BYTES = 8 * 1024 * 1024;
+
+  private final S3Client s3;
+  private final String bucket;
+  private final String key;
+  private final String uploadId;
+  private final List<CompletedPart> parts = new ArrayList<>();
+  private final byte[] buffer = new byte[PART_BYTES];
+  private int buffered;
+  private long written;
+  private boolean closed;
+
+  MultipartOutputStream(S3Client s3, String bucket, String key, String contentType) {
+    this.s3 = s3;
+    this.bucket = bucket;
+    this.key = key;
+    this.uploadId = s3.createMultipartUpload(request -> request
+        .bucket(bucket)
+        .key(key)
+        .contentType(contentType)).uploadId();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] data, int offset, int length) throws IOException {
+    if (closed) {
+      throw new IOException("Upload of " + key + " is closed");
+    }
+    while (length > 0) {
+      int chunk = Math.min(length, PART_BYTES - buffered);
+      System.arraycopy(data, offset, buffer, buffered, chunk);
+      buffered += chunk;
+      offset += chunk;
+      length -= chunk;
+      written += chunk;
+      if (buffered == PART_BYTES) {
+        uploadPart();
+      }
+    }
+  }
+
+  /** Bytes written so far, which is the object's size once closed. */
+  long written() {
+    return written;
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    // The last part may be short; a stream with nothing written still needs one part
+    if (buffered > 0 || parts.isEmpty()) {
+      uploadPart();
+    }
+    closed = true;
+    s3.completeMultipartUpload(request -> request
+        .bucket(bucket)
+        .key(key)
+        .uploadId(uploadId)
+        .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build()));
+  }
+
+  void abort() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    s3.abortMultipartUpload(request -> request.bucket(bucket).key(key).uploadId(uploadId));
+  }
+
+  private void uploadPart() {
+    int partNumber = parts.size() + 1;
+    String etag = s3.uploadPart(request -> request
+            .bucket(bucket)
+            .key(key)
+            .uploadId(uploadId)
+            .partNumber(partNumber)
+            .contentLength((long) buffered),
+        // Read straight from the buffer; fromBytes would copy the whole part
+        RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, buffered), buffered))
+        .eTag();
+    parts.add(CompletedPart.builder().partNumber(partNumber).eTag(etag).build());
+    buffered = 0;
+  }
+}
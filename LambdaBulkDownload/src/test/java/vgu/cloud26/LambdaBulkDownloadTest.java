@@ -0,0 +1,127 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LambdaBulkDownloadTest {
+
+  private static final String BUCKET = "bucket-lam1303";
+  private static final String EXPORT_BUCKET = "bucket-lam1303-jobs";
+  private static final Pattern EXPORT_KEY = Pattern.compile("exports/[0-9a-f-]+\\.zip");
+
+  private static FakeBackend backend;
+
+  @BeforeClass
+  public static void startBackend() throws Exception {
+    backend = FakeBackend.started();
+    backend.functions.put("LambdaTokenVerifier", payload -> "{\"valid\": true}");
+  }
+
+  @AfterClass
+  public static void stopBackend() {
+    backend.close();
+  }
+
+  @Test
+  public void recreatesAndPrimesItsClientsOnRestore() throws Exception {
+    SnapStartContract.verify(LambdaBulkDownload::new,
+        "lambdaInvoke", "s3", "principal", "presign", "zip");
+  }
+
+  @Test
+  public void storesPhotosDeflatesTheRestAndReportsWhatIsMissing() throws IOException {
+    byte[] photo = "not really a jpeg".getBytes(StandardCharsets.UTF_8);
+    String contentKey = ContentHash.contentKey(
+        "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08", "");
+    backend.putObject(BUCKET, contentKey, photo, "image/jpeg", Map.of());
+    backend.putObject(BUCKET, "archive-cat.jpg", new byte[0], "image/jpeg",
+        Map.of(ContentStore.ALIAS_METADATA, contentKey));
+    backend.putObject(BUCKET, "archive-notes.txt",
+        "notes, notes, notes".getBytes(StandardCharsets.UTF_8), "text/plain", Map.of());
+
+    JSONObject body = download(new JSONObject().put("keys", new JSONArray()
+        .put("archive-cat.jpg").put("archive-notes.txt").put("archive-gone.jpg")));
+
+    assertEquals(2, body.getInt("count"));
+    JSONArray skipped = body.getJSONArray("skipped");
+    assertEquals(1, skipped.length());
+    assertEquals("archive-gone.jpg", skipped.getJSONObject(0).getString("key"));
+    assertEquals("not found", skipped.getJSONObject(0).getString("reason"));
+
+    Matcher exportKey = EXPORT_KEY.matcher(body.getString("url"));
+    assertTrue(body.getString("url"), exportKey.find());
+    byte[] archive = backend.readBytes(EXPORT_BUCKET, exportKey.group());
+    assertEquals(archive.length, body.getLong("bytes"));
+    Map<String, ZipEntry> entries = new HashMap<>();
+    Map<String, byte[]> contents = new HashMap<>();
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+      for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        entries.put(entry.getName(), entry);
+        contents.put(entry.getName(), zip.readAllBytes());
+      }
+    }
+    assertEquals(2, entries.size());
+    assertNull(entries.get("archive-gone.jpg"));
+
+    // The alias's content, stored as is with its size and CRC in the local header
+    ZipEntry stored = entries.get("archive-cat.jpg");
+    CRC32 crc = new CRC32();
+    crc.update(photo);
+    assertEquals(ZipEntry.STORED, stored.getMethod());
+    assertEquals(photo.length, stored.getSize());
+    assertEquals(photo.length, stored.getCompressedSize());
+    assertEquals(crc.getValue(), stored.getCrc());
+    assertEquals(new String(photo, StandardCharsets.UTF_8),
+        new String(contents.get("archive-cat.jpg"), StandardCharsets.UTF_8));
+
+    assertEquals(ZipEntry.DEFLATED, entries.get("archive-notes.txt").getMethod());
+    assertEquals("notes, notes, notes",
+        new String(contents.get("archive-notes.txt"), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void aPrefixCountsOnlyPhotosTowardTheCap() {
+    // As many photos as an archive takes, next to their content keys under the same prefix
+    for (int i = 0; i < 1000; i++) {
+      backend.putObject(BUCKET, String.format("s%04d.jpg", i), new byte[0], "image/jpeg",
+          Map.of());
+      backend.putObject(BUCKET, ContentHash.contentKey(
+          String.format("%064x", i), ".jpg"), new byte[0], "image/jpeg", Map.of());
+    }
+
+    JSONObject body = download(new JSONObject().put("prefix", "s"));
+
+    assertEquals(1000, body.getInt("count"));
+    assertEquals(0, body.getJSONArray("skipped").length());
+  }
+
+  private static JSONObject download(JSONObject request) {
+    APIGatewayProxyResponseEvent response = new LambdaBulkDownload().handleRequest(
+        new APIGatewayProxyRequestEvent().withBody(request
+            .put("email", "student@vgu.edu.vn")
+            .put("token", "token")
+            .toString()),
+        new TestContext());
+    assertEquals(response.getBody(), 200, (int) response.getStatusCode());
+    return new JSONObject(response.getBody());
+  }
+}
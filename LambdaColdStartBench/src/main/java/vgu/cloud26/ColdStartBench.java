@@ -0,0 +1,283 @@
+package vgu.cloud26;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Cold-start benchmark for the handler modules.
+ *
+ * <p>For every shaded handler jar it finds, the bench starts a fresh JVM running {@link
+ * ColdStartProbe}, with all AWS calls pointed at a local {@link StubBackend}. It repeats that
+ * {@code --runs} times and reports the median init time, first-invocation time, loaded classes
+ * and heap. Passing several {@code --variant name=dir} options (e.g. jars built with a different
+ * HTTP client or with jar minimization) puts them side by side in one report.
+ *
+ * <pre>
+ * java -jar target/LambdaColdStartBench-1.0-SNAPSHOT.jar \
+ *     --variant baseline=/tmp/jars-before --variant current=.. --runs 5 --out report.md
+ * </pre>
+ *
+ * <p>The DB handlers cannot reach RDS from here, so their JDBC step fails fast and their first
+ * invocation numbers only cover the rest of the path.
+ */
+public class ColdStartBench {
+
+  private static final String[] METRICS = {
+    "process_ms", "init_ms", "first_ms", "classes_first", "heap_kb"
+  };
+  // Mirrors the tiered compilation setting the Lambda Java runtimes start with
+  private static final List<String> DEFAULT_JVM_ARGS = List.of("-XX:TieredStopAtLevel=1");
+
+  public static void main(String[] args) throws Exception {
+    Map<String, Path> variants = new LinkedHashMap<>();
+    List<String> jvmArgs = new ArrayList<>();
+    int runs = 5;
+    String only = null;
+    Path out = Paths.get("coldstart-report.md");
+    boolean verbose = false;
+
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--variant":
+          String[] parts = args[++i].split("=", 2);
+          variants.put(parts[0], Paths.get(parts[1]));
+          break;
+        case "--runs":
+          runs = Integer.parseInt(args[++i]);
+          break;
+        case "--jvm-arg":
+          jvmArgs.add(args[++i]);
+          break;
+        case "--only":
+          only = args[++i];
+          break;
+        case "--out":
+          out = Paths.get(args[++i]);
+          break;
+        case "--verbose":
+          verbose = true;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+    if (variants.isEmpty()) {
+      // Run from inside LambdaColdStartBench: pick up every sibling module's target jar
+      variants.put("current", Paths.get(".."));
+    }
+    if (jvmArgs.isEmpty()) {
+      jvmArgs.addAll(DEFAULT_JVM_ARGS);
+    }
+
+    // variant -> handler -> metric -> median
+    Map<String, Map<String, Map<String, Double>>> results = new LinkedHashMap<>();
+    try (StubBackend backend = new StubBackend()) {
+      for (Map.Entry<String, Path> variant : variants.entrySet()) {
+        Map<String, Map<String, Double>> byHandler = new TreeMap<>();
+        for (Map.Entry<String, Path> jar : findHandlerJars(variant.getValue()).entrySet()) {
+          String handlerClass = jar.getKey();
+          if (only != null && !handlerClass.endsWith(only)) {
+            continue;
+          }
+          List<Map<String, Double>> samples = new ArrayList<>();
+          for (int run = 0; run < runs; run++) {
+            Map<String, Double> sample =
+                runProbe(jar.getValue(), handlerClass, backend.endpointUrl(), jvmArgs, verbose);
+            if (sample != null) {
+              samples.add(sample);
+            }
+          }
+          System.out.println(variant.getKey() + " " + simpleName(handlerClass) + ": "
+              + samples.size() + "/" + runs + " runs ok");
+          if (!samples.isEmpty()) {
+            byHandler.put(simpleName(handlerClass), medians(samples));
+          }
+        }
+        results.put(variant.getKey(), byHandler);
+      }
+    }
+
+    String report = renderReport(results, runs, jvmArgs);
+    Files.writeString(out, report, StandardCharsets.UTF_8);
+    System.out.println();
+    System.out.println(report);
+    System.out.println("Report written to " + out.toAbsolutePath());
+  }
+
+  // --- HELPERS ---
+
+  /** Maps handler class (the shaded jar's Main-Class) to jar, skipping shade's original-*.jar. */
+  static Map<String, Path> findHandlerJars(Path dir) throws IOException {
+    Map<String, Path> jars = new TreeMap<>();
+    try (Stream<Path> files = Files.walk(dir, 3)) {
+      for (Path path : (Iterable<Path>) files::iterator) {
+        String name = path.getFileName().toString();
+        if (!name.startsWith("Lambda") || !name.endsWith(".jar")) {
+          continue;
+        }
+        try (JarFile jar = new JarFile(path.toFile())) {
+          String main = jar.getManifest() == null
+              ? null
+              : jar.getManifest().getMainAttributes().getValue("Main-Class");
+          // Tool jars (this bench, LambdaLocalEmulator) have non-handler main classes
+          if (main != null && simpleName(main).startsWith("Lambda")) {
+            jars.put(main, path);
+          }
+        }
+      }
+    }
+    return jars;
+  }
+
+  private static Map<String, Double> runProbe(
+      Path jar, String handlerClass, String endpointUrl, List<String> jvmArgs, boolean verbose)
+      throws Exception {
+    String probeLocation = Paths.get(
+        ColdStartProbe.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+        .toString();
+
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(jvmArgs);
+    command.addAll(Arrays.asList(
+        "-Daws.region=ap-southeast-2",
+        "-Daws.accessKeyId=bench",
+        "-Daws.secretAccessKey=bench",
+        "-Daws.endpointUrl=" + endpointUrl,
+        "-Dprobe.quiet=" + !verbose,
+        // Handler jar first so its own versions of shared libraries win
+        "-cp", jar + File.pathSeparator + probeLocation,
+        ColdStartProbe.class.getName(),
+        handlerClass));
+
+    long start = System.nanoTime();
+    Process process = new ProcessBuilder(command)
+        .redirectError(verbose ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.DISCARD)
+        .start();
+    String resultLine = null;
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(ColdStartProbe.RESULT_PREFIX)) {
+          resultLine = line;
+        }
+      }
+    }
+    if (!process.waitFor(2, TimeUnit.MINUTES)) {
+      process.destroyForcibly();
+    }
+    long processNanos = System.nanoTime() - start;
+    if (resultLine == null) {
+      System.err.println("No result from " + handlerClass + " (exit " + process.exitValue() + ")");
+      return null;
+    }
+
+    Map<String, Double> sample = new HashMap<>();
+    for (String pair : resultLine.substring(ColdStartProbe.RESULT_PREFIX.length()).split(" ")) {
+      String[] kv = pair.split("=", 2);
+      try {
+        sample.put(kv[0], Double.parseDouble(kv[1]));
+      } catch (NumberFormatException e) {
+        // status=null and similar, not a metric
+      }
+    }
+    sample.put("process_ms", processNanos / 1_000_000.0);
+    return sample;
+  }
+
+  private static Map<String, Double> medians(List<Map<String, Double>> samples) {
+    Map<String, Double> medians = new HashMap<>();
+    for (String metric : METRICS) {
+      double[] values = samples.stream()
+          .filter(s -> s.containsKey(metric))
+          .mapToDouble(s -> s.get(metric))
+          .sorted()
+          .toArray();
+      if (values.length > 0) {
+        int mid = values.length / 2;
+        medians.put(metric,
+            values.length % 2 == 1 ? values[mid] : (values[mid - 1] + values[mid]) / 2);
+      }
+    }
+    return medians;
+  }
+
+  static String renderReport(
+      Map<String, Map<String, Map<String, Double>>> results, int runs, List<String> jvmArgs) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("# Cold start report\n\n");
+    sb.append("Median of ").append(runs).append(" fresh JVMs per handler, JVM args `")
+        .append(String.join(" ", jvmArgs)).append("`, Java ")
+        .append(System.getProperty("java.version")).append(".\n\n");
+
+    List<String> names = new ArrayList<>(results.keySet());
+    String baseline = names.get(0);
+    for (String metric : METRICS) {
+      sb.append("## ").append(metric).append("\n\n| Handler |");
+      for (String name : names) {
+        sb.append(' ').append(name).append(" |");
+      }
+      for (int i = 1; i < names.size(); i++) {
+        sb.append(" delta ").append(names.get(i)).append(" vs ").append(baseline).append(" |");
+      }
+      sb.append("\n|---|");
+      sb.append("---:|".repeat(names.size() * 2 - 1)).append('\n');
+
+      TreeMap<String, Boolean> handlers = new TreeMap<>();
+      results.values().forEach(byHandler -> byHandler.keySet().forEach(h -> handlers.put(h, true)));
+      for (String handler : handlers.keySet()) {
+        sb.append("| ").append(handler).append(" |");
+        for (String name : names) {
+          sb.append(' ').append(format(value(results, name, handler, metric))).append(" |");
+        }
+        Double base = value(results, baseline, handler, metric);
+        for (int i = 1; i < names.size(); i++) {
+          Double other = value(results, names.get(i), handler, metric);
+          sb.append(' ');
+          if (base != null && other != null && base != 0) {
+            sb.append(String.format(Locale.ROOT, "%+.1f%%", (other - base) * 100 / base));
+          } else {
+            sb.append('-');
+          }
+          sb.append(" |");
+        }
+        sb.append('\n');
+      }
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static Double value(
+      Map<String, Map<String, Map<String, Double>>> results,
+      String variant, String handler, String metric) {
+    Map<String, Double> metrics = results.get(variant).get(handler);
+    return metrics == null ? null : metrics.get(metric);
+  }
+
+  private static String format(Double value) {
+    return value == null ? "-" : String.format(Locale.ROOT, "%.1f", value);
+  }
+
+  private static String simpleName(String className) {
+    return className.substring(className.lastIndexOf('.') + 1);
+  }
+}
@@ -0,0 +1,66 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+
+/**
+ * Runs inside a fresh JVM next to one handler's shaded jar: constructs the handler, sends it a
+ * single event and prints one result line for {@link ColdStartBench} to parse.
+ *
+ * <p>Usage: {@code ColdStartProbe <handler class> [event body]}. The default body is the warm-up
+ * ping, which goes through every real dependency of the handler.
+ */
+public class ColdStartProbe {
+
+  public static final String RESULT_PREFIX = "COLDSTART ";
+
+  @SuppressWarnings("unchecked")
+  public static void main(String[] args) throws Exception {
+    long mainEnteredMillis = System.currentTimeMillis();
+    String handlerClass = args[0];
+    String body = args.length > 1 ? args[1] : "{\"warmup\": true}";
+    boolean quiet = Boolean.getBoolean("probe.quiet");
+
+    ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+    // 1. Init phase: class loading, static initializers and the constructor
+    long initStart = System.nanoTime();
+    Object handler = Class.forName(handlerClass).getDeclaredConstructor().newInstance();
+    long initNanos = System.nanoTime() - initStart;
+    int classesAfterInit = classLoading.getLoadedClassCount();
+
+    // 2. First invocation
+    String functionName = handlerClass.substring(handlerClass.lastIndexOf('.') + 1);
+    APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent()
+        .withHttpMethod("POST")
+        .withHeaders(Collections.singletonMap("content-type", "application/json"))
+        .withBody(body);
+    long firstStart = System.nanoTime();
+    APIGatewayProxyResponseEvent response =
+        ((RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>) handler)
+            .handleRequest(event, new ProbeContext(functionName, 60_000, quiet));
+    long firstNanos = System.nanoTime() - firstStart;
+
+    int classesAfterFirst = classLoading.getLoadedClassCount();
+    long heapUsed = memory.getHeapMemoryUsage().getUsed();
+
+    System.out.println(RESULT_PREFIX
+        + "jvm_ms=" + (mainEnteredMillis - jvmStartMillis)
+        + " init_ms=" + initNanos / 1_000_000.0
+        + " first_ms=" + firstNanos / 1_000_000.0
+        + " classes_init=" + classesAfterInit
+        + " classes_first=" + classesAfterFirst
+        + " heap_kb=" + heapUsed / 1024
+        + " status=" + (response == null ? "null" : response.getStatusCode()));
+    System.out.flush();
+    // SDK clients leave non-daemon threads behind
+    System.exit(0);
+  }
+}
@@ -0,0 +1,91 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/** Minimal Lambda {@link Context} for running a handler outside the Lambda runtime. */
+public class ProbeContext implements Context {
+
+  private final String functionName;
+  private final String requestId = UUID.randomUUID().toString();
+  private final long deadlineMillis;
+  private final LambdaLogger logger;
+
+  public ProbeContext(String functionName, int timeoutMillis, boolean quiet) {
+    this.functionName = functionName;
+    this.deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+    // Handler logs go to stderr so stdout only carries the probe result
+    this.logger = new LambdaLogger() {
+      @Override
+      public void log(String message) {
+        if (!quiet) {
+          System.err.println("[" + functionName + "] " + message);
+        }
+      }
+
+      @Override
+      public void log(byte[] message) {
+        log(new String(message, StandardCharsets.UTF_8));
+      }
+    };
+  }
+
+  @Override
+  public String getAwsRequestId() {
+    return requestId;
+  }
+
+  @Override
+  public String getLogGroupName() {
+    return "/aws/lambda/" + functionName;
+  }
+
+  @Override
+  public String getLogStreamName() {
+    return "local";
+  }
+
+  @Override
+  public String getFunctionName() {
+    return functionName;
+  }
+
+  @Override
+  public String getFunctionVersion() {
+    return "$LATEST";
+  }
+
+  @Override
+  public String getInvokedFunctionArn() {
+    return "arn:aws:lambda:ap-southeast-2:000000000000:function:" + functionName;
+  }
+
+  @Override
+  public CognitoIdentity getIdentity() {
+    return null;
+  }
+
+  @Override
+  public ClientContext getClientContext() {
+    return null;
+  }
+
+  @Override
+  public int getRemainingTimeInMillis() {
+    return (int) Math.max(0, deadlineMillis - System.currentTimeMillis());
+  }
+
+  @Override
+  public int getMemoryLimitInMB() {
+    return (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+  }
+
+  @Override
+  public LambdaLogger getLogger() {
+    return logger;
+  }
+}
@@ -0,0 +1,112 @@
+package vgu.cloud26;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Canned answers for the AWS endpoints the handlers talk to, so probes never leave the machine.
+ *
+ * <p>Handlers are pointed here with {@code -Daws.endpointUrl=http://127.0.0.1:<port>}; because the
+ * endpoint is an IP address the S3 client uses path-style URLs. The Parameter Store extension is
+ * hard-wired to port 2773 in the token handlers, so it is stubbed there when the port is free.
+ */
+public final class StubBackend implements AutoCloseable {
+
+  private static final int PARAMETER_STORE_PORT = 2773;
+
+  private static final String EMPTY_LISTING =
+      "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+          + "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">"
+          + "<Name>stub</Name><IsTruncated>false</IsTruncated></ListBucketResult>";
+  private static final String NO_SUCH_KEY =
+      "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+          + "<Error><Code>NoSuchKey</Code><Message>stub</Message></Error>";
+  private static final String VERIFIED =
+      "{\"statusCode\": 200, \"body\": \"{\\\"valid\\\": true}\"}";
+
+  private final HttpServer aws;
+  private final HttpServer parameterStore;
+
+  public StubBackend() throws IOException {
+    aws = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    aws.createContext("/", this::handleAws);
+    aws.start();
+
+    HttpServer ssm;
+    try {
+      ssm = HttpServer.create(
+          new InetSocketAddress(InetAddress.getLoopbackAddress(), PARAMETER_STORE_PORT), 0);
+      ssm.createContext("/", exchange -> send(exchange, 200, "stub-signing-key"));
+      ssm.start();
+    } catch (IOException e) {
+      System.err.println("Port " + PARAMETER_STORE_PORT + " busy, parameter store not stubbed");
+      ssm = null;
+    }
+    parameterStore = ssm;
+  }
+
+  public String endpointUrl() {
+    return "http://127.0.0.1:" + aws.getAddress().getPort();
+  }
+
+  private void handleAws(HttpExchange exchange) throws IOException {
+    exchange.getRequestBody().readAllBytes();
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+
+    if (path.startsWith("/2015-03-31/functions/")) {
+      // Lambda Invoke: DryRun answers 204, anything else looks like a passing verifier
+      String type = exchange.getRequestHeaders().getFirst("X-Amz-Invocation-Type");
+      if ("DryRun".equals(type)) {
+        send(exchange, 204, null);
+      } else {
+        send(exchange, 200, VERIFIED);
+      }
+      return;
+    }
+
+    switch (method) {
+      case "HEAD":
+        send(exchange, 404, null);
+        break;
+      case "PUT":
+        exchange.getResponseHeaders().add("ETag", "\"stub\"");
+        send(exchange, 200, null);
+        break;
+      case "DELETE":
+        send(exchange, 204, null);
+        break;
+      default:
+        // Path-style: "/bucket" is a listing, "/bucket/key" an object read
+        boolean listing = path.indexOf('/', 1) < 0 || path.endsWith("/");
+        exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        send(exchange, listing ? 200 : 404, listing ? EMPTY_LISTING : NO_SUCH_KEY);
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status, String body) throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+      return;
+    }
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  @Override
+  public void close() {
+    aws.stop(0);
+    if (parameterStore != null) {
+      parameterStore.stop(0);
+    }
+  }
+}
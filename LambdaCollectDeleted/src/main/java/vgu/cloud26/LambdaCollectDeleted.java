@@ -0,0 +1,517 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.crac.Core;
+import org.crac.Resource;
+import org.json.JSONObject;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.rds.RdsUtilities;
+import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+
+/**
+ * Removes deleted photos for good: their Photos rows, their aliases in both buckets, and content
+ * whose last reference they were.
+ *
+ * <p>A delete only marks the rows, see LambdaDeletePhotoDB, and every listing leaves marked rows
+ * out. This function runs on a schedule (an EventBridge rule with the input {@code {"body":
+ * "{}"}}, every few minutes) and works through the marked rows {@link #KEYS_PER_ROUND} at a time,
+ * oldest first, until none are left or the invocation is nearly out of time:
+ *
+ * <pre>
+ * ALTER TABLE Photos ADD COLUMN DeletedAt TIMESTAMP NULL;
+ * CREATE INDEX PhotosDeleted ON Photos (DeletedAt);
+ * </pre>
+ *
+ * <p>Each round is a short transaction and then the S3 deletes. The transaction locks every Photos
+ * row of its keys and the Blobs rows of their content, purges the rows, releases content whose
+ * last reference they were, and records what is to go as {@link PendingDeletes}. An alias is kept
+ * when its key has a live row again, which is a re-upload's. Only after the commit are the entries
+ * claimed and the objects deleted, so no lock is held across S3 calls. An upload that references a
+ * key or content in the meantime takes its entry back, or, once the delete is claimed, is told to
+ * retry until it is over.
+ *
+ * <p>Objects go in {@code DeleteObjects} batches of up to {@link #DELETE_BATCH} keys,
+ * {@link #IN_FLIGHT} requests at a time, and keys S3 reports as failed are retried. Entries still
+ * failing are handed back for the next run; deleting an object twice is harmless, so nothing is
+ * lost by redoing the part that succeeded.
+ */
+public final class LambdaCollectDeleted
+    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
+
+  // --- CONFIGURATION ---
+  private static final String BUCKET_NAME = "bucket-lam1303";
+  private static final String RESIZED_BUCKET_NAME = "resizebucket-lam1303";
+
+  // DB CONFIG
+  private static final String RDS_INSTANCE_HOSTNAME = "database-lam1303.cfk8w6wse6nw.ap-southeast-2.rds.amazonaws.com";
+  private static final int RDS_INSTANCE_PORT = 3306;
+  private static final String DB_USER = "cloud26";
+  // Both overridable with system properties so LambdaLocalEmulator can run against an
+  // embedded database; a set password replaces the IAM auth token
+  private static final String JDBC_URL = System.getProperty("cloud26.jdbc.url",
+      "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT + "/Cloud26");
+  private static final String DB_PASSWORD = System.getProperty("cloud26.jdbc.password");
+
+  // Marked rows per transaction. Each has up to five objects (two aliases, the original's content
+  // and two possible thumbnail types), so a round is a handful of DeleteObjects requests
+  private static final int KEYS_PER_ROUND = 200;
+  // Pending deletes per round: what the round itself added, an alias and content per row at most,
+  // plus room for entries earlier runs handed back
+  private static final int PENDING_PER_ROUND = 3 * KEYS_PER_ROUND;
+  // The most keys S3 takes in one DeleteObjects request
+  private static final int DELETE_BATCH = 1000;
+  // DeleteObjects requests in flight at once, across both buckets
+  private static final int IN_FLIGHT = 4;
+  private static final int ATTEMPTS = 3;
+  private static final long RETRY_BACKOFF_MILLIS = 200;
+  // No round starts with less than this left, so one never runs into the timeout with locks held
+  private static final long TIME_RESERVE_MILLIS = 10_000;
+  private static final ExecutorService DELETES = Executors.newFixedThreadPool(IN_FLIGHT, task -> {
+    Thread thread = new Thread(task, "collect-delete");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private S3Client s3Client;
+  // Reused across invocations of this container, reopened when it goes stale
+  private Connection connection;
+  // Replaced after a SnapStart restore, see afterRestore
+  private static DefaultCredentialsProvider credentialsProvider = DefaultCredentialsProvider.builder().build();
+
+  /** What one round did; {@code marked} short of a full round means nothing is left. */
+  private static final class Round {
+    int marked;
+    int keys;
+    int rows;
+    int released;
+    int objects;
+    int failed;
+  }
+
+  public LambdaCollectDeleted() {
+    this.s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    Core.getGlobalContext().register(this);
+  }
+
+  // --- SNAPSTART HOOKS ---
+
+  @Override
+  public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+    // Load and initialize the request path into the snapshot, then drop pooled
+    // connections: sockets captured in a snapshot are dead after restore
+    prime(LambdaRuntime.getLogger()).finish();
+    s3Client.close();
+    closeConnection();
+  }
+
+  @Override
+  public void afterRestore(org.crac.Context<? extends Resource> context) {
+    // New clients resolve credentials from the restored environment and reconnect
+    s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    // Credentials from before the snapshot are stale, and IAM DB tokens are signed with them
+    credentialsProvider.close();
+    credentialsProvider = DefaultCredentialsProvider.builder().build();
+    prime(LambdaRuntime.getLogger()).finish();
+  }
+
+  @Override
+  public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    Metrics metrics = Metrics.begin(context, event);
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = handle(event, context, metrics);
+      return response;
+    } finally {
+      metrics.flush(response);
+    }
+  }
+
+  private APIGatewayProxyResponseEvent handle(
+      APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
+
+    Log logger = Log.begin(context);
+
+    if (Warmup.isWarmupEvent(event)) {
+      return prime(logger).toResponse();
+    }
+
+    Round total = new Round();
+    int rounds = 0;
+    try {
+      Connection db = metrics.time("JdbcConnectLatency", this::getConnection);
+      Round round;
+      do {
+        round = metrics.time("RoundLatency",
+            () -> collect(db, context.getAwsRequestId(), logger));
+        rounds++;
+        total.keys += round.keys;
+        total.rows += round.rows;
+        total.released += round.released;
+        total.objects += round.objects;
+        total.failed += round.failed;
+        // A failed round is retried by the next run, not straight away against the same error.
+        // Rows, not keys, tell a full round: a key marked twice fills two of its rows
+      } while (round.marked == KEYS_PER_ROUND && round.failed == 0
+          && context.getRemainingTimeInMillis() > TIME_RESERVE_MILLIS);
+
+      logger.info("Collected {} rows of {} keys in {} rounds", total.rows, total.keys, rounds);
+      return createResponse(total.failed == 0 ? 200 : 500, report(total, rounds).toString());
+
+    } catch (Exception ex) {
+      logger.error("Error: {}", ex);
+      return createResponse(500, report(total, rounds)
+          .put("error", "Collection failed: " + ex.getMessage())
+          .toString());
+    } finally {
+      metrics.put("CollectedRows", total.rows, Metrics.Unit.COUNT);
+      metrics.put("ReleasedContent", total.released, Metrics.Unit.COUNT);
+      metrics.put("DeletedObjects", total.objects, Metrics.Unit.COUNT);
+      metrics.put("FailedObjects", total.failed, Metrics.Unit.COUNT);
+    }
+  }
+
+  private static JSONObject report(Round total, int rounds) {
+    return new JSONObject()
+        .put("rounds", rounds)
+        .put("keys", total.keys)
+        .put("rows", total.rows)
+        .put("released", total.released)
+        .put("objects", total.objects)
+        .put("failed", total.failed);
+  }
+
+  // --- COLLECTION ---
+
+  /**
+   * One round: up to {@link #KEYS_PER_ROUND} marked rows purged in one transaction, then the
+   * objects they leave behind deleted, along with any earlier run handed back.
+   */
+  private Round collect(Connection db, String claimer, Log logger)
+      throws SQLException, InterruptedException {
+    Round round = purge(db);
+    List<String> names = PendingDeletes.claim(db, claimer, PENDING_PER_ROUND);
+    if (names.isEmpty()) {
+      return round;
+    }
+
+    // Aliases of keys nobody has uploaded again, and content nothing references any more.
+    // LambdaResizer keys thumbnails by the original's hash and the image type
+    List<String> originals = new ArrayList<>();
+    List<String> thumbnails = new ArrayList<>();
+    for (String name : names) {
+      originals.add(name);
+      if (ContentHash.isContentKey(name)) {
+        thumbnails.add(name + ".jpg");
+        thumbnails.add(name + ".png");
+      } else {
+        thumbnails.add("resized-" + name);
+      }
+    }
+    round.objects = originals.size() + thumbnails.size();
+    Set<String> failed = deleteObjects(
+        Map.of(BUCKET_NAME, originals, RESIZED_BUCKET_NAME, thumbnails), logger);
+    round.failed = failed.size();
+
+    // A name is done when all of its objects are; the others go back for the next run
+    List<String> done = new ArrayList<>();
+    List<String> retry = new ArrayList<>();
+    for (String name : names) {
+      boolean gone = ContentHash.isContentKey(name)
+          ? !failed.contains(name) && !failed.contains(name + ".jpg")
+              && !failed.contains(name + ".png")
+          : !failed.contains(name) && !failed.contains("resized-" + name);
+      if (gone) {
+        done.add(name);
+      } else {
+        retry.add(name);
+      }
+    }
+    PendingDeletes.done(db, claimer, done);
+    PendingDeletes.release(db, claimer, retry);
+    if (!retry.isEmpty()) {
+      logger.warn("{} of {} pending deletes left for the next run: {} objects not deleted",
+          retry.size(), names.size(), round.failed);
+    }
+    return round;
+  }
+
+  /** Purges up to {@link #KEYS_PER_ROUND} marked rows and records what they leave to delete. */
+  private static Round purge(Connection db) throws SQLException {
+    Round round = new Round();
+    boolean autoCommit = db.getAutoCommit();
+    db.setAutoCommit(false);
+    try {
+      // Oldest first, through PhotosDeleted; a key marked twice is collected once
+      Set<String> keys = new LinkedHashSet<>();
+      try (PreparedStatement select = db.prepareStatement(
+          "SELECT S3Key FROM Photos WHERE DeletedAt IS NOT NULL ORDER BY DeletedAt LIMIT ?")) {
+        select.setInt(1, KEYS_PER_ROUND);
+        try (ResultSet rs = select.executeQuery()) {
+          while (rs.next()) {
+            round.marked++;
+            keys.add(rs.getString(1));
+          }
+        }
+      }
+      round.keys = keys.size();
+      if (keys.isEmpty()) {
+        db.commit();
+        return round;
+      }
+
+      // Every row of these keys, live or not. The lock also holds back new rows for them, so a
+      // re-upload of a key waits for this round and then takes its alias back from the deletes
+      String in = placeholders(keys.size());
+      Map<String, Integer> references = new TreeMap<>();
+      Set<String> liveKeys = new LinkedHashSet<>();
+      try (PreparedStatement lock = db.prepareStatement(
+          "SELECT S3Key, ContentHash, DeletedAt FROM Photos WHERE S3Key IN (" + in + ")"
+              + " FOR UPDATE")) {
+        bind(lock, keys);
+        try (ResultSet rs = lock.executeQuery()) {
+          while (rs.next()) {
+            if (rs.getTimestamp("DeletedAt") == null) {
+              liveKeys.add(rs.getString("S3Key"));
+            } else if (rs.getString("ContentHash") != null) {
+              // One reference per row; rows from before content hashing have none
+              references.merge(rs.getString("ContentHash"), 1, Integer::sum);
+            }
+          }
+        }
+      }
+
+      try (PreparedStatement purge = db.prepareStatement(
+          "DELETE FROM Photos WHERE S3Key IN (" + in + ") AND DeletedAt IS NOT NULL")) {
+        bind(purge, keys);
+        round.rows = purge.executeUpdate();
+      }
+
+      // In hash order, as every round takes them, so two rounds cannot deadlock on Blobs
+      List<String> released = new ArrayList<>();
+      if (!references.isEmpty()) {
+        try (PreparedStatement update = db.prepareStatement(
+            "UPDATE Blobs SET RefCount = RefCount - ? WHERE ContentHash = ?")) {
+          for (Map.Entry<String, Integer> reference : references.entrySet()) {
+            update.setInt(1, reference.getValue());
+            update.setString(2, reference.getKey());
+            update.addBatch();
+          }
+          update.executeBatch();
+        }
+        try (PreparedStatement gone = db.prepareStatement(
+            "SELECT ContentHash FROM Blobs WHERE ContentHash IN ("
+                + placeholders(references.size()) + ") AND RefCount <= 0 FOR UPDATE")) {
+          bind(gone, references.keySet());
+          try (ResultSet rs = gone.executeQuery()) {
+            while (rs.next()) {
+              released.add(rs.getString(1));
+            }
+          }
+        }
+      }
+      round.released = released.size();
+
+      List<String> names = new ArrayList<>();
+      for (String key : keys) {
+        if (!liveKeys.contains(key)) {
+          names.add(key);
+        }
+      }
+      if (!released.isEmpty()) {
+        try (PreparedStatement forget = db.prepareStatement(
+            "DELETE FROM Blobs WHERE ContentHash IN (" + placeholders(released.size())
+                + ") AND RefCount <= 0")) {
+          bind(forget, released);
+          forget.executeUpdate();
+        }
+        for (String hash : released) {
+          names.add(ContentHash.contentKey(hash, ""));
+        }
+      }
+      PendingDeletes.add(db, names);
+      // Listings left these rows out since they were marked, so no cached page changes and
+      // the Photos version stays where it is
+      db.commit();
+      return round;
+    } catch (SQLException | RuntimeException e) {
+      db.rollback();
+      throw e;
+    } finally {
+      db.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Deletes every key of every bucket, {@link #DELETE_BATCH} keys per request and {@link
+   * #IN_FLIGHT} requests at a time.
+   *
+   * @return the keys that could not be deleted
+   */
+  private Set<String> deleteObjects(Map<String, List<String>> keysByBucket, Log logger)
+      throws InterruptedException {
+    List<Future<List<String>>> batches = new ArrayList<>();
+    for (Map.Entry<String, List<String>> bucket : keysByBucket.entrySet()) {
+      List<String> keys = bucket.getValue();
+      for (int from = 0; from < keys.size(); from += DELETE_BATCH) {
+        List<String> batch = keys.subList(from, Math.min(keys.size(), from + DELETE_BATCH));
+        batches.add(DELETES.submit(() -> deleteBatch(bucket.getKey(), batch, logger)));
+      }
+    }
+    // One set for both buckets: a key failing in either sends its name back, which is harmless
+    Set<String> failed = new HashSet<>();
+    try {
+      for (Future<List<String>> batch : batches) {
+        failed.addAll(batch.get());
+      }
+    } catch (ExecutionException e) {
+      // deleteBatch reports failures rather than throwing, so this is a bug
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      batches.forEach(batch -> batch.cancel(true));
+    }
+    return failed;
+  }
+
+  /**
+   * One DeleteObjects request, then again for the keys S3 reports as failed, up to {@link
+   * #ATTEMPTS} times with backoff. Keys that do not exist count as deleted.
+   *
+   * @return the keys still not deleted
+   */
+  private List<String> deleteBatch(String bucket, List<String> keys, Log logger)
+      throws InterruptedException {
+    List<String> pending = keys;
+    for (int attempt = 1; ; attempt++) {
+      List<String> failed = new ArrayList<>();
+      try {
+        List<ObjectIdentifier> objects = new ArrayList<>();
+        for (String key : pending) {
+          objects.add(ObjectIdentifier.builder().key(key).build());
+        }
+        // Quiet: the answer lists only the keys that failed
+        DeleteObjectsResponse response = s3Client.deleteObjects(DeleteObjectsRequest.builder()
+            .bucket(bucket)
+            .delete(Delete.builder().objects(objects).quiet(true).build())
+            .build());
+        for (S3Error error : response.errors()) {
+          failed.add(error.key());
+        }
+        if (!failed.isEmpty()) {
+          logger.warn("{} keys not deleted from {}: {}", failed.size(), bucket,
+              response.errors().get(0).code());
+        }
+      } catch (SdkException e) {
+        // The SDK has retried throttling and 5xx already; the whole batch is still pending
+        logger.warn("DeleteObjects on {} failed: {}", bucket, e.getMessage());
+        failed = pending;
+      }
+      if (failed.isEmpty() || attempt == ATTEMPTS) {
+        return failed;
+      }
+      Thread.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+      pending = failed;
+    }
+  }
+
+  private static String placeholders(int count) {
+    return String.join(", ", Collections.nCopies(count, "?"));
+  }
+
+  private static void bind(PreparedStatement statement, Iterable<String> values)
+      throws SQLException {
+    int index = 1;
+    for (String value : values) {
+      statement.setString(index++, value);
+    }
+  }
+
+  // --- HELPER METHODS ---
+
+  private Warmup prime(LambdaLogger logger) {
+    return new Warmup(logger)
+        .step("s3", () -> Warmup.headProbe(s3Client, BUCKET_NAME))
+        .step("s3Resized", () -> Warmup.headProbe(s3Client, RESIZED_BUCKET_NAME))
+        .step("jdbc", () -> {
+          try (PreparedStatement st = getConnection().prepareStatement("SELECT 1");
+              ResultSet rs = st.executeQuery()) {
+            rs.next();
+          }
+        });
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (Exception e) {
+        // Already broken, nothing to release
+      }
+      connection = null;
+    }
+  }
+
+  private Connection getConnection() throws Exception {
+    if (connection == null || !connection.isValid(2)) {
+      Class.forName("com.mysql.cj.jdbc.Driver");
+      connection = DriverManager.getConnection(JDBC_URL, setMySqlConnectionProperties());
+    }
+    return connection;
+  }
+
+  private APIGatewayProxyResponseEvent createResponse(int statusCode, String body) {
+    return new APIGatewayProxyResponseEvent()
+        .withStatusCode(statusCode)
+        .withBody(body)
+        .withHeaders(java.util.Collections.singletonMap("Content-Type", "application/json"));
+  }
+
+  private static Properties setMySqlConnectionProperties() throws Exception {
+    Properties props = new Properties();
+    props.setProperty("useSSL", "true");
+    props.setProperty("user", DB_USER);
+    props.setProperty("password", DB_PASSWORD != null ? DB_PASSWORD : generateAuthToken());
+    return props;
+  }
+
+  private static String generateAuthToken() {
+    RdsUtilities rdsUtilities = RdsUtilities.builder().build();
+    return rdsUtilities.generateAuthenticationToken(GenerateAuthenticationTokenRequest.builder()
+        .hostname(RDS_INSTANCE_HOSTNAME)
+        .port(RDS_INSTANCE_PORT)
+        .username(DB_USER)
+        .region(Region.AP_SOUTHEAST_2)
+        .credentialsProvider(credentialsProvider)
+        .build());
+  }
+}
@@ -0,0 +1,30 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LambdaCollectDeletedTest {
+
+  private static FakeBackend backend;
+
+  @BeforeClass
+  public static void startBackend() throws Exception {
+    backend = FakeBackend.started();
+  }
+
+  @AfterClass
+  public static void stopBackend() {
+    backend.close();
+  }
+
+  @Test
+  public void recreatesAndPrimesItsClientsOnRestore() throws Exception {
+    JSONObject primed = SnapStartContract.verify(LambdaCollectDeleted::new, "s3", "s3Resized");
+    // No database in tests: the step runs and is reported, and fails
+    assertEquals("failed", primed.get("jdbc"));
+  }
+}
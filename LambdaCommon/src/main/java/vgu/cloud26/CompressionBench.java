@@ -0,0 +1,111 @@
+package vgu.cloud26;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Weighs the CPU {@link ResponseCompression} spends against the bytes it saves, on gallery-shaped
+ * JSON of several sizes, next to gzip at higher levels.
+ *
+ * <pre>
+ * java -cp target/LambdaCommon-1.0-SNAPSHOT.jar vgu.cloud26.CompressionBench [--runs 200]
+ * </pre>
+ *
+ * <p>For each payload it prints the raw size, then per way the median time, the Base64 size that
+ * goes on the wire, and the ratio. "shipped" is the pooled level 1 path the handlers use; the
+ * level columns use a fresh {@link GZIPOutputStream} each time. Add {@code
+ * -XX:TieredStopAtLevel=1} to see what a Lambda runtime with default JVM options gets.
+ */
+public class CompressionBench {
+
+  private static final int[] ROWS = {5, 50, 500, 2000};
+  private static final int[] LEVELS = {Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION};
+
+  public static void main(String[] args) throws IOException {
+    int runs = 200;
+    for (int i = 0; i < args.length; i++) {
+      if ("--runs".equals(args[i])) {
+        runs = Integer.parseInt(args[++i]);
+      } else {
+        throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+
+    System.out.printf("median of %d runs; time in us, size is the Base64 body in bytes%n", runs);
+    System.out.printf("%-8s%10s%24s", "rows", "raw", "shipped");
+    for (int level : LEVELS) {
+      System.out.printf("%24s", "level " + level);
+    }
+    System.out.println();
+    for (int rows : ROWS) {
+      byte[] raw = gallery(rows).getBytes(StandardCharsets.UTF_8);
+      System.out.printf("%-8d%10d", rows, raw.length);
+      report(raw, runs, 0);
+      for (int level : LEVELS) {
+        report(raw, runs, level);
+      }
+      System.out.println();
+    }
+    System.out.printf("bodies under %d bytes are sent as they are%n",
+        ResponseCompression.MIN_COMPRESS_BYTES);
+  }
+
+  // level 0 stands for the shipped path
+  private static void report(byte[] raw, int runs, int level) throws IOException {
+    byte[] compressed = compress(raw, level);
+    for (int i = 0; i < Math.max(20, runs / 2); i++) {
+      compress(raw, level);
+    }
+    double[] micros = new double[runs];
+    for (int i = 0; i < runs; i++) {
+      long start = System.nanoTime();
+      Base64.getEncoder().encodeToString(compress(raw, level));
+      micros[i] = (System.nanoTime() - start) / 1e3;
+    }
+    Arrays.sort(micros);
+    int wire = Base64.getEncoder().encode(compressed).length;
+    System.out.printf("%10.1f%8d%5.1fx", micros[runs / 2], wire, (double) raw.length / wire);
+  }
+
+  private static byte[] compress(byte[] raw, int level) throws IOException {
+    if (level == 0) {
+      return ResponseCompression.gzip(raw);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+      {
+        def.setLevel(level);
+      }
+    }) {
+      gzip.write(raw);
+    }
+    return out.toByteArray();
+  }
+
+  // Rows shaped like LambdaGetPhotosDB's answer, with some variety so nothing compresses for free
+  private static String gallery(int rows) {
+    Random random = new Random(26);
+    String[] words = {"beach", "family", "sunset", "campus", "lab", "trip", "cat", "graduation"};
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < rows; i++) {
+      String key = "IMG_" + (20240000 + random.nextInt(10000)) + "_" + i + ".jpg";
+      json.append(i == 0 ? "" : ",")
+          .append("{\"key\":\"").append(key)
+          .append("\",\"description\":\"").append(words[random.nextInt(words.length)])
+          .append(' ').append(words[random.nextInt(words.length)])
+          .append("\",\"email\":\"user").append(random.nextInt(50)).append("@vgu.edu.vn")
+          .append("\",\"width\":").append(800 + random.nextInt(4000))
+          .append(",\"height\":").append(600 + random.nextInt(3000))
+          .append(",\"format\":\"jpeg\",\"byteSize\":")
+          .append(100_000 + random.nextInt(5_000_000))
+          .append(",\"orientation\":1,\"thumbnail\":true}");
+    }
+    return json.append(']').toString();
+  }
+}
@@ -0,0 +1,76 @@
+package vgu.cloud26;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.regex.Pattern;
+
+/**
+ * SHA-256 content addresses for uploaded photos.
+ *
+ * <p>Bytes are stored once per bucket under {@code sha256/<hex>} (plus a suffix for renditions),
+ * and the keys users see are aliases of them, see {@link ContentStore}. The {@code Blobs} table
+ * counts the Photos rows that reference each hash; the bytes go when the last reference does:
+ *
+ * <pre>
+ * CREATE TABLE Blobs (
+ *   ContentHash CHAR(64) NOT NULL PRIMARY KEY,
+ *   RefCount INT NOT NULL
+ * );
+ * ALTER TABLE Photos ADD COLUMN ContentHash CHAR(64);
+ * </pre>
+ *
+ * <p>Hashes are computed by the function that holds the bytes. LambdaAddPhotoDB takes one from a
+ * request only with a signed {@link InternalPrincipal}, i.e. from the orchestrator that hashed the
+ * upload: a caller-chosen hash would let one user reference, and later free, another's photo.
+ */
+public final class ContentHash {
+
+  private static final String PREFIX = "sha256/";
+  private static final Pattern HEX_SHA256 = Pattern.compile("[0-9a-f]{64}");
+
+  private ContentHash() {}
+
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every JRE has to provide SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /** Lower-case hex of the digest; resets it. */
+  public static String hex(MessageDigest digest) {
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /** Hash of a base64 field in an upload body, decoded and hashed in one pass. */
+  public static String ofBase64(JsonEnvelope.Envelope body, String field) {
+    MessageDigest digest = newDigest();
+    body.digestBase64(field, digest);
+    return hex(digest);
+  }
+
+  public static boolean isValid(String hash) {
+    return hash != null && HEX_SHA256.matcher(hash).matches();
+  }
+
+  /**
+   * Key of the content with this hash; {@code suffix} tells renditions of the same original apart,
+   * e.g. {@code ".jpg"}.
+   *
+   * @throws IllegalArgumentException if {@code hash} is not a lower-case hex SHA-256
+   */
+  public static String contentKey(String hash, String suffix) {
+    if (!isValid(hash)) {
+      throw new IllegalArgumentException("Not a SHA-256 hash: " + hash);
+    }
+    return PREFIX + hash + suffix;
+  }
+
+  /** Whether {@code key} is content rather than something a user named. */
+  public static boolean isContentKey(String key) {
+    return key.startsWith(PREFIX);
+  }
+}
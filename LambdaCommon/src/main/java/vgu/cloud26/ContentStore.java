@@ -0,0 +1,161 @@
+package vgu.cloud26;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Content-addressed objects in one bucket, and the aliases users address them by.
+ *
+ * <p>The bytes live under a {@link ContentHash#contentKey content key} and are written only if
+ * that key does not exist yet, so a photo uploaded ten times is stored (and resized) once. The
+ * user's key becomes an alias: an empty object whose {@value #ALIAS_METADATA} user metadata names
+ * the content key. {@link #get} follows it; objects written before aliases existed have no such
+ * metadata and are read as they are.
+ *
+ * <p>Deleting an alias never touches the content. The content goes with {@link #deleteContent},
+ * once the {@code Blobs} table says its last reference is gone.
+ */
+public final class ContentStore {
+
+  /** User metadata on an alias: the key of the content it stands for. */
+  public static final String ALIAS_METADATA = "content-key";
+
+  private final S3Client s3;
+  private final String bucket;
+
+  public ContentStore(S3Client s3, String bucket) {
+    this.s3 = s3;
+    this.bucket = bucket;
+  }
+
+  /**
+   * Stores {@code data} under {@code contentKey} unless it is already there, then points {@code
+   * alias} at it.
+   *
+   * @return true if the bytes were written, false if they were already stored
+   */
+  public boolean put(String alias, String contentKey, byte[] data, String contentType) {
+    boolean stored = exists(contentKey);
+    if (!stored) {
+      // Two first uploads of the same bytes may both get here; the second put is identical
+      putContent(contentKey, data, contentType);
+    }
+    alias(alias, contentKey, contentType);
+    return !stored;
+  }
+
+  /** Writes the content unconditionally, for callers that have already checked {@link #exists}. */
+  public void putContent(String contentKey, byte[] data, String contentType) {
+    putContent(contentKey, data, contentType, Map.of());
+  }
+
+  /** {@link #putContent} with user metadata, which {@link #head} of any alias returns. */
+  public void putContent(String contentKey, byte[] data, String contentType,
+      Map<String, String> metadata) {
+    s3.putObject(PutObjectRequest.builder()
+            .bucket(bucket)
+            .key(contentKey)
+            .contentType(contentType)
+            .metadata(metadata)
+            .build(),
+        RequestBody.fromBytes(data));
+  }
+
+  public boolean exists(String contentKey) {
+    return headOrNull(contentKey) != null;
+  }
+
+  public void alias(String alias, String contentKey, String contentType) {
+    s3.putObject(PutObjectRequest.builder()
+            .bucket(bucket)
+            .key(alias)
+            .contentType(contentType)
+            .metadata(Map.of(ALIAS_METADATA, contentKey))
+            .build(),
+        RequestBody.empty());
+  }
+
+  /**
+   * Opens {@code key}, following it to its content if it is an alias.
+   *
+   * @throws NoSuchKeyException if the key, or the content it points at, does not exist
+   */
+  public ResponseInputStream<GetObjectResponse> get(String key) {
+    ResponseInputStream<GetObjectResponse> object = open(key);
+    String contentKey = object.response().metadata().get(ALIAS_METADATA);
+    if (contentKey == null) {
+      return object;
+    }
+    try {
+      // The alias body is empty, so closing drains nothing and keeps the connection pooled
+      object.close();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return open(contentKey);
+  }
+
+  /**
+   * Size and type of {@code key}, from its content if it is an alias: the alias itself is empty.
+   *
+   * @return null if the key, or the content it points at, does not exist
+   */
+  public HeadObjectResponse head(String key) {
+    HeadObjectResponse object = headOrNull(key);
+    if (object == null) {
+      return null;
+    }
+    String contentKey = object.metadata().get(ALIAS_METADATA);
+    return contentKey == null ? object : headOrNull(contentKey);
+  }
+
+  /** Deletes the given content keys in one request; keys that do not exist are ignored. */
+  public void deleteContent(Collection<String> contentKeys) {
+    List<ObjectIdentifier> objects = new ArrayList<>();
+    for (String key : contentKeys) {
+      objects.add(ObjectIdentifier.builder().key(key).build());
+    }
+    if (objects.isEmpty()) {
+      return;
+    }
+    s3.deleteObjects(DeleteObjectsRequest.builder()
+        .bucket(bucket)
+        .delete(Delete.builder().objects(objects).quiet(true).build())
+        .build());
+  }
+
+  private HeadObjectResponse headOrNull(String key) {
+    try {
+      return s3.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+    } catch (NoSuchKeyException e) {
+      return null;
+    } catch (S3Exception e) {
+      // HEAD has no body, so a missing key is a bare 404 rather than NoSuchKey
+      if (e.statusCode() == 404) {
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  private ResponseInputStream<GetObjectResponse> open(String key) {
+    return s3.getObject(GetObjectRequest.builder().bucket(bucket).key(key).build());
+  }
+}
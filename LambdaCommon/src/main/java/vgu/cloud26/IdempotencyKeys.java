@@ -0,0 +1,278 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONObject;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Runs a request at most once per {@value #HEADER}, so a client or API Gateway retry of a slow
+ * upload or delete gets the first attempt's answer instead of doing the work again.
+ *
+ * <p>The key comes from the {@value #HEADER} header or the body's {@value #FIELD}, and is scoped
+ * to the user and the operation. Its record is one object in the jobs bucket, {@code
+ * idempotency/<scope>/<sha256(email, key)>.json}, created with {@code If-None-Match: *} so exactly
+ * one attempt wins:
+ *
+ * <pre>
+ * {"state": "running", "fingerprint": "...", "leaseUntil": 1760000900000}
+ * {"state": "done", "fingerprint": "...", "expiresAt": 1760086400000,
+ *  "response": {"statusCode": 202, "headers": {...}, "body": "..."}}
+ * </pre>
+ *
+ * <p>A repeat while the first attempt runs waits for it, up to {@link #MAX_WAIT_MILLIS}, then gets
+ * 409 with Retry-After. A repeat after it is replayed with {@value #REPLAYED_HEADER}. A repeat
+ * with a different body gets 422. Answers that did no lasting work, 5xx and 429, are not kept, so
+ * the next attempt runs again. A running record outlives its attempt only if the function died;
+ * {@code leaseUntil} is that attempt's deadline, after which another may take it over.
+ *
+ * <p>Records are kept {@link #TTL_MILLIS}; an expiry rule on {@code idempotency/} removes them
+ * from the bucket. If the bucket cannot be reached the request runs unguarded, as it did before
+ * keys existed.
+ */
+public final class IdempotencyKeys {
+
+  public static final String HEADER = "Idempotency-Key";
+  /** Body field carrying the key, for callers that cannot set headers. */
+  public static final String FIELD = "idempotencyKey";
+  public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+  // Shares the async upload jobs' bucket, which is already private and expires objects
+  private static final String BUCKET =
+      System.getProperty("cloud26.jobs.bucket", "bucket-lam1303-jobs");
+  private static final String PREFIX = "idempotency/";
+  private static final int MAX_KEY_LENGTH = 255;
+  private static final long TTL_MILLIS = 24 * 60 * 60 * 1000L;
+  // Under API Gateway's 29 s limit, with room for the answer
+  private static final long MAX_WAIT_MILLIS = 20_000;
+  private static final long FIRST_POLL_MILLIS = 100;
+  private static final long MAX_POLL_MILLIS = 1_000;
+  // The body is hashed this many characters at a time, so a multi-MB upload is never copied whole
+  private static final int FINGERPRINT_CHUNK = 64 * 1024;
+
+  /** The request's work, run once per key. */
+  @FunctionalInterface
+  public interface Work {
+    APIGatewayProxyResponseEvent run() throws Exception;
+  }
+
+  /** A record as read, with the ETag a conditional overwrite must match. */
+  private static final class Record {
+    final JSONObject json;
+    final String etag;
+
+    Record(JSONObject json, String etag) {
+      this.json = json;
+      this.etag = etag;
+    }
+  }
+
+  private final S3Client s3;
+
+  public IdempotencyKeys(S3Client s3) {
+    this.s3 = s3;
+  }
+
+  /** The {@value #HEADER} header, else {@code fromBody}; null if the request has neither. */
+  public static String keyOf(APIGatewayProxyRequestEvent event, String fromBody) {
+    if (event.getHeaders() != null) {
+      // Function URLs and HTTP APIs lower-case header names, REST APIs keep them as sent
+      for (Map.Entry<String, String> header : event.getHeaders().entrySet()) {
+        if (HEADER.equalsIgnoreCase(header.getKey())) {
+          return header.getValue();
+        }
+      }
+    }
+    return fromBody;
+  }
+
+  /**
+   * Runs {@code work} unless an attempt with the same {@code key} already has, or is running; see
+   * the class comment. {@code key} null runs it unguarded. Call only once {@code email} is
+   * verified: a replayed answer is that user's.
+   */
+  public APIGatewayProxyResponseEvent once(String key, String scope, String email, String body,
+      Context context, Log logger, Metrics metrics, Work work) throws Exception {
+    if (key == null) {
+      return work.run();
+    }
+    if (key.isEmpty() || key.length() > MAX_KEY_LENGTH) {
+      return error(400, HEADER + " takes 1 to " + MAX_KEY_LENGTH + " characters");
+    }
+    String recordKey = PREFIX + scope + "/" + hash(email + "\n" + key) + ".json";
+    String fingerprint = fingerprint(body);
+    long deadline = System.currentTimeMillis()
+        + Math.min(MAX_WAIT_MILLIS, context.getRemainingTimeInMillis() - 2_000);
+
+    String etag;
+    try {
+      etag = claim(recordKey, null, fingerprint, context);
+      long poll = FIRST_POLL_MILLIS;
+      while (etag == null) {
+        Record record = read(recordKey);
+        if (record == null) {
+          // Released by an attempt that failed; this one runs instead
+          etag = claim(recordKey, null, fingerprint, context);
+          continue;
+        }
+        if (!fingerprint.equals(record.json.optString("fingerprint"))) {
+          return error(422, HEADER + " was already used for a different request");
+        }
+        long now = System.currentTimeMillis();
+        boolean done = "done".equals(record.json.optString("state"));
+        if (done && now < record.json.optLong("expiresAt")) {
+          metrics.put("IdempotentReplay", 1, Metrics.Unit.COUNT);
+          logger.info("Replaying {} for {}", scope, key);
+          return replay(record.json.getJSONObject("response"));
+        }
+        if (done || now > record.json.optLong("leaseUntil")) {
+          // Expired, or its attempt died: take it over, unless another retry got there first
+          etag = claim(recordKey, record.etag, fingerprint, context);
+          continue;
+        }
+        if (now + poll > deadline) {
+          metrics.put("IdempotentConflict", 1, Metrics.Unit.COUNT);
+          return error(409, "A request with this " + HEADER + " is still in progress")
+              .withHeaders(Map.of("Content-Type", "application/json", "Retry-After", "1"));
+        }
+        Thread.sleep(poll);
+        poll = Math.min(MAX_POLL_MILLIS, poll * 2);
+      }
+    } catch (SdkException e) {
+      logger.warn("Idempotency record unavailable, running unguarded: {}", e.getMessage());
+      return work.run();
+    }
+    metrics.put("IdempotentReplay", 0, Metrics.Unit.COUNT);
+
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = work.run();
+      return response;
+    } finally {
+      settle(recordKey, fingerprint, response, logger);
+    }
+  }
+
+  /**
+   * Writes a running record: a new one if {@code etag} is null, else over the record with that
+   * ETag.
+   *
+   * @return the new record's ETag, or null if another attempt wrote first
+   */
+  private String claim(String recordKey, String etag, String fingerprint, Context context) {
+    JSONObject record = new JSONObject()
+        .put("state", "running")
+        .put("fingerprint", fingerprint)
+        .put("leaseUntil", System.currentTimeMillis() + context.getRemainingTimeInMillis());
+    PutObjectRequest.Builder put = PutObjectRequest.builder()
+        .bucket(BUCKET)
+        .key(recordKey)
+        .contentType("application/json");
+    if (etag == null) {
+      put.ifNoneMatch("*");
+    } else {
+      put.ifMatch(etag);
+    }
+    try {
+      return s3.putObject(put.build(),
+          RequestBody.fromString(record.toString(), StandardCharsets.UTF_8)).eTag();
+    } catch (S3Exception e) {
+      // 412: the precondition failed. 409: a concurrent conditional write to the same key
+      if (e.statusCode() == 412 || e.statusCode() == 409) {
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  private Record read(String recordKey) {
+    try {
+      ResponseBytes<GetObjectResponse> object = s3.getObjectAsBytes(
+          GetObjectRequest.builder().bucket(BUCKET).key(recordKey).build());
+      return new Record(new JSONObject(object.asUtf8String()), object.response().eTag());
+    } catch (NoSuchKeyException e) {
+      return null;
+    }
+  }
+
+  // Keeps an answer that reflects work done; drops the record of one that did none
+  private void settle(String recordKey, String fingerprint, APIGatewayProxyResponseEvent response,
+      Log logger) {
+    try {
+      if (response == null || response.getStatusCode() >= 500 || response.getStatusCode() == 429) {
+        s3.deleteObject(DeleteObjectRequest.builder().bucket(BUCKET).key(recordKey).build());
+        return;
+      }
+      JSONObject record = new JSONObject()
+          .put("state", "done")
+          .put("fingerprint", fingerprint)
+          .put("expiresAt", System.currentTimeMillis() + TTL_MILLIS)
+          .put("response", new JSONObject()
+              .put("statusCode", response.getStatusCode())
+              .put("headers", response.getHeaders() == null
+                  ? new JSONObject()
+                  : new JSONObject(response.getHeaders()))
+              .put("body", response.getBody()));
+      s3.putObject(PutObjectRequest.builder()
+              .bucket(BUCKET)
+              .key(recordKey)
+              .contentType("application/json")
+              .build(),
+          RequestBody.fromString(record.toString(), StandardCharsets.UTF_8));
+    } catch (SdkException e) {
+      // The answer still goes out; a retry waits out the lease and then runs again
+      logger.warn("Idempotency record not settled: {}", e.getMessage());
+    }
+  }
+
+  private static APIGatewayProxyResponseEvent replay(JSONObject response) {
+    Map<String, String> headers = new HashMap<>();
+    JSONObject stored = response.optJSONObject("headers");
+    if (stored != null) {
+      stored.keySet().forEach(name -> headers.put(name, stored.getString(name)));
+    }
+    headers.put(REPLAYED_HEADER, "true");
+    return new APIGatewayProxyResponseEvent()
+        .withStatusCode(response.getInt("statusCode"))
+        .withHeaders(headers)
+        .withBody(response.optString("body", null));
+  }
+
+  private static APIGatewayProxyResponseEvent error(int statusCode, String message) {
+    return new APIGatewayProxyResponseEvent()
+        .withStatusCode(statusCode)
+        .withHeaders(Map.of("Content-Type", "application/json"))
+        .withBody(new JSONObject().put("error", message).toString());
+  }
+
+  private static String fingerprint(String body) {
+    MessageDigest digest = ContentHash.newDigest();
+    if (body != null) {
+      for (int from = 0; from < body.length(); from += FINGERPRINT_CHUNK) {
+        digest.update(body.substring(from, Math.min(body.length(), from + FINGERPRINT_CHUNK))
+            .getBytes(StandardCharsets.UTF_8));
+      }
+    }
+    return ContentHash.hex(digest);
+  }
+
+  private static String hash(String value) {
+    MessageDigest digest = ContentHash.newDigest();
+    digest.update(value.getBytes(StandardCharsets.UTF_8));
+    return ContentHash.hex(digest);
+  }
+}
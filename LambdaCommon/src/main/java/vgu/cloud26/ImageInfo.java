@@ -0,0 +1,264 @@
+package vgu.cloud26;
+
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import org.json.JSONObject;
+
+/**
+ * What the Photos table records about an image, read from its headers rather than by decoding it:
+ * format, pixel size, byte size, and for JPEGs the EXIF orientation and capture time.
+ *
+ * <pre>
+ * ALTER TABLE Photos ADD COLUMN Width INT, ADD COLUMN Height INT, ADD COLUMN Format VARCHAR(16),
+ *   ADD COLUMN ByteSize BIGINT, ADD COLUMN Orientation SMALLINT, ADD COLUMN TakenAt DATETIME;
+ * </pre>
+ *
+ * <p>Only the first {@link #HEAD_BYTES} of the image are looked at. A JPEG's EXIF block and frame
+ * header come before the compressed data and an APP1 segment is at most 64 KB, so that is enough
+ * unless a camera puts very large segments first; then the fields it missed stay unknown. Width
+ * and height are as stored: for orientations 5 to 8 the photo displays rotated a quarter turn.
+ */
+public final class ImageInfo {
+
+  public static final int HEAD_BYTES = 128 * 1024;
+
+  private static final byte[] PNG_SIGNATURE = {
+      (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+  private static final int TAG_ORIENTATION = 0x0112;
+  private static final int TAG_DATE_TIME = 0x0132;
+  private static final int TAG_EXIF_IFD = 0x8769;
+  private static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+  private static final DateTimeFormatter EXIF_DATE_TIME =
+      DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+  /** "jpeg", "png", or null for anything else. */
+  public final String format;
+  /** Pixels, 0 if unknown. */
+  public final int width;
+  public final int height;
+  public final long byteSize;
+  /** EXIF orientation 1 to 8, 0 if the image has none. */
+  public final int orientation;
+  /** When the photo was taken by the camera's clock, or null. */
+  public final LocalDateTime takenAt;
+
+  private ImageInfo(String format, int width, int height, long byteSize, int orientation,
+      LocalDateTime takenAt) {
+    this.format = format;
+    this.width = width;
+    this.height = height;
+    this.byteSize = byteSize;
+    this.orientation = orientation;
+    this.takenAt = takenAt;
+  }
+
+  /**
+   * Hashes a base64 field of an upload body into {@code digest} and reads the image it holds, in
+   * the one decoding pass the hash needs anyway.
+   */
+  public static ImageInfo ofBase64(JsonEnvelope.Envelope body, String field,
+      MessageDigest digest) {
+    byte[] head = new byte[HEAD_BYTES];
+    int size = body.digestBase64(field, digest, head);
+    return of(head, Math.min(size, head.length), size);
+  }
+
+  /** Reads the first {@code length} bytes of an image that is {@code byteSize} long in all. */
+  public static ImageInfo of(byte[] head, int length, long byteSize) {
+    Reader reader = new Reader(head, length);
+    if (length >= 24 && startsWith(head, PNG_SIGNATURE)) {
+      // IHDR is always the first chunk: length, type, then width and height
+      return new ImageInfo("png", reader.u32(16, true), reader.u32(20, true), byteSize, 0, null);
+    }
+    if (length >= 4 && (head[0] & 0xff) == 0xff && (head[1] & 0xff) == 0xd8) {
+      return readJpeg(reader, byteSize);
+    }
+    return new ImageInfo(null, 0, 0, byteSize, 0, null);
+  }
+
+  /** Adds the known fields to {@code json} under the names LambdaAddPhotoDB reads. */
+  public JSONObject putInto(JSONObject json) {
+    json.put("format", format);
+    json.put("byteSize", byteSize);
+    if (width > 0 && height > 0) {
+      json.put("width", width).put("height", height);
+    }
+    if (orientation > 0) {
+      json.put("orientation", orientation);
+    }
+    if (takenAt != null) {
+      json.put("takenAt", takenAt.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+    }
+    return json;
+  }
+
+  // Walks the marker segments up to the compressed data: APP1 may hold EXIF, SOFn has the size
+  private static ImageInfo readJpeg(Reader reader, long byteSize) {
+    int width = 0;
+    int height = 0;
+    int[] exif = {0, 0};
+    LocalDateTime[] takenAt = {null};
+    int pos = 2;
+    while (pos + 4 <= reader.length && reader.u8(pos) == 0xff) {
+      int marker = reader.u8(pos + 1);
+      if (marker == 0xff) {
+        // Fill byte before a marker
+        pos++;
+        continue;
+      }
+      if (marker == 0xd9 || marker == 0xda) {
+        // End of image, or start of scan: nothing but image data follows
+        break;
+      }
+      if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) {
+        pos += 2;
+        continue;
+      }
+      int segment = pos + 4;
+      int end = Math.min(pos + 2 + reader.u16(pos + 2, true), reader.length);
+      if (marker == 0xe1 && end - segment >= 14 && reader.isExifHeader(segment)) {
+        readExif(reader, segment + 6, end, exif, takenAt);
+      } else if (marker >= 0xc0 && marker <= 0xcf
+          && marker != 0xc4 && marker != 0xc8 && marker != 0xcc && segment + 5 <= end) {
+        // Sample precision, then height and width
+        height = reader.u16(segment + 1, true);
+        width = reader.u16(segment + 3, true);
+        break;
+      }
+      pos = end;
+    }
+    return new ImageInfo("jpeg", width, height, byteSize, exif[0], takenAt[0]);
+  }
+
+  // A TIFF structure from tiff to end: IFD0 has the orientation and points to the EXIF IFD
+  private static void readExif(Reader reader, int tiff, int end, int[] exif,
+      LocalDateTime[] takenAt) {
+    boolean bigEndian;
+    if (reader.u8(tiff) == 'M' && reader.u8(tiff + 1) == 'M') {
+      bigEndian = true;
+    } else if (reader.u8(tiff) == 'I' && reader.u8(tiff + 1) == 'I') {
+      bigEndian = false;
+    } else {
+      return;
+    }
+    Ifd ifd0 = new Ifd(reader, tiff, end, bigEndian, reader.u32(tiff + 4, bigEndian));
+    int orientation = ifd0.shortValue(TAG_ORIENTATION);
+    exif[0] = orientation >= 1 && orientation <= 8 ? orientation : 0;
+    int exifOffset = ifd0.longValue(TAG_EXIF_IFD);
+    LocalDateTime original = exifOffset <= 0 ? null
+        : new Ifd(reader, tiff, end, bigEndian, exifOffset).dateTime(TAG_DATE_TIME_ORIGINAL);
+    // DateTime is when the file was last changed, which is usually also when it was taken
+    takenAt[0] = original != null ? original : ifd0.dateTime(TAG_DATE_TIME);
+  }
+
+  private static boolean startsWith(byte[] data, byte[] prefix) {
+    for (int i = 0; i < prefix.length; i++) {
+      if (data[i] != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Bounds-checked reads: anything past the bytes we have reads as 0
+  private static final class Reader {
+    final byte[] data;
+    final int length;
+
+    Reader(byte[] data, int length) {
+      this.data = data;
+      this.length = length;
+    }
+
+    int u8(int pos) {
+      return pos >= 0 && pos < length ? data[pos] & 0xff : 0;
+    }
+
+    int u16(int pos, boolean bigEndian) {
+      return bigEndian
+          ? u8(pos) << 8 | u8(pos + 1)
+          : u8(pos + 1) << 8 | u8(pos);
+    }
+
+    // Offsets and sizes past 2 GB are not in any image we accept, negative reads as absent
+    int u32(int pos, boolean bigEndian) {
+      return bigEndian
+          ? u16(pos, true) << 16 | u16(pos + 2, true)
+          : u16(pos + 2, false) << 16 | u16(pos, false);
+    }
+
+    boolean isExifHeader(int pos) {
+      return u8(pos) == 'E' && u8(pos + 1) == 'x' && u8(pos + 2) == 'i' && u8(pos + 3) == 'f'
+          && u8(pos + 4) == 0 && u8(pos + 5) == 0;
+    }
+  }
+
+  // One image file directory: a count, then 12-byte entries of tag, type, count and value
+  private static final class Ifd {
+    final Reader reader;
+    final int tiff;
+    final int end;
+    final boolean bigEndian;
+    final int start;
+
+    Ifd(Reader reader, int tiff, int end, boolean bigEndian, int offset) {
+      this.reader = reader;
+      this.tiff = tiff;
+      this.end = end;
+      this.bigEndian = bigEndian;
+      this.start = offset > 0 && tiff + offset + 2 <= end ? tiff + offset : -1;
+    }
+
+    // Position of the entry for tag, or -1
+    int entry(int tag) {
+      if (start < 0) {
+        return -1;
+      }
+      int count = reader.u16(start, bigEndian);
+      for (int i = 0; i < count; i++) {
+        int entry = start + 2 + i * 12;
+        if (entry + 12 > end) {
+          return -1;
+        }
+        if (reader.u16(entry, bigEndian) == tag) {
+          return entry;
+        }
+      }
+      return -1;
+    }
+
+    int shortValue(int tag) {
+      int entry = entry(tag);
+      return entry < 0 ? 0 : reader.u16(entry + 8, bigEndian);
+    }
+
+    int longValue(int tag) {
+      int entry = entry(tag);
+      return entry < 0 ? 0 : reader.u32(entry + 8, bigEndian);
+    }
+
+    // "YYYY:MM:DD HH:MM:SS" with a NUL, always 20 bytes so stored at an offset; cameras without a
+    // set clock write zeros or spaces, which read as null
+    LocalDateTime dateTime(int tag) {
+      int entry = entry(tag);
+      if (entry < 0 || reader.u32(entry + 4, bigEndian) < 19) {
+        return null;
+      }
+      int value = tiff + reader.u32(entry + 8, bigEndian);
+      if (value < tiff || value + 19 > end) {
+        return null;
+      }
+      StringBuilder text = new StringBuilder(19);
+      for (int i = 0; i < 19; i++) {
+        text.append((char) reader.u8(value + i));
+      }
+      try {
+        return LocalDateTime.parse(text, EXIF_DATE_TIME);
+      } catch (DateTimeParseException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A user as vouched for by the function that verified their token, so the workers it invokes can
+ * trust the email without calling LambdaTokenVerifier again.
+ *
+ * <p>An orchestrator that has verified a token adds {@link #sign} of the email to the worker's
+ * payload under {@value #FIELD}: {@code base64url({"email", "exp", "rid"}) "." base64url(HMAC)}.
+ * The worker checks it with {@link #verify}, one HMAC and no network. Principals live {@link
+ * #TTL_SECONDS}; {@code rid} is the signer's request id, for tracing a principal back to the call
+ * that made it.
+ *
+ * <p>The HMAC key is the {@code cloud26internalkey} parameter (INTERNAL_KEY_PARAMETER overrides),
+ * read through the Parameter Store extension like the token key, and is separate from it: a
+ * principal cannot be turned into a user token or the other way round. Without the key nothing
+ * is signed and nothing verifies, so workers fall back to the verifier.
+ */
+public final class InternalPrincipal {
+
+  /** Payload field of a signed principal. */
+  public static final String FIELD = "principal";
+  /** Long enough for a worker invoke after retries, short enough to be useless if leaked. */
+  public static final long TTL_SECONDS = 60;
+
+  private static final String PARAMETER =
+      System.getenv().getOrDefault("INTERNAL_KEY_PARAMETER", "cloud26internalkey");
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+  // After a failed fetch, callers use the verifier for a while instead of each trying again
+  private static final long RETRY_FETCH_MILLIS = 60_000;
+
+  // Fetched on first use; cleared before SnapStart snapshots, see forget
+  private static volatile SecretKeySpec key;
+  private static volatile long nextFetch;
+
+  private InternalPrincipal() {}
+
+  /** A principal for {@code email}, or null if the key is not available. */
+  public static String sign(String email, String requestId, LambdaLogger logger) {
+    return sign(email, requestId, TTL_SECONDS, logger);
+  }
+
+  /** As above, living {@code ttlSeconds}: for events that wait in a queue before they are read. */
+  public static String sign(String email, String requestId, long ttlSeconds, LambdaLogger logger) {
+    SecretKeySpec secret = key(logger);
+    if (secret == null) {
+      return null;
+    }
+    String payload = ENCODER.encodeToString(new JSONObject()
+        .put("email", email)
+        .put("exp", System.currentTimeMillis() / 1000 + ttlSeconds)
+        .put("rid", requestId)
+        .toString()
+        .getBytes(StandardCharsets.UTF_8));
+    return payload + "." + ENCODER.encodeToString(mac(secret, payload));
+  }
+
+  /**
+   * Whether {@code principal} was signed with the internal key, has not expired, and names {@code
+   * email}. False for anything else, including a missing key.
+   */
+  public static boolean verify(String principal, String email, LambdaLogger logger) {
+    if (principal == null || email == null) {
+      return false;
+    }
+    int dot = principal.indexOf('.');
+    SecretKeySpec secret = dot < 0 ? null : key(logger);
+    if (secret == null) {
+      return false;
+    }
+    try {
+      String payload = principal.substring(0, dot);
+      byte[] signature = DECODER.decode(principal.substring(dot + 1));
+      // Constant time, so the signature cannot be guessed byte by byte
+      if (!MessageDigest.isEqual(mac(secret, payload), signature)) {
+        return false;
+      }
+      JSONObject claims =
+          new JSONObject(new String(DECODER.decode(payload), StandardCharsets.UTF_8));
+      return email.equals(claims.optString("email", null))
+          && claims.optLong("exp", 0) >= System.currentTimeMillis() / 1000;
+    } catch (IllegalArgumentException | JSONException e) {
+      // Not base64, or not JSON
+      return false;
+    }
+  }
+
+  /** Drops the key, so it is never part of a SnapStart snapshot; call from beforeCheckpoint. */
+  public static void forget() {
+    key = null;
+    nextFetch = 0;
+  }
+
+  private static byte[] mac(SecretKeySpec secret, String payload) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(secret);
+      return mac.doFinal(payload.getBytes(StandardCharsets.US_ASCII));
+    } catch (GeneralSecurityException e) {
+      // Every JRE has HmacSHA256, and any key bytes make a valid HMAC key
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static SecretKeySpec key(LambdaLogger logger) {
+    SecretKeySpec secret = key;
+    if (secret == null) {
+      if (System.currentTimeMillis() < nextFetch) {
+        return null;
+      }
+      String value = fetchKey(logger);
+      if (value == null || value.isEmpty()) {
+        nextFetch = System.currentTimeMillis() + RETRY_FETCH_MILLIS;
+        return null;
+      }
+      secret = new SecretKeySpec(value.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+      key = secret;
+    }
+    return secret;
+  }
+
+  // Once per container, so the client is not kept: after a SnapStart restore it would be stale.
+  // The address is read each time as well, for tests that run the extension elsewhere
+  private static String fetchKey(LambdaLogger logger) {
+    try {
+      HttpRequest.Builder request = HttpRequest.newBuilder()
+          .uri(URI.create(System.getProperty("cloud26.parameters.url", "http://localhost:2773")
+              + "/systemsmanager/parameters/get/?name=" + PARAMETER + "&withDecryption=true"))
+          .timeout(Duration.ofSeconds(2))
+          .header("Accept", "application/json");
+      String sessionToken = System.getenv("AWS_SESSION_TOKEN");
+      if (sessionToken != null) {
+        request.header("X-Aws-Parameters-Secrets-Token", sessionToken);
+      }
+      HttpResponse<String> response = HttpClient.newBuilder()
+          .connectTimeout(Duration.ofSeconds(2))
+          .build()
+          .send(request.GET().build(), HttpResponse.BodyHandlers.ofString());
+      if (response.statusCode() != 200) {
+        Log.of(logger).warn("Internal key unavailable: HTTP {}", response.statusCode());
+        return null;
+      }
+      String body = response.body().trim();
+      // The extension answers GetParameter's JSON; local stand-ins answer the bare value
+      return body.startsWith("{")
+          ? new JSONObject(body).getJSONObject("Parameter").getString("Value")
+          : body;
+    } catch (Exception e) {
+      Log.of(logger).warn("Internal key unavailable: {}", e.getMessage());
+      return null;
+    }
+  }
+}
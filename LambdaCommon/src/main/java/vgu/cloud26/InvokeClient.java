@@ -0,0 +1,441 @@
+package vgu.cloud26;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.json.JSONObject;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.awscore.retry.AwsRetryStrategy;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.lambda.model.Ec2ThrottledException;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+import software.amazon.awssdk.services.lambda.model.ResourceNotReadyException;
+import software.amazon.awssdk.services.lambda.model.TooManyRequestsException;
+
+/**
+ * Synchronous Lambda-to-Lambda invoke shared by the handlers, with retries, hedging and a circuit
+ * breaker per target function.
+ *
+ * <ul>
+ *   <li>Retries back off with full jitter. Throttles and not-ready errors mean the function never
+ *       ran, so every call retries them; server errors, network errors and timeouts are retried
+ *       only under {@link Policy#READ}, since a write may already have happened.
+ *   <li>Under {@link Policy#READ} a second, hedged attempt starts when the first is slower than
+ *       the target's recent p95, and the first answer wins. That trims the tail from a cold or
+ *       stuck environment at the cost of a few percent more read invokes.
+ *   <li>After {@value #BREAKER_THRESHOLD} failures in a row a target is skipped for {@value
+ *       #BREAKER_OPEN_MILLIS} ms, then one call at a time is let through until one succeeds.
+ * </ul>
+ *
+ * <p>The SDK's own retries are turned off so that attempts do not multiply. Function errors
+ * (X-Amz-Function-Error) are never retried but do count towards the breaker. Each call is one hop
+ * in the caller's {@link Trace}, noted with its attempts and whether a hedge answered.
+ */
+public final class InvokeClient implements AutoCloseable {
+
+  /** How one call may be retried, hedged and bounded. */
+  public static final class Policy {
+    /** Calls without side effects, e.g. the verifier, GetObject and GetResizedImage. */
+    public static final Policy READ = new Policy(true, true, 3, 5_000);
+    /** Calls that change state: retried only when Lambda reports the function did not run. */
+    public static final Policy WRITE = new Policy(false, false, 3, 30_000);
+
+    final boolean idempotent;
+    final boolean hedged;
+    final int maxAttempts;
+    final long attemptTimeoutMillis;
+
+    public Policy(boolean idempotent, boolean hedged, int maxAttempts, long attemptTimeoutMillis) {
+      this.idempotent = idempotent;
+      this.hedged = hedged;
+      this.maxAttempts = maxAttempts;
+      this.attemptTimeoutMillis = attemptTimeoutMillis;
+    }
+  }
+
+  /** The call failed after any retries, or was not made because the target's circuit is open. */
+  public static final class InvokeException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean throttled;
+
+    public InvokeException(String message, Throwable cause) {
+      this(message, cause, false);
+    }
+
+    InvokeException(String message, Throwable cause, boolean throttled) {
+      super(message, cause);
+      this.throttled = throttled;
+    }
+
+    /**
+     * True when the last attempt was throttled, e.g. because the target's reserved concurrency
+     * was in use: the target did not run, and the request can be tried again later.
+     */
+    public boolean isThrottled() {
+      return throttled;
+    }
+  }
+
+  static final long BACKOFF_BASE_MILLIS = 25;
+  static final long BACKOFF_CAP_MILLIS = 1_000;
+  static final long HEDGE_DEFAULT_MILLIS = 500;
+  static final long HEDGE_FLOOR_MILLIS = 20;
+  static final int HEDGE_MIN_SAMPLES = 20;
+  static final int BREAKER_THRESHOLD = 5;
+  static final long BREAKER_OPEN_MILLIS = 10_000;
+
+  private static final ExecutorService ATTEMPTS = Executors.newCachedThreadPool(task -> {
+    Thread thread = new Thread(task, "invoke-attempt");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final LambdaClient client;
+  // Breaker time, in nanoseconds; tests move it instead of waiting out the cooldown
+  private final LongSupplier clock;
+  private final Map<String, Target> targets = new ConcurrentHashMap<>();
+
+  public InvokeClient(Region region) {
+    this(LambdaClient.builder()
+        .region(region)
+        .overrideConfiguration(ClientOverrideConfiguration.builder()
+            .retryStrategy(AwsRetryStrategy.doNotRetry())
+            .build())
+        .build());
+  }
+
+  /** Wraps an existing client; its own retry settings then apply on top of these. */
+  public InvokeClient(LambdaClient client) {
+    this(client, System::nanoTime);
+  }
+
+  InvokeClient(LambdaClient client, LongSupplier clock) {
+    this.client = client;
+    this.clock = clock;
+  }
+
+  /** The underlying client, for calls that need none of this, such as DryRun warm-ups. */
+  public LambdaClient client() {
+    return client;
+  }
+
+  @Override
+  public void close() {
+    client.close();
+  }
+
+  /**
+   * What the handlers expect back from a worker: its response body, or {@code {"error":
+   * "Invocation Failed: ..."}} if it could not be invoked, with {@code "throttled": true} if it
+   * was throttled.
+   */
+  public String call(String functionName, String event, Policy policy, Trace trace, Log log) {
+    return call(functionName, event.getBytes(StandardCharsets.UTF_8), policy, trace, log);
+  }
+
+  /** As above, with the event already in UTF-8, so large payloads are not copied again. */
+  public String call(String functionName, byte[] event, Policy policy, Trace trace, Log log) {
+    try {
+      JSONObject response = invoke(functionName, event, policy, trace, log);
+      // Workers answer with an APIGatewayProxyResponseEvent; callers want its body
+      return response.has("body") ? response.getString("body") : response.toString();
+    } catch (InvokeException e) {
+      log.error("Error invoking {}: {}", functionName, e.getMessage());
+      JSONObject error = new JSONObject().put("error", "Invocation Failed: " + e.getMessage());
+      if (e.isThrottled()) {
+        error.put("throttled", true);
+      }
+      return error.toString();
+    }
+  }
+
+  /** The worker's serialized response event. */
+  public JSONObject invoke(String functionName, byte[] event, Policy policy, Trace trace, Log log)
+      throws InvokeException {
+    Target target = targets.computeIfAbsent(functionName, name -> new Target(clock));
+    Trace.Call call = trace.call(functionName);
+    byte[] payload = call.inject(event);
+    Failure last = null;
+    int attempt = 0;
+    while (attempt < policy.maxAttempts) {
+      if (!target.allow()) {
+        InvokeException open = new InvokeException(functionName + " is unavailable (circuit open)",
+            last == null ? null : last.getCause());
+        call.note("attempts", attempt).note("circuit", "open").fail(open);
+        throw open;
+      }
+      if (attempt > 0) {
+        backOff(attempt);
+      }
+      attempt++;
+      long start = System.nanoTime();
+      try {
+        Attempt result = policy.hedged
+            ? hedged(functionName, payload, policy, target)
+            : new Attempt(once(functionName, payload, policy.attemptTimeoutMillis), false);
+        target.succeeded(System.nanoTime() - start);
+        call.note("attempts", attempt);
+        if (result.hedge) {
+          call.note("hedged", true);
+        }
+        call.end(result.response);
+        return result.response;
+      } catch (Failure failure) {
+        last = failure;
+        if (failure.kind != Kind.REJECTED) {
+          target.failed();
+        }
+        log.warn("Invoke of {} failed on attempt {}: {}", functionName, attempt,
+            failure.getMessage());
+        if (!failure.retryable(policy)) {
+          break;
+        }
+      }
+    }
+    call.note("attempts", attempt).fail(last);
+    throw new InvokeException(last.getMessage(), last.getCause(), last.kind == Kind.NOT_RUN);
+  }
+
+  /**
+   * Hands {@code event} to Lambda's queue for an asynchronous ("Event") invoke. Lambda keeps it
+   * durably and retries the function twice if it fails; throttles of the enqueue itself are
+   * retried here. Not subject to the circuit breaker, which tracks synchronous calls.
+   */
+  public void enqueue(String functionName, byte[] event, Trace trace, Log log)
+      throws InvokeException {
+    Trace.Call call = trace.call(functionName);
+    SdkBytes payload = SdkBytes.fromByteArrayUnsafe(call.inject(event));
+    for (int attempt = 1; ; attempt++) {
+      try {
+        client.invoke(InvokeRequest.builder()
+            .functionName(functionName)
+            .payload(payload)
+            .invocationType("Event")
+            .build());
+        call.note("attempts", attempt).end(new JSONObject().put("statusCode", 202));
+        return;
+      } catch (SdkServiceException e) {
+        boolean throttled = e.isThrottlingException() || e.statusCode() == 429;
+        if (!throttled || attempt >= Policy.WRITE.maxAttempts) {
+          call.note("attempts", attempt).fail(e);
+          throw new InvokeException(String.valueOf(e.getMessage()), e, throttled);
+        }
+        log.warn("Enqueue to {} throttled on attempt {}", functionName, attempt);
+        backOff(attempt);
+      } catch (SdkClientException e) {
+        call.note("attempts", attempt).fail(e);
+        throw new InvokeException(String.valueOf(e.getMessage()), e);
+      }
+    }
+  }
+
+  // --- ATTEMPTS ---
+
+  private JSONObject once(String functionName, byte[] payload, long timeoutMillis)
+      throws Failure {
+    InvokeResponse response;
+    try {
+      response = client.invoke(InvokeRequest.builder()
+          .functionName(functionName)
+          .payload(SdkBytes.fromByteArrayUnsafe(payload))
+          .invocationType("RequestResponse")
+          .overrideConfiguration(AwsRequestOverrideConfiguration.builder()
+              .apiCallAttemptTimeout(Duration.ofMillis(timeoutMillis))
+              .build())
+          .build());
+    } catch (TooManyRequestsException | ResourceNotReadyException | Ec2ThrottledException e) {
+      throw new Failure(Kind.NOT_RUN, e);
+    } catch (SdkServiceException e) {
+      if (e.isThrottlingException() || e.statusCode() == 429) {
+        throw new Failure(Kind.NOT_RUN, e);
+      }
+      throw new Failure(e.statusCode() >= 500 ? Kind.UNKNOWN : Kind.REJECTED, e);
+    } catch (SdkClientException e) {
+      // Connection errors and attempt timeouts: the function may or may not have run
+      throw new Failure(Kind.UNKNOWN, e);
+    }
+    String json = StandardCharsets.UTF_8.decode(response.payload().asByteBuffer()).toString();
+    if (response.functionError() != null) {
+      JSONObject error = new JSONObject(json);
+      throw new Failure(Kind.FUNCTION_ERROR, functionName + " failed: "
+          + error.optString("errorType", response.functionError()) + ": "
+          + error.optString("errorMessage"));
+    }
+    return new JSONObject(json);
+  }
+
+  /** Runs one attempt and, if it is slow, a second in parallel; the first answer wins. */
+  private Attempt hedged(String functionName, byte[] payload, Policy policy, Target target)
+      throws Failure {
+    CompletionService<JSONObject> attempts = new ExecutorCompletionService<>(ATTEMPTS);
+    Future<JSONObject> first =
+        attempts.submit(() -> once(functionName, payload, policy.attemptTimeoutMillis));
+    Future<JSONObject> second = null;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.attemptTimeoutMillis);
+    long hedgeAt = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(target.hedgeDelayMillis(policy.attemptTimeoutMillis));
+    int outstanding = 1;
+    Failure failure = null;
+    try {
+      while (outstanding > 0) {
+        long waitUntil = second == null ? Math.min(hedgeAt, deadline) : deadline;
+        Future<JSONObject> done =
+            attempts.poll(Math.max(0, waitUntil - System.nanoTime()), TimeUnit.NANOSECONDS);
+        if (done == null) {
+          if (second == null && System.nanoTime() < deadline) {
+            second = attempts.submit(() -> once(functionName, payload, policy.attemptTimeoutMillis));
+            outstanding++;
+            continue;
+          }
+          throw new Failure(Kind.UNKNOWN, functionName + " did not answer within "
+              + policy.attemptTimeoutMillis + " ms");
+        }
+        outstanding--;
+        try {
+          return new Attempt(done.get(), done == second);
+        } catch (ExecutionException e) {
+          failure = e.getCause() instanceof Failure
+              ? (Failure) e.getCause()
+              : new Failure(Kind.UNKNOWN, e.getCause());
+          if (second == null) {
+            // Failed fast rather than slow: leave it to the retry loop
+            throw failure;
+          }
+        }
+      }
+      throw failure;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new Failure(Kind.UNKNOWN, e);
+    } finally {
+      first.cancel(true);
+      if (second != null) {
+        second.cancel(true);
+      }
+    }
+  }
+
+  private static void backOff(int retry) throws InvokeException {
+    long ceiling = Math.min(BACKOFF_CAP_MILLIS, BACKOFF_BASE_MILLIS << Math.min(retry, 16));
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InvokeException("interrupted while backing off", e);
+    }
+  }
+
+  private static final class Attempt {
+    final JSONObject response;
+    final boolean hedge;
+
+    Attempt(JSONObject response, boolean hedge) {
+      this.response = response;
+      this.hedge = hedge;
+    }
+  }
+
+  private enum Kind {
+    /** Throttled or not ready: the function did not run. */
+    NOT_RUN,
+    /** 5xx, network error or timeout: it may have run. */
+    UNKNOWN,
+    /** The function ran and threw. */
+    FUNCTION_ERROR,
+    /** 4xx other than throttling: our request is wrong, and retrying will not help. */
+    REJECTED
+  }
+
+  private static final class Failure extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final Kind kind;
+
+    Failure(Kind kind, Throwable cause) {
+      super(String.valueOf(cause.getMessage()), cause);
+      this.kind = kind;
+    }
+
+    Failure(Kind kind, String message) {
+      super(message);
+      this.kind = kind;
+    }
+
+    boolean retryable(Policy policy) {
+      return kind == Kind.NOT_RUN || (kind == Kind.UNKNOWN && policy.idempotent);
+    }
+  }
+
+  // --- PER TARGET STATE ---
+
+  /** Circuit breaker and recent latencies of one function. */
+  private static final class Target {
+    private final LongSupplier clock;
+    private final long[] latencies = new long[128];
+    // Capped at the ring size, so a long-lived container cannot overflow the index
+    private int samples;
+    private int next;
+    private int consecutiveFailures;
+    private long openedAt;
+
+    Target(LongSupplier clock) {
+      this.clock = clock;
+    }
+
+    synchronized boolean allow() {
+      if (consecutiveFailures < BREAKER_THRESHOLD) {
+        return true;
+      }
+      long now = clock.getAsLong();
+      if (now - openedAt >= TimeUnit.MILLISECONDS.toNanos(BREAKER_OPEN_MILLIS)) {
+        // Half open: one probe per cooldown until a call succeeds
+        openedAt = now;
+        return true;
+      }
+      return false;
+    }
+
+    synchronized void succeeded(long nanos) {
+      consecutiveFailures = 0;
+      latencies[next] = nanos;
+      next = (next + 1) % latencies.length;
+      samples = Math.min(samples + 1, latencies.length);
+    }
+
+    synchronized void failed() {
+      consecutiveFailures++;
+      if (consecutiveFailures >= BREAKER_THRESHOLD) {
+        openedAt = clock.getAsLong();
+      }
+    }
+
+    /** Recent p95, or a fixed delay until there are enough samples to trust one. */
+    synchronized long hedgeDelayMillis(long attemptTimeoutMillis) {
+      if (samples < HEDGE_MIN_SAMPLES) {
+        return Math.min(HEDGE_DEFAULT_MILLIS, attemptTimeoutMillis / 2);
+      }
+      long[] sorted = Arrays.copyOf(latencies, samples);
+      Arrays.sort(sorted);
+      long p95 = TimeUnit.NANOSECONDS.toMillis(sorted[(int) Math.ceil(sorted.length * 0.95) - 1]);
+      return Math.max(HEDGE_FLOOR_MILLIS, Math.min(p95, attemptTimeoutMillis / 2));
+    }
+  }
+}
@@ -0,0 +1,532 @@
+package vgu.cloud26;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allocation-light reader and writer for the flat JSON request bodies the handlers pass around.
+ *
+ * <p>Upload bodies carry a multi-megabyte base64 {@code content} field next to a few short ones.
+ * Parsing them with org.json copies that field several times (StringBuilder, String, then the
+ * byte[] handed to the decoder). {@link #parse} instead records where each top-level value sits in
+ * the original string and only materializes a value when it is asked for, and objects inside an
+ * array field are indexed the same way ({@link Envelope#getObjects}); {@link
+ * Envelope#getBase64} decodes straight from the body into an exactly sized byte array, and can
+ * hash the bytes in the same pass for {@link ContentHash}.
+ *
+ * <p>{@link #eventWithBody} is the matching writer for {@link InvokeClient}: it escapes a body into
+ * an invoke payload {@code {"body": "..."}} in one pass, directly as UTF-8 bytes.
+ */
+public final class JsonEnvelope {
+
+  private static final byte[] EVENT_PREFIX = {'{', '"', 'b', 'o', 'd', 'y', '"', ':', '"'};
+  private static final byte[] EVENT_SUFFIX = {'"', '}'};
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+  private static final int[] BASE64 = new int[128];
+  // Decoded bytes hashed per step when digesting: big enough to amortize the call, small enough
+  // to stay in L1
+  private static final int DIGEST_WINDOW = 8 * 1024;
+
+  static {
+    Arrays.fill(BASE64, -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64[alphabet.charAt(i)] = i;
+    }
+  }
+
+  private JsonEnvelope() {}
+
+  /**
+   * Indexes the top-level fields of a JSON object without copying any values. Nested objects and
+   * arrays are skipped over and can be read back as raw JSON text.
+   *
+   * @throws IllegalArgumentException if {@code json} is not a JSON object
+   */
+  public static Envelope parse(String json) {
+    if (json == null) {
+      throw new IllegalArgumentException("Missing request body");
+    }
+    return new Envelope(json);
+  }
+
+  /** The invoke payload for an event whose body is {@code body}, as UTF-8 bytes. */
+  public static byte[] eventWithBody(String body) {
+    byte[] out = new byte[EVENT_PREFIX.length + escapedLength(body) + EVENT_SUFFIX.length];
+    System.arraycopy(EVENT_PREFIX, 0, out, 0, EVENT_PREFIX.length);
+    int pos = writeEscaped(body, out, EVENT_PREFIX.length);
+    System.arraycopy(EVENT_SUFFIX, 0, out, pos, EVENT_SUFFIX.length);
+    return out;
+  }
+
+  /** Top-level fields of one JSON object, backed by the original string. */
+  public static final class Envelope {
+    private final String json;
+    // name -> {start, end, flags}; for strings start/end exclude the quotes
+    private final Map<String, int[]> fields = new HashMap<>();
+    private final int start;
+    private int pos;
+
+    private static final int STRING = 1;
+    private static final int ESCAPED = 2;
+
+    private Envelope(String json) {
+      this(json, 0);
+    }
+
+    // An object nested in another one's text, starting at or after from
+    private Envelope(String json, int from) {
+      this.json = json;
+      this.pos = from;
+      skipWhitespace();
+      this.start = pos;
+      expect('{');
+      skipWhitespace();
+      if (peek() == '}') {
+        pos++;
+        return;
+      }
+      while (true) {
+        skipWhitespace();
+        expect('"');
+        int[] name = scanString();
+        String key = name[2] == ESCAPED
+            ? unescape(name[0], name[1])
+            : json.substring(name[0], name[1]);
+        skipWhitespace();
+        expect(':');
+        skipWhitespace();
+        fields.put(key, scanValue());
+        skipWhitespace();
+        char next = next();
+        if (next == '}') {
+          return;
+        }
+        if (next != ',') {
+          throw malformed("',' or '}'");
+        }
+      }
+    }
+
+    public boolean has(String name) {
+      return fields.containsKey(name);
+    }
+
+    /** This object's JSON text, e.g. one file of a batch to hand to a worker as it came. */
+    public String raw() {
+      return json.substring(start, pos);
+    }
+
+    /**
+     * The objects in an array field, each indexed in place like the top level; nothing is copied.
+     *
+     * @throws IllegalArgumentException if the field is missing or not an array of objects
+     */
+    public List<Envelope> getObjects(String name) {
+      int[] span = fields.get(name);
+      if (span == null || (span[2] & STRING) != 0 || json.charAt(span[0]) != '[') {
+        throw new IllegalArgumentException("JSONObject[\"" + name + "\"] is not a JSONArray.");
+      }
+      List<Envelope> objects = new ArrayList<>();
+      int at = span[0] + 1;
+      while (true) {
+        while (Character.isWhitespace(json.charAt(at))) {
+          at++;
+        }
+        if (json.charAt(at) == ']') {
+          return objects;
+        }
+        Envelope object = new Envelope(json, at);
+        objects.add(object);
+        at = object.pos;
+        while (Character.isWhitespace(json.charAt(at))) {
+          at++;
+        }
+        if (json.charAt(at) == ',') {
+          at++;
+        } else if (json.charAt(at) != ']') {
+          throw new IllegalArgumentException("Malformed JSON: expected ',' or ']' at " + at);
+        }
+      }
+    }
+
+    /** Same contract as {@code JSONObject.getString}: the field must exist and be a string. */
+    public String getString(String name) {
+      int[] span = fields.get(name);
+      if (span == null || (span[2] & STRING) == 0) {
+        throw new IllegalArgumentException("JSONObject[\"" + name + "\"] is not a string.");
+      }
+      return (span[2] & ESCAPED) != 0
+          ? unescape(span[0], span[1])
+          : json.substring(span[0], span[1]);
+    }
+
+    public String optString(String name, String fallback) {
+      int[] span = fields.get(name);
+      if (span == null) {
+        return fallback;
+      }
+      return (span[2] & STRING) != 0 ? getString(name) : json.substring(span[0], span[1]);
+    }
+
+    /** Length of a string field in characters as it appears in the body, escapes included. */
+    public int rawLength(String name) {
+      int[] span = fields.get(name);
+      return span == null ? 0 : span[1] - span[0];
+    }
+
+    /**
+     * Decodes a base64 string field (standard alphabet, padding optional) without creating a
+     * String for it. JSON escapes inside the value, e.g. {@code \/}, are honoured.
+     *
+     * @throws IllegalArgumentException if the field is missing or not valid base64
+     */
+    public byte[] getBase64(String name) {
+      return decodeBase64(name, true, null);
+    }
+
+    /**
+     * {@link #getBase64} that also feeds the decoded bytes to {@code digest} as it goes, while
+     * they are still in cache, instead of hashing the whole array in a second pass.
+     */
+    public byte[] getBase64(String name, MessageDigest digest) {
+      return decodeBase64(name, true, digest);
+    }
+
+    /** Hashes the decoded bytes of a base64 field into {@code digest} without keeping them. */
+    public void digestBase64(String name, MessageDigest digest) {
+      decodeBase64(name, false, digest, null);
+    }
+
+    /**
+     * {@link #digestBase64} that also keeps the first {@code head.length} decoded bytes, e.g. an
+     * image's headers, in the same pass.
+     *
+     * @return the decoded length of the whole field
+     */
+    public int digestBase64(String name, MessageDigest digest, byte[] head) {
+      decodeBase64(name, false, digest, head);
+      return decodedLength(name, span(name));
+    }
+
+    private byte[] decodeBase64(String name, boolean keep, MessageDigest digest) {
+      return decodeBase64(name, keep, digest, null);
+    }
+
+    private byte[] decodeBase64(String name, boolean keep, MessageDigest digest, byte[] head) {
+      int[] span = span(name);
+      int start = span[0];
+      int end = span[1];
+      int length = decodedLength(name, span);
+      int symbols = length / 3 * 4 + (length % 3 == 0 ? 0 : length % 3 + 1);
+      // Without an output array, decode through a small window that is hashed whenever it fills
+      byte[] out = keep ? new byte[length] : new byte[Math.min(length, DIGEST_WINDOW)];
+
+      int bits = 0;
+      int count = 0;
+      int written = 0;
+      int digested = 0;
+      // Decoded bytes before out[0]: the window restarts at 0 each time it is hashed
+      int flushed = 0;
+      for (int i = start; i < end && count < symbols; i++) {
+        char c = json.charAt(i);
+        if (c == '\\') {
+          c = json.charAt(++i);
+          if (c != '/' && c != '\\' && c != '"') {
+            throw new IllegalArgumentException("Illegal base64 character '\\" + c + "'");
+          }
+        }
+        int value = c < 128 ? BASE64[c] : -1;
+        if (value < 0) {
+          throw new IllegalArgumentException(
+              "Illegal base64 character " + Integer.toHexString(c) + " in field " + name);
+        }
+        bits = (bits << 6) | value;
+        count++;
+        if ((count & 3) == 0) {
+          out[written++] = (byte) (bits >> 16);
+          out[written++] = (byte) (bits >> 8);
+          out[written++] = (byte) bits;
+          bits = 0;
+          if (digest != null && written - digested >= DIGEST_WINDOW - 3) {
+            digest.update(out, digested, written - digested);
+            if (keep) {
+              digested = written;
+            } else {
+              copyHead(out, written, flushed, head);
+              flushed += written;
+              written = 0;
+            }
+          }
+        }
+      }
+      if ((count & 3) == 2) {
+        out[written++] = (byte) (bits >> 4);
+      } else if ((count & 3) == 3) {
+        out[written++] = (byte) (bits >> 10);
+        out[written++] = (byte) (bits >> 2);
+      }
+      if (digest != null) {
+        digest.update(out, digested, written - digested);
+      }
+      if (keep) {
+        return out;
+      }
+      copyHead(out, written, flushed, head);
+      return null;
+    }
+
+    private int[] span(String name) {
+      int[] span = fields.get(name);
+      if (span == null || (span[2] & STRING) == 0) {
+        throw new IllegalArgumentException("JSONObject[\"" + name + "\"] is not a string.");
+      }
+      return span;
+    }
+
+    private int decodedLength(String name, int[] span) {
+      int start = span[0];
+      int end = span[1];
+      // Size the output exactly: every escape adds one char, padding adds none
+      int chars = end - start;
+      if ((span[2] & ESCAPED) != 0) {
+        for (int i = start; i < end; i++) {
+          if (json.charAt(i) == '\\') {
+            chars--;
+            i++;
+          }
+        }
+      }
+      int padding = 0;
+      for (int i = end - 1; i >= start && json.charAt(i) == '=' && padding < 2; i--) {
+        padding++;
+      }
+      int symbols = chars - padding;
+      if (symbols % 4 == 1) {
+        throw new IllegalArgumentException("Invalid base64 length in field " + name);
+      }
+      return symbols / 4 * 3 + Math.max(0, symbols % 4 - 1);
+    }
+
+    // Copies what of out[0, written), which starts at decoded offset flushed, falls within head
+    private static void copyHead(byte[] out, int written, int flushed, byte[] head) {
+      if (head != null && flushed < head.length) {
+        System.arraycopy(out, 0, head, flushed, Math.min(written, head.length - flushed));
+      }
+    }
+
+    // --- SCANNING ---
+
+    private int[] scanValue() {
+      char c = peek();
+      if (c == '"') {
+        pos++;
+        int[] span = scanString();
+        span[2] = STRING | span[2];
+        return span;
+      }
+      int start = pos;
+      if (c == '{' || c == '[') {
+        skipNested();
+      } else {
+        while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0) {
+          pos++;
+        }
+        if (pos == start) {
+          throw malformed("a value");
+        }
+      }
+      return new int[] {start, pos, 0};
+    }
+
+    /** Called after the opening quote; leaves pos after the closing one. */
+    private int[] scanString() {
+      int start = pos;
+      int flags = 0;
+      for (int i = pos; i < json.length(); i++) {
+        char c = json.charAt(i);
+        if (c == '\\') {
+          flags = ESCAPED;
+          i++;
+        } else if (c == '"') {
+          pos = i + 1;
+          return new int[] {start, i, flags};
+        }
+      }
+      throw malformed("closing quote");
+    }
+
+    private void skipNested() {
+      int depth = 0;
+      do {
+        char c = next();
+        if (c == '"') {
+          scanString();
+        } else if (c == '{' || c == '[') {
+          depth++;
+        } else if (c == '}' || c == ']') {
+          depth--;
+        }
+      } while (depth > 0);
+    }
+
+    private String unescape(int start, int end) {
+      StringBuilder sb = new StringBuilder(end - start);
+      for (int i = start; i < end; i++) {
+        char c = json.charAt(i);
+        if (c != '\\') {
+          sb.append(c);
+          continue;
+        }
+        char e = json.charAt(++i);
+        switch (e) {
+          case 'b':
+            sb.append('\b');
+            break;
+          case 'f':
+            sb.append('\f');
+            break;
+          case 'n':
+            sb.append('\n');
+            break;
+          case 'r':
+            sb.append('\r');
+            break;
+          case 't':
+            sb.append('\t');
+            break;
+          case 'u':
+            sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+            i += 4;
+            break;
+          default:
+            sb.append(e);
+        }
+      }
+      return sb.toString();
+    }
+
+    private void skipWhitespace() {
+      while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    private char peek() {
+      if (pos >= json.length()) {
+        throw malformed("more input");
+      }
+      return json.charAt(pos);
+    }
+
+    private char next() {
+      char c = peek();
+      pos++;
+      return c;
+    }
+
+    private void expect(char c) {
+      if (next() != c) {
+        throw malformed("'" + c + "'");
+      }
+    }
+
+    private IllegalArgumentException malformed(String expected) {
+      return new IllegalArgumentException("Malformed JSON: expected " + expected + " at " + pos);
+    }
+  }
+
+  // --- WRITING ---
+
+  private static int escapedLength(String s) {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\' || c == '\b' || c == '\f' || c == '\n' || c == '\r' || c == '\t') {
+        length += 2;
+      } else if (c < 0x20) {
+        length += 6;
+      } else if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        // Lone surrogates become '?', as String.getBytes does
+        length += Character.isSurrogate(c) ? 1 : 3;
+      }
+    }
+    return length;
+  }
+
+  private static int writeEscaped(String s, byte[] out, int pos) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+        out[pos++] = (byte) c;
+        continue;
+      }
+      switch (c) {
+        case '"':
+        case '\\':
+          out[pos++] = '\\';
+          out[pos++] = (byte) c;
+          continue;
+        case '\b':
+          out[pos++] = '\\';
+          out[pos++] = 'b';
+          continue;
+        case '\f':
+          out[pos++] = '\\';
+          out[pos++] = 'f';
+          continue;
+        case '\n':
+          out[pos++] = '\\';
+          out[pos++] = 'n';
+          continue;
+        case '\r':
+          out[pos++] = '\\';
+          out[pos++] = 'r';
+          continue;
+        case '\t':
+          out[pos++] = '\\';
+          out[pos++] = 't';
+          continue;
+        default:
+          break;
+      }
+      if (c < 0x20) {
+        out[pos++] = '\\';
+        out[pos++] = 'u';
+        out[pos++] = '0';
+        out[pos++] = '0';
+        out[pos++] = HEX[c >> 4];
+        out[pos++] = HEX[c & 0xF];
+      } else if (c < 0x800) {
+        out[pos++] = (byte) (0xC0 | (c >> 6));
+        out[pos++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        out[pos++] = (byte) (0xF0 | (cp >> 18));
+        out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        out[pos++] = (byte) (0x80 | (cp & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        out[pos++] = '?';
+      } else {
+        out[pos++] = (byte) (0xE0 | (c >> 12));
+        out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        out[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    return pos;
+  }
+}
@@ -0,0 +1,385 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.logging.LogLevel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Level-gated logger for the handlers, used in place of the runtime's {@link LambdaLogger}.
+ *
+ * <p>Messages are templates: {@code {}} is replaced by an argument and {@code {*}} by a masked one
+ * (first four characters and the length), and nothing is built unless the level is enabled, so a
+ * disabled {@code debug} costs a comparison. Every line is capped at {@link #MAX_LINE} characters,
+ * and arguments that look like JSON are rewritten on the way in: values of sensitive fields such as
+ * {@code token} and {@code content} are masked and other long strings are cut short, so logging a
+ * request body no longer writes a whole base64 image.
+ *
+ * <p>The level comes from, in order, the {@code cloud26.log.level.<FunctionName>} and {@code
+ * cloud26.log.level} system properties, then the {@code LOG_LEVEL} and {@code AWS_LAMBDA_LOG_LEVEL}
+ * environment variables, and defaults to INFO. With {@code LOG_SAMPLE_RATE} (or {@code
+ * cloud26.log.sample}) set to e.g. 0.01, one invocation in a hundred logs at DEBUG in full.
+ *
+ * <p>Plain {@link #log(String)} calls are INFO lines and get the same capping and masking.
+ */
+public final class Log implements LambdaLogger {
+
+  public enum Level {
+    DEBUG(LogLevel.DEBUG),
+    INFO(LogLevel.INFO),
+    WARN(LogLevel.WARN),
+    ERROR(LogLevel.ERROR);
+
+    final LogLevel runtimeLevel;
+
+    Level(LogLevel runtimeLevel) {
+      this.runtimeLevel = runtimeLevel;
+    }
+  }
+
+  public static final int MAX_LINE = 4096;
+  static final int MAX_STRING = 64;
+  static final Set<String> SENSITIVE =
+      Set.of("token", "content", "password", "secret", "authorization");
+
+  // Resolved on the first invocation; one function per class loader
+  private static volatile Level configured;
+  private static volatile double sampleRate = -1;
+
+  private final LambdaLogger logger;
+  private final Level level;
+
+  private Log(LambdaLogger logger, Level level) {
+    this.logger = logger;
+    this.level = level;
+  }
+
+  /** The logger for one invocation, sampled into DEBUG now and then if so configured. */
+  public static Log begin(Context context) {
+    Level level = configuredLevel(context.getFunctionName());
+    if (level != Level.DEBUG && sampleRate() > 0
+        && ThreadLocalRandom.current().nextDouble() < sampleRate()) {
+      level = Level.DEBUG;
+    }
+    return new Log(context.getLogger(), level);
+  }
+
+  /** Wraps a logger outside an invocation, e.g. the one in CRaC hooks, at the configured level. */
+  public static Log of(LambdaLogger logger) {
+    return logger instanceof Log ? (Log) logger : new Log(logger, configuredLevel(null));
+  }
+
+  public boolean isEnabled(Level candidate) {
+    return candidate.compareTo(level) >= 0;
+  }
+
+  public boolean isDebugEnabled() {
+    return isEnabled(Level.DEBUG);
+  }
+
+  // --- LEVELS ---
+
+  public void debug(String message) {
+    write(Level.DEBUG, message, null, null, null, 0);
+  }
+
+  public void debug(String template, Object a) {
+    write(Level.DEBUG, template, a, null, null, 1);
+  }
+
+  public void debug(String template, Object a, Object b) {
+    write(Level.DEBUG, template, a, b, null, 2);
+  }
+
+  public void debug(String template, Object a, Object b, Object c) {
+    write(Level.DEBUG, template, a, b, c, 3);
+  }
+
+  /** For messages that are expensive to put together; {@code message} runs only if enabled. */
+  public void debug(Supplier<String> message) {
+    if (isEnabled(Level.DEBUG)) {
+      emit(Level.DEBUG, sanitize(message.get()));
+    }
+  }
+
+  public void info(String message) {
+    write(Level.INFO, message, null, null, null, 0);
+  }
+
+  public void info(String template, Object a) {
+    write(Level.INFO, template, a, null, null, 1);
+  }
+
+  public void info(String template, Object a, Object b) {
+    write(Level.INFO, template, a, b, null, 2);
+  }
+
+  public void info(String template, Object a, Object b, Object c) {
+    write(Level.INFO, template, a, b, c, 3);
+  }
+
+  public void warn(String message) {
+    write(Level.WARN, message, null, null, null, 0);
+  }
+
+  public void warn(String template, Object a) {
+    write(Level.WARN, template, a, null, null, 1);
+  }
+
+  public void warn(String template, Object a, Object b) {
+    write(Level.WARN, template, a, b, null, 2);
+  }
+
+  public void warn(String template, Object a, Object b, Object c) {
+    write(Level.WARN, template, a, b, c, 3);
+  }
+
+  public void error(String message) {
+    write(Level.ERROR, message, null, null, null, 0);
+  }
+
+  public void error(String template, Object a) {
+    write(Level.ERROR, template, a, null, null, 1);
+  }
+
+  public void error(String template, Object a, Object b) {
+    write(Level.ERROR, template, a, b, null, 2);
+  }
+
+  // --- LambdaLogger ---
+
+  @Override
+  public void log(String message) {
+    if (isEnabled(Level.INFO)) {
+      emit(Level.INFO, sanitize(message));
+    }
+  }
+
+  @Override
+  public void log(byte[] message) {
+    if (isEnabled(Level.INFO)) {
+      emit(Level.INFO, sanitize(new String(message, StandardCharsets.UTF_8)));
+    }
+  }
+
+  // --- FORMATTING ---
+
+  private void write(Level at, String template, Object a, Object b, Object c, int args) {
+    if (!isEnabled(at)) {
+      return;
+    }
+    StringBuilder sb = new StringBuilder(Math.min(MAX_LINE, template.length() + 64 * args));
+    int used = 0;
+    int from = 0;
+    while (from < template.length() && sb.length() < MAX_LINE) {
+      int open = template.indexOf('{', from);
+      if (open < 0 || used == args) {
+        sb.append(template, from, template.length());
+        break;
+      }
+      boolean plain = template.startsWith("{}", open);
+      boolean masked = template.startsWith("{*}", open);
+      if (!plain && !masked) {
+        sb.append(template, from, open + 1);
+        from = open + 1;
+        continue;
+      }
+      sb.append(template, from, open);
+      Object arg = used == 0 ? a : used == 1 ? b : c;
+      used++;
+      if (masked) {
+        appendMasked(sb, arg == null ? null : arg.toString());
+      } else {
+        appendValue(sb, arg);
+      }
+      from = open + (masked ? 3 : 2);
+    }
+    emit(at, cap(sb));
+  }
+
+  private void emit(Level at, String line) {
+    logger.log(line, at.runtimeLevel);
+  }
+
+  static void appendValue(StringBuilder sb, Object arg) {
+    if (arg instanceof Throwable) {
+      Throwable t = (Throwable) arg;
+      sb.append(t.getClass().getSimpleName()).append(": ");
+      arg = t.getMessage();
+    }
+    String text = String.valueOf(arg);
+    int budget = MAX_LINE - sb.length();
+    int start = 0;
+    while (start < text.length() && Character.isWhitespace(text.charAt(start))) {
+      start++;
+    }
+    if (start < text.length() && (text.charAt(start) == '{' || text.charAt(start) == '[')) {
+      appendJson(sb, text, budget);
+    } else if (text.length() > budget) {
+      sb.append(text, 0, Math.max(0, budget)).append("...(").append(text.length())
+          .append(" chars)");
+    } else {
+      sb.append(text);
+    }
+  }
+
+  static void appendMasked(StringBuilder sb, String value) {
+    if (value == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append(value, 0, Math.min(4, value.length())).append("***(").append(value.length())
+        .append(" chars)");
+  }
+
+  /** Whole-message version of the argument rules, for lines built by the caller. */
+  static String sanitize(String message) {
+    if (message == null) {
+      return "null";
+    }
+    if (message.length() <= MAX_STRING && message.indexOf('"') < 0) {
+      return message;
+    }
+    StringBuilder sb = new StringBuilder(Math.min(MAX_LINE, message.length()) + 32);
+    appendJson(sb, message, MAX_LINE);
+    return cap(sb);
+  }
+
+  /**
+   * Copies {@code text} into {@code sb}, masking the string values of sensitive keys and cutting
+   * other string values to {@link #MAX_STRING} characters. Tolerates text that is not, or not all,
+   * JSON: anything outside double quotes is copied as is. Stops once {@code budget} characters have
+   * been written, so only the start of a large text is ever scanned, plus the strings it skips.
+   */
+  static void appendJson(StringBuilder sb, String text, int budget) {
+    int limit = sb.length() + Math.max(0, budget);
+    int i = 0;
+    boolean maskNext = false;
+    while (i < text.length() && sb.length() < limit) {
+      char ch = text.charAt(i);
+      if (ch != '"') {
+        sb.append(ch);
+        if (!Character.isWhitespace(ch) && ch != ':') {
+          maskNext = false;
+        }
+        i++;
+        continue;
+      }
+      int end = closingQuote(text, i + 1);
+      int length = end - i - 1;
+      boolean isKey = isFollowedByColon(text, end + 1);
+      if (maskNext && !isKey) {
+        sb.append(text, i, i + 1 + Math.min(4, length)).append("***(").append(length)
+            .append(" chars)\"");
+      } else if (length > MAX_STRING) {
+        sb.append(text, i, i + 1 + MAX_STRING).append("...(").append(length).append(" chars)\"");
+      } else {
+        sb.append(text, i, Math.min(text.length(), end + 1));
+      }
+      maskNext = isKey && SENSITIVE.contains(text.substring(i + 1, end).toLowerCase(Locale.ROOT));
+      i = end + 1;
+    }
+    if (i < text.length()) {
+      sb.append("...");
+    }
+  }
+
+  // indexOf is vectorized, which matters when skipping a multi-megabyte base64 value
+  private static int closingQuote(String text, int from) {
+    int quote = text.indexOf('"', from);
+    while (quote >= 0) {
+      int backslashes = 0;
+      while (quote - backslashes - 1 >= from && text.charAt(quote - backslashes - 1) == '\\') {
+        backslashes++;
+      }
+      if (backslashes % 2 == 0) {
+        return quote;
+      }
+      quote = text.indexOf('"', quote + 1);
+    }
+    return text.length();
+  }
+
+  private static boolean isFollowedByColon(String text, int from) {
+    for (int i = from; i < text.length(); i++) {
+      char ch = text.charAt(i);
+      if (ch == ':') {
+        return true;
+      }
+      if (!Character.isWhitespace(ch)) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private static String cap(StringBuilder sb) {
+    if (sb.length() > MAX_LINE) {
+      sb.setLength(MAX_LINE);
+      sb.append("...");
+    }
+    return sb.toString();
+  }
+
+  // --- CONFIGURATION ---
+
+  private static Level configuredLevel(String functionName) {
+    Level level = configured;
+    if (level == null) {
+      String value = functionName == null
+          ? null
+          : System.getProperty("cloud26.log.level." + functionName);
+      if (value == null) {
+        value = System.getProperty("cloud26.log.level");
+      }
+      if (value == null) {
+        value = System.getenv("LOG_LEVEL");
+      }
+      if (value == null) {
+        value = System.getenv("AWS_LAMBDA_LOG_LEVEL");
+      }
+      level = parseLevel(value);
+      if (functionName != null) {
+        configured = level;
+      }
+    }
+    return level;
+  }
+
+  static Level parseLevel(String value) {
+    if (value == null) {
+      return Level.INFO;
+    }
+    switch (value.trim().toUpperCase(Locale.ROOT)) {
+      case "TRACE":
+      case "DEBUG":
+        return Level.DEBUG;
+      case "WARN":
+      case "WARNING":
+        return Level.WARN;
+      case "ERROR":
+      case "FATAL":
+        return Level.ERROR;
+      default:
+        return Level.INFO;
+    }
+  }
+
+  private static double sampleRate() {
+    double rate = sampleRate;
+    if (rate < 0) {
+      String value = System.getProperty("cloud26.log.sample", System.getenv("LOG_SAMPLE_RATE"));
+      try {
+        rate = value == null ? 0 : Double.parseDouble(value.trim());
+      } catch (NumberFormatException e) {
+        rate = 0;
+      }
+      sampleRate = rate;
+    }
+    return rate;
+  }
+}
@@ -0,0 +1,259 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-invocation metrics, written as one CloudWatch Embedded Metric Format (EMF) log line.
+ *
+ * <p>A handler calls {@link #begin} on entry, records hop timings with {@link #time} or {@link
+ * #put}, and {@link #flush} on exit. Every record carries {@code Duration}, {@code RequestBytes},
+ * {@code ResponseBytes} and {@code Errors}, with {@code FunctionName} and {@code ColdStart} as
+ * dimensions, so p99 can be split by cold and warm environments. Putting the same metric twice
+ * adds the values, e.g. the total time spent in several S3 calls.
+ *
+ * <p>Nothing is allocated per metric beyond the final line, so this stays on in production. Lines
+ * start with {@link #LINE_PREFIX} and are plain JSON, so tests and the local emulator can pick
+ * them out of the log and parse them. Warm-up pings are not recorded.
+ *
+ * <p>Each record also carries the invocation's {@link Trace} ID. When the caller propagated a
+ * trace, the timings go back to it as a {@code Server-Timing} response header as well.
+ */
+public final class Metrics {
+
+  public static final String NAMESPACE = "Cloud26";
+  public static final String LINE_PREFIX = "{\"_aws\":";
+
+  /** CloudWatch metric units used by the handlers. */
+  public enum Unit {
+    MILLISECONDS("Milliseconds"),
+    BYTES("Bytes"),
+    COUNT("Count"),
+    NONE("None");
+
+    final String cloudWatchName;
+
+    Unit(String cloudWatchName) {
+      this.cloudWatchName = cloudWatchName;
+    }
+  }
+
+  /** A call to time; may throw, in which case the elapsed time is still recorded. */
+  @FunctionalInterface
+  public interface Call<T, E extends Exception> {
+    T run() throws E;
+  }
+
+  // One per class loader, i.e. per execution environment
+  private static final AtomicBoolean COLD = new AtomicBoolean(true);
+  // Metrics a handler can put; the few that flush adds always fit on top
+  static final int MAX_METRICS = 32;
+  private static final int FLUSH_METRICS = 3;
+
+  private final LambdaLogger logger;
+  private final String functionName;
+  private final String requestId;
+  private final boolean coldStart;
+  private final boolean warmup;
+  private final Trace trace;
+  private final long startNanos = System.nanoTime();
+  private final String[] names = new String[MAX_METRICS + FLUSH_METRICS];
+  private final double[] values = new double[MAX_METRICS + FLUSH_METRICS];
+  private final Unit[] units = new Unit[MAX_METRICS + FLUSH_METRICS];
+  private int count;
+  private StringBuilder properties;
+
+  private Metrics(Context context, APIGatewayProxyRequestEvent event) {
+    this.logger = context.getLogger();
+    this.functionName = context.getFunctionName();
+    this.requestId = context.getAwsRequestId();
+    // Consumed by the first event of the environment, warm-up pings included
+    this.coldStart = COLD.getAndSet(false);
+    this.warmup = Warmup.isWarmupEvent(event);
+    this.trace = Trace.from(event);
+    property("TraceId", trace.traceId());
+    String body = event.getBody();
+    put("RequestBytes", utf8Length(body), Unit.BYTES);
+  }
+
+  public static Metrics begin(Context context, APIGatewayProxyRequestEvent event) {
+    return new Metrics(context, event);
+  }
+
+  public Trace trace() {
+    return trace;
+  }
+
+  // Synchronized for orchestrators that time parallel worker calls into one record
+  /** Adds to metric {@code name}; new names past {@link #MAX_METRICS} are dropped. */
+  public synchronized Metrics put(String name, double value, Unit unit) {
+    return put(name, value, unit, MAX_METRICS);
+  }
+
+  private Metrics put(String name, double value, Unit unit, int limit) {
+    for (int i = 0; i < count; i++) {
+      if (names[i].equals(name)) {
+        values[i] += value;
+        return this;
+      }
+    }
+    if (count < limit) {
+      names[count] = name;
+      values[count] = value;
+      units[count] = unit;
+      count++;
+    }
+    return this;
+  }
+
+  /** Records the milliseconds since {@code startNanos}, a {@link System#nanoTime} reading. */
+  public Metrics putMillisSince(String name, long startNanos) {
+    return put(name, (System.nanoTime() - startNanos) / 1e6, Unit.MILLISECONDS);
+  }
+
+  /** Runs {@code call} and records its duration in milliseconds under {@code name}. */
+  public <T, E extends Exception> T time(String name, Call<T, E> call) throws E {
+    long start = System.nanoTime();
+    try {
+      return call.run();
+    } finally {
+      putMillisSince(name, start);
+    }
+  }
+
+  /** A searchable field that is not a metric, e.g. an object key. */
+  public synchronized Metrics property(String name, String value) {
+    if (properties == null) {
+      properties = new StringBuilder();
+    }
+    properties.append(",\"").append(name).append("\":");
+    appendString(properties, value);
+    return this;
+  }
+
+  /**
+   * Emits the record and hands {@code response} back, so a handler can end with {@code return
+   * metrics.flush(response)}. A null response counts as an error.
+   */
+  public synchronized APIGatewayProxyResponseEvent flush(APIGatewayProxyResponseEvent response) {
+    if (warmup) {
+      return response;
+    }
+    int status = response == null || response.getStatusCode() == null
+        ? 500
+        : response.getStatusCode();
+    String body = response == null ? null : response.getBody();
+    int limit = MAX_METRICS + FLUSH_METRICS;
+    put("ResponseBytes", utf8Length(body), Unit.BYTES, limit);
+    put("Errors", status >= 500 ? 1 : 0, Unit.COUNT, limit);
+    put("Duration", (System.nanoTime() - startNanos) / 1e6, Unit.MILLISECONDS, limit);
+    logger.log(render(System.currentTimeMillis(), status));
+    if (response != null && trace.isPropagated()) {
+      // The response's map may be immutable (Map.of, singletonMap)
+      Map<String, String> headers = response.getHeaders() == null
+          ? new HashMap<>()
+          : new HashMap<>(response.getHeaders());
+      headers.put(Trace.TRACERESPONSE, trace.traceResponse());
+      headers.put(Trace.SERVER_TIMING, serverTiming());
+      response.setHeaders(headers);
+    }
+    return response;
+  }
+
+  // Millisecond metrics only, e.g. "Duration;dur=12.1, S3PutLatency;dur=8.4, cold;desc=false"
+  String serverTiming() {
+    StringBuilder sb = new StringBuilder(32 + count * 24);
+    for (int i = 0; i < count; i++) {
+      if (units[i] == Unit.MILLISECONDS) {
+        sb.append(names[i]).append(";dur=").append(Math.round(values[i] * 1000) / 1000.0)
+            .append(", ");
+      }
+    }
+    return sb.append("cold;desc=").append(coldStart).toString();
+  }
+
+  String render(long timestampMillis, int status) {
+    StringBuilder sb = new StringBuilder(256 + count * 48);
+    sb.append(LINE_PREFIX).append("{\"Timestamp\":").append(timestampMillis)
+        .append(",\"CloudWatchMetrics\":[{\"Namespace\":\"").append(NAMESPACE)
+        .append("\",\"Dimensions\":[[\"FunctionName\"],[\"FunctionName\",\"ColdStart\"]],")
+        .append("\"Metrics\":[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      sb.append("{\"Name\":\"").append(names[i]).append("\",\"Unit\":\"")
+          .append(units[i].cloudWatchName).append("\"}");
+    }
+    sb.append("]}]},\"FunctionName\":");
+    appendString(sb, functionName);
+    sb.append(",\"ColdStart\":\"").append(coldStart).append('"');
+    sb.append(",\"RequestId\":");
+    appendString(sb, requestId);
+    sb.append(",\"StatusCode\":").append(status);
+    for (int i = 0; i < count; i++) {
+      sb.append(",\"").append(names[i]).append("\":");
+      double value = values[i];
+      if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+        sb.append((long) value);
+      } else {
+        sb.append(Math.round(value * 1000) / 1000.0);
+      }
+    }
+    if (properties != null) {
+      sb.append(properties);
+    }
+    return sb.append('}').toString();
+  }
+
+  // The body's size on the wire, counted without encoding it again
+  static int utf8Length(String body) {
+    if (body == null) {
+      return 0;
+    }
+    int bytes = body.length();
+    for (int i = 0; i < body.length(); i++) {
+      char c = body.charAt(i);
+      if (c < 0x80) {
+        continue;
+      }
+      if (c < 0x800) {
+        bytes += 1;
+      } else if (Character.isHighSurrogate(c) && i + 1 < body.length()
+          && Character.isLowSurrogate(body.charAt(i + 1))) {
+        // Two chars, four bytes
+        bytes += 2;
+        i++;
+      } else if (!Character.isSurrogate(c)) {
+        bytes += 2;
+      }
+      // A lone surrogate is encoded as one '?'
+    }
+    return bytes;
+  }
+
+  // Names are code constants; values such as keys come from users and need escaping
+  private static void appendString(StringBuilder sb, String value) {
+    if (value == null) {
+      sb.append("null");
+      return;
+    }
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+}
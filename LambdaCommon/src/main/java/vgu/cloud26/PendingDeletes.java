@@ -0,0 +1,165 @@
+package vgu.cloud26;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Objects LambdaCollectDeleted has decided to delete, kept in the database until S3 confirms, so
+ * the deletes run after the collector's transaction instead of under its locks.
+ *
+ * <p>Entries are names: a user's key stands for its alias in both buckets, a {@link
+ * ContentHash#contentKey content key} for the content and its thumbnails. The collector {@link
+ * #add}s them in the transaction that purges their rows, then {@link #claim}s a batch, deletes the
+ * objects and drops the entries it is {@link #done} with. Anything that failed is {@link
+ * #release}d for the next run.
+ *
+ * <p>An upload that references a name again, by key or by content, {@link #rescue}s it in its own
+ * transaction: an unclaimed entry is simply dropped, and its objects stay. A claimed entry means a
+ * delete is in flight, and the upload has to come back once it is over; otherwise its S3 workers
+ * could find the bytes a moment before they go. Claims of a collector that timed out lapse after
+ * {@link #CLAIM_TIMEOUT_MILLIS}.
+ *
+ * <pre>
+ * CREATE TABLE PendingDeletes (
+ *   Name VARCHAR(1024) NOT NULL,
+ *   ClaimedBy VARCHAR(64),
+ *   ClaimedAt BIGINT,
+ *   INDEX PendingByName (Name(255))
+ * );
+ * </pre>
+ */
+public final class PendingDeletes {
+
+  /** Longer than any Lambda invocation, so only a claim whose collector is gone lapses. */
+  public static final long CLAIM_TIMEOUT_MILLIS = 16 * 60_000;
+  /** What a rescue that found a claim asks the client to wait, in seconds. */
+  public static final long RETRY_AFTER_SECONDS = 5;
+
+  private PendingDeletes() {}
+
+  /** Records {@code names} for deletion, in the caller's transaction. */
+  public static void add(Connection db, Collection<String> names) throws SQLException {
+    if (names.isEmpty()) {
+      return;
+    }
+    try (PreparedStatement insert =
+        db.prepareStatement("INSERT INTO PendingDeletes (Name) VALUES (?)")) {
+      for (String name : names) {
+        insert.setString(1, name);
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    }
+  }
+
+  /**
+   * Claims up to {@code limit} unclaimed names, or names whose claim has lapsed, for {@code
+   * claimer}. Call it in auto-commit mode: the claim has to be visible before any object goes.
+   *
+   * @return the names claimed, each once
+   */
+  public static List<String> claim(Connection db, String claimer, int limit) throws SQLException {
+    long now = System.currentTimeMillis();
+    try (PreparedStatement update = db.prepareStatement(
+        "UPDATE PendingDeletes SET ClaimedBy = ?, ClaimedAt = ?"
+            + " WHERE ClaimedAt IS NULL OR ClaimedAt < ? LIMIT ?")) {
+      update.setString(1, claimer);
+      update.setLong(2, now);
+      update.setLong(3, now - CLAIM_TIMEOUT_MILLIS);
+      update.setInt(4, limit);
+      update.executeUpdate();
+    }
+    List<String> names = new ArrayList<>();
+    try (PreparedStatement select = db.prepareStatement(
+        "SELECT DISTINCT Name FROM PendingDeletes WHERE ClaimedBy = ?")) {
+      select.setString(1, claimer);
+      try (ResultSet rs = select.executeQuery()) {
+        while (rs.next()) {
+          names.add(rs.getString(1));
+        }
+      }
+    }
+    return names;
+  }
+
+  /** Drops {@code claimer}'s entries for {@code names}, whose objects are gone. */
+  public static void done(Connection db, String claimer, Collection<String> names)
+      throws SQLException {
+    if (names.isEmpty()) {
+      return;
+    }
+    try (PreparedStatement delete = db.prepareStatement(
+        "DELETE FROM PendingDeletes WHERE ClaimedBy = ? AND Name IN ("
+            + placeholders(names.size()) + ")")) {
+      delete.setString(1, claimer);
+      bind(delete, 2, names);
+      delete.executeUpdate();
+    }
+  }
+
+  /** Hands {@code claimer}'s entries for {@code names} back, for a later run to try again. */
+  public static void release(Connection db, String claimer, Collection<String> names)
+      throws SQLException {
+    if (names.isEmpty()) {
+      return;
+    }
+    try (PreparedStatement update = db.prepareStatement(
+        "UPDATE PendingDeletes SET ClaimedBy = NULL, ClaimedAt = NULL WHERE ClaimedBy = ?"
+            + " AND Name IN (" + placeholders(names.size()) + ")")) {
+      update.setString(1, claimer);
+      bind(update, 2, names);
+      update.executeUpdate();
+    }
+  }
+
+  /**
+   * Takes {@code names} back from collection, in the caller's transaction, which goes on to
+   * reference them.
+   *
+   * @return false, leaving everything as it was, if a delete of any of them is in flight
+   */
+  public static boolean rescue(Connection db, Collection<String> names) throws SQLException {
+    if (names.isEmpty()) {
+      return true;
+    }
+    String in = placeholders(names.size());
+    // Locked, so a collector cannot claim them between this check and the commit
+    try (PreparedStatement select = db.prepareStatement(
+        "SELECT ClaimedAt FROM PendingDeletes WHERE Name IN (" + in + ") FOR UPDATE")) {
+      bind(select, 1, names);
+      try (ResultSet rs = select.executeQuery()) {
+        long lapsed = System.currentTimeMillis() - CLAIM_TIMEOUT_MILLIS;
+        while (rs.next()) {
+          long claimedAt = rs.getLong(1);
+          if (!rs.wasNull() && claimedAt >= lapsed) {
+            return false;
+          }
+        }
+      }
+    }
+    try (PreparedStatement delete = db.prepareStatement(
+        "DELETE FROM PendingDeletes WHERE Name IN (" + in + ")")) {
+      bind(delete, 1, names);
+      delete.executeUpdate();
+    }
+    return true;
+  }
+
+  private static String placeholders(int count) {
+    return String.join(", ", Collections.nCopies(count, "?"));
+  }
+
+  private static void bind(PreparedStatement st, int first, Collection<String> values)
+      throws SQLException {
+    int i = first;
+    for (String value : values) {
+      st.setString(i++, value);
+    }
+  }
+}
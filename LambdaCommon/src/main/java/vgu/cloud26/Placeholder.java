@@ -0,0 +1,128 @@
+package vgu.cloud26;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A blurred stand-in for a photo in about 30 characters, shown while the real thumbnail loads.
+ *
+ * <p>The string is a <a href="https://blurha.sh">BlurHash</a>: the average colour plus a few
+ * low-frequency cosine components, quantized and written in base 83. The gallery page decodes it
+ * onto a small canvas. It is computed from the thumbnail rather than the original, which looks
+ * the same at this resolution and keeps encoding well under a millisecond.
+ *
+ * <p>LambdaResizer stores it as {@value #METADATA} user metadata on the thumbnail's content, so
+ * the gallery's HEAD of each thumbnail returns it without another lookup.
+ */
+public final class Placeholder {
+
+  /** User metadata on a thumbnail: its BlurHash. */
+  public static final String METADATA = "placeholder";
+
+  private static final int COMPONENTS_X = 4;
+  private static final int COMPONENTS_Y = 3;
+  private static final String BASE83 =
+      "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz#$%*+,-.:;=?@[]^_{|}~";
+  private static final double[] SRGB_TO_LINEAR = new double[256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      double v = i / 255.0;
+      SRGB_TO_LINEAR[i] = v <= 0.04045 ? v / 12.92 : Math.pow((v + 0.055) / 1.055, 2.4);
+    }
+  }
+
+  private Placeholder() {}
+
+  /** The BlurHash of {@code image}, 4 by 3 components (by 4 for portrait images). */
+  public static String of(BufferedImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int componentsX = width >= height ? COMPONENTS_X : COMPONENTS_Y;
+    int componentsY = width >= height ? COMPONENTS_Y : COMPONENTS_X;
+    int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+
+    // The cosines depend on one coordinate each, so a table per axis saves most of the work
+    double[][] cosX = cosines(componentsX, width);
+    double[][] cosY = cosines(componentsY, height);
+    double[][] factors = new double[componentsX * componentsY][3];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int rgb = pixels[y * width + x];
+        double r = SRGB_TO_LINEAR[(rgb >> 16) & 0xff];
+        double g = SRGB_TO_LINEAR[(rgb >> 8) & 0xff];
+        double b = SRGB_TO_LINEAR[rgb & 0xff];
+        for (int j = 0; j < componentsY; j++) {
+          for (int i = 0; i < componentsX; i++) {
+            double basis = cosX[i][x] * cosY[j][y];
+            double[] factor = factors[j * componentsX + i];
+            factor[0] += basis * r;
+            factor[1] += basis * g;
+            factor[2] += basis * b;
+          }
+        }
+      }
+    }
+    double scale = 1.0 / ((double) width * height);
+    for (int k = 0; k < factors.length; k++) {
+      // The average colour counts once, every other component twice
+      double normalisation = k == 0 ? scale : 2 * scale;
+      for (int c = 0; c < 3; c++) {
+        factors[k][c] *= normalisation;
+      }
+    }
+
+    StringBuilder hash = new StringBuilder(4 + 2 * factors.length);
+    encode83((componentsX - 1) + (componentsY - 1) * 9, 1, hash);
+    double maximum = 0;
+    for (int k = 1; k < factors.length; k++) {
+      for (int c = 0; c < 3; c++) {
+        maximum = Math.max(maximum, Math.abs(factors[k][c]));
+      }
+    }
+    int quantisedMaximum = (int) Math.max(0, Math.min(82, Math.floor(maximum * 166 - 0.5)));
+    double maximumValue = (quantisedMaximum + 1) / 166.0;
+    encode83(quantisedMaximum, 1, hash);
+    encode83(linearToSrgb(factors[0][0]) << 16
+        | linearToSrgb(factors[0][1]) << 8
+        | linearToSrgb(factors[0][2]), 4, hash);
+    for (int k = 1; k < factors.length; k++) {
+      encode83(quantiseAc(factors[k][0], maximumValue) * 19 * 19
+          + quantiseAc(factors[k][1], maximumValue) * 19
+          + quantiseAc(factors[k][2], maximumValue), 2, hash);
+    }
+    return hash.toString();
+  }
+
+  private static double[][] cosines(int components, int size) {
+    double[][] table = new double[components][size];
+    for (int i = 0; i < components; i++) {
+      for (int p = 0; p < size; p++) {
+        table[i][p] = Math.cos(Math.PI * i * p / size);
+      }
+    }
+    return table;
+  }
+
+  private static int linearToSrgb(double value) {
+    double v = Math.max(0, Math.min(1, value));
+    return v <= 0.0031308
+        ? (int) (v * 12.92 * 255 + 0.5)
+        : (int) ((1.055 * Math.pow(v, 1 / 2.4) - 0.055) * 255 + 0.5);
+  }
+
+  private static int quantiseAc(double value, double maximumValue) {
+    double v = value / maximumValue;
+    double compressed = Math.copySign(Math.sqrt(Math.abs(v)), v);
+    return (int) Math.max(0, Math.min(18, Math.floor(compressed * 9 + 9.5)));
+  }
+
+  private static void encode83(int value, int length, StringBuilder out) {
+    for (int i = length - 1; i >= 0; i--) {
+      int divisor = 1;
+      for (int p = 0; p < i; p++) {
+        divisor *= 83;
+      }
+      out.append(BASE83.charAt(value / divisor % 83));
+    }
+  }
+}
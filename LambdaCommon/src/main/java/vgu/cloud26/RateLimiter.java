@@ -0,0 +1,126 @@
+package vgu.cloud26;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+
+/**
+ * Token bucket per user, kept in the {@code RateLimits} table so that every execution environment
+ * draws from the same bucket.
+ *
+ * <p>A bucket holds up to {@code burst} tokens and refills at {@code ratePerMinute}; each admitted
+ * request takes one. The check is one short transaction on a connection the caller already holds,
+ * with the user's row locked ({@code SELECT ... FOR UPDATE}) while it is read and written back, so
+ * concurrent requests from the same user cannot both take the last token. Denials write nothing.
+ *
+ * <pre>
+ * CREATE TABLE RateLimits (
+ *   Email VARCHAR(255) NOT NULL PRIMARY KEY,
+ *   Tokens DOUBLE NOT NULL,
+ *   UpdatedAt BIGINT NOT NULL
+ * );
+ * </pre>
+ */
+public final class RateLimiter {
+
+  private final double ratePerMilli;
+  private final double burst;
+
+  public RateLimiter(double ratePerMinute, double burst) {
+    this.ratePerMilli = ratePerMinute / 60_000.0;
+    this.burst = Math.max(1, burst);
+  }
+
+  /**
+   * Reads {@code <PREFIX>_RATE_PER_MINUTE} and {@code <PREFIX>_BURST} from the environment, or the
+   * {@code cloud26.<prefix>.ratePerMinute} and {@code cloud26.<prefix>.burst} system properties.
+   */
+  public static RateLimiter fromEnvironment(String prefix, double ratePerMinute, double burst) {
+    return new RateLimiter(
+        setting(prefix, "RATE_PER_MINUTE", "ratePerMinute", ratePerMinute),
+        setting(prefix, "BURST", "burst", burst));
+  }
+
+  /**
+   * Takes a token from {@code key}'s bucket.
+   *
+   * @return 0 if the request is admitted, otherwise the whole seconds until a token is available,
+   *     for a {@code Retry-After} header
+   */
+  public long acquire(Connection db, String key) throws SQLException {
+    return acquire(db, key, 1);
+  }
+
+  /**
+   * Takes {@code permits} tokens at once, e.g. one per file of a batch upload. A batch larger than
+   * the burst takes a full bucket, so it can still get in.
+   */
+  public long acquire(Connection db, String key, int permits) throws SQLException {
+    double wanted = Math.min(Math.max(1, permits), burst);
+    boolean autoCommit = db.getAutoCommit();
+    db.setAutoCommit(false);
+    try {
+      try {
+        return take(db, key, wanted);
+      } catch (SQLIntegrityConstraintViolationException e) {
+        // A concurrent first request created the row; it exists now, so lock it and go again
+        db.rollback();
+        return take(db, key, wanted);
+      }
+    } catch (SQLException e) {
+      db.rollback();
+      throw e;
+    } finally {
+      db.setAutoCommit(autoCommit);
+    }
+  }
+
+  private long take(Connection db, String key, double wanted) throws SQLException {
+    long now = System.currentTimeMillis();
+    double tokens;
+    try (PreparedStatement select = db.prepareStatement(
+        "SELECT Tokens, UpdatedAt FROM RateLimits WHERE Email = ? FOR UPDATE")) {
+      select.setString(1, key);
+      try (ResultSet rs = select.executeQuery()) {
+        if (!rs.next()) {
+          write(db, "INSERT INTO RateLimits (Tokens, UpdatedAt, Email) VALUES (?, ?, ?)",
+              key, burst - wanted, now);
+          db.commit();
+          return 0;
+        }
+        long elapsed = Math.max(0, now - rs.getLong(2));
+        tokens = Math.min(burst, rs.getDouble(1) + elapsed * ratePerMilli);
+      }
+    }
+    if (tokens < wanted) {
+      db.rollback();
+      return Math.max(1, (long) Math.ceil((wanted - tokens) / ratePerMilli / 1000));
+    }
+    write(db, "UPDATE RateLimits SET Tokens = ?, UpdatedAt = ? WHERE Email = ?",
+        key, tokens - wanted, now);
+    db.commit();
+    return 0;
+  }
+
+  private static void write(Connection db, String sql, String key, double tokens, long now)
+      throws SQLException {
+    try (PreparedStatement statement = db.prepareStatement(sql)) {
+      statement.setDouble(1, tokens);
+      statement.setLong(2, now);
+      statement.setString(3, key);
+      statement.executeUpdate();
+    }
+  }
+
+  private static double setting(String prefix, String env, String property, double fallback) {
+    String value = System.getProperty("cloud26." + prefix.toLowerCase() + "." + property,
+        System.getenv(prefix.toUpperCase() + "_" + env));
+    try {
+      return value == null ? fallback : Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      return fallback;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzips JSON response bodies when the caller sent {@code Accept-Encoding: gzip}.
+ *
+ * <p>API Gateway and Function URLs only pass binary bodies through when they are Base64 encoded,
+ * so a compressed response is always returned with {@code isBase64Encoded = true}.
+ */
+public final class ResponseCompression {
+
+  // Below this size the gzip header and Base64 overhead eat most of the savings
+  public static final int MIN_COMPRESS_BYTES = 1024;
+
+  // Gallery JSON is very repetitive, level 1 already gets most of the ratio for a fraction of the CPU
+  private static final int LEVEL = Deflater.BEST_SPEED;
+  private static final int MAX_POOLED_DEFLATERS = 4;
+  private static final byte[] GZIP_HEADER = {
+    0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+  };
+
+  private static final ConcurrentLinkedQueue<Deflater> POOL = new ConcurrentLinkedQueue<>();
+
+  private ResponseCompression() {}
+
+  public static APIGatewayProxyResponseEvent gzipIfAccepted(
+      APIGatewayProxyRequestEvent request, APIGatewayProxyResponseEvent response) {
+    String body = response.getBody();
+    if (body == null
+        || Boolean.TRUE.equals(response.getIsBase64Encoded())
+        || !acceptsGzip(request.getHeaders())) {
+      return response;
+    }
+    byte[] raw = body.getBytes(StandardCharsets.UTF_8);
+    if (raw.length < MIN_COMPRESS_BYTES) {
+      return response;
+    }
+
+    Map<String, String> headers = new HashMap<>();
+    if (response.getHeaders() != null) {
+      headers.putAll(response.getHeaders());
+    }
+    headers.put("Content-Encoding", "gzip");
+    headers.put("Vary", "Accept-Encoding");
+
+    return response
+        .withHeaders(headers)
+        .withBody(Base64.getEncoder().encodeToString(gzip(raw)))
+        .withIsBase64Encoded(true);
+  }
+
+  static boolean acceptsGzip(Map<String, String> headers) {
+    if (headers == null) {
+      return false;
+    }
+    String accept = null;
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      if ("accept-encoding".equalsIgnoreCase(header.getKey())) {
+        accept = header.getValue();
+        break;
+      }
+    }
+    if (accept == null) {
+      return false;
+    }
+    // An explicit gzip entry decides; "*" only stands in for codings not listed
+    Boolean wildcard = null;
+    for (String coding : accept.split(",")) {
+      String[] parts = coding.trim().split(";");
+      String name = parts[0].trim();
+      if ("gzip".equalsIgnoreCase(name)) {
+        return !refused(parts);
+      }
+      if ("*".equals(name) && wildcard == null) {
+        wildcard = !refused(parts);
+      }
+    }
+    return Boolean.TRUE.equals(wildcard);
+  }
+
+  // "gzip;q=0" means the client explicitly refuses it
+  private static boolean refused(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String param = parts[i].trim();
+      if (param.startsWith("q=") && isZero(param.substring(2))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isZero(String qvalue) {
+    try {
+      return Double.parseDouble(qvalue) == 0;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  static byte[] gzip(byte[] raw) {
+    Deflater deflater = POOL.poll();
+    if (deflater == null) {
+      // nowrap: we write the gzip header and trailer ourselves
+      deflater = new Deflater(LEVEL, true);
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 64);
+      out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+
+      deflater.setInput(raw);
+      deflater.finish();
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(buffer);
+        out.write(buffer, 0, n);
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(raw, 0, raw.length);
+      writeIntLE(out, (int) crc.getValue());
+      writeIntLE(out, raw.length);
+      return out.toByteArray();
+    } finally {
+      deflater.reset();
+      if (POOL.size() < MAX_POOLED_DEFLATERS) {
+        POOL.offer(deflater);
+      } else {
+        deflater.end();
+      }
+    }
+  }
+
+  private static void writeIntLE(ByteArrayOutputStream out, int value) {
+    out.write(value & 0xff);
+    out.write((value >>> 8) & 0xff);
+    out.write((value >>> 16) & 0xff);
+    out.write((value >>> 24) & 0xff);
+  }
+}
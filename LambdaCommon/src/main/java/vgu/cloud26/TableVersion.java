@@ -0,0 +1,58 @@
+package vgu.cloud26;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A counter per table that every write to the table bumps, so readers can cache query results and
+ * tell with one primary-key lookup whether they are still current.
+ *
+ * <p>Writers call {@link #bump} as the last statement of the transaction that changes the table:
+ * the new version becomes visible together with the change, and the row lock it takes is held
+ * only until the commit right after. A reader that checks the version before running its query
+ * never caches data older than the version it saw.
+ *
+ * <pre>
+ * CREATE TABLE TableVersions (
+ *   Name VARCHAR(64) NOT NULL PRIMARY KEY,
+ *   Version BIGINT NOT NULL
+ * );
+ * INSERT INTO TableVersions (Name, Version) VALUES ('Photos', 0);
+ * </pre>
+ */
+public final class TableVersion {
+
+  public static final String PHOTOS = "Photos";
+
+  private TableVersion() {}
+
+  /** Moves {@code table} to its next version, in the caller's transaction. */
+  public static void bump(Connection db, String table) throws SQLException {
+    try (PreparedStatement update = db.prepareStatement(
+        "UPDATE TableVersions SET Version = Version + 1 WHERE Name = ?")) {
+      update.setString(1, table);
+      if (update.executeUpdate() > 0) {
+        return;
+      }
+    }
+    // Not seeded yet; a concurrent first bump makes this fail, like any other conflicting write
+    try (PreparedStatement insert = db.prepareStatement(
+        "INSERT INTO TableVersions (Name, Version) VALUES (?, 1)")) {
+      insert.setString(1, table);
+      insert.executeUpdate();
+    }
+  }
+
+  /** The current version of {@code table}, 0 if it has never been written. */
+  public static long read(Connection db, String table) throws SQLException {
+    try (PreparedStatement select = db.prepareStatement(
+        "SELECT Version FROM TableVersions WHERE Name = ?")) {
+      select.setString(1, table);
+      try (ResultSet rs = select.executeQuery()) {
+        return rs.next() ? rs.getLong(1) : 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,255 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Trace context for one invocation and the timeline of the Lambda calls it makes.
+ *
+ * <p>IDs follow W3C Trace Context. The front door starts a trace; {@link InvokeClient} passes it on
+ * as a {@code traceparent} header in the invoke payload, with a fresh span ID per call. A worker
+ * that received one answers with {@code traceresponse} (its own span) and {@code Server-Timing}
+ * (its metrics, see {@link Metrics#flush}), and the caller turns those into one entry of {@link
+ * #timeline}. No tracing service is involved: the timeline is plain JSON for logs and responses.
+ */
+public final class Trace {
+
+  public static final String TRACEPARENT = "traceparent";
+  public static final String TRACERESPONSE = "traceresponse";
+  public static final String SERVER_TIMING = "Server-Timing";
+
+  private final String traceId;
+  private final String spanId = randomHex(16);
+  private final String parentSpanId;
+  private final long startNanos = System.nanoTime();
+  private final List<JSONObject> hops = new ArrayList<>();
+
+  private Trace(String traceId, String parentSpanId) {
+    this.traceId = traceId;
+    this.parentSpanId = parentSpanId;
+  }
+
+  /** Continues the trace in the event's {@code traceparent} header, or starts a new one. */
+  public static Trace from(APIGatewayProxyRequestEvent event) {
+    String[] parts = parse(header(event.getHeaders(), TRACEPARENT));
+    return parts == null ? new Trace(randomHex(32), null) : new Trace(parts[1], parts[2]);
+  }
+
+  public String traceId() {
+    return traceId;
+  }
+
+  public String spanId() {
+    return spanId;
+  }
+
+  /** True when the caller sent a trace context and so expects timings back. */
+  public boolean isPropagated() {
+    return parentSpanId != null;
+  }
+
+  public String traceResponse() {
+    return "00-" + traceId + "-" + spanId + "-01";
+  }
+
+  /** Starts one outgoing Lambda call. */
+  public Call call(String functionName) {
+    return new Call(functionName);
+  }
+
+  /**
+   * This invocation and every call it made, in start order, e.g.
+   *
+   * <pre>
+   * {"traceId": "...", "spanId": "...", "durationMs": 180.2, "hops": [
+   *   {"function": "LambdaTokenVerifier", "startMs": 0.4, "durationMs": 21.3, "statusCode": 200,
+   *    "remoteSpanId": "...", "remote": {"Duration": 12.1, "KeyLatency": 0.1, "cold": "false"}}]}
+   * </pre>
+   *
+   * The gap between a hop's {@code durationMs} and its remote {@code Duration} is invoke overhead,
+   * including any cold start of the worker.
+   */
+  public synchronized JSONObject timeline() {
+    JSONObject timeline = new JSONObject();
+    timeline.put("traceId", traceId);
+    timeline.put("spanId", spanId);
+    if (parentSpanId != null) {
+      timeline.put("parentSpanId", parentSpanId);
+    }
+    timeline.put("durationMs", millisSince(startNanos));
+    timeline.put("hops", new JSONArray(hops));
+    return timeline;
+  }
+
+  /** One outgoing invoke. Call {@link #end} or {@link #fail} exactly once. */
+  public final class Call {
+    private final String functionName;
+    private final String callSpanId = randomHex(16);
+    private final long callStartNanos = System.nanoTime();
+    private JSONObject notes;
+
+    private Call(String functionName) {
+      this.functionName = functionName;
+    }
+
+    /**
+     * Returns {@code event} with a {@code traceparent} header added. The header is spliced in at
+     * the front, so an event that already has a {@code headers} field must not be passed.
+     */
+    public byte[] inject(byte[] event) {
+      int brace = 0;
+      while (brace < event.length && event[brace] != '{') {
+        brace++;
+      }
+      if (brace == event.length) {
+        return event;
+      }
+      int next = brace + 1;
+      while (next < event.length && Character.isWhitespace(event[next])) {
+        next++;
+      }
+      boolean empty = next < event.length && event[next] == '}';
+      byte[] headers = ("\"headers\":{\"" + TRACEPARENT + "\":\"00-" + traceId + "-" + callSpanId
+          + "-01\"}" + (empty ? "" : ",")).getBytes(StandardCharsets.UTF_8);
+      byte[] out = new byte[event.length + headers.length];
+      System.arraycopy(event, 0, out, 0, brace + 1);
+      System.arraycopy(headers, 0, out, brace + 1, headers.length);
+      System.arraycopy(event, brace + 1, out, brace + 1 + headers.length, event.length - brace - 1);
+      return out;
+    }
+
+    /** Records the call from the worker's serialized response. */
+    public void end(JSONObject response) {
+      JSONObject hop = hop();
+      hop.put("statusCode", response.optInt("statusCode", 200));
+      JSONObject headers = response.optJSONObject("headers");
+      if (headers != null) {
+        String[] remote = parse(header(headers.toMap(), TRACERESPONSE));
+        if (remote != null) {
+          hop.put("remoteSpanId", remote[2]);
+        }
+        String timing = header(headers.toMap(), SERVER_TIMING);
+        if (timing != null) {
+          hop.put("remote", parseServerTiming(timing));
+        }
+      }
+      add(hop);
+    }
+
+    /** Extra detail for this hop, e.g. how many attempts it took. */
+    public Call note(String name, Object value) {
+      if (notes == null) {
+        notes = new JSONObject();
+      }
+      notes.put(name, value);
+      return this;
+    }
+
+    public void fail(Exception e) {
+      add(hop().put("failure", String.valueOf(e.getMessage())));
+    }
+
+    private JSONObject hop() {
+      JSONObject hop = new JSONObject();
+      hop.put("function", functionName);
+      hop.put("spanId", callSpanId);
+      hop.put("startMs", Math.round((callStartNanos - startNanos) / 1000.0) / 1000.0);
+      hop.put("durationMs", millisSince(callStartNanos));
+      if (notes != null) {
+        for (String name : notes.keySet()) {
+          hop.put(name, notes.get(name));
+        }
+      }
+      return hop;
+    }
+  }
+
+  // --- HELPERS ---
+
+  private synchronized void add(JSONObject hop) {
+    hops.add(hop);
+  }
+
+  private static String header(Map<String, ?> headers, String name) {
+    if (headers == null) {
+      return null;
+    }
+    for (Map.Entry<String, ?> entry : headers.entrySet()) {
+      if (name.equalsIgnoreCase(entry.getKey()) && entry.getValue() != null) {
+        return entry.getValue().toString();
+      }
+    }
+    return null;
+  }
+
+  /** {@code version-traceId-spanId-flags}, or null unless well formed. */
+  private static String[] parse(String header) {
+    if (header == null) {
+      return null;
+    }
+    String[] parts = header.trim().split("-");
+    if (parts.length < 4 || !isHex(parts[1], 32) || !isHex(parts[2], 16)) {
+      return null;
+    }
+    return parts;
+  }
+
+  private static boolean isHex(String s, int length) {
+    if (s.length() != length) {
+      return false;
+    }
+    boolean nonZero = false;
+    for (int i = 0; i < length; i++) {
+      char c = s.charAt(i);
+      if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+        return false;
+      }
+      nonZero |= c != '0';
+    }
+    return nonZero;
+  }
+
+  // "Duration;dur=12.1, KeyLatency;dur=0.1, cold;desc=false" -> {"Duration": 12.1, ...}
+  private static JSONObject parseServerTiming(String header) {
+    JSONObject timings = new JSONObject();
+    for (String entry : header.split(",")) {
+      String[] params = entry.trim().split(";");
+      for (int i = 1; i < params.length; i++) {
+        String[] kv = params[i].trim().split("=", 2);
+        if (kv.length < 2) {
+          continue;
+        }
+        if (kv[0].equals("dur")) {
+          try {
+            timings.put(params[0], Double.parseDouble(kv[1]));
+          } catch (NumberFormatException e) {
+            // Not ours; skip it
+          }
+        } else if (kv[0].equals("desc")) {
+          timings.put(params[0], kv[1].replace("\"", ""));
+        }
+      }
+    }
+    return timings;
+  }
+
+  private static double millisSince(long startNanos) {
+    return Math.round((System.nanoTime() - startNanos) / 1000.0) / 1000.0;
+  }
+
+  private static String randomHex(int length) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    StringBuilder sb = new StringBuilder(length);
+    while (sb.length() < length) {
+      sb.append(Long.toHexString(random.nextLong() | Long.MIN_VALUE), 1, 16);
+    }
+    sb.setLength(length);
+    return sb.toString();
+  }
+}
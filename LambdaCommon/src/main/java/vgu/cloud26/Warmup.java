@@ -0,0 +1,111 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.util.Collections;
+import org.json.JSONObject;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Warm-up protocol shared by all handlers.
+ *
+ * <p>A warm-up ping is an event whose body is exactly {@code {"warmup": true}}. Anything else,
+ * including a real request for a key like {@code warmer.jpg}, goes down the normal path. On a ping
+ * the handler runs each of its real dependencies once through {@link #step} so the first user
+ * request after warming finds the clients, connections and codecs already initialized.
+ *
+ * <p>Schedulers send it as the API Gateway event {@code {"body": "{\"warmup\": true}"}}, e.g. as
+ * the constant input of an EventBridge rule. The older check matched any body containing {@code
+ * warmer}; rules still sending that now reach the authenticated path and fail there, so they have
+ * to be switched to this shape.
+ */
+public final class Warmup {
+
+  public static final String FIELD = "warmup";
+  // Object key used for no-op storage probes; nothing is ever written under it
+  public static final String PROBE_KEY = ".warmup-probe";
+
+  /** A single priming action, e.g. a no-op HeadObject or a SELECT 1. */
+  @FunctionalInterface
+  public interface Step {
+    void run() throws Exception;
+  }
+
+  private final LambdaLogger logger;
+  private final long startNanos = System.nanoTime();
+  private final JSONObject timings = new JSONObject();
+  private boolean failed;
+
+  public Warmup(LambdaLogger logger) {
+    this.logger = logger;
+  }
+
+  public static boolean isWarmupEvent(APIGatewayProxyRequestEvent event) {
+    String body = event.getBody();
+    // Cheap pre-check so normal (possibly multi-MB) bodies are never parsed twice
+    if (body == null || body.length() > 64 || !body.contains("\"" + FIELD + "\"")) {
+      return false;
+    }
+    try {
+      JSONObject json = new JSONObject(body);
+      return json.length() == 1 && json.optBoolean(FIELD, false);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  /**
+   * HeadObject on {@link #PROBE_KEY} in {@code bucket}: a full signed round trip with no side
+   * effects. The expected 404 is success; anything else, e.g. 403 for a missing permission, fails.
+   */
+  public static void headProbe(S3Client s3, String bucket) {
+    try {
+      s3.headObject(HeadObjectRequest.builder().bucket(bucket).key(PROBE_KEY).build());
+    } catch (S3Exception e) {
+      if (e.statusCode() != 404) {
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Runs one priming step, recording its duration. A failing step is logged, not rethrown, and
+   * only its name and "failed" go into the report: the report is the response to a public caller.
+   */
+  public Warmup step(String name, Step step) {
+    long start = System.nanoTime();
+    try {
+      step.run();
+      timings.put(name, elapsedMs(start));
+    } catch (Exception e) {
+      failed = true;
+      timings.put(name, "failed");
+      logger.log("Warm-up step " + name + " failed: " + e.getMessage());
+    }
+    return this;
+  }
+
+  /** Logs and returns the priming report, e.g. when priming runs from a checkpoint hook. */
+  public JSONObject finish() {
+    JSONObject report = new JSONObject();
+    report.put("warmed", !failed);
+    report.put("primingMs", timings);
+    report.put("totalMs", elapsedMs(startNanos));
+    logger.log("Warm-up finished: " + report);
+    return report;
+  }
+
+  public APIGatewayProxyResponseEvent toResponse() {
+    return new APIGatewayProxyResponseEvent()
+        .withStatusCode(200)
+        .withBody(finish().toString())
+        .withHeaders(Collections.singletonMap("Content-Type", "application/json"));
+  }
+
+  private static long elapsedMs(long startNanos) {
+    return (System.nanoTime() - startNanos) / 1_000_000;
+  }
+}
@@ -0,0 +1,69 @@
+package vgu.cloud26;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.crac.CheckpointException;
+import org.crac.Context;
+import org.crac.Resource;
+import org.crac.RestoreException;
+
+/**
+ * A CRaC context that runs its resources' hooks the way a SnapStart snapshot and restore do:
+ * {@code beforeCheckpoint} in reverse order of registration, then {@code afterRestore} in order.
+ * A hook that throws does not stop the others; its exception is suppressed into the one thrown.
+ *
+ * <p>Handlers register with {@code Core.getGlobalContext()}, which outside a CRaC JVM never
+ * checkpoints, so tests register them here as well.
+ */
+public class CheckpointContext extends Context<Resource> {
+
+  private final List<Resource> resources = new ArrayList<>();
+
+  @Override
+  public synchronized void register(Resource resource) {
+    resources.add(resource);
+  }
+
+  /** Takes a snapshot and restores from it, without the snapshot. */
+  public void checkpointRestore() throws Exception {
+    beforeCheckpoint(this);
+    afterRestore(this);
+  }
+
+  @Override
+  public void beforeCheckpoint(Context<? extends Resource> context) throws CheckpointException {
+    CheckpointException failed = null;
+    List<Resource> registered = registered();
+    for (int i = registered.size() - 1; i >= 0; i--) {
+      try {
+        registered.get(i).beforeCheckpoint(this);
+      } catch (Exception e) {
+        failed = failed == null ? new CheckpointException() : failed;
+        failed.addSuppressed(e);
+      }
+    }
+    if (failed != null) {
+      throw failed;
+    }
+  }
+
+  @Override
+  public void afterRestore(Context<? extends Resource> context) throws RestoreException {
+    RestoreException failed = null;
+    for (Resource resource : registered()) {
+      try {
+        resource.afterRestore(this);
+      } catch (Exception e) {
+        failed = failed == null ? new RestoreException() : failed;
+        failed.addSuppressed(e);
+      }
+    }
+    if (failed != null) {
+      throw failed;
+    }
+  }
+
+  private synchronized List<Resource> registered() {
+    return new ArrayList<>(resources);
+  }
+}
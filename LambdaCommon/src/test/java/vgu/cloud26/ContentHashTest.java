@@ -0,0 +1,76 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HexFormat;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class ContentHashTest {
+
+  private static final String EMPTY_SHA256 =
+      "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855";
+
+  @Test
+  public void hashesTheDecodedBytes() throws Exception {
+    byte[] image = new byte[100_000];
+    for (int i = 0; i < image.length; i++) {
+      image[i] = (byte) (i * 31);
+    }
+    String body = new JSONObject()
+        .put("key", "cat.jpg")
+        .put("content", Base64.getEncoder().encodeToString(image))
+        .toString();
+
+    String expected =
+        HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(image));
+    assertEquals(expected, ContentHash.ofBase64(JsonEnvelope.parse(body), "content"));
+  }
+
+  @Test
+  public void hexResetsTheDigest() {
+    MessageDigest digest = ContentHash.newDigest();
+    digest.update("cat".getBytes(StandardCharsets.UTF_8));
+    ContentHash.hex(digest);
+
+    assertEquals(EMPTY_SHA256, ContentHash.hex(digest));
+  }
+
+  @Test
+  public void onlyLowerCaseHexSha256IsValid() {
+    assertTrue(ContentHash.isValid(EMPTY_SHA256));
+
+    assertFalse(ContentHash.isValid(null));
+    assertFalse(ContentHash.isValid(""));
+    assertFalse(ContentHash.isValid(EMPTY_SHA256.toUpperCase()));
+    assertFalse(ContentHash.isValid(EMPTY_SHA256.substring(1)));
+    assertFalse(ContentHash.isValid(EMPTY_SHA256 + "0"));
+    assertFalse(ContentHash.isValid("../" + EMPTY_SHA256.substring(3)));
+  }
+
+  @Test
+  public void contentKeysAreUnderThePrefix() {
+    assertEquals("sha256/" + EMPTY_SHA256, ContentHash.contentKey(EMPTY_SHA256, ""));
+    assertEquals("sha256/" + EMPTY_SHA256 + ".jpg", ContentHash.contentKey(EMPTY_SHA256, ".jpg"));
+
+    assertTrue(ContentHash.isContentKey(ContentHash.contentKey(EMPTY_SHA256, ".png")));
+    assertFalse(ContentHash.isContentKey("cat.jpg"));
+    assertFalse(ContentHash.isContentKey("resized-sha256/cat.jpg"));
+  }
+
+  @Test
+  public void refusesKeysForAnythingButAHash() {
+    try {
+      ContentHash.contentKey("../other-user/cat.jpg", "");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // A caller-chosen "hash" must never become a key
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+
+public class ContentStoreTest {
+
+  private static final String BUCKET = "bucket-test";
+  private static final byte[] PHOTO = "not really a jpeg".getBytes(StandardCharsets.UTF_8);
+
+  private static FakeBackend backend;
+  private static S3Client s3;
+
+  private ContentStore store;
+  private String contentKey;
+
+  @BeforeClass
+  public static void startBackend() throws Exception {
+    backend = FakeBackend.started();
+    s3 = S3Client.create();
+  }
+
+  @AfterClass
+  public static void stopBackend() {
+    s3.close();
+    backend.close();
+  }
+
+  @Before
+  public void newStore() {
+    store = new ContentStore(s3, BUCKET);
+    // A fresh hash per test, so objects left by the others do not count
+    MessageDigest digest = ContentHash.newDigest();
+    digest.update(Long.toString(System.nanoTime()).getBytes(StandardCharsets.US_ASCII));
+    contentKey = ContentHash.contentKey(ContentHash.hex(digest), "");
+    backend.requests.clear();
+  }
+
+  @Test
+  public void storesTheBytesOnce() throws Exception {
+    assertTrue(store.put("alice/cat.jpg", contentKey, PHOTO, "image/jpeg"));
+    assertFalse(store.put("bob/same-cat.jpg", contentKey, PHOTO, "image/jpeg"));
+
+    assertEquals(1, backend.count("PUT /" + BUCKET + "/" + contentKey));
+    assertArrayEquals(PHOTO, read("alice/cat.jpg"));
+    assertArrayEquals(PHOTO, read("bob/same-cat.jpg"));
+  }
+
+  @Test
+  public void aliasesAreEmptyAndNameTheirContent() {
+    store.put("alice/cat.jpg", contentKey, PHOTO, "image/jpeg");
+
+    assertEquals("", backend.readObject(BUCKET, "alice/cat.jpg"));
+    HeadObjectResponse alias =
+        s3.headObject(HeadObjectRequest.builder().bucket(BUCKET).key("alice/cat.jpg").build());
+    assertEquals(contentKey, alias.metadata().get(ContentStore.ALIAS_METADATA));
+  }
+
+  @Test
+  public void headReportsTheContentNotTheAlias() {
+    store.putContent(contentKey, PHOTO, "image/jpeg", Map.of("width", "640"));
+    store.alias("alice/cat.jpg", contentKey, "image/jpeg");
+
+    assertEquals(PHOTO.length, (long) store.head("alice/cat.jpg").contentLength());
+    assertEquals("640", store.head("alice/cat.jpg").metadata().get("width"));
+  }
+
+  @Test
+  public void objectsFromBeforeAliasesAreReadAsTheyAre() throws Exception {
+    backend.putObject(BUCKET, "old/dog.jpg", PHOTO, "image/jpeg", Map.of());
+
+    assertArrayEquals(PHOTO, read("old/dog.jpg"));
+    assertEquals(PHOTO.length, (long) store.head("old/dog.jpg").contentLength());
+  }
+
+  @Test
+  public void missingKeysAndDanglingAliases() throws Exception {
+    assertNull(store.head("nobody/nothing.jpg"));
+    assertFalse(store.exists(contentKey));
+
+    store.alias("alice/gone.jpg", contentKey, "image/jpeg");
+    assertNull(store.head("alice/gone.jpg"));
+    try (ResponseInputStream<GetObjectResponse> object = store.get("alice/gone.jpg")) {
+      throw new AssertionError("Expected NoSuchKeyException, got " + object.response());
+    } catch (NoSuchKeyException expected) {
+      // The content went with its last reference
+    }
+  }
+
+  @Test
+  public void deletingNoContentSendsNothing() {
+    store.deleteContent(List.of());
+
+    assertEquals(0, backend.count("POST "));
+  }
+
+  private byte[] read(String key) throws Exception {
+    try (ResponseInputStream<GetObjectResponse> object = store.get(key)) {
+      return object.readAllBytes();
+    }
+  }
+}
@@ -0,0 +1,412 @@
+package vgu.cloud26;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.UnaryOperator;
+
+/**
+ * The AWS endpoints a handler calls, served from one local port for tests that build real SDK
+ * clients: path-style S3 over an in-memory map, Lambda Invoke, and the Parameter Store extension.
+ * S3 keeps ETags and honours If-Match and If-None-Match on PUT, like conditional writes do, takes
+ * multipart uploads, and lists a bucket (ListObjects or ListObjectsV2, by prefix) in one page.
+ *
+ * <p>{@link #configure} points the SDK, the extension and JDBC here through the same system
+ * properties LambdaLocalEmulator sets. Handlers read some of them while their class initializes,
+ * so call it before the first use of the handler class. JDBC goes to a closed port: DB steps fail
+ * fast instead of waiting on a network.
+ */
+public class FakeBackend implements AutoCloseable {
+
+  private static final String INVOKE_PREFIX = "/2015-03-31/functions/";
+  private static final String PARAMETER_PREFIX = "/systemsmanager/parameters/get";
+  private static final String USER_METADATA = "x-amz-meta-";
+
+  /** Parameter Store values by name. */
+  public final Map<String, String> parameters = new ConcurrentHashMap<>();
+  /** Answers by function name to the payload of a RequestResponse invoke; default {@code {}}. */
+  public final Map<String, UnaryOperator<String>> functions = new ConcurrentHashMap<>();
+  /** Payloads of asynchronous ("Event") invokes by function name, in order. */
+  public final Map<String, List<String>> queued = new ConcurrentHashMap<>();
+  /** Every request served, as {@code "METHOD /path"}. */
+  public final List<String> requests = new CopyOnWriteArrayList<>();
+
+  private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+  // Parts of multipart uploads in progress, by upload ID and part number
+  private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+  private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "fake-backend");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private final HttpServer server;
+
+  private static final class StoredObject {
+    final byte[] content;
+    final String contentType;
+    final Map<String, String> metadata;
+    final String etag;
+
+    StoredObject(byte[] content, String contentType, Map<String, String> metadata) {
+      this.content = content;
+      this.contentType = contentType;
+      this.metadata = metadata;
+      this.etag = "\"" + md5(content) + "\"";
+    }
+  }
+
+  public FakeBackend() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /** A started backend with the SDK, extension and JDBC pointed at it. */
+  public static FakeBackend started() throws IOException {
+    FakeBackend backend = new FakeBackend();
+    backend.configure();
+    return backend;
+  }
+
+  public String endpointUrl() {
+    // An IP, not "localhost": S3 clients then address buckets by path, not by host name
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  public void configure() {
+    System.setProperty("aws.region", "ap-southeast-2");
+    System.setProperty("aws.accessKeyId", "test");
+    System.setProperty("aws.secretAccessKey", "test");
+    System.setProperty("aws.endpointUrl", endpointUrl());
+    System.setProperty("aws.disableEc2Metadata", "true");
+    // Plain bodies on PUT instead of aws-chunked with checksum trailers
+    System.setProperty("aws.requestChecksumCalculation", "when_required");
+    System.setProperty("aws.responseChecksumValidation", "when_required");
+    System.setProperty("cloud26.parameters.url", endpointUrl());
+    System.setProperty("cloud26.jdbc.url", "jdbc:mysql://127.0.0.1:1/test?connectTimeout=1000");
+  }
+
+  public void putObject(String bucket, String key, byte[] content, String contentType,
+      Map<String, String> metadata) {
+    objects.put(bucket + "/" + key, new StoredObject(content, contentType, metadata));
+  }
+
+  public boolean hasObject(String bucket, String key) {
+    return objects.containsKey(bucket + "/" + key);
+  }
+
+  /** The object's content as UTF-8, or null if there is none. */
+  public String readObject(String bucket, String key) {
+    byte[] content = readBytes(bucket, key);
+    return content == null ? null : new String(content, StandardCharsets.UTF_8);
+  }
+
+  public byte[] readBytes(String bucket, String key) {
+    StoredObject object = objects.get(bucket + "/" + key);
+    return object == null ? null : object.content;
+  }
+
+  /** How many requests so far started with {@code prefix}, e.g. {@code "GET /bucket/"}. */
+  public long count(String prefix) {
+    return requests.stream().filter(request -> request.startsWith(prefix)).count();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getRawPath();
+      requests.add(method + " " + URLDecoder.decode(path, StandardCharsets.UTF_8));
+      byte[] body = exchange.getRequestBody().readAllBytes();
+      String sha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+      if (sha256 != null && sha256.startsWith("STREAMING-")) {
+        body = unchunk(body);
+      }
+      if (path.startsWith(PARAMETER_PREFIX)) {
+        parameter(exchange);
+      } else if (path.startsWith(INVOKE_PREFIX)) {
+        invoke(exchange, path, body);
+      } else {
+        s3(exchange, method, path, body);
+      }
+    }
+  }
+
+  private void parameter(HttpExchange exchange) throws IOException {
+    String name = null;
+    String query = exchange.getRequestURI().getRawQuery();
+    for (String pair : query == null ? new String[0] : query.split("&")) {
+      if (pair.startsWith("name=")) {
+        name = URLDecoder.decode(pair.substring(5), StandardCharsets.UTF_8);
+      }
+    }
+    String value = name == null ? null : parameters.get(name);
+    if (value == null) {
+      send(exchange, 400, "text/plain", "parameter not found");
+    } else {
+      // The local stand-ins answer the bare value, which both the token handlers and
+      // InternalPrincipal accept
+      send(exchange, 200, "text/plain", value);
+    }
+  }
+
+  private void invoke(HttpExchange exchange, String path, byte[] body) throws IOException {
+    String function = URLDecoder.decode(
+        path.substring(INVOKE_PREFIX.length(), path.indexOf('/', INVOKE_PREFIX.length())),
+        StandardCharsets.UTF_8);
+    String type = exchange.getRequestHeaders().getFirst("X-Amz-Invocation-Type");
+    if ("DryRun".equals(type)) {
+      exchange.sendResponseHeaders(204, -1);
+    } else if ("Event".equals(type)) {
+      queued.computeIfAbsent(function, name -> new CopyOnWriteArrayList<>())
+          .add(new String(body, StandardCharsets.UTF_8));
+      exchange.sendResponseHeaders(202, -1);
+    } else {
+      UnaryOperator<String> answer = functions.getOrDefault(function, payload -> "{}");
+      send(exchange, 200, "application/json",
+          answer.apply(new String(body, StandardCharsets.UTF_8)));
+    }
+  }
+
+  private void s3(HttpExchange exchange, String method, String path, byte[] body)
+      throws IOException {
+    String name = URLDecoder.decode(path.substring(1), StandardCharsets.UTF_8);
+    String uploadId = query(exchange, "uploadId");
+    if (uploadId != null || query(exchange, "uploads") != null) {
+      multipart(exchange, method, name, uploadId, body);
+      return;
+    }
+    if (method.equals("PUT")) {
+      Map<String, String> metadata = new HashMap<>();
+      exchange.getRequestHeaders().forEach((header, values) -> {
+        if (header.toLowerCase(Locale.ROOT).startsWith(USER_METADATA)) {
+          metadata.put(header.substring(USER_METADATA.length()).toLowerCase(Locale.ROOT),
+              values.get(0));
+        }
+      });
+      StoredObject stored = new StoredObject(body,
+          exchange.getRequestHeaders().getFirst("Content-Type"), metadata);
+      if (!putIfPreconditionHolds(exchange, name, stored)) {
+        send(exchange, 412, "application/xml",
+            "<Error><Code>PreconditionFailed</Code><Message>At least one of the pre-conditions you"
+                + " specified did not hold</Message></Error>");
+        return;
+      }
+      exchange.getResponseHeaders().add("ETag", stored.etag);
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    if (method.equals("DELETE")) {
+      objects.remove(name);
+      exchange.sendResponseHeaders(204, -1);
+      return;
+    }
+    if (method.equals("POST")) {
+      // DeleteObjects: nothing is kept long enough in tests to need it parsed
+      send(exchange, 200, "application/xml", "<DeleteResult></DeleteResult>");
+      return;
+    }
+    if (method.equals("HEAD") && name.indexOf('/') < 0) {
+      // HeadBucket: every bucket exists
+      exchange.sendResponseHeaders(200, -1);
+      return;
+    }
+    String bucket = name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    if (method.equals("GET") && bucket.indexOf('/') < 0) {
+      list(exchange, bucket);
+      return;
+    }
+    StoredObject object = objects.get(name);
+    if (object == null) {
+      if (method.equals("HEAD")) {
+        exchange.sendResponseHeaders(404, -1);
+      } else {
+        send(exchange, 404, "application/xml",
+            "<Error><Code>NoSuchKey</Code><Message>Not found</Message></Error>");
+      }
+      return;
+    }
+    object.metadata.forEach(
+        (key, value) -> exchange.getResponseHeaders().add(USER_METADATA + key, value));
+    exchange.getResponseHeaders().add("Content-Type",
+        object.contentType == null ? "application/octet-stream" : object.contentType);
+    exchange.getResponseHeaders().add("ETag", object.etag);
+    if (method.equals("HEAD")) {
+      exchange.getResponseHeaders().add("Content-Length", String.valueOf(object.content.length));
+      exchange.sendResponseHeaders(200, -1);
+    } else if (object.content.length == 0) {
+      // Writing even an empty body after -1 left the SDK's pooled connection unanswered
+      exchange.sendResponseHeaders(200, -1);
+      exchange.close();
+    } else {
+      exchange.sendResponseHeaders(200, object.content.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(object.content);
+      }
+    }
+  }
+
+  // Create, then parts, then complete (which joins the parts in order) or abort
+  private void multipart(HttpExchange exchange, String method, String name, String uploadId,
+      byte[] body) throws IOException {
+    int slash = name.indexOf('/');
+    String target = "<Bucket>" + xmlEscape(name.substring(0, slash)) + "</Bucket><Key>"
+        + xmlEscape(name.substring(slash + 1)) + "</Key>";
+    if (uploadId == null) {
+      String created = UUID.randomUUID().toString();
+      uploads.put(created, new ConcurrentSkipListMap<>());
+      send(exchange, 200, "application/xml", "<InitiateMultipartUploadResult>" + target
+          + "<UploadId>" + created + "</UploadId></InitiateMultipartUploadResult>");
+      return;
+    }
+    Map<Integer, byte[]> parts = method.equals("DELETE")
+        ? uploads.remove(uploadId)
+        : uploads.get(uploadId);
+    if (parts == null) {
+      send(exchange, 404, "application/xml",
+          "<Error><Code>NoSuchUpload</Code><Message>Not found</Message></Error>");
+    } else if (method.equals("PUT")) {
+      parts.put(Integer.parseInt(query(exchange, "partNumber")), body);
+      exchange.getResponseHeaders().add("ETag", "\"" + md5(body) + "\"");
+      exchange.sendResponseHeaders(200, -1);
+    } else if (method.equals("POST")) {
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      parts.values().forEach(part -> content.write(part, 0, part.length));
+      uploads.remove(uploadId);
+      StoredObject stored = new StoredObject(content.toByteArray(), null, Map.of());
+      objects.put(name, stored);
+      send(exchange, 200, "application/xml", "<CompleteMultipartUploadResult>" + target
+          + "<ETag>" + xmlEscape(stored.etag) + "</ETag></CompleteMultipartUploadResult>");
+    } else {
+      exchange.sendResponseHeaders(204, -1);
+    }
+  }
+
+  // Both versions answer a ListBucketResult; each SDK reads the elements it knows
+  private void list(HttpExchange exchange, String bucket) throws IOException {
+    String prefix = query(exchange, "prefix");
+    String from = bucket + "/" + (prefix == null ? "" : prefix);
+    Map<String, StoredObject> listed = new TreeMap<>();
+    objects.forEach((name, object) -> {
+      if (name.startsWith(from)) {
+        listed.put(name.substring(bucket.length() + 1), object);
+      }
+    });
+    StringBuilder xml = new StringBuilder("<ListBucketResult><Name>").append(bucket)
+        .append("</Name><Prefix>").append(xmlEscape(from.substring(bucket.length() + 1)))
+        .append("</Prefix><KeyCount>")
+        .append(listed.size()).append("</KeyCount><IsTruncated>false</IsTruncated>");
+    listed.forEach((key, object) -> xml.append("<Contents><Key>").append(xmlEscape(key))
+        .append("</Key><ETag>").append(xmlEscape(object.etag)).append("</ETag><Size>")
+        .append(object.content.length).append("</Size></Contents>"));
+    send(exchange, 200, "application/xml", xml.append("</ListBucketResult>").toString());
+  }
+
+  // The decoded value of a query parameter, "" if it has none, or null if it is absent
+  private static String query(HttpExchange exchange, String name) {
+    String query = exchange.getRequestURI().getRawQuery();
+    for (String pair : query == null ? new String[0] : query.split("&")) {
+      int equals = pair.indexOf('=');
+      String key = equals < 0 ? pair : pair.substring(0, equals);
+      if (key.equals(name)) {
+        return equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1),
+            StandardCharsets.UTF_8);
+      }
+    }
+    return null;
+  }
+
+  private static String xmlEscape(String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+        .replace("\"", "&quot;");
+  }
+
+  // Checked and written under one lock, so of two conditional PUTs racing, one fails
+  private synchronized boolean putIfPreconditionHolds(HttpExchange exchange, String name,
+      StoredObject stored) {
+    StoredObject current = objects.get(name);
+    String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+    if (ifMatch != null && (current == null || !current.etag.equals(ifMatch))) {
+      return false;
+    }
+    if (ifNoneMatch != null && current != null) {
+      return false;
+    }
+    objects.put(name, stored);
+    return true;
+  }
+
+  // Over plain HTTP the SDK signs PUT bodies chunk by chunk:
+  // "<hex size>;chunk-signature=...\r\n<bytes>\r\n", ending with a zero-size chunk
+  private static byte[] unchunk(byte[] body) {
+    ByteArrayOutputStream content = new ByteArrayOutputStream(body.length);
+    int at = 0;
+    while (at < body.length) {
+      int lineEnd = indexOf(body, at);
+      String header = new String(body, at, lineEnd - at, StandardCharsets.US_ASCII);
+      int semicolon = header.indexOf(';');
+      int size = Integer.parseInt(semicolon < 0 ? header.trim() : header.substring(0, semicolon),
+          16);
+      if (size == 0) {
+        break;
+      }
+      content.write(body, lineEnd + 2, size);
+      at = lineEnd + 2 + size + 2;
+    }
+    return content.toByteArray();
+  }
+
+  private static int indexOf(byte[] body, int from) {
+    for (int i = from; i + 1 < body.length; i++) {
+      if (body[i] == '\r' && body[i + 1] == '\n') {
+        return i;
+      }
+    }
+    return body.length;
+  }
+
+  private static String md5(byte[] content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void send(HttpExchange exchange, int status, String contentType, String body)
+      throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
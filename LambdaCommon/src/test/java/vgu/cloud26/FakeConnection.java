@@ -0,0 +1,161 @@
+package vgu.cloud26;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JDBC {@link Connection} with no database behind it, for code that runs a few known statements.
+ *
+ * <p>Every executed statement goes to a {@link Database}, which answers an update with its count
+ * and a query with its rows. Only what the callers here use is implemented: prepared statements
+ * with positional parameters, single-row and batch updates, forward reads of a result set, and
+ * the transaction calls, which are counted rather than honoured.
+ */
+final class FakeConnection {
+
+  /** Answers the statements, e.g. from a map standing in for a table. */
+  interface Database {
+    /** The rows of a query, or an Integer update count. */
+    Object execute(String sql, List<Object> params) throws SQLException;
+  }
+
+  /** Every statement run, e.g. "UPDATE ... [1, a@b.c]". */
+  final List<String> executed = new ArrayList<>();
+  boolean autoCommit = true;
+  int commits;
+  int rollbacks;
+
+  private final Database database;
+
+  FakeConnection(Database database) {
+    this.database = database;
+  }
+
+  Connection connection() {
+    return proxy(Connection.class, (method, args) -> {
+      switch (method.getName()) {
+        case "prepareStatement":
+          return statement((String) args[0]);
+        case "getAutoCommit":
+          return autoCommit;
+        case "setAutoCommit":
+          autoCommit = (Boolean) args[0];
+          return null;
+        case "commit":
+          commits++;
+          return null;
+        case "rollback":
+          rollbacks++;
+          return null;
+        case "close":
+          return null;
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  private PreparedStatement statement(String sql) {
+    List<Object> params = new ArrayList<>();
+    List<List<Object>> batch = new ArrayList<>();
+    return proxy(PreparedStatement.class, (method, args) -> {
+      String name = method.getName();
+      if (name.startsWith("set") && args != null && args.length == 2) {
+        int index = (Integer) args[0];
+        while (params.size() < index) {
+          params.add(null);
+        }
+        params.set(index - 1, args[1]);
+        return null;
+      }
+      switch (name) {
+        case "executeUpdate":
+          return (Integer) execute(sql, params);
+        case "executeQuery":
+          return resultSet(execute(sql, params));
+        case "addBatch":
+          batch.add(new ArrayList<>(params));
+          return null;
+        case "executeBatch":
+          int[] counts = new int[batch.size()];
+          for (int i = 0; i < counts.length; i++) {
+            counts[i] = (Integer) execute(sql, batch.get(i));
+          }
+          batch.clear();
+          return counts;
+        case "close":
+          return null;
+        default:
+          throw new UnsupportedOperationException(name);
+      }
+    });
+  }
+
+  private Object execute(String sql, List<Object> params) throws SQLException {
+    executed.add(sql + " " + params);
+    return database.execute(sql, new ArrayList<>(params));
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ResultSet resultSet(Object answer) {
+    List<Object[]> rows = (List<Object[]>) answer;
+    int[] row = {-1};
+    boolean[] wasNull = {false};
+    return proxy(ResultSet.class, (method, args) -> {
+      switch (method.getName()) {
+        case "next":
+          return ++row[0] < rows.size();
+        case "wasNull":
+          return wasNull[0];
+        case "close":
+          return null;
+        case "getString":
+        case "getLong":
+        case "getDouble":
+        case "getInt":
+          Object value = rows.get(row[0])[(Integer) args[0] - 1];
+          wasNull[0] = value == null;
+          if (method.getReturnType() == String.class) {
+            return value == null ? null : value.toString();
+          }
+          Number number = value == null ? 0 : (Number) value;
+          if (method.getReturnType() == long.class) {
+            return number.longValue();
+          }
+          if (method.getReturnType() == double.class) {
+            return number.doubleValue();
+          }
+          return number.intValue();
+        default:
+          throw new UnsupportedOperationException(method.getName());
+      }
+    });
+  }
+
+  private interface Body {
+    Object invoke(Method method, Object[] args) throws Exception;
+  }
+
+  private static <T> T proxy(Class<T> type, Body body) {
+    return type.cast(Proxy.newProxyInstance(FakeConnection.class.getClassLoader(),
+        new Class<?>[] {type}, (self, method, args) -> {
+          if (method.getDeclaringClass() == Object.class) {
+            switch (method.getName()) {
+              case "hashCode":
+                return System.identityHashCode(self);
+              case "equals":
+                return self == args[0];
+              default:
+                return type.getSimpleName();
+            }
+          }
+          return body.invoke(method, args);
+        }));
+  }
+}
@@ -0,0 +1,317 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+public class IdempotencyKeysTest {
+
+  private static final String EMAIL = "student@vgu.edu.vn";
+  private static final String BODY = "{\"key\": \"cat.jpg\"}";
+
+  /** An S3 with only the calls IdempotencyKeys makes, conditional writes included. */
+  private static final class StubS3 implements S3Client {
+    // Key -> {ETag, content}
+    final Map<String, String[]> objects = new ConcurrentHashMap<>();
+    final List<String> calls = new CopyOnWriteArrayList<>();
+    final AtomicInteger etags = new AtomicInteger();
+    volatile boolean down;
+
+    @Override
+    public synchronized PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+      calls.add("PUT " + request.key());
+      available();
+      String[] current = objects.get(request.key());
+      if ("*".equals(request.ifNoneMatch()) && current != null
+          || request.ifMatch() != null
+              && (current == null || !current[0].equals(request.ifMatch()))) {
+        throw (S3Exception) S3Exception.builder().statusCode(412).message("Precondition").build();
+      }
+      String etag = "\"" + etags.incrementAndGet() + "\"";
+      objects.put(request.key(), new String[] {etag, read(body)});
+      return PutObjectResponse.builder().eTag(etag).build();
+    }
+
+    @Override
+    public synchronized ResponseBytes<GetObjectResponse> getObjectAsBytes(
+        GetObjectRequest request) {
+      calls.add("GET " + request.key());
+      available();
+      String[] current = objects.get(request.key());
+      if (current == null) {
+        throw NoSuchKeyException.builder().statusCode(404).message("NoSuchKey").build();
+      }
+      return ResponseBytes.fromByteArray(GetObjectResponse.builder().eTag(current[0]).build(),
+          current[1].getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+      calls.add("DELETE " + request.key());
+      available();
+      objects.remove(request.key());
+      return DeleteObjectResponse.builder().build();
+    }
+
+    @Override
+    public String serviceName() {
+      return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {}
+
+    /** The only record, as stored. */
+    JSONObject record() {
+      assertEquals(1, objects.size());
+      return new JSONObject(objects.values().iterator().next()[1]);
+    }
+
+    void putRecord(JSONObject record) {
+      String key = objects.keySet().iterator().next();
+      objects.put(key, new String[] {"\"" + etags.incrementAndGet() + "\"", record.toString()});
+    }
+
+    private void available() {
+      if (down) {
+        throw SdkClientException.create("Unable to execute HTTP request");
+      }
+    }
+
+    private static String read(RequestBody body) {
+      try (InputStream in = body.contentStreamProvider().newStream()) {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private final StubS3 s3 = new StubS3();
+  private final IdempotencyKeys keys = new IdempotencyKeys(s3);
+  private final AtomicInteger runs = new AtomicInteger();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private APIGatewayProxyResponseEvent once(String key, String email, String body,
+      TestContext context, IdempotencyKeys.Work work) throws Exception {
+    Metrics metrics = Metrics.begin(context, new APIGatewayProxyRequestEvent());
+    return keys.once(key, "upload", email, body, context, Log.of(context.getLogger()), metrics,
+        work);
+  }
+
+  private APIGatewayProxyResponseEvent once(String key, String body, int statusCode)
+      throws Exception {
+    return once(key, EMAIL, body, new TestContext(), () -> answer(statusCode));
+  }
+
+  private APIGatewayProxyResponseEvent answer(int statusCode) {
+    return new APIGatewayProxyResponseEvent()
+        .withStatusCode(statusCode)
+        .withHeaders(Map.of("Content-Type", "application/json"))
+        .withBody(new JSONObject().put("run", runs.incrementAndGet()).toString());
+  }
+
+  @Test
+  public void runsUnguardedWithoutAKey() throws Exception {
+    once(null, BODY, 200);
+    once(null, BODY, 200);
+
+    assertEquals(2, runs.get());
+    assertTrue(s3.calls.toString(), s3.calls.isEmpty());
+  }
+
+  @Test
+  public void refusesKeysOutOfBounds() throws Exception {
+    for (String key : new String[] {"", "k".repeat(256)}) {
+      assertEquals(400, (int) once(key, BODY, 200).getStatusCode());
+    }
+    assertEquals(0, runs.get());
+  }
+
+  @Test
+  public void replaysTheFirstAnswer() throws Exception {
+    APIGatewayProxyResponseEvent first = once("key-1", BODY, 201);
+    JSONObject record = s3.record();
+    APIGatewayProxyResponseEvent repeat = once("key-1", BODY, 201);
+
+    assertEquals(1, runs.get());
+    assertEquals("done", record.getString("state"));
+    assertEquals(201, (int) repeat.getStatusCode());
+    assertEquals(first.getBody(), repeat.getBody());
+    assertEquals("application/json", repeat.getHeaders().get("Content-Type"));
+    assertEquals("true", repeat.getHeaders().get(IdempotencyKeys.REPLAYED_HEADER));
+    assertNull(first.getHeaders().get(IdempotencyKeys.REPLAYED_HEADER));
+  }
+
+  @Test
+  public void scopesKeysToTheUser() throws Exception {
+    once("key-1", EMAIL, BODY, new TestContext(), () -> answer(200));
+    once("key-1", "other@vgu.edu.vn", BODY, new TestContext(), () -> answer(200));
+
+    assertEquals(2, runs.get());
+    assertEquals(2, s3.objects.size());
+    for (String key : s3.objects.keySet()) {
+      assertTrue(key, key.startsWith("idempotency/upload/") && key.endsWith(".json"));
+      assertTrue(key, !key.contains(EMAIL) && !key.contains("key-1"));
+    }
+  }
+
+  @Test
+  public void refusesTheKeyForAnotherBody() throws Exception {
+    once("key-1", BODY, 200);
+
+    APIGatewayProxyResponseEvent other = once("key-1", "{\"key\": \"dog.jpg\"}", 200);
+
+    assertEquals(422, (int) other.getStatusCode());
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void forgetsAnswersThatDidNoWork() throws Exception {
+    for (int statusCode : new int[] {500, 503, 429}) {
+      assertEquals(statusCode, (int) once("key-1", BODY, statusCode).getStatusCode());
+      assertTrue(s3.objects.isEmpty());
+    }
+
+    assertEquals(200, (int) once("key-1", BODY, 200).getStatusCode());
+    assertEquals(4, runs.get());
+  }
+
+  @Test
+  public void forgetsAttemptsThatThrew() throws Exception {
+    try {
+      once("key-1", EMAIL, BODY, new TestContext(), () -> {
+        throw new IllegalStateException("boom");
+      });
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException expected) {
+      // Thrown on, as if there were no key
+    }
+    assertTrue(s3.objects.isEmpty());
+
+    once("key-1", BODY, 200);
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void aRepeatWaitsForTheRunningAttempt() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    Future<APIGatewayProxyResponseEvent> first = executor.submit(() ->
+        once("key-1", EMAIL, BODY, new TestContext(), () -> {
+          started.countDown();
+          finish.await();
+          return answer(202);
+        }));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertEquals("running", s3.record().getString("state"));
+
+    Future<APIGatewayProxyResponseEvent> repeat = executor.submit(() -> once("key-1", BODY, 202));
+    Thread.sleep(300);
+    finish.countDown();
+
+    assertEquals(first.get(5, TimeUnit.SECONDS).getBody(),
+        repeat.get(5, TimeUnit.SECONDS).getBody());
+    assertEquals("true", repeat.get().getHeaders().get(IdempotencyKeys.REPLAYED_HEADER));
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void givesUpWaitingWithAConflict() throws Exception {
+    once("key-1", BODY, 200);
+    s3.putRecord(s3.record().put("state", "running").put("leaseUntil",
+        System.currentTimeMillis() + 60_000));
+    // Little time left, so the wait is short
+    TestContext context = new TestContext("repeat", 3_000);
+
+    APIGatewayProxyResponseEvent conflict =
+        once("key-1", EMAIL, BODY, context, () -> answer(200));
+
+    assertEquals(409, (int) conflict.getStatusCode());
+    assertEquals("1", conflict.getHeaders().get("Retry-After"));
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void takesOverAnAttemptThatDied() throws Exception {
+    once("key-1", BODY, 200);
+    s3.putRecord(s3.record().put("state", "running").put("leaseUntil",
+        System.currentTimeMillis() - 1));
+
+    APIGatewayProxyResponseEvent retry = once("key-1", BODY, 200);
+
+    assertEquals(2, runs.get());
+    assertNull(retry.getHeaders().get(IdempotencyKeys.REPLAYED_HEADER));
+    assertEquals("done", s3.record().getString("state"));
+  }
+
+  @Test
+  public void runsAgainOnceTheAnswerExpired() throws Exception {
+    once("key-1", BODY, 200);
+    s3.putRecord(s3.record().put("expiresAt", System.currentTimeMillis() - 1));
+
+    once("key-1", BODY, 200);
+
+    assertEquals(2, runs.get());
+    assertTrue(s3.record().getLong("expiresAt") > System.currentTimeMillis());
+  }
+
+  @Test
+  public void runsUnguardedWhenTheBucketIsDown() throws Exception {
+    s3.down = true;
+
+    assertEquals(200, (int) once("key-1", BODY, 200).getStatusCode());
+    assertEquals(200, (int) once("key-1", BODY, 200).getStatusCode());
+
+    assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void readsTheKeyFromAHeaderOrTheBody() {
+    APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent()
+        .withHeaders(Map.of("idempotency-key", "from-header"));
+
+    assertEquals("from-header", IdempotencyKeys.keyOf(event, "from-body"));
+    assertEquals("from-body",
+        IdempotencyKeys.keyOf(new APIGatewayProxyRequestEvent(), "from-body"));
+    assertNull(IdempotencyKeys.keyOf(new APIGatewayProxyRequestEvent(), null));
+  }
+}
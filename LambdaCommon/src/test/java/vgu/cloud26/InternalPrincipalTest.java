@@ -0,0 +1,158 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class InternalPrincipalTest {
+
+  private static final String EMAIL = "student@vgu.edu.vn";
+  private static final String KEY_REQUESTS = "GET /systemsmanager/parameters/get";
+
+  private static FakeBackend backend;
+
+  private final TestContext context = new TestContext();
+  private final LambdaLogger logger = context.getLogger();
+
+  @BeforeClass
+  public static void startBackend() throws Exception {
+    backend = FakeBackend.started();
+  }
+
+  @AfterClass
+  public static void stopBackend() {
+    backend.close();
+  }
+
+  @Before
+  public void setUp() {
+    InternalPrincipal.forget();
+    backend.parameters.clear();
+    backend.requests.clear();
+    backend.parameters.put("cloud26internalkey", "internal-secret");
+  }
+
+  @After
+  public void tearDown() {
+    InternalPrincipal.forget();
+  }
+
+  private static JSONObject claims(String principal) {
+    String payload = principal.substring(0, principal.indexOf('.'));
+    return new JSONObject(
+        new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void verifiesWhatItSigned() {
+    long now = System.currentTimeMillis() / 1000;
+
+    String principal = InternalPrincipal.sign(EMAIL, "req-1", logger);
+
+    assertNotNull(principal);
+    assertTrue(InternalPrincipal.verify(principal, EMAIL, logger));
+    JSONObject claims = claims(principal);
+    assertEquals(EMAIL, claims.getString("email"));
+    assertEquals("req-1", claims.getString("rid"));
+    long exp = claims.getLong("exp");
+    assertTrue(String.valueOf(exp), exp >= now + InternalPrincipal.TTL_SECONDS
+        && exp <= now + InternalPrincipal.TTL_SECONDS + 1);
+  }
+
+  @Test
+  public void fetchesTheKeyOnce() {
+    for (int i = 0; i < 5; i++) {
+      assertTrue(InternalPrincipal.verify(
+          InternalPrincipal.sign(EMAIL, "req-" + i, logger), EMAIL, logger));
+    }
+
+    assertEquals(1, backend.count(KEY_REQUESTS));
+  }
+
+  @Test
+  public void namesOnlyTheSignedEmail() {
+    String principal = InternalPrincipal.sign(EMAIL, "req-1", logger);
+
+    assertFalse(InternalPrincipal.verify(principal, "other@vgu.edu.vn", logger));
+    assertFalse(InternalPrincipal.verify(principal, null, logger));
+  }
+
+  @Test
+  public void expires() {
+    String queued = InternalPrincipal.sign(EMAIL, "req-1", 3600, logger);
+    String expired = InternalPrincipal.sign(EMAIL, "req-1", -1, logger);
+
+    assertTrue(InternalPrincipal.verify(queued, EMAIL, logger));
+    assertFalse(InternalPrincipal.verify(expired, EMAIL, logger));
+  }
+
+  @Test
+  public void refusesTamperedPrincipals() {
+    String principal = InternalPrincipal.sign(EMAIL, "req-1", logger);
+    int dot = principal.indexOf('.');
+    String signature = principal.substring(dot + 1);
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    // Same signature over other claims
+    String forged = encoder.encodeToString(claims(principal).put("email", "other@vgu.edu.vn")
+        .toString().getBytes(StandardCharsets.UTF_8)) + "." + signature;
+    // Same claims under another signature
+    char first = signature.charAt(0);
+    String flipped = principal.substring(0, dot + 1) + (first == 'A' ? 'B' : 'A')
+        + signature.substring(1);
+
+    assertFalse(InternalPrincipal.verify(forged, "other@vgu.edu.vn", logger));
+    assertFalse(InternalPrincipal.verify(flipped, EMAIL, logger));
+    for (String garbage : new String[] {null, "", "no-dot", ".", "a.b", "!!.??", principal + "x"}) {
+      assertFalse(garbage, InternalPrincipal.verify(garbage, EMAIL, logger));
+    }
+  }
+
+  @Test
+  public void refusesPrincipalsSignedWithAnotherKey() {
+    String principal = InternalPrincipal.sign(EMAIL, "req-1", logger);
+
+    InternalPrincipal.forget();
+    backend.parameters.put("cloud26internalkey", "rotated-secret");
+
+    assertFalse(InternalPrincipal.verify(principal, EMAIL, logger));
+    assertTrue(InternalPrincipal.verify(
+        InternalPrincipal.sign(EMAIL, "req-2", logger), EMAIL, logger));
+  }
+
+  @Test
+  public void signsNothingWithoutTheKey() {
+    String principal = InternalPrincipal.sign(EMAIL, "req-1", logger);
+    InternalPrincipal.forget();
+    backend.parameters.clear();
+
+    assertNull(InternalPrincipal.sign(EMAIL, "req-2", logger));
+    assertFalse(InternalPrincipal.verify(principal, EMAIL, logger));
+    // One failed fetch, then callers go to the verifier without asking again
+    assertEquals(2, backend.count(KEY_REQUESTS));
+    assertTrue(context.logged(), context.logged().contains("Internal key unavailable"));
+  }
+
+  @Test
+  public void fetchesAgainAfterForget() {
+    backend.parameters.clear();
+    assertNull(InternalPrincipal.sign(EMAIL, "req-1", logger));
+
+    InternalPrincipal.forget();
+    backend.parameters.put("cloud26internalkey", "internal-secret");
+
+    assertNotNull(InternalPrincipal.sign(EMAIL, "req-2", logger));
+    assertEquals(2, backend.count(KEY_REQUESTS));
+  }
+}
@@ -0,0 +1,365 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.json.JSONObject;
+import org.junit.Test;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.lambda.model.InvokeRequest;
+import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+import software.amazon.awssdk.services.lambda.model.LambdaException;
+import software.amazon.awssdk.services.lambda.model.ResourceNotReadyException;
+import software.amazon.awssdk.services.lambda.model.ServiceException;
+import software.amazon.awssdk.services.lambda.model.TooManyRequestsException;
+
+public class InvokeClientTest {
+
+  private static final String FUNCTION = "LambdaWorker";
+  // Retried like READ, without the hedge, so attempts can be counted one by one
+  private static final InvokeClient.Policy IDEMPOTENT =
+      new InvokeClient.Policy(true, false, 3, 1_000);
+  private static final InvokeClient.Policy ONCE = new InvokeClient.Policy(false, false, 1, 1_000);
+
+  /** A Lambda whose every invoke runs {@code answer}, recording the start time of each. */
+  private static final class FakeLambda implements LambdaClient {
+    final List<Long> started = new CopyOnWriteArrayList<>();
+    volatile Function<InvokeRequest, InvokeResponse> answer;
+
+    FakeLambda(Function<InvokeRequest, InvokeResponse> answer) {
+      this.answer = answer;
+    }
+
+    @Override
+    public InvokeResponse invoke(InvokeRequest request) {
+      started.add(System.nanoTime());
+      return answer.apply(request);
+    }
+
+    int calls() {
+      return started.size();
+    }
+
+    @Override
+    public String serviceName() {
+      return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  // --- RETRIES ---
+
+  @Test
+  public void throttlesAreRetriedEvenForWrites() {
+    FakeLambda lambda = new FakeLambda(request -> {
+      throw TooManyRequestsException.builder().statusCode(429).message("Rate exceeded").build();
+    });
+
+    InvokeClient.InvokeException e = failure(new InvokeClient(lambda), InvokeClient.Policy.WRITE);
+    assertEquals(3, lambda.calls());
+    assertTrue(e.isThrottled());
+  }
+
+  @Test
+  public void notReadyAndPlain429AreRetriedEvenForWrites() {
+    FakeLambda notReady = new FakeLambda(request -> {
+      throw ResourceNotReadyException.builder().statusCode(502).message("Pending").build();
+    });
+    failure(new InvokeClient(notReady), InvokeClient.Policy.WRITE);
+    assertEquals(3, notReady.calls());
+
+    FakeLambda tooMany = new FakeLambda(request -> {
+      throw LambdaException.builder().statusCode(429).message("Slow down").build();
+    });
+    assertTrue(failure(new InvokeClient(tooMany), InvokeClient.Policy.WRITE).isThrottled());
+    assertEquals(3, tooMany.calls());
+  }
+
+  @Test
+  public void serverErrorsAreRetriedOnlyForReads() {
+    Function<InvokeRequest, InvokeResponse> serverError = request -> {
+      throw ServiceException.builder().statusCode(500).message("Internal").build();
+    };
+    FakeLambda write = new FakeLambda(serverError);
+    assertFalse(failure(new InvokeClient(write), InvokeClient.Policy.WRITE).isThrottled());
+    assertEquals(1, write.calls());
+
+    FakeLambda read = new FakeLambda(serverError);
+    failure(new InvokeClient(read), IDEMPOTENT);
+    assertEquals(3, read.calls());
+  }
+
+  @Test
+  public void networkErrorsAreRetriedOnlyForReads() {
+    Function<InvokeRequest, InvokeResponse> reset = request -> {
+      throw SdkClientException.create("Connection reset");
+    };
+    FakeLambda write = new FakeLambda(reset);
+    failure(new InvokeClient(write), InvokeClient.Policy.WRITE);
+    assertEquals(1, write.calls());
+
+    FakeLambda read = new FakeLambda(reset);
+    failure(new InvokeClient(read), IDEMPOTENT);
+    assertEquals(3, read.calls());
+  }
+
+  @Test
+  public void rejectedRequestsAndFunctionErrorsAreNotRetried() {
+    FakeLambda rejected = new FakeLambda(request -> {
+      throw LambdaException.builder().statusCode(413).message("Request too large").build();
+    });
+    failure(new InvokeClient(rejected), IDEMPOTENT);
+    assertEquals(1, rejected.calls());
+
+    FakeLambda threw = new FakeLambda(request -> InvokeResponse.builder()
+        .statusCode(200)
+        .functionError("Unhandled")
+        .payload(SdkBytes.fromUtf8String(
+            "{\"errorType\": \"java.lang.NullPointerException\", \"errorMessage\": \"key\"}"))
+        .build());
+    InvokeClient.InvokeException e = failure(new InvokeClient(threw), IDEMPOTENT);
+    assertEquals(1, threw.calls());
+    assertEquals(FUNCTION + " failed: java.lang.NullPointerException: key", e.getMessage());
+  }
+
+  @Test
+  public void recoversWhenARetrySucceeds() throws Exception {
+    AtomicBoolean failed = new AtomicBoolean();
+    FakeLambda lambda = new FakeLambda(request -> {
+      if (!failed.getAndSet(true)) {
+        throw TooManyRequestsException.builder().statusCode(429).message("Rate exceeded").build();
+      }
+      return ok("{\"statusCode\": 200, \"body\": \"done\"}");
+    });
+
+    assertEquals("done", new InvokeClient(lambda).call(FUNCTION, "{}", InvokeClient.Policy.WRITE,
+        trace(), log()));
+    assertEquals(2, lambda.calls());
+  }
+
+  @Test
+  public void callAnswersFailuresAsAnErrorBody() {
+    FakeLambda lambda = new FakeLambda(request -> {
+      throw TooManyRequestsException.builder().statusCode(429).message("Rate exceeded").build();
+    });
+
+    JSONObject answer = new JSONObject(new InvokeClient(lambda).call(FUNCTION, "{}",
+        InvokeClient.Policy.WRITE, trace(), log()));
+    assertTrue(answer.getString("error").startsWith("Invocation Failed: "));
+    assertTrue(answer.getBoolean("throttled"));
+  }
+
+  // --- CIRCUIT BREAKER ---
+
+  @Test
+  public void breakerOpensAfterFailuresInARowAndProbesAfterTheCooldown() throws Exception {
+    AtomicLong now = new AtomicLong();
+    AtomicBoolean healthy = new AtomicBoolean();
+    FakeLambda lambda = new FakeLambda(request -> {
+      if (healthy.get()) {
+        return ok("{}");
+      }
+      throw ServiceException.builder().statusCode(500).message("Internal").build();
+    });
+    InvokeClient client = new InvokeClient(lambda, now::get);
+
+    for (int i = 0; i < InvokeClient.BREAKER_THRESHOLD; i++) {
+      failure(client, ONCE);
+    }
+    assertEquals(InvokeClient.BREAKER_THRESHOLD, lambda.calls());
+
+    // Open: refused without an invoke until the cooldown is over
+    assertTrue(failure(client, ONCE).getMessage().contains("circuit open"));
+    advance(now, InvokeClient.BREAKER_OPEN_MILLIS - 1);
+    assertTrue(failure(client, ONCE).getMessage().contains("circuit open"));
+    assertEquals(InvokeClient.BREAKER_THRESHOLD, lambda.calls());
+
+    // Half open: one probe goes through, and its failure opens the circuit again
+    advance(now, 1);
+    assertFalse(failure(client, ONCE).getMessage().contains("circuit open"));
+    assertEquals(InvokeClient.BREAKER_THRESHOLD + 1, lambda.calls());
+    assertTrue(failure(client, ONCE).getMessage().contains("circuit open"));
+
+    // A successful probe closes it
+    advance(now, InvokeClient.BREAKER_OPEN_MILLIS);
+    healthy.set(true);
+    for (int i = 0; i < 3; i++) {
+      client.invoke(FUNCTION, event(), ONCE, trace(), log());
+    }
+    assertEquals(InvokeClient.BREAKER_THRESHOLD + 4, lambda.calls());
+  }
+
+  @Test
+  public void halfOpenLetsOneProbeThroughAtATime() throws Exception {
+    AtomicLong now = new AtomicLong();
+    AtomicBoolean probing = new AtomicBoolean();
+    List<String> duringProbe = new CopyOnWriteArrayList<>();
+    InvokeClient[] client = new InvokeClient[1];
+    FakeLambda lambda = new FakeLambda(request -> {
+      if (!probing.get()) {
+        throw ServiceException.builder().statusCode(503).message("Unavailable").build();
+      }
+      // Another call while the probe is still running
+      duringProbe.add(client[0].call(FUNCTION, "{}", ONCE, trace(), log()));
+      return ok("{}");
+    });
+    client[0] = new InvokeClient(lambda, now::get);
+    for (int i = 0; i < InvokeClient.BREAKER_THRESHOLD; i++) {
+      failure(client[0], ONCE);
+    }
+
+    advance(now, InvokeClient.BREAKER_OPEN_MILLIS);
+    probing.set(true);
+    client[0].invoke(FUNCTION, event(), ONCE, trace(), log());
+
+    assertEquals(1, duringProbe.size());
+    assertTrue(duringProbe.get(0), duringProbe.get(0).contains("circuit open"));
+  }
+
+  @Test
+  public void rejectedRequestsDoNotOpenTheBreaker() throws Exception {
+    AtomicBoolean rejecting = new AtomicBoolean(true);
+    FakeLambda lambda = new FakeLambda(request -> {
+      if (rejecting.get()) {
+        throw LambdaException.builder().statusCode(400).message("Bad payload").build();
+      }
+      return ok("{}");
+    });
+    InvokeClient client = new InvokeClient(lambda, () -> 0);
+
+    for (int i = 0; i < InvokeClient.BREAKER_THRESHOLD * 2; i++) {
+      failure(client, ONCE);
+    }
+    rejecting.set(false);
+    client.invoke(FUNCTION, event(), ONCE, trace(), log());
+    assertEquals(InvokeClient.BREAKER_THRESHOLD * 2 + 1, lambda.calls());
+  }
+
+  // --- HEDGING ---
+
+  @Test
+  public void hedgesAtTheRecentP95AndCancelsTheLoser() throws Exception {
+    long typicalMillis = 60;
+    AtomicBoolean stallNext = new AtomicBoolean();
+    CountDownLatch loserInterrupted = new CountDownLatch(1);
+    FakeLambda lambda = new FakeLambda(request -> {
+      if (stallNext.getAndSet(false)) {
+        try {
+          Thread.sleep(10_000);
+        } catch (InterruptedException e) {
+          loserInterrupted.countDown();
+        }
+        throw SdkClientException.create("stalled");
+      }
+      sleep(typicalMillis);
+      return ok("{\"statusCode\": 200, \"body\": \"fast\"}");
+    });
+    InvokeClient client = new InvokeClient(lambda);
+    InvokeClient.Policy read = new InvokeClient.Policy(true, true, 1, 4_000);
+    for (int i = 0; i < InvokeClient.HEDGE_MIN_SAMPLES; i++) {
+      client.invoke(FUNCTION, event(), read, trace(), log());
+    }
+
+    stallNext.set(true);
+    int before = lambda.calls();
+    long start = System.nanoTime();
+    JSONObject answer = client.invoke(FUNCTION, event(), read, trace(), log());
+    long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    assertEquals("fast", answer.getString("body"));
+    assertEquals(before + 2, lambda.calls());
+    long hedgeAfterMillis = TimeUnit.NANOSECONDS.toMillis(
+        lambda.started.get(before + 1) - lambda.started.get(before));
+    // Fired at about the p95 of the samples, well before the 500 ms used without them
+    assertTrue("hedged after " + hedgeAfterMillis + " ms", hedgeAfterMillis >= typicalMillis - 10);
+    assertTrue("hedged after " + hedgeAfterMillis + " ms",
+        hedgeAfterMillis < InvokeClient.HEDGE_DEFAULT_MILLIS - 100);
+    assertTrue("took " + tookMillis + " ms", tookMillis < 1_000);
+    assertTrue("loser still running", loserInterrupted.await(2, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void hedgesAtTheDefaultUntilThereAreSamples() throws Exception {
+    AtomicBoolean stallNext = new AtomicBoolean(true);
+    FakeLambda lambda = new FakeLambda(request -> {
+      if (stallNext.getAndSet(false)) {
+        sleep(10_000);
+      }
+      return ok("{}");
+    });
+
+    InvokeClient.Policy read = new InvokeClient.Policy(true, true, 1, 4_000);
+    new InvokeClient(lambda).invoke(FUNCTION, event(), read, trace(), log());
+    long hedgeAfterMillis =
+        TimeUnit.NANOSECONDS.toMillis(lambda.started.get(1) - lambda.started.get(0));
+    assertTrue("hedged after " + hedgeAfterMillis + " ms",
+        hedgeAfterMillis >= InvokeClient.HEDGE_DEFAULT_MILLIS - 10);
+  }
+
+  @Test
+  public void fastFailuresAreRetriedRatherThanHedged() {
+    FakeLambda lambda = new FakeLambda(request -> {
+      throw ServiceException.builder().statusCode(500).message("Internal").build();
+    });
+
+    failure(new InvokeClient(lambda), InvokeClient.Policy.READ);
+    // One attempt per retry, no hedges alongside them
+    assertEquals(InvokeClient.Policy.READ.maxAttempts, lambda.calls());
+  }
+
+  private static InvokeClient.InvokeException failure(InvokeClient client,
+      InvokeClient.Policy policy) {
+    try {
+      client.invoke(FUNCTION, event(), policy, trace(), log());
+    } catch (InvokeClient.InvokeException e) {
+      return e;
+    }
+    fail("invoke succeeded");
+    return null;
+  }
+
+  private static void advance(AtomicLong clock, long millis) {
+    clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static InvokeResponse ok(String payload) {
+    return InvokeResponse.builder().statusCode(200).payload(SdkBytes.fromUtf8String(payload))
+        .build();
+  }
+
+  private static byte[] event() {
+    return "{\"body\": \"{}\"}".getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static Trace trace() {
+    return Trace.from(new APIGatewayProxyRequestEvent());
+  }
+
+  private static Log log() {
+    return Log.of(new TestContext().getLogger());
+  }
+}
@@ -0,0 +1,172 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class JsonEnvelopeTest {
+
+  private static byte[] bytes(int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (i * 7 + i / 256);
+    }
+    return bytes;
+  }
+
+  @Test
+  public void readsFieldsAsOrgJsonDoes() {
+    String body = "{ \"email\" : \"a@b.c\", \"n\": 42, \"ok\": true, \"none\": null,"
+        + " \"quote\": \"say \\\"hi\\\"\\n\\u00e9\", \"nested\": {\"a\": [1, \"}\"]} }";
+    JsonEnvelope.Envelope envelope = JsonEnvelope.parse(body);
+    JSONObject expected = new JSONObject(body);
+
+    assertEquals(expected.getString("email"), envelope.getString("email"));
+    assertEquals(expected.getString("quote"), envelope.getString("quote"));
+    assertEquals("42", envelope.optString("n", null));
+    assertEquals("true", envelope.optString("ok", null));
+    assertEquals("{\"a\": [1, \"}\"]}", envelope.optString("nested", null));
+    assertTrue(envelope.has("none"));
+    assertFalse(envelope.has("missing"));
+    assertEquals("fallback", envelope.optString("missing", "fallback"));
+    assertEquals(body, envelope.raw());
+  }
+
+  @Test
+  public void getStringOnlyReadsStrings() {
+    JsonEnvelope.Envelope envelope = JsonEnvelope.parse("{\"n\": 42}");
+    for (String name : new String[] {"n", "missing"}) {
+      try {
+        envelope.getString(name);
+        fail("Expected IllegalArgumentException for " + name);
+      } catch (IllegalArgumentException expected) {
+        // Same contract as JSONObject.getString
+      }
+    }
+  }
+
+  @Test
+  public void refusesWhatIsNotAnObject() {
+    for (String body : new String[] {null, "", "[1]", "{\"a\": 1", "{\"a\" 1}", "{\"a\": }",
+        "{\"a\": \"open}"}) {
+      try {
+        JsonEnvelope.parse(body);
+        fail("Expected IllegalArgumentException for " + body);
+      } catch (IllegalArgumentException expected) {
+        // Handlers answer 400
+      }
+    }
+  }
+
+  @Test
+  public void indexesTheObjectsOfAnArray() {
+    String body = "{\"email\": \"a@b.c\", \"files\": [ {\"key\": \"a.jpg\", \"content\": \"AAEC\"},"
+        + "{\"key\": \"b\\\"c.jpg\"} ], \"after\": 1}";
+    List<JsonEnvelope.Envelope> files = JsonEnvelope.parse(body).getObjects("files");
+
+    assertEquals(2, files.size());
+    assertEquals("a.jpg", files.get(0).getString("key"));
+    assertArrayEquals(new byte[] {0, 1, 2}, files.get(0).getBase64("content"));
+    assertEquals("b\"c.jpg", files.get(1).getString("key"));
+    assertEquals("{\"key\": \"b\\\"c.jpg\"}", files.get(1).raw());
+    assertEquals(List.of(), JsonEnvelope.parse("{\"files\": []}").getObjects("files"));
+  }
+
+  @Test
+  public void getObjectsNeedsAnArray() {
+    try {
+      JsonEnvelope.parse("{\"files\": \"a.jpg\"}").getObjects("files");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Not a batch
+    }
+  }
+
+  @Test
+  public void decodesBase64LikeTheJdk() {
+    for (int length : new int[] {0, 1, 2, 3, 4, 5, 8 * 1024, 100_000}) {
+      byte[] data = bytes(length);
+      String encoded = Base64.getEncoder().encodeToString(data);
+      String unpadded = Base64.getEncoder().withoutPadding().encodeToString(data);
+      // Some encoders escape the slash
+      String escaped = encoded.replace("/", "\\/");
+
+      for (String field : new String[] {encoded, unpadded, escaped}) {
+        JsonEnvelope.Envelope envelope = JsonEnvelope.parse("{\"content\": \"" + field + "\"}");
+        assertArrayEquals("length " + length, data, envelope.getBase64("content"));
+      }
+    }
+  }
+
+  @Test
+  public void hashesWhileDecoding() throws Exception {
+    byte[] data = bytes(50_000);
+    JsonEnvelope.Envelope envelope = JsonEnvelope.parse(
+        "{\"content\": \"" + Base64.getEncoder().encodeToString(data) + "\"}");
+    byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+
+    MessageDigest kept = MessageDigest.getInstance("SHA-256");
+    assertArrayEquals(data, envelope.getBase64("content", kept));
+    assertArrayEquals(expected, kept.digest());
+
+    MessageDigest streamed = MessageDigest.getInstance("SHA-256");
+    envelope.digestBase64("content", streamed);
+    assertArrayEquals(expected, streamed.digest());
+  }
+
+  @Test
+  public void keepsTheHeadOfWhatItHashes() throws Exception {
+    byte[] data = bytes(50_000);
+    JsonEnvelope.Envelope envelope = JsonEnvelope.parse(
+        "{\"content\": \"" + Base64.getEncoder().encodeToString(data) + "\"}");
+    // Longer than one digest window, so the head spans several
+    byte[] head = new byte[20_000];
+
+    int length = envelope.digestBase64("content", MessageDigest.getInstance("SHA-256"), head);
+
+    assertEquals(data.length, length);
+    assertArrayEquals(Arrays.copyOf(data, head.length), head);
+  }
+
+  @Test
+  public void refusesInvalidBase64() {
+    for (String field : new String[] {"AAE*", "A", "AAEC\\n"}) {
+      JsonEnvelope.Envelope envelope = JsonEnvelope.parse("{\"content\": \"" + field + "\"}");
+      try {
+        envelope.getBase64("content");
+        fail("Expected IllegalArgumentException for " + field);
+      } catch (IllegalArgumentException expected) {
+        // The upload is answered 400
+      }
+    }
+  }
+
+  @Test
+  public void eventWithBodyRoundTrips() {
+    String body = "{\"key\": \"café 📷.jpg\", \"text\": \"tab\there\\n\u0001\"}";
+
+    byte[] payload = JsonEnvelope.eventWithBody(body);
+
+    JSONObject event = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+    assertEquals(body, event.getString("body"));
+    assertEquals(1, event.length());
+  }
+
+  @Test
+  public void loneSurrogatesBecomeQuestionMarks() {
+    byte[] payload = JsonEnvelope.eventWithBody("a\ud800b");
+
+    assertEquals("a?b",
+        new JSONObject(new String(payload, StandardCharsets.UTF_8)).getString("body"));
+  }
+}
@@ -0,0 +1,180 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class MetricsTest {
+
+  private static final String TRACEPARENT =
+      "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+
+  @Test
+  public void directivesDescribeTheValuesInTheLine() {
+    TestContext context = new TestContext("request-1", 30_000);
+    Metrics metrics = Metrics.begin(context, new APIGatewayProxyRequestEvent().withBody("abc"));
+    metrics.put("S3GetLatency", 2.5, Metrics.Unit.MILLISECONDS)
+        .put("S3GetLatency", 1.25, Metrics.Unit.MILLISECONDS)
+        .put("Thumbnails", 4, Metrics.Unit.COUNT)
+        .property("Key", "a \"quoted\"\nkey.jpg");
+    metrics.flush(new APIGatewayProxyResponseEvent().withStatusCode(200).withBody("hello"));
+
+    JSONObject line = emitted(context);
+    JSONObject directive = line.getJSONObject("_aws").getJSONArray("CloudWatchMetrics")
+        .getJSONObject(0);
+    assertEquals(Metrics.NAMESPACE, directive.getString("Namespace"));
+    JSONArray dimensions = directive.getJSONArray("Dimensions");
+    assertEquals("[[\"FunctionName\"],[\"FunctionName\",\"ColdStart\"]]", dimensions.toString());
+    for (int i = 0; i < dimensions.length(); i++) {
+      for (Object dimension : dimensions.getJSONArray(i)) {
+        // CloudWatch drops a record whose dimension is not a string member
+        assertTrue(dimension.toString(), line.get(dimension.toString()) instanceof String);
+      }
+    }
+
+    Map<String, String> units = units(directive);
+    assertEquals(Set.of("RequestBytes", "S3GetLatency", "Thumbnails", "ResponseBytes", "Errors",
+        "Duration"), units.keySet());
+    for (String name : units.keySet()) {
+      assertTrue(name, line.get(name) instanceof Number);
+    }
+    assertEquals("Milliseconds", units.get("S3GetLatency"));
+    assertEquals("Count", units.get("Thumbnails"));
+    assertEquals("Bytes", units.get("RequestBytes"));
+    assertEquals("Bytes", units.get("ResponseBytes"));
+    assertEquals("Count", units.get("Errors"));
+    assertEquals("Milliseconds", units.get("Duration"));
+
+    assertEquals(3.75, line.getDouble("S3GetLatency"), 0);
+    assertEquals(4, line.getLong("Thumbnails"));
+    assertEquals(3, line.getLong("RequestBytes"));
+    assertEquals(5, line.getLong("ResponseBytes"));
+    assertEquals(0, line.getLong("Errors"));
+    assertTrue(line.getDouble("Duration") >= 0);
+    assertEquals(200, line.getInt("StatusCode"));
+    assertEquals("test", line.getString("FunctionName"));
+    assertEquals("request-1", line.getString("RequestId"));
+    assertTrue(Set.of("true", "false").contains(line.getString("ColdStart")));
+    assertEquals("a \"quoted\"\nkey.jpg", line.getString("Key"));
+    assertEquals(32, line.getString("TraceId").length());
+    assertTrue(System.currentTimeMillis() - line.getJSONObject("_aws").getLong("Timestamp")
+        < 60_000);
+  }
+
+  @Test
+  public void missingResponseIsAnError() {
+    TestContext context = new TestContext();
+    Metrics.begin(context, new APIGatewayProxyRequestEvent()).flush(null);
+
+    JSONObject line = emitted(context);
+    assertEquals(500, line.getInt("StatusCode"));
+    assertEquals(1, line.getLong("Errors"));
+    assertEquals(0, line.getLong("RequestBytes"));
+  }
+
+  @Test
+  public void countsBodiesInUtf8Bytes() {
+    TestContext context = new TestContext();
+    // 1 + 2 + 3 + 4 bytes: ASCII, Vietnamese, CJK and an emoji's surrogate pair
+    String body = "a\u00e2\u4e2d\ud83d\udcf7";
+    Metrics.begin(context, new APIGatewayProxyRequestEvent().withBody(body))
+        .flush(new APIGatewayProxyResponseEvent().withStatusCode(200).withBody(body + body));
+
+    JSONObject line = emitted(context);
+    assertEquals(body.getBytes(StandardCharsets.UTF_8).length, line.getLong("RequestBytes"));
+    assertEquals(10, line.getLong("RequestBytes"));
+    assertEquals(20, line.getLong("ResponseBytes"));
+    assertEquals(1, Metrics.utf8Length("\ud83d"));
+  }
+
+  @Test
+  public void metricsPastTheLimitAreDroppedButTheStandardOnesStay() {
+    TestContext context = new TestContext();
+    Metrics metrics = Metrics.begin(context, new APIGatewayProxyRequestEvent().withBody("x"));
+    // RequestBytes takes the first slot
+    for (int i = 0; i < Metrics.MAX_METRICS + 5; i++) {
+      metrics.put("Custom" + i, i, Metrics.Unit.COUNT);
+    }
+    // Existing names still add up once the record is full
+    metrics.put("Custom0", 10, Metrics.Unit.COUNT);
+    metrics.flush(new APIGatewayProxyResponseEvent().withStatusCode(200));
+
+    JSONObject line = emitted(context);
+    Map<String, String> units = units(line.getJSONObject("_aws")
+        .getJSONArray("CloudWatchMetrics").getJSONObject(0));
+    assertEquals(Metrics.MAX_METRICS + 3, units.size());
+    for (String name : new String[] {"RequestBytes", "ResponseBytes", "Errors", "Duration"}) {
+      assertTrue(name, units.containsKey(name));
+      assertTrue(name, line.has(name));
+    }
+    String lastKept = "Custom" + (Metrics.MAX_METRICS - 2);
+    String firstDropped = "Custom" + (Metrics.MAX_METRICS - 1);
+    assertTrue(units.containsKey(lastKept));
+    assertFalse(units.containsKey(firstDropped));
+    assertFalse(line.has(firstDropped));
+    assertEquals(10, line.getLong("Custom0"));
+  }
+
+  @Test
+  public void warmupsAreNotRecorded() {
+    TestContext context = new TestContext();
+    Metrics.begin(context, new APIGatewayProxyRequestEvent().withBody("{\"warmup\": true}"))
+        .flush(new APIGatewayProxyResponseEvent().withStatusCode(200));
+
+    assertFalse(context.logged().contains(Metrics.LINE_PREFIX));
+  }
+
+  @Test
+  public void propagatedTracesGetTheTimingsBack() {
+    TestContext context = new TestContext();
+    Map<String, String> headers = new HashMap<>();
+    headers.put("traceparent", TRACEPARENT);
+    Metrics metrics = Metrics.begin(context, new APIGatewayProxyRequestEvent()
+        .withHeaders(headers));
+    metrics.put("S3GetLatency", 8.4, Metrics.Unit.MILLISECONDS)
+        .put("Thumbnails", 4, Metrics.Unit.COUNT);
+    APIGatewayProxyResponseEvent response = metrics.flush(
+        new APIGatewayProxyResponseEvent().withStatusCode(200).withHeaders(Map.of("A", "b")));
+
+    String timing = response.getHeaders().get(Trace.SERVER_TIMING);
+    assertNotNull(timing);
+    assertTrue(timing, timing.startsWith("S3GetLatency;dur=8.4, Duration;dur="));
+    assertFalse(timing, timing.contains("Thumbnails"));
+    assertEquals("b", response.getHeaders().get("A"));
+    assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", emitted(context).getString("TraceId"));
+  }
+
+  private static JSONObject emitted(TestContext context) {
+    JSONObject found = null;
+    for (String line : context.lines) {
+      if (line.startsWith(Metrics.LINE_PREFIX)) {
+        assertEquals("one record per invocation", null, found);
+        found = new JSONObject(line);
+      }
+    }
+    assertNotNull("no EMF line in " + context.lines, found);
+    return found;
+  }
+
+  private static Map<String, String> units(JSONObject directive) {
+    Map<String, String> units = new HashMap<>();
+    JSONArray metrics = directive.getJSONArray("Metrics");
+    for (int i = 0; i < metrics.length(); i++) {
+      JSONObject metric = metrics.getJSONObject(i);
+      assertEquals(metric.toString(), null, units.put(metric.getString("Name"),
+          metric.getString("Unit")));
+    }
+    return units;
+  }
+}
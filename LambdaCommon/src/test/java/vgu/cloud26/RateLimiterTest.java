@@ -0,0 +1,196 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTransientException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+  private static final String EMAIL = "a@b.c";
+
+  // RateLimits rows by email: {Tokens, UpdatedAt}
+  private final Map<String, Object[]> rows = new HashMap<>();
+  private SQLException failNext;
+  private FakeConnection fake;
+  private Connection db;
+
+  @Before
+  public void setUp() {
+    fake = new FakeConnection(this::execute);
+    db = fake.connection();
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty("cloud26.upload.ratePerMinute");
+    System.clearProperty("cloud26.upload.burst");
+  }
+
+  private Object execute(String sql, List<Object> params) throws SQLException {
+    if (failNext != null) {
+      SQLException e = failNext;
+      failNext = null;
+      throw e;
+    }
+    if (sql.startsWith("SELECT Tokens, UpdatedAt FROM RateLimits WHERE Email = ?")) {
+      Object[] row = rows.get((String) params.get(0));
+      return row == null ? List.of() : List.<Object[]>of(row.clone());
+    }
+    if (sql.startsWith("INSERT INTO RateLimits")) {
+      if (rows.containsKey((String) params.get(2))) {
+        throw new SQLIntegrityConstraintViolationException("Duplicate entry");
+      }
+      rows.put((String) params.get(2), new Object[] {params.get(0), params.get(1)});
+      return 1;
+    }
+    if (sql.startsWith("UPDATE RateLimits SET Tokens = ?, UpdatedAt = ? WHERE Email = ?")) {
+      rows.put((String) params.get(2), new Object[] {params.get(0), params.get(1)});
+      return 1;
+    }
+    throw new AssertionError(sql);
+  }
+
+  private void bucket(double tokens, long updatedAt) {
+    rows.put(EMAIL, new Object[] {tokens, updatedAt});
+  }
+
+  private double tokens() {
+    return (Double) rows.get(EMAIL)[0];
+  }
+
+  @Test
+  public void firstRequestFillsTheBucket() throws SQLException {
+    assertEquals(0, new RateLimiter(6, 5).acquire(db, EMAIL));
+
+    assertEquals(4, tokens(), 0);
+    assertEquals(1, fake.commits);
+    assertTrue(fake.autoCommit);
+  }
+
+  @Test
+  public void deniesOnceTheBurstIsSpent() throws SQLException {
+    RateLimiter limiter = new RateLimiter(6, 3);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(0, limiter.acquire(db, EMAIL));
+    }
+    Object[] spent = rows.get(EMAIL).clone();
+    int statements = fake.executed.size();
+
+    long retryAfter = limiter.acquire(db, EMAIL);
+
+    // One token every ten seconds
+    assertTrue(String.valueOf(retryAfter), retryAfter >= 9 && retryAfter <= 10);
+    assertEquals(statements + 1, fake.executed.size());
+    assertEquals(spent[0], rows.get(EMAIL)[0]);
+    assertEquals(spent[1], rows.get(EMAIL)[1]);
+    assertEquals(1, fake.rollbacks);
+    assertTrue(fake.autoCommit);
+  }
+
+  @Test
+  public void refillsWithTimeUpToTheBurst() throws SQLException {
+    RateLimiter limiter = new RateLimiter(6, 5);
+    bucket(0, System.currentTimeMillis() - 25_000);
+
+    assertEquals(0, limiter.acquire(db, EMAIL));
+    assertEquals(1.5, tokens(), 0.01);
+
+    bucket(0, System.currentTimeMillis() - 3_600_000);
+    assertEquals(0, limiter.acquire(db, EMAIL));
+    assertEquals(4, tokens(), 0);
+  }
+
+  @Test
+  public void aClockBehindTheRowRefillsNothing() throws SQLException {
+    bucket(0.5, System.currentTimeMillis() + 60_000);
+
+    assertTrue(new RateLimiter(6, 5).acquire(db, EMAIL) > 0);
+    assertEquals(0.5, tokens(), 0);
+  }
+
+  @Test
+  public void takesOnePermitPerFile() throws SQLException {
+    RateLimiter limiter = new RateLimiter(60, 10);
+
+    assertEquals(0, limiter.acquire(db, EMAIL, 4));
+    assertEquals(6, tokens(), 0);
+    // Five seconds for the two tokens missing
+    long retryAfter = limiter.acquire(db, EMAIL, 8);
+    assertTrue(String.valueOf(retryAfter), retryAfter >= 1 && retryAfter <= 2);
+    assertEquals(6, tokens(), 0);
+  }
+
+  @Test
+  public void aBatchLargerThanTheBurstTakesAFullBucket() throws SQLException {
+    RateLimiter limiter = new RateLimiter(6, 5);
+
+    assertEquals(0, limiter.acquire(db, EMAIL, 50));
+    assertEquals(0, tokens(), 0);
+    assertTrue(limiter.acquire(db, EMAIL, 50) > 0);
+  }
+
+  @Test
+  public void retriesWhenAConcurrentFirstRequestCreatedTheRow() throws SQLException {
+    RateLimiter limiter = new RateLimiter(6, 5);
+    // The row appears between this request's SELECT and its INSERT
+    fake = new FakeConnection((sql, params) -> {
+      if (sql.startsWith("INSERT") && !rows.containsKey(EMAIL)) {
+        bucket(5, System.currentTimeMillis());
+      }
+      return execute(sql, params);
+    });
+
+    assertEquals(0, limiter.acquire(fake.connection(), EMAIL));
+
+    assertEquals(4, tokens(), 0.01);
+    assertEquals(1, fake.rollbacks);
+    assertEquals(1, fake.commits);
+  }
+
+  @Test
+  public void rollsBackAndRethrowsOnErrors() {
+    failNext = new SQLTransientException("Lock wait timeout exceeded");
+    try {
+      new RateLimiter(6, 5).acquire(db, EMAIL);
+      fail("Expected SQLException");
+    } catch (SQLException e) {
+      assertEquals("Lock wait timeout exceeded", e.getMessage());
+    }
+    assertEquals(1, fake.rollbacks);
+    assertEquals(0, fake.commits);
+    assertTrue(fake.autoCommit);
+  }
+
+  @Test
+  public void readsItsSettingsFromSystemProperties() throws SQLException {
+    System.setProperty("cloud26.upload.ratePerMinute", "60");
+    System.setProperty("cloud26.upload.burst", " 2 ");
+
+    RateLimiter limiter = RateLimiter.fromEnvironment("UPLOAD", 1, 100);
+
+    assertEquals(0, limiter.acquire(db, EMAIL));
+    assertEquals(0, limiter.acquire(db, EMAIL));
+    assertEquals(1, limiter.acquire(db, EMAIL));
+  }
+
+  @Test
+  public void ignoresSettingsThatAreNotNumbers() throws SQLException {
+    System.setProperty("cloud26.upload.burst", "lots");
+
+    RateLimiter limiter = RateLimiter.fromEnvironment("UPLOAD", 6, 1);
+
+    assertEquals(0, limiter.acquire(db, EMAIL));
+    assertTrue(limiter.acquire(db, EMAIL) > 0);
+  }
+}
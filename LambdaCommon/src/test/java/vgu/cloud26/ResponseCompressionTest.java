@@ -0,0 +1,184 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+public class ResponseCompressionTest {
+
+  @Test
+  public void gzipRoundTrips() throws IOException {
+    Random random = new Random(1);
+    for (int size : new int[] {0, 1, 1024, 70_000}) {
+      byte[] raw = new byte[size];
+      random.nextBytes(raw);
+      assertArrayEquals(raw, gunzip(ResponseCompression.gzip(raw)));
+    }
+  }
+
+  @Test
+  public void pooledDeflatersStayIndependentAcrossThreads() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 64; i++) {
+        byte[] raw = json(2000 + i * 37).getBytes(StandardCharsets.UTF_8);
+        results.add(pool.submit(() -> {
+          byte[] back = gunzip(ResponseCompression.gzip(raw));
+          return Arrays.equals(raw, back);
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void compressesAcceptedLargeBodies() throws IOException {
+    String body = json(5000);
+    APIGatewayProxyResponseEvent response = ResponseCompression.gzipIfAccepted(
+        request("Accept-Encoding", "gzip, deflate, br"),
+        new APIGatewayProxyResponseEvent()
+            .withStatusCode(200)
+            .withHeaders(Map.of("Content-Type", "application/json"))
+            .withBody(body));
+
+    assertEquals(Boolean.TRUE, response.getIsBase64Encoded());
+    assertEquals("gzip", response.getHeaders().get("Content-Encoding"));
+    assertEquals("Accept-Encoding", response.getHeaders().get("Vary"));
+    assertEquals("application/json", response.getHeaders().get("Content-Type"));
+    byte[] back = gunzip(Base64.getDecoder().decode(response.getBody()));
+    assertEquals(body, new String(back, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void thresholdCountsUtf8Bytes() {
+    String under = "x".repeat(ResponseCompression.MIN_COMPRESS_BYTES - 1);
+    assertNull(compress(under).getIsBase64Encoded());
+    assertEquals(under, compress(under).getBody());
+
+    String at = "x".repeat(ResponseCompression.MIN_COMPRESS_BYTES);
+    assertEquals(Boolean.TRUE, compress(at).getIsBase64Encoded());
+
+    // 512 two-byte characters: short as a String, at the threshold as the bytes sent
+    String wide = "é".repeat(ResponseCompression.MIN_COMPRESS_BYTES / 2);
+    assertEquals(Boolean.TRUE, compress(wide).getIsBase64Encoded());
+  }
+
+  @Test
+  public void leavesBodiesAloneWhenNotAccepted() {
+    String body = json(5000);
+    APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent().withBody(body);
+    assertSame(response, ResponseCompression.gzipIfAccepted(request(null, null), response));
+    assertEquals(body, response.getBody());
+    assertNull(response.getHeaders());
+
+    APIGatewayProxyResponseEvent refused = ResponseCompression.gzipIfAccepted(
+        request("Accept-Encoding", "gzip;q=0"), new APIGatewayProxyResponseEvent().withBody(body));
+    assertEquals(body, refused.getBody());
+  }
+
+  @Test
+  public void leavesBinaryAndEmptyBodiesAlone() {
+    APIGatewayProxyResponseEvent binary = new APIGatewayProxyResponseEvent()
+        .withBody(Base64.getEncoder().encodeToString(new byte[4096]))
+        .withIsBase64Encoded(true);
+    String before = binary.getBody();
+    ResponseCompression.gzipIfAccepted(request("Accept-Encoding", "gzip"), binary);
+    assertEquals(before, binary.getBody());
+    assertNull(binary.getHeaders());
+
+    APIGatewayProxyResponseEvent empty = new APIGatewayProxyResponseEvent().withStatusCode(204);
+    ResponseCompression.gzipIfAccepted(request("Accept-Encoding", "gzip"), empty);
+    assertNull(empty.getBody());
+  }
+
+  @Test
+  public void acceptsGzipReadsTheHeaderAnyCase() {
+    assertTrue(ResponseCompression.acceptsGzip(Map.of("accept-encoding", "gzip")));
+    assertTrue(ResponseCompression.acceptsGzip(Map.of("Accept-Encoding", "GZIP")));
+    assertTrue(ResponseCompression.acceptsGzip(Map.of("ACCEPT-ENCODING", "br, Gzip")));
+    assertFalse(ResponseCompression.acceptsGzip(Map.of("Accept", "gzip")));
+    assertFalse(ResponseCompression.acceptsGzip(new HashMap<>()));
+    assertFalse(ResponseCompression.acceptsGzip(null));
+  }
+
+  @Test
+  public void acceptsGzipHonoursQualityValues() {
+    assertTrue(accepts("deflate, gzip;q=0.5"));
+    assertTrue(accepts("gzip ; q=1.0"));
+    assertFalse(accepts("gzip;q=0"));
+    assertFalse(accepts("gzip; q=0.000"));
+    assertFalse(accepts("br, gzip;q=0, deflate"));
+    // An unreadable q is not a refusal
+    assertTrue(accepts("gzip;q=abc"));
+  }
+
+  @Test
+  public void acceptsGzipTakesTheWildcard() {
+    assertTrue(accepts("*"));
+    assertTrue(accepts("br;q=1, *;q=0.1"));
+    assertFalse(accepts("*;q=0"));
+    // An explicit gzip entry wins over the wildcard, in either order
+    assertTrue(accepts("*;q=0, gzip"));
+    assertTrue(accepts("gzip, *;q=0"));
+    assertFalse(accepts("*, gzip;q=0"));
+    assertFalse(accepts("identity, deflate, br"));
+    assertFalse(accepts(""));
+  }
+
+  private static boolean accepts(String value) {
+    return ResponseCompression.acceptsGzip(Map.of("Accept-Encoding", value));
+  }
+
+  private static APIGatewayProxyResponseEvent compress(String body) {
+    return ResponseCompression.gzipIfAccepted(request("Accept-Encoding", "gzip"),
+        new APIGatewayProxyResponseEvent().withBody(body));
+  }
+
+  private static APIGatewayProxyRequestEvent request(String header, String value) {
+    APIGatewayProxyRequestEvent request = new APIGatewayProxyRequestEvent();
+    if (header != null) {
+      request.setHeaders(Map.of(header, value));
+    }
+    return request;
+  }
+
+  private static String json(int length) {
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; json.length() < length; i++) {
+      json.append(i == 0 ? "" : ",").append("{\"key\":\"photo").append(i).append(".jpg\"}");
+    }
+    return json.append(']').toString();
+  }
+
+  private static byte[] gunzip(byte[] gzip) throws IOException {
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+      return in.readAllBytes();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.RequestHandler;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.http.HttpClient;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import org.crac.Resource;
+import org.json.JSONObject;
+
+/**
+ * What every handler's SnapStart hooks must do, checked against a {@link FakeBackend} the caller
+ * has started: after each restore the handler holds new clients, not the ones closed before the
+ * snapshot, and each priming step it names succeeds.
+ *
+ * <p>Clients are the handler's non-final fields, static ones included, holding something
+ * closeable or an {@link HttpClient}. Steps that cannot work in tests, such as {@code jdbc}, are
+ * left out of the names and checked by the caller on the returned report if at all.
+ */
+public final class SnapStartContract {
+
+  private static final int RESTORES = 2;
+
+  private SnapStartContract() {}
+
+  /** Restores a new handler twice and answers its last warm-up's {@code primingMs}. */
+  public static <H extends RequestHandler<APIGatewayProxyRequestEvent,
+      APIGatewayProxyResponseEvent> & Resource> JSONObject verify(
+      Supplier<H> newHandler, String... steps) throws Exception {
+    H handler = newHandler.get();
+    CheckpointContext crac = new CheckpointContext();
+    crac.register(handler);
+
+    JSONObject primed = null;
+    for (int restore = 1; restore <= RESTORES; restore++) {
+      Map<String, Object> snapshotted = clients(handler);
+      assertFalse(handler.getClass().getSimpleName() + " has no clients", snapshotted.isEmpty());
+
+      crac.checkpointRestore();
+
+      Map<String, Object> restored = clients(handler);
+      assertEquals(snapshotted.keySet(), restored.keySet());
+      for (Map.Entry<String, Object> client : snapshotted.entrySet()) {
+        assertNotSame(client.getKey() + " after restore " + restore,
+            client.getValue(), restored.get(client.getKey()));
+      }
+
+      primed = warmup(handler);
+      for (String step : steps) {
+        assertTrue(step + " is not primed: " + primed, primed.has(step));
+        assertNotEquals(step + " after restore " + restore, "failed", primed.get(step));
+      }
+    }
+    return primed;
+  }
+
+  private static JSONObject warmup(RequestHandler<APIGatewayProxyRequestEvent,
+      APIGatewayProxyResponseEvent> handler) {
+    APIGatewayProxyRequestEvent event =
+        new APIGatewayProxyRequestEvent().withBody("{\"warmup\": true}");
+    APIGatewayProxyResponseEvent response = handler.handleRequest(event, new TestContext());
+    assertEquals(response.getBody(), 200, (int) response.getStatusCode());
+    return new JSONObject(response.getBody()).getJSONObject("primingMs");
+  }
+
+  private static Map<String, Object> clients(Object handler) throws IllegalAccessException {
+    Map<String, Object> clients = new LinkedHashMap<>();
+    for (Field field : handler.getClass().getDeclaredFields()) {
+      if (Modifier.isFinal(field.getModifiers())) {
+        continue;
+      }
+      field.setAccessible(true);
+      Object value = field.get(Modifier.isStatic(field.getModifiers()) ? null : handler);
+      // Java 17's HttpClient is not AutoCloseable, but the token handlers recreate theirs too
+      if (value instanceof AutoCloseable || value instanceof HttpClient) {
+        clients.put(field.getName(), value);
+      }
+    }
+    return clients;
+  }
+}
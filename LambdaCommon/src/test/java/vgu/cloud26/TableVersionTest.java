@@ -0,0 +1,91 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TableVersionTest {
+
+  // TableVersions rows: Name -> Version
+  private final Map<String, Long> versions = new HashMap<>();
+  private FakeConnection fake;
+  private Connection db;
+
+  @Before
+  public void setUp() {
+    fake = new FakeConnection(this::execute);
+    db = fake.connection();
+  }
+
+  private Object execute(String sql, List<Object> params) throws SQLException {
+    String name = (String) params.get(0);
+    if (sql.equals("UPDATE TableVersions SET Version = Version + 1 WHERE Name = ?")) {
+      return versions.computeIfPresent(name, (n, v) -> v + 1) == null ? 0 : 1;
+    }
+    if (sql.equals("INSERT INTO TableVersions (Name, Version) VALUES (?, 1)")) {
+      if (versions.putIfAbsent(name, 1L) != null) {
+        throw new SQLIntegrityConstraintViolationException("Duplicate entry");
+      }
+      return 1;
+    }
+    if (sql.equals("SELECT Version FROM TableVersions WHERE Name = ?")) {
+      Long version = versions.get(name);
+      return version == null ? List.of() : List.<Object[]>of(new Object[] {version});
+    }
+    throw new AssertionError(sql);
+  }
+
+  @Test
+  public void readsZeroForATableNeverWritten() throws SQLException {
+    assertEquals(0, TableVersion.read(db, TableVersion.PHOTOS));
+  }
+
+  @Test
+  public void bumpMovesToTheNextVersion() throws SQLException {
+    versions.put(TableVersion.PHOTOS, 41L);
+
+    TableVersion.bump(db, TableVersion.PHOTOS);
+
+    assertEquals(42, TableVersion.read(db, TableVersion.PHOTOS));
+    // One statement per bump, in the caller's transaction
+    assertEquals(2, fake.executed.size());
+    assertEquals(0, fake.commits);
+  }
+
+  @Test
+  public void firstBumpSeedsTheRow() throws SQLException {
+    TableVersion.bump(db, TableVersion.PHOTOS);
+    TableVersion.bump(db, TableVersion.PHOTOS);
+
+    assertEquals(2, TableVersion.read(db, TableVersion.PHOTOS));
+    assertEquals(0, TableVersion.read(db, "Other"));
+  }
+
+  @Test
+  public void aConcurrentFirstBumpFailsTheWrite() throws SQLException {
+    // Another writer seeds the row between this one's UPDATE and its INSERT
+    fake = new FakeConnection((sql, params) -> {
+      Object answer = execute(sql, params);
+      if (sql.startsWith("UPDATE")) {
+        versions.put(TableVersion.PHOTOS, 1L);
+      }
+      return answer;
+    });
+
+    try {
+      TableVersion.bump(fake.connection(), TableVersion.PHOTOS);
+      fail("Expected SQLIntegrityConstraintViolationException");
+    } catch (SQLIntegrityConstraintViolationException expected) {
+      // The caller rolls its transaction back, like on any conflicting write
+    }
+    assertEquals(1, (long) versions.get(TableVersion.PHOTOS));
+  }
+}
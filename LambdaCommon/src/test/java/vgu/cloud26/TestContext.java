@@ -0,0 +1,98 @@
+package vgu.cloud26;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** A Lambda {@link Context} that keeps what is logged, for tests to read back. */
+public class TestContext implements Context {
+
+  public final List<String> lines = new CopyOnWriteArrayList<>();
+
+  private final String requestId;
+  private final long deadlineMillis;
+  private final LambdaLogger logger = new LambdaLogger() {
+    @Override
+    public void log(String message) {
+      lines.add(message);
+    }
+
+    @Override
+    public void log(byte[] message) {
+      log(new String(message, StandardCharsets.UTF_8));
+    }
+  };
+
+  public TestContext() {
+    this("test-request", 30_000);
+  }
+
+  public TestContext(String requestId, int timeoutMillis) {
+    this.requestId = requestId;
+    this.deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+  }
+
+  /** Everything logged so far, one line per call. */
+  public String logged() {
+    return String.join("\n", lines);
+  }
+
+  @Override
+  public String getAwsRequestId() {
+    return requestId;
+  }
+
+  @Override
+  public String getLogGroupName() {
+    return "/aws/lambda/test";
+  }
+
+  @Override
+  public String getLogStreamName() {
+    return "test";
+  }
+
+  @Override
+  public String getFunctionName() {
+    return "test";
+  }
+
+  @Override
+  public String getFunctionVersion() {
+    return "$LATEST";
+  }
+
+  @Override
+  public String getInvokedFunctionArn() {
+    return "arn:aws:lambda:ap-southeast-2:000000000000:function:test";
+  }
+
+  @Override
+  public CognitoIdentity getIdentity() {
+    return null;
+  }
+
+  @Override
+  public ClientContext getClientContext() {
+    return null;
+  }
+
+  @Override
+  public int getRemainingTimeInMillis() {
+    return (int) Math.max(0, deadlineMillis - System.currentTimeMillis());
+  }
+
+  @Override
+  public int getMemoryLimitInMB() {
+    return 512;
+  }
+
+  @Override
+  public LambdaLogger getLogger() {
+    return logger;
+  }
+}
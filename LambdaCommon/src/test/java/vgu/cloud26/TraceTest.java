@@ -0,0 +1,118 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class TraceTest {
+
+  private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+  private static final String PARENT_ID = "00f067aa0ba902b7";
+
+  private static Trace withTraceparent(String name, String value) {
+    return Trace.from(new APIGatewayProxyRequestEvent().withHeaders(Map.of(name, value)));
+  }
+
+  private static boolean isHex(String s, int length) {
+    return s.length() == length && s.matches("[0-9a-f]+");
+  }
+
+  @Test
+  public void continuesAWellFormedTraceparent() {
+    Trace trace = withTraceparent("traceparent", "00-" + TRACE_ID + "-" + PARENT_ID + "-01");
+
+    assertTrue(trace.isPropagated());
+    assertEquals(TRACE_ID, trace.traceId());
+    assertNotEquals(PARENT_ID, trace.spanId());
+    assertEquals(PARENT_ID, trace.timeline().getString("parentSpanId"));
+    assertEquals("00-" + TRACE_ID + "-" + trace.spanId() + "-01", trace.traceResponse());
+  }
+
+  @Test
+  public void readsTheHeaderWhateverItsCase() {
+    Trace trace = withTraceparent("TraceParent", " 00-" + TRACE_ID + "-" + PARENT_ID + "-00 ");
+
+    assertTrue(trace.isPropagated());
+    assertEquals(TRACE_ID, trace.traceId());
+  }
+
+  @Test
+  public void startsANewTraceOtherwise() {
+    String[] malformed = {
+        "",
+        "garbage",
+        "00-" + TRACE_ID + "-" + PARENT_ID,
+        "00-" + TRACE_ID.toUpperCase() + "-" + PARENT_ID + "-01",
+        "00-" + TRACE_ID.substring(1) + "-" + PARENT_ID + "-01",
+        "00-" + TRACE_ID + "-" + PARENT_ID + "0-01",
+        "00-00000000000000000000000000000000-" + PARENT_ID + "-01",
+        "00-" + TRACE_ID + "-0000000000000000-01",
+        "00-" + TRACE_ID.replace('a', 'g') + "-" + PARENT_ID + "-01",
+    };
+    for (String header : malformed) {
+      Trace trace = withTraceparent("traceparent", header);
+      assertFalse(header, trace.isPropagated());
+      assertTrue(header, isHex(trace.traceId(), 32));
+      assertNotEquals(header, TRACE_ID, trace.traceId());
+      assertFalse(header, trace.timeline().has("parentSpanId"));
+    }
+
+    Trace untraced = Trace.from(new APIGatewayProxyRequestEvent());
+    assertFalse(untraced.isPropagated());
+    assertTrue(isHex(untraced.traceId(), 32));
+    assertTrue(isHex(untraced.spanId(), 16));
+  }
+
+  @Test
+  public void injectsAChildSpanIntoTheEvent() {
+    Trace trace = withTraceparent("traceparent", "00-" + TRACE_ID + "-" + PARENT_ID + "-01");
+    Trace.Call call = trace.call("LambdaWorker");
+
+    JSONObject event = new JSONObject(new String(
+        call.inject("{\"body\":\"x\"}".getBytes(StandardCharsets.UTF_8)),
+        StandardCharsets.UTF_8));
+    JSONObject empty = new JSONObject(new String(
+        call.inject(" { } ".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+
+    assertEquals("x", event.getString("body"));
+    String traceparent = event.getJSONObject("headers").getString("traceparent");
+    assertEquals(traceparent, empty.getJSONObject("headers").getString("traceparent"));
+    // Read back the way a worker does
+    Trace child = withTraceparent("traceparent", traceparent);
+    assertEquals(TRACE_ID, child.traceId());
+    assertTrue(child.isPropagated());
+    assertNotEquals(trace.spanId(), traceparent.split("-")[2]);
+  }
+
+  @Test
+  public void recordsTheWorkersTimings() {
+    Trace trace = Trace.from(new APIGatewayProxyRequestEvent());
+    String remoteSpan = "b7ad6b7169203331";
+
+    trace.call("LambdaWorker").note("attempts", 2).end(new JSONObject()
+        .put("statusCode", 201)
+        .put("headers", new JSONObject()
+            .put("TraceResponse", "00-" + trace.traceId() + "-" + remoteSpan + "-01")
+            .put("server-timing", "Duration;dur=12.5, S3PutLatency;dur=x, cold;desc=\"true\"")));
+    trace.call("LambdaOther").fail(new IllegalStateException("timed out"));
+
+    JSONObject worker = trace.timeline().getJSONArray("hops").getJSONObject(0);
+    assertEquals("LambdaWorker", worker.getString("function"));
+    assertEquals(201, worker.getInt("statusCode"));
+    assertEquals(2, worker.getInt("attempts"));
+    assertEquals(remoteSpan, worker.getString("remoteSpanId"));
+    JSONObject remote = worker.getJSONObject("remote");
+    assertEquals(12.5, remote.getDouble("Duration"), 0);
+    assertFalse(remote.has("S3PutLatency"));
+    assertEquals("true", remote.getString("cold"));
+    JSONObject other = trace.timeline().getJSONArray("hops").getJSONObject(1);
+    assertEquals("timed out", other.getString("failure"));
+  }
+}
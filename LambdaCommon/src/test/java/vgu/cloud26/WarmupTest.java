@@ -0,0 +1,81 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.Test;
+import software.amazon.awssdk.services.s3.S3Client;
+
+public class WarmupTest {
+
+  @Test
+  public void onlyTheExactPingIsAWarmup() {
+    assertTrue(isWarmup("{\"warmup\": true}"));
+    assertTrue(isWarmup("{\"warmup\":true}"));
+
+    assertFalse(isWarmup(null));
+    assertFalse(isWarmup("warmer"));
+    assertFalse(isWarmup("{\"key\": \"warmer.jpg\"}"));
+    assertFalse(isWarmup("{\"warmup\": false}"));
+    assertFalse(isWarmup("{\"warmup\": \"yes\"}"));
+    assertFalse(isWarmup("{\"warmup\": true, \"key\": \"a.jpg\"}"));
+    assertFalse(isWarmup("{\"warmup\": true"));
+  }
+
+  @Test
+  public void largeBodiesAreNeverParsed() {
+    String padded = "{\"warmup\": true" + " ".repeat(100) + "}";
+    assertFalse(isWarmup(padded));
+  }
+
+  @Test
+  public void reportsTimingsPerStep() {
+    TestContext context = new TestContext();
+    JSONObject report = new Warmup(context.getLogger())
+        .step("first", () -> { })
+        .step("second", () -> { })
+        .finish();
+
+    assertTrue(report.getBoolean("warmed"));
+    assertTrue(report.getJSONObject("primingMs").getLong("first") >= 0);
+    assertTrue(report.getJSONObject("primingMs").getLong("second") >= 0);
+    assertTrue(context.logged().contains("Warm-up finished"));
+  }
+
+  @Test
+  public void failedStepIsLoggedButNotAnswered() {
+    TestContext context = new TestContext();
+    APIGatewayProxyResponseEvent response = new Warmup(context.getLogger())
+        .step("db", () -> {
+          throw new IllegalStateException("jdbc:mysql://internal-host:3306 refused");
+        })
+        .step("s3", () -> { })
+        .toResponse();
+
+    assertEquals(200, (int) response.getStatusCode());
+    JSONObject report = new JSONObject(response.getBody());
+    assertFalse(report.getBoolean("warmed"));
+    assertEquals("failed", report.getJSONObject("primingMs").getString("db"));
+    assertTrue(report.getJSONObject("primingMs").has("s3"));
+    assertFalse(response.getBody().contains("internal-host"));
+    assertTrue(context.logged().contains("Warm-up step db failed: jdbc:mysql://internal-host"));
+  }
+
+  @Test
+  public void headProbeIsOneHeadOfTheProbeKey() throws Exception {
+    try (FakeBackend backend = FakeBackend.started(); S3Client s3 = S3Client.create()) {
+      Warmup.headProbe(s3, "bucket-test");
+
+      assertEquals(List.of("HEAD /bucket-test/" + Warmup.PROBE_KEY), backend.requests);
+    }
+  }
+
+  private static boolean isWarmup(String body) {
+    return Warmup.isWarmupEvent(new APIGatewayProxyRequestEvent().withBody(body));
+  }
+}
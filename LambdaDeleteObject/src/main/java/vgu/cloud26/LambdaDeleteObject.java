@@ -2,58 +2,113 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import org.crac.Core;
+import org.crac.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 
-public class LambdaDeleteObject
-    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaDeleteObject
+    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
+
+  private static final String BUCKET_NAME = "bucket-lam1303";
+
+  private S3Client s3Client;
+  private ContentStore store;
+
+  public LambdaDeleteObject() {
+    this.s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.store = new ContentStore(s3Client, BUCKET_NAME);
+    Core.getGlobalContext().register(this);
+  }
+
+  // --- SNAPSTART HOOKS ---
+
+  @Override
+  public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+    // Load and initialize the request path into the snapshot, then drop pooled
+    // connections: sockets captured in a snapshot are dead after restore
+    prime(LambdaRuntime.getLogger()).finish();
+    s3Client.close();
+  }
+
+  @Override
+  public void afterRestore(org.crac.Context<? extends Resource> context) {
+    // New clients resolve credentials from the restored environment and reconnect
+    s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    store = new ContentStore(s3Client, BUCKET_NAME);
+    prime(LambdaRuntime.getLogger()).finish();
+  }
 
   @Override
-  public APIGatewayProxyResponseEvent handleRequest(
-      APIGatewayProxyRequestEvent event, Context context) { // <--- Renamed 'request' to 'event'
-
-    // Now this standard code works perfectly because the variable is named 'event'
-    if (event.getBody() != null && event.getBody().contains("warmer")) {
-        context.getLogger().log("Warming event received. Exiting.");
-        return new APIGatewayProxyResponseEvent()
-                .withStatusCode(200)
-                .withBody("Warmed");
+  public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    Metrics metrics = Metrics.begin(context, event);
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = handle(event, context, metrics);
+      return response;
+    } finally {
+      metrics.flush(response);
     }
+  }
+
+  private APIGatewayProxyResponseEvent handle(
+      APIGatewayProxyRequestEvent event, Context context, Metrics metrics) { // <--- Renamed 'request' to 'event'
+
+    Log logger = Log.begin(context);
 
-    LambdaLogger logger = context.getLogger();
-    logger.log("Received delete request for: " + event.getBody()); // Use 'event' here too
+    if (Warmup.isWarmupEvent(event)) {
+      return prime(logger).toResponse();
+    }
+
+    logger.debug("Received delete request for: {}", event.getBody());
 
     String requestBody = event.getBody();
     JSONObject bodyJSON = new JSONObject(requestBody);
     String key = bodyJSON.getString("key");
+    if (ContentHash.isContentKey(key)) {
+      return new APIGatewayProxyResponseEvent().withStatusCode(400)
+          .withBody(new JSONObject().put("error", "Reserved key " + key).toString());
+    }
+    // Content whose last reference LambdaDeletePhotoDB just removed, passed on by the orchestrator
+    List<String> released = new ArrayList<>();
+    JSONArray hashes = bodyJSON.optJSONArray("released");
+    for (int i = 0; hashes != null && i < hashes.length(); i++) {
+      if (ContentHash.isValid(hashes.optString(i))) {
+        released.add(ContentHash.contentKey(hashes.optString(i), ""));
+      }
+    }
 
-    String bucketName = "bucket-lam1303";
-    Region region = Region.AP_SOUTHEAST_2;
-
-    S3Client s3Client = S3Client.builder().region(region).build();
-
-    DeleteObjectRequest deleteRequest = DeleteObjectRequest.builder().bucket(bucketName).key(key).build();
+    DeleteObjectRequest deleteRequest = DeleteObjectRequest.builder().bucket(BUCKET_NAME).key(key).build();
 
     JSONObject responseJson = new JSONObject();
     APIGatewayProxyResponseEvent response = new APIGatewayProxyResponseEvent();
 
     try {
-      s3Client.deleteObject(deleteRequest);
-
-      logger.log("Successfully deleted object: " + key + " from bucket: " + bucketName);
+      metrics.time("S3DeleteLatency", () -> {
+        // The key is an alias, or an object from before content hashing; either way only a name
+        s3Client.deleteObject(deleteRequest);
+        store.deleteContent(released);
+        return null;
+      });
+
+      logger.info("Successfully deleted object: {} from bucket: {}", key, BUCKET_NAME);
       responseJson.put("message", "Object deleted successfully: " + key);
 
       response.setStatusCode(200);
       response.setBody(responseJson.toString());
 
     } catch (S3Exception e) {
-      logger.log("Error deleting object: " + e.getMessage());
+      logger.error("Error deleting object: {}", e.getMessage());
 
       responseJson.put("error", e.getMessage());
       response.setStatusCode(500); 
@@ -63,4 +118,8 @@ public class LambdaDeleteObject
     response.setHeaders(java.util.Collections.singletonMap("Content-Type", "application/json"));
     return response;
   }
+
+  private Warmup prime(LambdaLogger logger) {
+    return new Warmup(logger).step("s3", () -> Warmup.headProbe(s3Client, BUCKET_NAME));
+  }
 }
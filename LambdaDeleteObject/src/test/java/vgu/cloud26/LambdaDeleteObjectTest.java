@@ -0,0 +1,25 @@
+package vgu.cloud26;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LambdaDeleteObjectTest {
+
+  private static FakeBackend backend;
+
+  @BeforeClass
+  public static void startBackend() throws Exception {
+    backend = FakeBackend.started();
+  }
+
+  @AfterClass
+  public static void stopBackend() {
+    backend.close();
+  }
+
+  @Test
+  public void recreatesAndPrimesItsClientsOnRestore() throws Exception {
+    SnapStartContract.verify(LambdaDeleteObject::new, "s3");
+  }
+}
@@ -2,38 +2,84 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Properties;
+import org.crac.Core;
+import org.crac.Resource;
 import org.json.JSONObject;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.rds.RdsUtilities;
 import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
 
-public class LambdaDeletePhotoDB implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaDeletePhotoDB implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
     // Configuration
     private static final String RDS_INSTANCE_HOSTNAME = "database-lam1303.cfk8w6wse6nw.ap-southeast-2.rds.amazonaws.com";
     private static final int RDS_INSTANCE_PORT = 3306;
     private static final String DB_USER = "cloud26";
     private static final Region AWS_REGION = Region.AP_SOUTHEAST_2;
-    private static final String JDBC_URL = "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT
-            + "/Cloud26";
+    // Both overridable with system properties so LambdaLocalEmulator can run against an
+    // embedded database; a set password replaces the IAM auth token
+    private static final String JDBC_URL = System.getProperty("cloud26.jdbc.url",
+            "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT + "/Cloud26");
+    private static final String DB_PASSWORD = System.getProperty("cloud26.jdbc.password");
+
+    // Reused across invocations of this container, reopened when it goes stale
+    private Connection connection;
+    // Replaced after a SnapStart restore, see afterRestore
+    private static DefaultCredentialsProvider credentialsProvider = DefaultCredentialsProvider.builder().build();
+
+    public LambdaDeletePhotoDB() {
+        Core.getGlobalContext().register(this);
+    }
+
+    // --- SNAPSTART HOOKS ---
 
     @Override
-    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        // Load and initialize the request path into the snapshot, then drop pooled
+        // connections: sockets captured in a snapshot are dead after restore
+        prime(LambdaRuntime.getLogger()).finish();
+        closeConnection();
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        // Credentials from before the snapshot are stale, and IAM DB tokens are signed with them
+        credentialsProvider.close();
+        credentialsProvider = DefaultCredentialsProvider.builder().build();
+        prime(LambdaRuntime.getLogger()).finish();
+    }
 
-        // Warmer Check
-        if (event.getBody() != null && event.getBody().contains("warmer")) {
-            return new APIGatewayProxyResponseEvent().withStatusCode(200).withBody("Warmed");
+    @Override
+    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Metrics metrics = Metrics.begin(context, event);
+        APIGatewayProxyResponseEvent response = null;
+        try {
+            response = handle(event, context, metrics);
+            return response;
+        } finally {
+            metrics.flush(response);
         }
+    }
+
+    private APIGatewayProxyResponseEvent handle(
+        APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
 
-        LambdaLogger logger = context.getLogger();
+        Log logger = Log.begin(context);
+
+        if (Warmup.isWarmupEvent(event)) {
+            return prime(logger).toResponse();
+        }
 
         try {
             // 1. Parse Input
@@ -43,34 +89,25 @@ public class LambdaDeletePhotoDB implements RequestHandler<APIGatewayProxyReques
             // ERROR WAS HERE: We need the ORIGINAL key, not a hash
             String key = bodyJSON.getString("key");
 
-            logger.log("Processing Delete DB for key: " + key);
-            Class.forName("com.mysql.cj.jdbc.Driver");
-
-            // 2. Connect and Delete
-            Properties props = setMySqlConnectionProperties();
-            try (Connection mySQLClient = DriverManager.getConnection(JDBC_URL, props)) {
-
-                String sql = "DELETE FROM Photos WHERE S3Key = ?";
-
-                try (PreparedStatement st = mySQLClient.prepareStatement(sql)) {
-                    // USE THE PLAIN KEY
-                    st.setString(1, key);
-
-                    int rowsAffected = st.executeUpdate();
-
-                    if (rowsAffected > 0) {
-                        logger.log("Deleted row for: " + key);
-                        return createResponse(200, "{\"message\": \"Success: Row deleted from DB\"}");
-                    } else {
-                        logger.log("Row not found for: " + key);
-                        // We return 200 even if not found, to keep the orchestrator happy
-                        return createResponse(200, "{\"message\": \"Warning: Row not found in DB\"}");
-                    }
-                }
+            logger.info("Processing Delete DB for key: {}", key);
+
+            // 2. Tombstone: the row stops being listed now, LambdaCollectDeleted removes it and its
+            // objects later
+            Connection db = metrics.time("JdbcConnectLatency", this::getConnection);
+            // USE THE PLAIN KEY
+            int rowsAffected = metrics.time("JdbcDeleteLatency", () -> tombstone(db, key));
+
+            if (rowsAffected > 0) {
+                logger.info("Marked deleted: {}", key);
+                return createResponse(200, "{\"message\": \"Success: Row marked deleted in DB\"}");
+            } else {
+                logger.warn("Row not found for: {}", key);
+                // We return 200 even if not found, to keep the orchestrator happy
+                return createResponse(200, "{\"message\": \"Warning: Row not found in DB\"}");
             }
 
         } catch (Exception ex) {
-            logger.log("Error: " + ex.toString());
+            logger.error("Error: {}", ex);
             return createResponse(500, "{\"error\": \"Error deleting from DB: " + ex.getMessage() + "\"}");
         }
     }
@@ -84,12 +121,73 @@ public class LambdaDeletePhotoDB implements RequestHandler<APIGatewayProxyReques
     }
 
     // --- Helper Methods ---
+
+    /**
+     * Marks the key's live Photos rows deleted, one UPDATE on the S3Key index. Their content
+     * references stay counted until LambdaCollectDeleted purges the rows, so nothing a re-upload
+     * of the same bytes relies on goes away here.
+     */
+    private static int tombstone(Connection db, String key) throws SQLException {
+        boolean autoCommit = db.getAutoCommit();
+        db.setAutoCommit(false);
+        try {
+            int rowsAffected;
+            try (PreparedStatement update = db.prepareStatement(
+                    "UPDATE Photos SET DeletedAt = CURRENT_TIMESTAMP"
+                            + " WHERE S3Key = ? AND DeletedAt IS NULL")) {
+                update.setString(1, key);
+                rowsAffected = update.executeUpdate();
+            }
+            if (rowsAffected > 0) {
+                // Last, so the version row is locked only for the commit; readers drop cached pages
+                TableVersion.bump(db, TableVersion.PHOTOS);
+            }
+            db.commit();
+            return rowsAffected;
+        } catch (SQLException e) {
+            db.rollback();
+            throw e;
+        } finally {
+            db.setAutoCommit(autoCommit);
+        }
+    }
+
+    private Warmup prime(LambdaLogger logger) {
+        return new Warmup(logger)
+                .step("jdbc", () -> {
+                    try (PreparedStatement st = getConnection().prepareStatement("SELECT 1");
+                            ResultSet rs = st.executeQuery()) {
+                        rs.next();
+                    }
+                });
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (Exception e) {
+                // Already broken, nothing to release
+            }
+            connection = null;
+        }
+    }
+
+    private Connection getConnection() throws Exception {
+        if (connection == null || !connection.isValid(2)) {
+            Class.forName("com.mysql.cj.jdbc.Driver");
+            connection = DriverManager.getConnection(JDBC_URL, setMySqlConnectionProperties());
+        }
+        return connection;
+    }
+
     private static Properties setMySqlConnectionProperties() {
         Properties mysqlConnectionProperties = new Properties();
         mysqlConnectionProperties.setProperty("useSSL", "true");
         mysqlConnectionProperties.setProperty("verifyServerCertificate", "false");
         mysqlConnectionProperties.setProperty("user", DB_USER);
-        mysqlConnectionProperties.setProperty("password", generateAuthToken());
+        mysqlConnectionProperties.setProperty("password",
+                DB_PASSWORD != null ? DB_PASSWORD : generateAuthToken());
         return mysqlConnectionProperties;
     }
 
@@ -101,7 +199,7 @@ public class LambdaDeletePhotoDB implements RequestHandler<APIGatewayProxyReques
                         .port(RDS_INSTANCE_PORT)
                         .username(DB_USER)
                         .region(AWS_REGION)
-                        .credentialsProvider(DefaultCredentialsProvider.create())
+                        .credentialsProvider(credentialsProvider)
                         .build());
     }
 }
@@ -2,32 +2,72 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import org.crac.Core;
+import org.crac.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 
-public class LambdaDeleteResizedObject implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaDeleteResizedObject implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
     // Update with your actual Resized Bucket Name
     private static final String RESIZED_BUCKET_NAME = "resizebucket-lam1303"; 
 
+    private S3Client s3Client;
+    private ContentStore store;
+
+    public LambdaDeleteResizedObject() {
+        this.s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+        this.store = new ContentStore(s3Client, RESIZED_BUCKET_NAME);
+        Core.getGlobalContext().register(this);
+    }
+
+    // --- SNAPSTART HOOKS ---
+
     @Override
-    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) { // <--- Renamed to 'event'
-        
-        // --- WARMER CHECK (Now works because variable is 'event') ---
-        if (event.getBody() != null && event.getBody().contains("warmer")) {
-            context.getLogger().log("Warming event received. Exiting.");
-            return new APIGatewayProxyResponseEvent()
-                    .withStatusCode(200)
-                    .withBody("Warmed");
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        // Load and initialize the request path into the snapshot, then drop pooled
+        // connections: sockets captured in a snapshot are dead after restore
+        prime(LambdaRuntime.getLogger()).finish();
+        s3Client.close();
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        // New clients resolve credentials from the restored environment and reconnect
+        s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+        store = new ContentStore(s3Client, RESIZED_BUCKET_NAME);
+        prime(LambdaRuntime.getLogger()).finish();
+    }
+
+    @Override
+    public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Metrics metrics = Metrics.begin(context, event);
+        APIGatewayProxyResponseEvent response = null;
+        try {
+            response = handle(event, context, metrics);
+            return response;
+        } finally {
+            metrics.flush(response);
         }
-        // ------------------------------------------------------------
+    }
 
-        LambdaLogger logger = context.getLogger();
+    private APIGatewayProxyResponseEvent handle(
+        APIGatewayProxyRequestEvent event, Context context, Metrics metrics) { // <--- Renamed to 'event'
+        
+        Log logger = Log.begin(context);
+
+        if (Warmup.isWarmupEvent(event)) {
+            return prime(logger).toResponse();
+        }
         
         try {
             // 1. Parse Input (Updated 'request' to 'event')
@@ -37,22 +77,35 @@ public class LambdaDeleteResizedObject implements RequestHandler<APIGatewayProxy
 
             // 2. Calculate Resized Key
             String resizedKey = "resized-" + originalKey;
-            logger.log("Deleting resized image: " + resizedKey);
+            logger.info("Deleting resized image: {}", resizedKey);
 
             // 3. Delete from S3
-            S3Client s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
-            
             DeleteObjectRequest deleteRequest = DeleteObjectRequest.builder()
                     .bucket(RESIZED_BUCKET_NAME)
                     .key(resizedKey)
                     .build();
 
-            s3Client.deleteObject(deleteRequest);
+            // Thumbnails of content whose last reference is gone; LambdaResizer keys them by
+            // the original's hash and the image type
+            List<String> released = new ArrayList<>();
+            JSONArray hashes = bodyJSON.optJSONArray("released");
+            for (int i = 0; hashes != null && i < hashes.length(); i++) {
+                if (ContentHash.isValid(hashes.optString(i))) {
+                    released.add(ContentHash.contentKey(hashes.optString(i), ".jpg"));
+                    released.add(ContentHash.contentKey(hashes.optString(i), ".png"));
+                }
+            }
+
+            metrics.time("S3DeleteLatency", () -> {
+                s3Client.deleteObject(deleteRequest);
+                store.deleteContent(released);
+                return null;
+            });
 
             return createResponse(200, "Success: Deleted " + resizedKey);
 
         } catch (Exception e) {
-            logger.log("Error deleting resized object: " + e.getMessage());
+            logger.error("Error deleting resized object: {}", e.getMessage());
             return createResponse(500, "Error: " + e.getMessage());
         }
     }
@@ -63,4 +116,8 @@ public class LambdaDeleteResizedObject implements RequestHandler<APIGatewayProxy
                 .withBody(message)
                 .withIsBase64Encoded(false);
     }
+
+    private Warmup prime(LambdaLogger logger) {
+        return new Warmup(logger).step("s3", () -> Warmup.headProbe(s3Client, RESIZED_BUCKET_NAME));
+    }
 }
@@ -2,45 +2,95 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.crac.Core;
+import org.crac.Resource;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
 import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
 import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
 import software.amazon.awssdk.services.s3.model.S3Object;
 
 // Lambda Invoke Imports
-import software.amazon.awssdk.core.SdkBytes;
-import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
-import software.amazon.awssdk.services.lambda.model.InvokeResponse;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
+import vgu.cloud26.InvokeClient.Policy;
 
-public class LambdaGetListOfObjects
-        implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaGetListOfObjects
+        implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-    private final LambdaClient lambdaClient;
+    private InvokeClient invoker;
+    private S3Client s3Client;
+    private ContentStore store;
     // CHANGE THIS to your actual Verifier Function Name
     private static final String VERIFIER_FUNCTION_NAME = "LambdaTokenVerifier";
+    private static final String BUCKET_NAME = "bucket-lam1303";
+    // Aliases are listed as empty objects; their sizes come from HEADs of their content
+    private static final int S3_PARALLELISM = 16;
+    private static final ExecutorService S3_LOOKUPS =
+            Executors.newFixedThreadPool(S3_PARALLELISM, task -> {
+                Thread thread = new Thread(task, "list-lookup");
+                thread.setDaemon(true);
+                return thread;
+            });
 
     public LambdaGetListOfObjects() {
-        this.lambdaClient = LambdaClient.builder().region(Region.AP_SOUTHEAST_2).build();
+        this.invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+        this.s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+        this.store = new ContentStore(s3Client, BUCKET_NAME);
+        Core.getGlobalContext().register(this);
+    }
+
+    // --- SNAPSTART HOOKS ---
+
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        // Load and initialize the request path into the snapshot, then drop pooled
+        // connections: sockets captured in a snapshot are dead after restore
+        prime(LambdaRuntime.getLogger()).finish();
+        invoker.close();
+        s3Client.close();
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        // New clients resolve credentials from the restored environment and reconnect
+        invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+        s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+        store = new ContentStore(s3Client, BUCKET_NAME);
+        prime(LambdaRuntime.getLogger()).finish();
     }
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Metrics metrics = Metrics.begin(context, event);
+        APIGatewayProxyResponseEvent response = null;
+        try {
+            response = handle(event, context, metrics);
+            return response;
+        } finally {
+            metrics.flush(response);
+        }
+    }
+
+    private APIGatewayProxyResponseEvent handle(
+        APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
 
-        LambdaLogger logger = context.getLogger();
+        Log logger = Log.begin(context);
 
-        if (event.getBody() != null && event.getBody().contains("warmer")) {
-            logger.log("Warming event received. Exiting.");
-            return createResponse(200, "Warmed");
+        if (Warmup.isWarmupEvent(event)) {
+            return prime(logger).toResponse();
         }
 
         try {
@@ -60,7 +110,8 @@ public class LambdaGetListOfObjects
             verifierPayload.put("body", event.getBody());
 
             // Invoke Verifier
-            String verificationResult = callLambda(VERIFIER_FUNCTION_NAME, verifierPayload.toString(), logger);
+            String verificationResult = metrics.time("VerifierLatency", () -> invoker.call(
+                    VERIFIER_FUNCTION_NAME, verifierPayload.toString(), Policy.READ, metrics.trace(), logger));
 
             JSONObject verifyJson = new JSONObject(verificationResult);
             if (!verifyJson.has("valid") || !verifyJson.getBoolean("valid")) {
@@ -68,61 +119,71 @@ public class LambdaGetListOfObjects
             }
 
             // --- 2. EXISTING S3 LOGIC (Only runs if token is valid) ---
-            logger.log("Token valid. Listing objects...");
-
-            String bucketName = "bucket-lam1303";
-
-            S3Client s3Client = S3Client.builder()
-                    .region(Region.AP_SOUTHEAST_2)
-                    .build();
+            logger.info("Token valid. Listing objects...");
 
             ListObjectsRequest listObjects = ListObjectsRequest
                     .builder()
-                    .bucket(bucketName)
+                    .bucket(BUCKET_NAME)
                     .build();
 
-            ListObjectsResponse res = s3Client.listObjects(listObjects);
+            ListObjectsResponse res = metrics.time("S3ListLatency", () -> s3Client.listObjects(listObjects));
             List<S3Object> objects = res.contents();
 
             JSONArray objArray = new JSONArray();
-
+            List<S3Object> listed = new ArrayList<>();
+            List<Future<HeadObjectResponse>> contentLookups = new ArrayList<>();
+            ContentStore aliases = store;
             for (S3Object object : objects) {
-                JSONObject obj = new JSONObject();
-                obj.put("key", object.key());
-                obj.put("size", calKb(object.size()));
-                objArray.put(obj);
+                // Stored photo bytes; users see them through the aliases named after their keys
+                if (ContentHash.isContentKey(object.key())) {
+                    continue;
+                }
+                listed.add(object);
+                // Objects stored before content addressing carry their bytes, and their size
+                contentLookups.add(object.size() == 0
+                        ? S3_LOOKUPS.submit(() -> aliases.head(object.key()))
+                        : null);
             }
 
-            return createResponse(200, objArray.toString());
+            long lookupStart = System.nanoTime();
+            try {
+                for (int i = 0; i < listed.size(); i++) {
+                    long size = listed.get(i).size();
+                    if (contentLookups.get(i) != null) {
+                        HeadObjectResponse content = contentLookups.get(i).get();
+                        size = content == null ? 0 : content.contentLength();
+                    }
+                    JSONObject obj = new JSONObject();
+                    obj.put("key", listed.get(i).key());
+                    obj.put("size", calKb(size));
+                    objArray.put(obj);
+                }
+            } finally {
+                for (Future<HeadObjectResponse> lookup : contentLookups) {
+                    if (lookup != null) {
+                        lookup.cancel(true);
+                    }
+                }
+            }
+            metrics.putMillisSince("S3HeadLatency", lookupStart);
+            metrics.put("ObjectCount", objArray.length(), Metrics.Unit.COUNT);
+
+            return ResponseCompression.gzipIfAccepted(event, createResponse(200, objArray.toString()));
 
         } catch (Exception e) {
-            logger.log("Error: " + e.getMessage());
+            logger.error("Error: {}", e.getMessage());
             return createResponse(500, "{\"error\": \"Server Error: " + e.getMessage() + "\"}");
         }
     }
 
-    // --- REUSED CALL LAMBDA METHOD ---
-    public String callLambda(String functionName, String payload, LambdaLogger logger) {
-        try {
-            InvokeRequest invokeRequest = InvokeRequest.builder()
-                    .functionName(functionName)
-                    .payload(SdkBytes.fromUtf8String(payload))
-                    .invocationType("RequestResponse")
-                    .build();
-
-            InvokeResponse invokeResult = lambdaClient.invoke(invokeRequest);
-            ByteBuffer responsePayload = invokeResult.payload().asByteBuffer();
-            String jsonResponse = StandardCharsets.UTF_8.decode(responsePayload).toString();
-
-            JSONObject responseObject = new JSONObject(jsonResponse);
-            if (responseObject.has("body")) {
-                return responseObject.getString("body");
-            }
-            return jsonResponse;
-        } catch (Exception e) {
-            logger.log("Error invoking " + functionName + ": " + e.getMessage());
-            return "{\"error\": \"Invocation Failed\"}";
-        }
+    private Warmup prime(LambdaLogger logger) {
+        return new Warmup(logger)
+                .step("lambdaInvoke", () -> invoker.client().invoke(InvokeRequest.builder()
+                        .functionName(VERIFIER_FUNCTION_NAME)
+                        .invocationType("DryRun")
+                        .build()))
+                .step("s3", () -> s3Client.headBucket(HeadBucketRequest.builder().bucket(BUCKET_NAME).build()))
+                .step("json", () -> new JSONArray().put(new JSONObject().put("key", "warmup").put("size", 0L)).toString());
     }
 
     private APIGatewayProxyResponseEvent createResponse(int statusCode, String body) {
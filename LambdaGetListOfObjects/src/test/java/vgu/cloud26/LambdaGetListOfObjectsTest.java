@@ -0,0 +1,65 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LambdaGetListOfObjectsTest {
+
+    private static final String BUCKET = "bucket-lam1303";
+    private static final String CONTENT_KEY = ContentHash.contentKey(
+            "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08", "");
+
+    private static FakeBackend backend;
+
+    @BeforeClass
+    public static void startBackend() throws Exception {
+        backend = FakeBackend.started();
+    }
+
+    @AfterClass
+    public static void stopBackend() {
+        backend.close();
+    }
+
+    @Test
+    public void recreatesAndPrimesItsClientsOnRestore() throws Exception {
+        SnapStartContract.verify(LambdaGetListOfObjects::new, "lambdaInvoke", "s3", "json");
+    }
+
+    @Test
+    public void listsAliasesWithTheSizeOfTheirContent() {
+        backend.functions.put("LambdaTokenVerifier", payload -> "{\"valid\": true}");
+        backend.putObject(BUCKET, CONTENT_KEY, new byte[8 * 1024], "image/jpeg", Map.of());
+        backend.putObject(BUCKET, "cat.jpg", new byte[0], "image/jpeg",
+                Map.of(ContentStore.ALIAS_METADATA, CONTENT_KEY));
+        // Stored before content addressing, bytes and all
+        backend.putObject(BUCKET, "old.jpg", new byte[3 * 1024], "image/jpeg", Map.of());
+        backend.putObject(BUCKET, "gone.jpg", new byte[0], "image/jpeg",
+                Map.of(ContentStore.ALIAS_METADATA, CONTENT_KEY + "-missing"));
+
+        APIGatewayProxyResponseEvent response = new LambdaGetListOfObjects().handleRequest(
+                new APIGatewayProxyRequestEvent().withBody(new JSONObject()
+                        .put("email", "student@vgu.edu.vn")
+                        .put("token", "token")
+                        .toString()),
+                new TestContext());
+
+        assertEquals(response.getBody(), 200, (int) response.getStatusCode());
+        JSONArray listed = new JSONArray(response.getBody());
+        Map<String, Long> sizes = new HashMap<>();
+        for (int i = 0; i < listed.length(); i++) {
+            sizes.put(listed.getJSONObject(i).getString("key"),
+                    listed.getJSONObject(i).getLong("size"));
+        }
+        assertEquals(Map.of("cat.jpg", 8L, "old.jpg", 3L, "gone.jpg", 0L), sizes);
+    }
+}
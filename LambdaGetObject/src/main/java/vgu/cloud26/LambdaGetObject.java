@@ -2,49 +2,80 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import java.util.List;
+import org.crac.Core;
+import org.crac.Resource;
 import org.json.JSONObject;
 import software.amazon.awssdk.core.ResponseInputStream;
-import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
-import software.amazon.awssdk.services.lambda.model.InvokeResponse;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
-import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
-import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import vgu.cloud26.InvokeClient.Policy;
 
-public class LambdaGetObject
-    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaGetObject
+    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
   // --- CONFIGURATION ---
-  private final LambdaClient lambdaClient;
+  private InvokeClient invoker;
+  private S3Client s3Client;
+  private ContentStore store;
   private static final String VERIFIER_FUNCTION_NAME = "LambdaTokenVerifier";
+  private static final String BUCKET_NAME = "bucket-lam1303";
 
   public LambdaGetObject() {
-    this.lambdaClient = LambdaClient.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+    this.s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.store = new ContentStore(s3Client, BUCKET_NAME);
+    Core.getGlobalContext().register(this);
+  }
+
+  // --- SNAPSTART HOOKS ---
+
+  @Override
+  public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+    // Load and initialize the request path into the snapshot, then drop pooled
+    // connections: sockets captured in a snapshot are dead after restore
+    prime(LambdaRuntime.getLogger()).finish();
+    invoker.close();
+    s3Client.close();
   }
 
   @Override
-  public APIGatewayProxyResponseEvent handleRequest(
-      APIGatewayProxyRequestEvent event, Context context) {
+  public void afterRestore(org.crac.Context<? extends Resource> context) {
+    // New clients resolve credentials from the restored environment and reconnect
+    invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+    s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    store = new ContentStore(s3Client, BUCKET_NAME);
+    prime(LambdaRuntime.getLogger()).finish();
+  }
 
-    // --- WARMER CHECK ---
-    if (event.getBody() != null && event.getBody().contains("warmer")) {
-      return new APIGatewayProxyResponseEvent().withStatusCode(200).withBody("Warmed");
+  @Override
+  public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    Metrics metrics = Metrics.begin(context, event);
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = handle(event, context, metrics);
+      return response;
+    } finally {
+      metrics.flush(response);
     }
+  }
+
+  private APIGatewayProxyResponseEvent handle(
+      APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
 
-    LambdaLogger logger = context.getLogger();
+    Log logger = Log.begin(context);
+
+    if (Warmup.isWarmupEvent(event)) {
+      return prime(logger).toResponse();
+    }
 
     try {
       String requestBody = event.getBody();
@@ -63,7 +94,8 @@ public class LambdaGetObject
       JSONObject verifierPayload = new JSONObject();
       verifierPayload.put("body", requestBody);
 
-      String verificationResult = callLambda("LambdaTokenVerifier", verifierPayload.toString(), logger);
+      String verificationResult = metrics.time("VerifierLatency", () -> invoker.call(
+          "LambdaTokenVerifier", verifierPayload.toString(), Policy.READ, metrics.trace(), logger));
       JSONObject verifyJson = new JSONObject(verificationResult);
 
       if (verifyJson.has("error")) {
@@ -76,48 +108,43 @@ public class LambdaGetObject
 
       // 2. EXISTING S3 LOGIC (Only runs if token is valid)
       String key = bodyJSON.getString("key");
-      String bucketName = "bucket-lam1303";
-      S3Client s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+      String bucketName = BUCKET_NAME;
 
-      ListObjectsRequest listObjects = ListObjectsRequest.builder().bucket(bucketName).build();
-      ListObjectsResponse res = s3Client.listObjects(listObjects);
-      List<S3Object> objects = res.contents();
+      // One HEAD of the content the key resolves to: its size is what the GET would return,
+      // where the alias itself is empty
+      HeadObjectResponse head = metrics.time("S3HeadLatency", () -> store.head(key));
 
-      int maxSize = 10 * 1024 * 1024; // 10MB
-      Boolean found = false;
-      Boolean validSize = false;
+      long maxSize = 10 * 1024 * 1024; // 10MB
+      boolean found = head != null;
+      boolean validSize = found && head.contentLength() < maxSize;
       String mimeType = "application/octet-stream";
 
-      for (S3Object object : objects) {
-        if (object.key().equals(key)) {
-          found = true;
-          if (object.size() < maxSize) {
-            validSize = true;
-          }
-          // Simple MIME detection
-          String[] parts = key.split("\\.");
-          if (parts.length > 1) {
-            String ext = parts[parts.length - 1].toLowerCase();
-            if (ext.equals("png"))
-              mimeType = "image/png";
-            else if (ext.equals("jpg") || ext.equals("jpeg"))
-              mimeType = "image/jpeg";
-            else if (ext.equals("html"))
-              mimeType = "text/html";
-          }
-          break;
+      if (found) {
+        // Simple MIME detection
+        String[] parts = key.split("\\.");
+        if (parts.length > 1) {
+          String ext = parts[parts.length - 1].toLowerCase();
+          if (ext.equals("png"))
+            mimeType = "image/png";
+          else if (ext.equals("jpg") || ext.equals("jpeg"))
+            mimeType = "image/jpeg";
+          else if (ext.equals("html"))
+            mimeType = "text/html";
         }
       }
 
       String encodedString = "";
       if (found && validSize) {
-        GetObjectRequest s3Request = GetObjectRequest.builder().bucket(bucketName).key(key).build();
         byte[] buffer;
-        try (ResponseInputStream<GetObjectResponse> s3Response = s3Client.getObject(s3Request)) {
+        long getStart = System.nanoTime();
+        // Uploaded photos are aliases of their content, see ContentStore
+        try (ResponseInputStream<GetObjectResponse> s3Response = store.get(key)) {
           buffer = s3Response.readAllBytes();
+          metrics.putMillisSince("S3GetLatency", getStart);
+          metrics.put("ObjectBytes", buffer.length, Metrics.Unit.BYTES);
           encodedString = Base64.getEncoder().encodeToString(buffer);
         } catch (IOException ex) {
-          logger.log("IOException: " + ex);
+          logger.error("IOException: {}", ex);
           return createResponse(500, "{\"error\": \"Failed to read file\"}", "application/json");
         }
       } else {
@@ -133,34 +160,21 @@ public class LambdaGetObject
       return response;
 
     } catch (Exception e) {
-      logger.log("Error: " + e.getMessage());
+      logger.error("Error: {}", e.getMessage());
       return createResponse(500, "{\"error\": \"Server Error\"}", "application/json");
     }
   }
 
   // --- HELPERS ---
 
-  public String callLambda(String functionName, String payload, LambdaLogger logger) {
-    try {
-      InvokeRequest invokeRequest = InvokeRequest.builder()
-          .functionName(functionName)
-          .payload(SdkBytes.fromUtf8String(payload))
-          .invocationType("RequestResponse")
-          .build();
-
-      InvokeResponse invokeResult = lambdaClient.invoke(invokeRequest);
-      ByteBuffer responsePayload = invokeResult.payload().asByteBuffer();
-      String jsonResponse = StandardCharsets.UTF_8.decode(responsePayload).toString();
-
-      JSONObject responseObject = new JSONObject(jsonResponse);
-      if (responseObject.has("body")) {
-        return responseObject.getString("body");
-      }
-      return jsonResponse;
-    } catch (Exception e) {
-      logger.log("Error invoking " + functionName + ": " + e.getMessage());
-      return "{\"error\": \"Invocation Failed\"}";
-    }
+  private Warmup prime(LambdaLogger logger) {
+    return new Warmup(logger)
+        .step("lambdaInvoke", () -> invoker.client().invoke(InvokeRequest.builder()
+            .functionName(VERIFIER_FUNCTION_NAME)
+            .invocationType("DryRun")
+            .build()))
+        .step("s3", () -> Warmup.headProbe(s3Client, BUCKET_NAME))
+        .step("base64", () -> Base64.getEncoder().encodeToString(new byte[1024]));
   }
 
   private APIGatewayProxyResponseEvent createResponse(int statusCode, String body, String contentType) {
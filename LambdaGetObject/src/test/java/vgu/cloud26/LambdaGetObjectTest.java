@@ -0,0 +1,86 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LambdaGetObjectTest {
+
+  private static final String BUCKET = "bucket-lam1303";
+  private static final String CONTENT_HASH =
+      "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+  private static final String CONTENT_KEY = ContentHash.contentKey(CONTENT_HASH, "");
+  private static final byte[] PHOTO = "not really a jpeg".getBytes(StandardCharsets.UTF_8);
+
+  private static FakeBackend backend;
+
+  @BeforeClass
+  public static void startBackend() throws Exception {
+    backend = FakeBackend.started();
+  }
+
+  @AfterClass
+  public static void stopBackend() {
+    backend.close();
+  }
+
+  @Test
+  public void recreatesAndPrimesItsClientsOnRestore() throws Exception {
+    SnapStartContract.verify(LambdaGetObject::new, "lambdaInvoke", "s3", "base64");
+  }
+
+  @Test
+  public void servesTheContentBehindAnAlias() {
+    backend.functions.put("LambdaTokenVerifier", payload -> "{\"valid\": true}");
+    backend.putObject(BUCKET, CONTENT_KEY, PHOTO, "image/jpeg", Map.of());
+    backend.putObject(BUCKET, "cat.jpg", new byte[0], "image/jpeg",
+        Map.of(ContentStore.ALIAS_METADATA, CONTENT_KEY));
+    backend.requests.clear();
+
+    APIGatewayProxyResponseEvent response = get(new LambdaGetObject(), "cat.jpg");
+
+    assertEquals(200, (int) response.getStatusCode());
+    assertArrayEquals(PHOTO, Base64.getDecoder().decode(response.getBody()));
+    assertEquals("image/jpeg", response.getHeaders().get("Content-Type"));
+    // Sized with a HEAD of the key, never by listing the bucket
+    assertFalse(backend.requests.toString(), backend.requests.contains("GET /" + BUCKET));
+    assertFalse(backend.requests.toString(), backend.requests.contains("GET /" + BUCKET + "/"));
+  }
+
+  @Test
+  public void refusesContentOverTheCap() {
+    backend.functions.put("LambdaTokenVerifier", payload -> "{\"valid\": true}");
+    String bigKey = ContentHash.contentKey(CONTENT_HASH, ".big");
+    backend.putObject(BUCKET, bigKey, new byte[10 * 1024 * 1024], "image/png", Map.of());
+    // The alias is empty; the cap applies to what it stands for
+    backend.putObject(BUCKET, "big.png", new byte[0], "image/png",
+        Map.of(ContentStore.ALIAS_METADATA, bigKey));
+    backend.requests.clear();
+
+    assertEquals(404, (int) get(new LambdaGetObject(), "big.png").getStatusCode());
+    assertEquals(0, backend.count("GET /" + BUCKET + "/" + bigKey));
+  }
+
+  @Test
+  public void answers404ForMissingKeys() {
+    backend.functions.put("LambdaTokenVerifier", payload -> "{\"valid\": true}");
+
+    assertEquals(404, (int) get(new LambdaGetObject(), "nobody.jpg").getStatusCode());
+  }
+
+  private static APIGatewayProxyResponseEvent get(LambdaGetObject handler, String key) {
+    APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent().withBody(
+        new JSONObject().put("key", key).put("token", "t").put("email", "a@b.c").toString());
+    return handler.handleRequest(event, new TestContext());
+  }
+}
@@ -2,52 +2,141 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.crac.Core;
+import org.crac.Resource;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
-import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
-import software.amazon.awssdk.services.lambda.model.InvokeResponse;
 import software.amazon.awssdk.services.rds.RdsUtilities;
 import software.amazon.awssdk.services.rds.model.GenerateAuthenticationTokenRequest;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import vgu.cloud26.InvokeClient.Policy;
 
-public class LambdaGetPhotosDB implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaGetPhotosDB implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
   // DB CONFIG
   private static final String RDS_INSTANCE_HOSTNAME = "database-lam1303.cfk8w6wse6nw.ap-southeast-2.rds.amazonaws.com";
   private static final int RDS_INSTANCE_PORT = 3306;
   private static final String DB_USER = "cloud26";
-  private static final String JDBC_URL = "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT + "/Cloud26";
+  // Both overridable with system properties so LambdaLocalEmulator can run against an
+  // embedded database; a set password replaces the IAM auth token
+  private static final String JDBC_URL = System.getProperty("cloud26.jdbc.url",
+      "jdbc:mysql://" + RDS_INSTANCE_HOSTNAME + ":" + RDS_INSTANCE_PORT + "/Cloud26");
+  private static final String DB_PASSWORD = System.getProperty("cloud26.jdbc.password");
 
   // VERIFIER CONFIG
-  private final LambdaClient lambdaClient;
+  private InvokeClient invoker;
   private static final String VERIFIER_FUNCTION_NAME = "LambdaTokenVerifier";
 
+  // GALLERY CONFIG: {"gallery": true, "after": next, "pageSize": n} adds what S3 has, see gallery()
+  private S3Client s3Client;
+  private ContentStore originals;
+  private ContentStore thumbnails;
+  private static final String BUCKET_NAME = "bucket-lam1303";
+  private static final String RESIZED_BUCKET_NAME = "resizebucket-lam1303";
+  private static final int DEFAULT_PAGE_SIZE = 50;
+  private static final int MAX_PAGE_SIZE = 200;
+  private static final int S3_PARALLELISM = 16;
+  private static final String IMAGE_COLUMNS =
+      "Width, Height, Format, ByteSize, Orientation, TakenAt";
+  private static final ExecutorService S3_LOOKUPS =
+      Executors.newFixedThreadPool(S3_PARALLELISM, task -> {
+        Thread thread = new Thread(task, "gallery-lookup");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // Reused across invocations of this container, reopened when it goes stale
+  private Connection connection;
+  // Results per query and page, good until LambdaAddPhotoDB or LambdaDeletePhotoDB bump the
+  // Photos version. Bodies are UTF-16 in the heap, so this holds about 16 MB
+  private static final QueryCache CACHE = new QueryCache(8 * 1024 * 1024);
+
+  // SEARCH CONFIG: {"search": "words", "from": n, "pageSize": n}, see search()
+  // "fulltext" uses the FULLTEXT index on RDS, "memory" a PhotoIndex built in this container
+  private static final String SEARCH_MODE = System.getProperty("cloud26.search.mode",
+      System.getenv().getOrDefault("SEARCH_MODE", "fulltext"));
+  private static final String FULLTEXT_MATCH =
+      "MATCH (Description, S3Key, Email) AGAINST (? IN NATURAL LANGUAGE MODE)";
+  private PhotoIndex index;
+  // Replaced after a SnapStart restore, see afterRestore
+  private static DefaultCredentialsProvider credentialsProvider = DefaultCredentialsProvider.builder().build();
+
   public LambdaGetPhotosDB() {
-    this.lambdaClient = LambdaClient.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+    this.s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.originals = new ContentStore(s3Client, BUCKET_NAME);
+    this.thumbnails = new ContentStore(s3Client, RESIZED_BUCKET_NAME);
+    Core.getGlobalContext().register(this);
+  }
+
+  // --- SNAPSTART HOOKS ---
+
+  @Override
+  public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+    // Load and initialize the request path into the snapshot, then drop pooled
+    // connections: sockets captured in a snapshot are dead after restore
+    prime(LambdaRuntime.getLogger()).finish();
+    InternalPrincipal.forget();
+    invoker.close();
+    s3Client.close();
+    closeConnection();
+  }
+
+  @Override
+  public void afterRestore(org.crac.Context<? extends Resource> context) {
+    // New clients resolve credentials from the restored environment and reconnect
+    invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+    s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    originals = new ContentStore(s3Client, BUCKET_NAME);
+    thumbnails = new ContentStore(s3Client, RESIZED_BUCKET_NAME);
+    // Credentials from before the snapshot are stale, and IAM DB tokens are signed with them
+    credentialsProvider.close();
+    credentialsProvider = DefaultCredentialsProvider.builder().build();
+    prime(LambdaRuntime.getLogger()).finish();
   }
 
   @Override
   public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    Metrics metrics = Metrics.begin(context, event);
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = handle(event, context, metrics);
+      return response;
+    } finally {
+      metrics.flush(response);
+    }
+  }
+
+  private APIGatewayProxyResponseEvent handle(
+      APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
+
+    Log logger = Log.begin(context);
 
-    // Warmer Check
-    if (event.getBody() != null && event.getBody().contains("warmer")) {
-      return createResponse(200, "Warmed");
+    if (Warmup.isWarmupEvent(event)) {
+      return prime(logger).toResponse();
     }
 
-    LambdaLogger logger = context.getLogger();
     JSONArray items = new JSONArray();
 
     try {
@@ -63,70 +152,321 @@ public class LambdaGetPhotosDB implements RequestHandler<APIGatewayProxyRequestE
         return createResponse(401, "{\"error\": \"Unauthorized: Missing email or token\"}");
       }
 
-      // Call Verifier
-      JSONObject verifierPayload = new JSONObject();
-      verifierPayload.put("body", event.getBody()); // Pass the whole body to verifier
+      // Call Verifier, unless a function that verified the token signed for the email
+      boolean vouched = InternalPrincipal.verify(
+          body.optString(InternalPrincipal.FIELD, null), body.optString("email", null), logger);
+      metrics.put("InternalPrincipal", vouched ? 1 : 0, Metrics.Unit.COUNT);
+      if (!vouched) {
+        JSONObject verifierPayload = new JSONObject();
+        verifierPayload.put("body", event.getBody()); // Pass the whole body to verifier
 
-      String verificationResult = callLambda(VERIFIER_FUNCTION_NAME, verifierPayload.toString(), logger);
-      JSONObject verifyJson = new JSONObject(verificationResult);
+        String verificationResult = metrics.time("VerifierLatency", () -> invoker.call(
+            VERIFIER_FUNCTION_NAME, verifierPayload.toString(), Policy.READ, metrics.trace(), logger));
+        JSONObject verifyJson = new JSONObject(verificationResult);
 
-      if (verifyJson.has("error")) {
-        return createResponse(500, "{\"error\": \"Verifier Error: " + verifyJson.getString("error") + "\"}");
+        if (verifyJson.has("error")) {
+          return createResponse(500, "{\"error\": \"Verifier Error: " + verifyJson.getString("error") + "\"}");
+        }
+        if (!verifyJson.has("valid") || !verifyJson.getBoolean("valid")) {
+          return createResponse(401, "{\"error\": \"Unauthorized: Invalid Token\"}");
+        }
       }
-      if (!verifyJson.has("valid") || !verifyJson.getBoolean("valid")) {
-        return createResponse(401, "{\"error\": \"Unauthorized: Invalid Token\"}");
+
+      // --- 2. CACHE CHECK: one primary-key read instead of the query when nothing changed ---
+      Connection db = metrics.time("JdbcConnectLatency", this::getConnection);
+      long version = metrics.time("VersionCheckLatency",
+          () -> TableVersion.read(db, TableVersion.PHOTOS));
+      boolean gallery = body.optBoolean("gallery");
+      boolean search = body.has("search");
+      JSONObject after = gallery ? after(body) : null;
+      String cacheKey = gallery
+          ? "gallery:" + pageSize(body) + ":" + after.getLong("id") + ":" + after.getString("key")
+          : search
+              ? "search:" + pageSize(body) + ":" + Math.max(0, body.optInt("from", 0)) + ":"
+                  + PhotoIndex.normalize(body.getString("search"))
+              : "list";
+      String cached = CACHE.get(cacheKey, version);
+      metrics.put("CacheHit", cached == null ? 0 : 1, Metrics.Unit.COUNT);
+      if (cached != null) {
+        return ResponseCompression.gzipIfAccepted(event, createResponse(200, cached));
       }
 
-      // --- 2. DATABASE QUERY (Only runs if token is valid) ---
-      Class.forName("com.mysql.cj.jdbc.Driver");
-      Connection mySQLClient = DriverManager.getConnection(JDBC_URL, setMySqlConnectionProperties());
+      if (search) {
+        String result = search(db, version, PhotoIndex.normalize(body.getString("search")),
+            Math.max(0, body.optInt("from", 0)), pageSize(body), metrics).toString();
+        CACHE.put(cacheKey, version, result);
+        return ResponseCompression.gzipIfAccepted(event, createResponse(200, result));
+      }
 
-      PreparedStatement st = mySQLClient.prepareStatement("SELECT * FROM Photos");
-      ResultSet rs = st.executeQuery();
+      if (gallery) {
+        JSONObject page = gallery(db, after.getString("key"), after.getLong("id"), pageSize(body),
+            metrics);
+        String result = page.toString();
+        if (complete(page)) {
+          CACHE.put(cacheKey, version, result);
+        }
+        return ResponseCompression.gzipIfAccepted(event, createResponse(200, result));
+      }
 
-      while (rs.next()) {
-        JSONObject item = new JSONObject();
-        item.put("key", rs.getString("S3Key"));
-        item.put("description", rs.getString("Description"));
+      // --- 3. DATABASE QUERY (Only runs if token is valid) ---
+      // Rows marked deleted wait for LambdaCollectDeleted, and are no one's photos any more
+      try (PreparedStatement st = db.prepareStatement(
+              "SELECT * FROM Photos WHERE DeletedAt IS NULL");
+          ResultSet rs = metrics.time("JdbcQueryLatency", st::executeQuery)) {
+        while (rs.next()) {
+          JSONObject item = new JSONObject();
+          item.put("key", rs.getString("S3Key"));
+          item.put("description", rs.getString("Description"));
 
-        String email = rs.getString("Email");
-        item.put("email", (email == null) ? "Unknown" : email);
+          String email = rs.getString("Email");
+          item.put("email", (email == null) ? "Unknown" : email);
 
-        items.put(item);
+          items.put(putImageInfo(item, rs));
+        }
       }
-      mySQLClient.close();
+      metrics.put("RowCount", items.length(), Metrics.Unit.COUNT);
 
-      return createResponse(200, items.toString());
+      String result = items.toString();
+      CACHE.put(cacheKey, version, result);
+      return ResponseCompression.gzipIfAccepted(event, createResponse(200, result));
 
     } catch (Exception ex) {
-      logger.log("Error: " + ex.toString());
+      logger.error("Error: {}", ex);
       return createResponse(500, "{\"error\": \"Server Error: " + ex.getMessage() + "\"}");
     }
   }
 
-  // --- HELPER METHODS ---
+  // --- GALLERY ---
+
+  /**
+   * One page of the gallery, everything {@code renderTable} shows in one document:
+   *
+   * <pre>
+   * {"items": [{"key": "cat.jpg", "description": "...", "email": "...",
+   *             "size": 48213, "contentType": "image/jpeg", "thumbnail": true,
+   *             "placeholder": "LEHV6nWB2yk8pyo0adR*.7kCMdnj"}],
+   *  "next": {"key": "cat.jpg", "id": 1234}}
+   * </pre>
+   *
+   * <p>Rows come in (key, ID) order after ({@code afterKey}, {@code afterId}): keys are not unique,
+   * and a page boundary inside a run of equal keys must neither skip nor repeat rows. {@code next}
+   * is the last row's pair, to pass back as {@code after} for the following page, absent on the
+   * last one. Each row's S3 lookups (the original, through
+   * its alias, and the thumbnail, whose metadata has its {@link Placeholder}) start as soon as the
+   * row is read, so they overlap the rest of the query and each other. An object S3 no longer has
+   * shows as size 0 and no content type; thumbnails made before placeholders have none.
+   */
+  private JSONObject gallery(Connection db, String afterKey, long afterId, int pageSize,
+      Metrics metrics) throws Exception {
+    List<JSONObject> items = new ArrayList<>();
+    long lastId = 0;
+    List<Future<HeadObjectResponse>> originalLookups = new ArrayList<>();
+    List<Future<HeadObjectResponse>> thumbnailLookups = new ArrayList<>();
+    boolean more = false;
 
-  public String callLambda(String functionName, String payload, LambdaLogger logger) {
+    long lookupStart = System.nanoTime();
+    // One row past the page says whether there is another. The row comparison is a range scan
+    // of the (S3Key, ID) index
+    try (PreparedStatement st = db.prepareStatement(
+        "SELECT ID, S3Key, Description, Email, " + IMAGE_COLUMNS
+            + " FROM Photos WHERE (S3Key, ID) > (?, ?) AND DeletedAt IS NULL"
+            + " ORDER BY S3Key, ID LIMIT ?")) {
+      st.setString(1, afterKey);
+      st.setLong(2, afterId);
+      st.setInt(3, pageSize + 1);
+      try (ResultSet rs = metrics.time("JdbcQueryLatency", st::executeQuery)) {
+        while (rs.next()) {
+          if (items.size() == pageSize) {
+            more = true;
+            break;
+          }
+          String key = rs.getString("S3Key");
+          lastId = rs.getLong("ID");
+          String email = rs.getString("Email");
+          items.add(putImageInfo(new JSONObject()
+              .put("key", key)
+              .put("description", rs.getString("Description"))
+              .put("email", (email == null) ? "Unknown" : email), rs));
+          originalLookups.add(S3_LOOKUPS.submit(() -> originals.head(key)));
+          thumbnailLookups.add(S3_LOOKUPS.submit(() -> thumbnails.head("resized-" + key)));
+        }
+      }
+    }
+
+    JSONArray page = new JSONArray();
     try {
-      InvokeRequest invokeRequest = InvokeRequest.builder()
-          .functionName(functionName)
-          .payload(SdkBytes.fromUtf8String(payload))
-          .invocationType("RequestResponse")
-          .build();
-
-      InvokeResponse invokeResult = lambdaClient.invoke(invokeRequest);
-      ByteBuffer responsePayload = invokeResult.payload().asByteBuffer();
-      String jsonResponse = StandardCharsets.UTF_8.decode(responsePayload).toString();
-
-      JSONObject responseObject = new JSONObject(jsonResponse);
-      if (responseObject.has("body")) {
-        return responseObject.getString("body");
+      for (int i = 0; i < items.size(); i++) {
+        HeadObjectResponse original = originalLookups.get(i).get();
+        HeadObjectResponse thumbnail = thumbnailLookups.get(i).get();
+        page.put(items.get(i)
+            .put("size", original == null ? 0 : original.contentLength())
+            .put("contentType", original == null ? null : original.contentType())
+            .put("thumbnail", thumbnail != null)
+            .put("placeholder",
+                thumbnail == null ? null : thumbnail.metadata().get(Placeholder.METADATA)));
+      }
+    } finally {
+      originalLookups.forEach(lookup -> lookup.cancel(true));
+      thumbnailLookups.forEach(lookup -> lookup.cancel(true));
+    }
+    metrics.putMillisSince("GalleryLatency", lookupStart);
+    metrics.put("RowCount", page.length(), Metrics.Unit.COUNT);
+
+    JSONObject result = new JSONObject().put("items", page);
+    if (more) {
+      result.put("next", new JSONObject()
+          .put("key", items.get(items.size() - 1).getString("key"))
+          .put("id", lastId));
+    }
+    return result;
+  }
+
+  /**
+   * Where a gallery page starts: the {@code next} of the page before, {@code {"key", "id"}}, or the
+   * start of the gallery. A bare key, as pages handed out before IDs were, continues after every
+   * row with that key.
+   */
+  private static JSONObject after(JSONObject body) {
+    JSONObject next = body.optJSONObject("after");
+    if (next != null) {
+      return new JSONObject()
+          .put("key", next.optString("key", ""))
+          .put("id", next.optLong("id", 0));
+    }
+    String key = body.optString("after", "");
+    return new JSONObject().put("key", key).put("id", key.isEmpty() ? 0 : Long.MAX_VALUE);
+  }
+
+  // The resize finishes after the row is written, so a page can be read between the two. Such a
+  // page is served but not cached: no later write would bump the version to replace it
+  private static boolean complete(JSONObject page) {
+    for (Object item : page.getJSONArray("items")) {
+      JSONObject photo = (JSONObject) item;
+      if (!photo.getBoolean("thumbnail") || photo.getLong("size") == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds what the upload read from the image's headers, see ImageInfo: {@code width}, {@code
+   * height}, {@code format}, {@code byteSize}, {@code orientation} and {@code takenAt}. Rows
+   * uploaded before these were recorded, or whose headers did not say, leave them out.
+   */
+  private static JSONObject putImageInfo(JSONObject item, ResultSet rs) throws SQLException {
+    item.put("width", rs.getObject("Width"));
+    item.put("height", rs.getObject("Height"));
+    item.put("format", rs.getString("Format"));
+    item.put("byteSize", rs.getObject("ByteSize"));
+    item.put("orientation", rs.getObject("Orientation"));
+    Timestamp takenAt = rs.getTimestamp("TakenAt");
+    if (takenAt != null) {
+      item.put("takenAt", takenAt.toLocalDateTime().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+    }
+    return item;
+  }
+
+  private static int pageSize(JSONObject body) {
+    return Math.max(1, Math.min(MAX_PAGE_SIZE, body.optInt("pageSize", DEFAULT_PAGE_SIZE)));
+  }
+
+  // --- SEARCH ---
+
+  /**
+   * Photos whose description, key or email share words with {@code query}, best match first:
+   *
+   * <pre>
+   * {"items": [{"key": "beach.jpg", "description": "...", "email": "...", "score": 2.7}],
+   *  "next": 50}
+   * </pre>
+   *
+   * <p>{@code next} is the {@code from} of the following page, absent on the last one.
+   */
+  private JSONObject search(Connection db, long version, String query, int from, int pageSize,
+      Metrics metrics) throws Exception {
+    List<JSONObject> rows = new ArrayList<>();
+    if (!query.isEmpty()) {
+      if ("memory".equals(SEARCH_MODE)) {
+        if (index == null || index.version != version) {
+          index = metrics.time("IndexBuildLatency", () -> PhotoIndex.build(db, version));
+          metrics.put("IndexedRows", index.size(), Metrics.Unit.COUNT);
+        }
+        rows = metrics.time("SearchLatency", () -> index.search(query, from, pageSize));
+      } else {
+        rows = metrics.time("SearchLatency", () -> fullTextSearch(db, query, from, pageSize));
+      }
+    }
+    JSONObject result = new JSONObject();
+    // One row past the page says whether there is another
+    if (rows.size() > pageSize) {
+      rows = rows.subList(0, pageSize);
+      result.put("next", from + pageSize);
+    }
+    metrics.put("RowCount", rows.size(), Metrics.Unit.COUNT);
+    return result.put("items", new JSONArray(rows));
+  }
+
+  private static List<JSONObject> fullTextSearch(Connection db, String query, int from,
+      int pageSize) throws SQLException {
+    List<JSONObject> rows = new ArrayList<>();
+    try (PreparedStatement st = db.prepareStatement(
+        "SELECT S3Key, Description, Email, " + FULLTEXT_MATCH + " AS Score FROM Photos"
+            + " WHERE " + FULLTEXT_MATCH + " AND DeletedAt IS NULL"
+            + " ORDER BY Score DESC, S3Key LIMIT ? OFFSET ?")) {
+      st.setString(1, query);
+      st.setString(2, query);
+      st.setInt(3, pageSize + 1);
+      st.setInt(4, from);
+      try (ResultSet rs = st.executeQuery()) {
+        while (rs.next()) {
+          String email = rs.getString("Email");
+          rows.add(new JSONObject()
+              .put("key", rs.getString("S3Key"))
+              .put("description", rs.getString("Description"))
+              .put("email", (email == null) ? "Unknown" : email)
+              .put("score", rs.getDouble("Score")));
+        }
       }
-      return jsonResponse;
-    } catch (Exception e) {
-      logger.log("Error invoking " + functionName + ": " + e.getMessage());
-      return "{\"error\": \"Invocation Failed\"}";
     }
+    return rows;
+  }
+
+  // --- HELPER METHODS ---
+
+  private Warmup prime(LambdaLogger logger) {
+    return new Warmup(logger)
+        .step("lambdaInvoke", () -> invoker.client().invoke(InvokeRequest.builder()
+            .functionName(VERIFIER_FUNCTION_NAME)
+            .invocationType("DryRun")
+            .build()))
+        .step("s3", () -> originals.head(Warmup.PROBE_KEY))
+        .step("principal", () -> InternalPrincipal.verify("warmup.warmup", "warmup", logger))
+        .step("jdbc", () -> {
+          try (PreparedStatement st = getConnection().prepareStatement("SELECT 1");
+              ResultSet rs = st.executeQuery()) {
+            rs.next();
+          }
+        });
+  }
+
+  private void closeConnection() {
+    if (connection != null) {
+      try {
+        connection.close();
+      } catch (Exception e) {
+        // Already broken, nothing to release
+      }
+      connection = null;
+    }
+  }
+
+  private Connection getConnection() throws Exception {
+    if (connection == null || !connection.isValid(2)) {
+      Class.forName("com.mysql.cj.jdbc.Driver");
+      connection = DriverManager.getConnection(JDBC_URL, setMySqlConnectionProperties());
+    }
+    return connection;
   }
 
   private APIGatewayProxyResponseEvent createResponse(int statusCode, String body) {
@@ -140,7 +480,7 @@ public class LambdaGetPhotosDB implements RequestHandler<APIGatewayProxyRequestE
     Properties props = new Properties();
     props.setProperty("useSSL", "true");
     props.setProperty("user", DB_USER);
-    props.setProperty("password", generateAuthToken());
+    props.setProperty("password", DB_PASSWORD != null ? DB_PASSWORD : generateAuthToken());
     return props;
   }
 
@@ -151,7 +491,7 @@ public class LambdaGetPhotosDB implements RequestHandler<APIGatewayProxyRequestE
         .port(RDS_INSTANCE_PORT)
         .username(DB_USER)
         .region(Region.AP_SOUTHEAST_2)
-        .credentialsProvider(DefaultCredentialsProvider.create())
+        .credentialsProvider(credentialsProvider)
         .build());
   }
 }
@@ -0,0 +1,196 @@
+package vgu.cloud26;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import org.json.JSONObject;
+
+/**
+ * An inverted index over the Photos table, built in memory for deployments without a FULLTEXT
+ * index (and for the local emulator, whose database has none).
+ *
+ * <p>Descriptions, keys and emails are split into lowercase words. Each word maps to the rows it
+ * appears in and how often, with a description word counting double; that is the whole index,
+ * held in arrays. A search scores rows by the words they share with the query, rarer words
+ * weighing more, the way BM25 does without length normalization. An index belongs to one {@link
+ * TableVersion} of Photos and is rebuilt when the version moves.
+ */
+final class PhotoIndex {
+
+  private static final int DESCRIPTION_WEIGHT = 2;
+  // Term frequency saturation: the tenth "beach" adds little over the second
+  private static final double K1 = 1.2;
+
+  final long version;
+  private final String[] keys;
+  private final String[] descriptions;
+  private final String[] emails;
+  // Word to {row, weighted count, row, weighted count, ...}, rows ascending
+  private final Map<String, int[]> postings;
+
+  private PhotoIndex(long version, List<String[]> rows, Map<String, int[]> postings) {
+    this.version = version;
+    this.keys = new String[rows.size()];
+    this.descriptions = new String[rows.size()];
+    this.emails = new String[rows.size()];
+    for (int i = 0; i < rows.size(); i++) {
+      keys[i] = rows.get(i)[0];
+      descriptions[i] = rows.get(i)[1];
+      emails[i] = rows.get(i)[2];
+    }
+    this.postings = postings;
+  }
+
+  /** Reads every live row of Photos, which the caller found at {@code version}. */
+  static PhotoIndex build(Connection db, long version) throws SQLException {
+    List<String[]> rows = new ArrayList<>();
+    try (PreparedStatement st = db.prepareStatement(
+            "SELECT S3Key, Description, Email FROM Photos WHERE DeletedAt IS NULL ORDER BY S3Key");
+        ResultSet rs = st.executeQuery()) {
+      while (rs.next()) {
+        rows.add(new String[] {rs.getString(1), rs.getString(2), rs.getString(3)});
+      }
+    }
+    return of(version, rows);
+  }
+
+  /** Indexes {@code rows} of {key, description, email}, which must be in key order. */
+  static PhotoIndex of(long version, List<String[]> rows) {
+    Map<String, IntList> building = new HashMap<>();
+    for (int i = 0; i < rows.size(); i++) {
+      int id = i;
+      String[] row = rows.get(id);
+      Map<String, Integer> counts = new HashMap<>();
+      for (String word : words(row[1])) {
+        counts.merge(word, DESCRIPTION_WEIGHT, Integer::sum);
+      }
+      for (String word : words(row[0])) {
+        counts.merge(word, 1, Integer::sum);
+      }
+      for (String word : words(row[2])) {
+        counts.merge(word, 1, Integer::sum);
+      }
+      counts.forEach((word, count) ->
+          building.computeIfAbsent(word, w -> new IntList()).add(id, count));
+    }
+    Map<String, int[]> postings = new HashMap<>(building.size() * 2);
+    building.forEach((word, list) -> postings.put(word, list.toArray()));
+    return new PhotoIndex(version, rows, postings);
+  }
+
+  int size() {
+    return keys.length;
+  }
+
+  /**
+   * Rows matching any word of {@code query}, best first (ties in key order), from {@code from},
+   * which is at least 0; none if it is past the last match. One more than {@code limit} is
+   * returned when there are more, so callers can tell.
+   */
+  List<JSONObject> search(String query, int from, int limit) {
+    double[] scores = new double[keys.length];
+    IntList matched = new IntList();
+    for (String word : new LinkedHashSet<>(words(query))) {
+      int[] posting = postings.get(word);
+      if (posting == null) {
+        continue;
+      }
+      double idf = Math.log(1 + (double) keys.length / (posting.length / 2));
+      for (int i = 0; i < posting.length; i += 2) {
+        int row = posting[i];
+        if (scores[row] == 0) {
+          matched.add(row);
+        }
+        scores[row] += idf * posting[i + 1] * (K1 + 1) / (posting[i + 1] + K1);
+      }
+    }
+    // Rows are in key order, so the row number breaks ties the same way the query would
+    Comparator<Integer> better = (x, y) -> scores[x] != scores[y]
+        ? Double.compare(scores[y], scores[x])
+        : Integer.compare(x, y);
+    List<JSONObject> page = new ArrayList<>();
+    if (from >= matched.size) {
+      return page;
+    }
+    // Only the best from + limit + 1 matter: keep them in a heap with the worst on top, rather
+    // than sorting every match of a common word. In long, as from comes from the client
+    int wanted = (int) Math.min((long) from + limit + 1, matched.size);
+    PriorityQueue<Integer> best = new PriorityQueue<>(wanted + 1, better.reversed());
+    for (int i = 0; i < matched.size; i++) {
+      best.add(matched.values[i]);
+      if (best.size() > wanted) {
+        best.poll();
+      }
+    }
+    Integer[] ranked = best.toArray(new Integer[0]);
+    Arrays.sort(ranked, better);
+    for (int i = from; i < ranked.length && page.size() <= limit; i++) {
+      int row = ranked[i];
+      page.add(new JSONObject()
+          .put("key", keys[row])
+          .put("description", descriptions[row])
+          .put("email", emails[row] == null ? "Unknown" : emails[row])
+          .put("score", scores[row]));
+    }
+    return page;
+  }
+
+  /** Lowercase runs of letters and digits, in order; null has none. */
+  static List<String> words(String text) {
+    List<String> words = new ArrayList<>();
+    if (text == null) {
+      return words;
+    }
+    int start = -1;
+    String lower = text.toLowerCase(Locale.ROOT);
+    for (int i = 0; i <= lower.length(); i++) {
+      boolean inWord = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+      if (inWord && start < 0) {
+        start = i;
+      } else if (!inWord && start >= 0) {
+        words.add(lower.substring(start, i));
+        start = -1;
+      }
+    }
+    return words;
+  }
+
+  /** The query's words, deduplicated and space separated: equal for queries that search alike. */
+  static String normalize(String query) {
+    Set<String> words = new LinkedHashSet<>(words(query));
+    return String.join(" ", words);
+  }
+
+  // Growable int array; boxed lists would triple the index size
+  private static final class IntList {
+    int[] values = new int[4];
+    int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    void add(int first, int second) {
+      add(first);
+      add(second);
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
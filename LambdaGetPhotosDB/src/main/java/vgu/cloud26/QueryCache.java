@@ -0,0 +1,50 @@
+package vgu.cloud26;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Query results of this execution environment, valid for one {@link TableVersion} of the table
+ * they were read from.
+ *
+ * <p>Entries are response bodies keyed by query and page. Seeing a newer version drops them all,
+ * since any write may have changed any page. The least recently used entries go first once the
+ * cached bodies add up to more than {@code maxChars}.
+ */
+final class QueryCache {
+
+  private final long maxChars;
+  private final LinkedHashMap<String, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long version = -1;
+  private long chars;
+
+  QueryCache(long maxChars) {
+    this.maxChars = maxChars;
+  }
+
+  /** The cached result of {@code key}, or null if there is none for {@code currentVersion}. */
+  synchronized String get(String key, long currentVersion) {
+    if (currentVersion != version) {
+      entries.clear();
+      chars = 0;
+      version = currentVersion;
+      return null;
+    }
+    return entries.get(key);
+  }
+
+  /** Keeps {@code result}, read at {@code readVersion}, unless the table has moved on since. */
+  synchronized void put(String key, long readVersion, String result) {
+    if (readVersion != version || result.length() > maxChars) {
+      return;
+    }
+    String previous = entries.put(key, result);
+    chars += result.length() - (previous == null ? 0 : previous.length());
+    Iterator<Map.Entry<String, String>> eldest = entries.entrySet().iterator();
+    while (chars > maxChars && eldest.hasNext()) {
+      chars -= eldest.next().getValue().length();
+      eldest.remove();
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LambdaGetPhotosDBTest {
+
+  private static FakeBackend backend;
+
+  @BeforeClass
+  public static void startBackend() throws Exception {
+    backend = FakeBackend.started();
+  }
+
+  @AfterClass
+  public static void stopBackend() {
+    backend.close();
+  }
+
+  @Test
+  public void recreatesAndPrimesItsClientsOnRestore() throws Exception {
+    JSONObject primed = SnapStartContract.verify(LambdaGetPhotosDB::new,
+        "lambdaInvoke", "s3", "principal");
+    // No database in tests: the step runs and is reported, and fails
+    assertEquals("failed", primed.get("jdbc"));
+  }
+}
@@ -0,0 +1,103 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class PhotoIndexTest {
+
+  private static PhotoIndex index(String[]... rows) {
+    return PhotoIndex.of(1, Arrays.asList(rows));
+  }
+
+  private static List<String> keys(List<JSONObject> page) {
+    List<String> keys = new ArrayList<>();
+    for (JSONObject row : page) {
+      keys.add(row.getString("key"));
+    }
+    return keys;
+  }
+
+  @Test
+  public void descriptionWordsCountDouble() {
+    PhotoIndex index = index(
+        new String[] {"a.jpg", "sunset", "beach@vgu.edu.vn"},
+        new String[] {"b.jpg", "beach", "anna@vgu.edu.vn"});
+
+    assertEquals(List.of("b.jpg", "a.jpg"), keys(index.search("beach", 0, 10)));
+  }
+
+  @Test
+  public void rarerWordsWeighMore() {
+    PhotoIndex index = index(
+        new String[] {"a.jpg", "dog", null},
+        new String[] {"b.jpg", "cat", null},
+        new String[] {"c.jpg", "cat", null},
+        new String[] {"d.jpg", "cat", null});
+
+    List<JSONObject> page = index.search("cat dog", 0, 10);
+
+    assertEquals("a.jpg", page.get(0).getString("key"));
+    assertTrue(page.get(0).getDouble("score") > page.get(1).getDouble("score"));
+  }
+
+  @Test
+  public void tiesGoInKeyOrder() {
+    PhotoIndex index = index(
+        new String[] {"a.jpg", "beach", null},
+        new String[] {"b.jpg", "beach", null},
+        new String[] {"c.jpg", "beach", null});
+
+    assertEquals(List.of("a.jpg", "b.jpg", "c.jpg"), keys(index.search("beach", 0, 10)));
+  }
+
+  @Test
+  public void pagesFollowOnWithoutGapsOrRepeats() {
+    List<String[]> rows = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      rows.add(new String[] {String.format("%02d.jpg", i), "beach " + "sun ".repeat(i % 4), null});
+    }
+    PhotoIndex index = PhotoIndex.of(1, rows);
+    List<String> all = keys(index.search("beach sun", 0, 100));
+
+    List<String> paged = new ArrayList<>();
+    for (int from = 0; from < 25; from += 10) {
+      List<JSONObject> page = index.search("beach sun", from, 10);
+      // One past the page when there is another
+      assertEquals(from + 10 < 25 ? 11 : 25 - from, page.size());
+      paged.addAll(keys(page.subList(0, Math.min(10, page.size()))));
+    }
+    assertEquals(all, paged);
+  }
+
+  @Test
+  public void startsPastTheEndAreEmpty() {
+    PhotoIndex index = index(
+        new String[] {"a.jpg", "beach", null},
+        new String[] {"b.jpg", "beach", null});
+
+    assertEquals(0, index.search("beach", 2, 10).size());
+    assertEquals(0, index.search("beach", Integer.MAX_VALUE, 10).size());
+    assertEquals(0, index.search("beach", Integer.MAX_VALUE - 5, 200).size());
+  }
+
+  @Test
+  public void unknownWordsMatchNothing() {
+    PhotoIndex index = index(new String[] {"a.jpg", "beach", null});
+
+    assertEquals(0, index.search("mountain", 0, 10).size());
+    assertEquals(0, index.search("", 0, 10).size());
+  }
+
+  @Test
+  public void queriesNormalizeToTheirWords() {
+    assertEquals(List.of("beach", "2024", "vgu"), PhotoIndex.words("Beach-2024 @VGU!"));
+    assertEquals("beach sun", PhotoIndex.normalize("  Beach, SUN beach "));
+    assertEquals(List.of(), PhotoIndex.words(null));
+  }
+}
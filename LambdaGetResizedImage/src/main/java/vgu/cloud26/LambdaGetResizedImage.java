@@ -2,34 +2,94 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.crac.Core;
+import org.crac.Resource;
+import org.json.JSONArray;
 import org.json.JSONObject;
-import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.GetObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
 
-public class LambdaGetResizedImage
-    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaGetResizedImage
+    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
   private static final String RESIZED_BUCKET_NAME =
       "resizebucket-lam1303"; // YOUR RESIZED BUCKET NAME
+  // {"keys": [...], "from": n} asks for many thumbnails at once, see thumbnails()
+  private static final int MAX_KEYS_PER_RESPONSE = 500;
+  // Base64 characters per response, under the 6 MB function response limit with room for the JSON
+  private static final int MAX_RESPONSE_CHARS = 5 * 1024 * 1024;
+  // A thumbnail is at most 100 px across; anything this big is not one
+  private static final long MAX_THUMBNAIL_BYTES = 512 * 1024;
+  private static final int READ_PARALLELISM = 8;
+  private static final ExecutorService READS =
+      Executors.newFixedThreadPool(READ_PARALLELISM, task -> {
+        Thread thread = new Thread(task, "thumbnail-read");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private S3Client s3;
+  private ContentStore store;
+
+  public LambdaGetResizedImage() {
+    this.s3 = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.store = new ContentStore(s3, RESIZED_BUCKET_NAME);
+    Core.getGlobalContext().register(this);
+  }
+
+  // --- SNAPSTART HOOKS ---
 
   @Override
-  public APIGatewayProxyResponseEvent handleRequest(
-      APIGatewayProxyRequestEvent event, Context context) {
-    if (event.getBody() != null && event.getBody().contains("warmer")) {
-    context.getLogger().log("Warming event received. Exiting.");
-    return new APIGatewayProxyResponseEvent()
-            .withStatusCode(200)
-            .withBody("Warmed");
-}
-    LambdaLogger logger = context.getLogger();
+  public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+    // Load and initialize the request path into the snapshot, then drop pooled
+    // connections: sockets captured in a snapshot are dead after restore
+    prime(LambdaRuntime.getLogger()).finish();
+    s3.close();
+  }
+
+  @Override
+  public void afterRestore(org.crac.Context<? extends Resource> context) {
+    // New clients resolve credentials from the restored environment and reconnect
+    s3 = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    store = new ContentStore(s3, RESIZED_BUCKET_NAME);
+    prime(LambdaRuntime.getLogger()).finish();
+  }
+
+  @Override
+  public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    Metrics metrics = Metrics.begin(context, event);
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = handle(event, context, metrics);
+      return response;
+    } finally {
+      metrics.flush(response);
+    }
+  }
+
+  private APIGatewayProxyResponseEvent handle(
+      APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
+    Log logger = Log.begin(context);
+
+    if (Warmup.isWarmupEvent(event)) {
+      return prime(logger).toResponse();
+    }
 
     // 1. Parse the requested filename
     // Supports both POST body {"key":"..."} or Query String ?key=...
@@ -37,6 +97,9 @@ public class LambdaGetResizedImage
     try {
       if (event.getBody() != null && !event.getBody().isEmpty()) {
         JSONObject body = new JSONObject(event.getBody());
+        if (body.has("keys")) {
+          return thumbnails(body.getJSONArray("keys"), body.optInt("from", 0), metrics);
+        }
         originalKey = body.getString("key");
       } else if (event.getQueryStringParameters() != null) {
         originalKey = event.getQueryStringParameters().get("key");
@@ -53,15 +116,16 @@ public class LambdaGetResizedImage
     String resizedKey = "resized-" + originalKey;
 
     try {
-      S3Client s3 = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
-
-      // 3. Get Object from S3
-      GetObjectRequest getRequest =
-          GetObjectRequest.builder().bucket(RESIZED_BUCKET_NAME).key(resizedKey).build();
-
-      ResponseBytes<GetObjectResponse> objectBytes = s3.getObjectAsBytes(getRequest);
-      byte[] data = objectBytes.asByteArray();
-      String contentType = objectBytes.response().contentType();
+      // 3. Get Object from S3, through the alias to the thumbnail it shares with identical photos
+      byte[] data;
+      String contentType;
+      long getStart = System.nanoTime();
+      try (ResponseInputStream<GetObjectResponse> object = store.get(resizedKey)) {
+        data = object.readAllBytes();
+        contentType = object.response().contentType();
+      }
+      metrics.putMillisSince("S3GetLatency", getStart);
+      metrics.put("ObjectBytes", data.length, Metrics.Unit.BYTES);
 
       // 4. Convert to Base64
       String base64Data = Base64.getEncoder().encodeToString(data);
@@ -74,16 +138,118 @@ public class LambdaGetResizedImage
           .withIsBase64Encoded(true);
 
     } catch (Exception e) {
-      logger.log("Error fetching resized image: " + e.getMessage());
+      logger.warn("Error fetching resized image: {}", e.getMessage());
       // Return a 404 so the browser shows a "broken image" icon instead of crashing
       return createErrorResponse(404, "Image not found");
     }
   }
 
+  /**
+   * Thumbnails of {@code keys}, starting at index {@code from}, in one JSON document:
+   *
+   * <pre>
+   * {"thumbnails": {"cat.jpg": {"contentType": "image/jpeg", "data": "&lt;base64&gt;"}},
+   *  "missing": ["dog.png"], "next": 120}
+   * </pre>
+   *
+   * <p>Up to {@link #READ_PARALLELISM} thumbnails are read at once. The response stops after
+   * {@link #MAX_KEYS_PER_RESPONSE} keys, or before it would pass {@link #MAX_RESPONSE_CHARS};
+   * {@code next} is then the index to ask again from, and it is absent once every key has been
+   * answered.
+   */
+  private APIGatewayProxyResponseEvent thumbnails(JSONArray keys, int from, Metrics metrics) {
+    if (from < 0 || from > keys.length()) {
+      return createErrorResponse(400, "'from' is outside the keys");
+    }
+    int to = Math.min(keys.length(), from + MAX_KEYS_PER_RESPONSE);
+    JSONObject thumbnails = new JSONObject();
+    JSONArray missing = new JSONArray();
+    JSONObject result = new JSONObject().put("thumbnails", thumbnails).put("missing", missing);
+    List<Future<Thumbnail>> reads = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      reads.add(READS.submit(read(keys.getString(i))));
+    }
+    if (to < keys.length()) {
+      result.put("next", to);
+    }
+
+    long chars = 0;
+    long readStart = System.nanoTime();
+    try {
+      for (int i = 0; i < reads.size(); i++) {
+        Thumbnail thumbnail = reads.get(i).get();
+        if (thumbnail.data == null) {
+          missing.put(thumbnail.key);
+          continue;
+        }
+        // Always answer at least one, or a caller could never get past it
+        if (chars + thumbnail.data.length() > MAX_RESPONSE_CHARS && chars > 0) {
+          result.put("next", from + i);
+          break;
+        }
+        chars += thumbnail.data.length();
+        thumbnails.put(thumbnail.key, new JSONObject()
+            .put("contentType", thumbnail.contentType)
+            .put("data", thumbnail.data));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return createErrorResponse(500, "Interrupted");
+    } catch (ExecutionException e) {
+      return createErrorResponse(500, "Error fetching thumbnails: " + e.getCause().getMessage());
+    } finally {
+      // Reads past the cut are not needed any more
+      reads.forEach(read -> read.cancel(true));
+    }
+    metrics.putMillisSince("S3GetLatency", readStart);
+    metrics.put("Thumbnails", thumbnails.length(), Metrics.Unit.COUNT);
+    metrics.put("ObjectBytes", chars, Metrics.Unit.BYTES);
+
+    return new APIGatewayProxyResponseEvent()
+        .withStatusCode(200)
+        .withHeaders(Map.of("Content-Type", "application/json"))
+        .withBody(result.toString());
+  }
+
+  private Callable<Thumbnail> read(String originalKey) {
+    return () -> {
+      try (ResponseInputStream<GetObjectResponse> object = store.get("resized-" + originalKey)) {
+        Long size = object.response().contentLength();
+        if (size != null && size > MAX_THUMBNAIL_BYTES) {
+          object.abort();
+          return new Thumbnail(originalKey, null, null);
+        }
+        return new Thumbnail(originalKey, object.response().contentType(),
+            Base64.getEncoder().encodeToString(object.readAllBytes()));
+      } catch (NoSuchKeyException e) {
+        return new Thumbnail(originalKey, null, null);
+      }
+    };
+  }
+
+  /** One thumbnail of a batch, Base64 encoded; {@code data} is null if there is none to send. */
+  private static final class Thumbnail {
+    final String key;
+    final String contentType;
+    final String data;
+
+    Thumbnail(String key, String contentType, String data) {
+      this.key = key;
+      this.contentType = contentType;
+      this.data = data;
+    }
+  }
+
   private APIGatewayProxyResponseEvent createErrorResponse(int statusCode, String message) {
     return new APIGatewayProxyResponseEvent()
         .withStatusCode(statusCode)
         .withHeaders(Map.of("Content-Type", "text/plain"))
         .withBody(message);
   }
+
+  private Warmup prime(LambdaLogger logger) {
+    return new Warmup(logger)
+        .step("s3", () -> Warmup.headProbe(s3, RESIZED_BUCKET_NAME))
+        .step("base64", () -> Base64.getEncoder().encodeToString(new byte[1024]));
+  }
 }
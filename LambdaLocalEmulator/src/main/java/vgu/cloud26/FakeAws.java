@@ -0,0 +1,576 @@
+package vgu.cloud26;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONObject;
+
+/**
+ * The AWS endpoints the handlers call, served from one local port.
+ *
+ * <p>Handlers reach it through {@code -Daws.endpointUrl=http://127.0.0.1:<port>}. Lambda Invoke
+ * requests ({@code /2015-03-31/functions/<name>/invocations}) are routed to the in-process {@link
+ * FunctionHost} of that name; everything else is treated as path-style S3 against an {@link
+ * ObjectStore}. The Parameter Store extension is hard-wired to port 2773 in the token handlers, so
+ * it is served there.
+ *
+ * <p>Invokes of a function can be given a {@link Fault}: extra latency, or throttling and service
+ * errors at some rate, to exercise the retries, hedging and circuit breaker in {@code
+ * InvokeClient}. A function can also be given a reserved concurrency, past which synchronous
+ * invokes are throttled as Lambda does.
+ *
+ * <p>Multipart uploads are kept in memory until completed, then stored like any other object.
+ */
+public class FakeAws implements AutoCloseable {
+
+  private static final int PARAMETER_STORE_PORT = 2773;
+  private static final String INVOKE_PREFIX = "/2015-03-31/functions/";
+  private static final String USER_METADATA = "x-amz-meta-";
+  private static final Pattern DELETE_KEY = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+  private static final DateTimeFormatter ISO_MILLIS =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+  private final ObjectStore store;
+  private final Map<String, FunctionHost> functions;
+  private final Map<String, Fault> faults = new ConcurrentHashMap<>();
+  private final Map<String, Semaphore> reserved = new ConcurrentHashMap<>();
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+  // Held only by conditional PUTs; plain ones do not wait on them
+  private final Object conditionalWrites = new Object();
+  private final ExecutorService executor = Executors.newCachedThreadPool(daemonThreads());
+  private final ExecutorService asyncInvokes = Executors.newCachedThreadPool(daemonThreads());
+  private final HttpServer aws;
+  private final HttpServer parameterStore;
+
+  public FakeAws(ObjectStore store, Map<String, FunctionHost> functions, String signingKey)
+      throws IOException {
+    this.store = store;
+    this.functions = functions;
+    // Without it the JDK server's Nagle delays cost ~40 ms per small response on loopback
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+
+    aws = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    aws.createContext("/", this::handle);
+    // Invokes nest (orchestrator -> worker -> S3), so every request needs its own thread
+    aws.setExecutor(executor);
+    aws.start();
+
+    parameterStore = HttpServer.create(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), PARAMETER_STORE_PORT), 0);
+    parameterStore.createContext("/", exchange -> {
+      exchange.getRequestBody().readAllBytes();
+      send(exchange, 200, "text/plain", signingKey.getBytes(StandardCharsets.UTF_8));
+    });
+    parameterStore.setExecutor(executor);
+    parameterStore.start();
+  }
+
+  /** Applies {@code fault} to every later synchronous invoke of {@code functionName}. */
+  public void fault(String functionName, Fault fault) {
+    faults.put(functionName, fault);
+  }
+
+  /** Throttles synchronous invokes of {@code functionName} beyond {@code limit} at a time. */
+  public void reservedConcurrency(String functionName, int limit) {
+    reserved.put(functionName, new Semaphore(limit));
+  }
+
+  public String endpointUrl() {
+    return "http://127.0.0.1:" + aws.getAddress().getPort();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getPath();
+      if (path.startsWith(INVOKE_PREFIX)) {
+        handleInvoke(exchange, path);
+      } else {
+        handleS3(exchange, path);
+      }
+    } catch (Exception e) {
+      sendError(exchange, 500, "InternalError", String.valueOf(e));
+    }
+  }
+
+  // --- LAMBDA ---
+
+  private void handleInvoke(HttpExchange exchange, String path) throws IOException {
+    byte[] payload = exchange.getRequestBody().readAllBytes();
+    String name = functionName(path.substring(INVOKE_PREFIX.length(), path.lastIndexOf('/')));
+    FunctionHost function = functions.get(name);
+    if (function == null) {
+      exchange.getResponseHeaders().add("x-amzn-ErrorType", "ResourceNotFoundException");
+      send(exchange, 404, "application/json", new JSONObject()
+          .put("Type", "User")
+          .put("message", "Function not found: " + name)
+          .toString().getBytes(StandardCharsets.UTF_8));
+      return;
+    }
+
+    String type = exchange.getRequestHeaders().getFirst("X-Amz-Invocation-Type");
+    JSONObject event = new JSONObject(new String(payload, StandardCharsets.UTF_8));
+    if ("DryRun".equals(type)) {
+      send(exchange, 204, null, null);
+    } else if ("Event".equals(type)) {
+      asyncInvokes.execute(() -> {
+        try {
+          function.invoke(event);
+        } catch (FunctionHost.FunctionError e) {
+          System.err.println("Async invoke of " + name + " failed: " + e.getMessage());
+        }
+      });
+      send(exchange, 202, null, null);
+    } else {
+      Fault fault = faults.get(name);
+      if (fault != null && fault.inject(exchange)) {
+        return;
+      }
+      Semaphore concurrency = reserved.get(name);
+      if (concurrency != null && !concurrency.tryAcquire()) {
+        sendLambdaError(exchange, 429, "TooManyRequestsException", "Rate Exceeded.");
+        return;
+      }
+      exchange.getResponseHeaders().add("X-Amz-Executed-Version", "$LATEST");
+      JSONObject result;
+      try {
+        result = function.invoke(event);
+      } catch (FunctionHost.FunctionError e) {
+        exchange.getResponseHeaders().add("X-Amz-Function-Error", "Unhandled");
+        result = new JSONObject()
+            .put("errorMessage", e.getMessage())
+            .put("errorType", e.getCause() == null ? "Error" : e.getCause().getClass().getName());
+      } finally {
+        if (concurrency != null) {
+          concurrency.release();
+        }
+      }
+      send(exchange, 200, "application/json", result.toString().getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  /** Accepts a plain name, {@code name:qualifier} or a full function ARN. */
+  private static String functionName(String raw) {
+    String name = URLDecoder.decode(raw, StandardCharsets.UTF_8);
+    if (name.startsWith("arn:")) {
+      String[] parts = name.split(":");
+      return parts.length > 6 ? parts[6] : name;
+    }
+    int colon = name.indexOf(':');
+    return colon < 0 ? name : name.substring(0, colon);
+  }
+
+  /**
+   * Misbehaviour of one function, from a spec such as {@code delay=20,slow=0.05:800,throttle=0.1}:
+   *
+   * <ul>
+   *   <li>{@code delay=<ms>} before every invoke,
+   *   <li>{@code slow=<rate>:<ms>} extra delay for that share of invokes,
+   *   <li>{@code throttle=<rate>} answered 429 TooManyRequestsException without running,
+   *   <li>{@code error=<rate>} answered 500 ServiceException without running.
+   * </ul>
+   */
+  public static final class Fault {
+    private long delayMillis;
+    private double slowRate;
+    private long slowMillis;
+    private double throttleRate;
+    private double errorRate;
+
+    public static Fault parse(String spec) {
+      Fault fault = new Fault();
+      for (String item : spec.split(",")) {
+        String[] kv = item.trim().split("=", 2);
+        if (kv.length < 2) {
+          throw new IllegalArgumentException("Bad fault " + item + ", expected name=value");
+        }
+        switch (kv[0]) {
+          case "delay":
+            fault.delayMillis = Long.parseLong(kv[1]);
+            break;
+          case "slow":
+            String[] slow = kv[1].split(":", 2);
+            fault.slowRate = Double.parseDouble(slow[0]);
+            fault.slowMillis = slow.length > 1 ? Long.parseLong(slow[1]) : 1000;
+            break;
+          case "throttle":
+            fault.throttleRate = Double.parseDouble(kv[1]);
+            break;
+          case "error":
+            fault.errorRate = Double.parseDouble(kv[1]);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown fault " + kv[0]);
+        }
+      }
+      return fault;
+    }
+
+    /** Sleeps as configured; true if it answered the exchange itself. */
+    boolean inject(HttpExchange exchange) throws IOException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long sleep = delayMillis + (random.nextDouble() < slowRate ? slowMillis : 0);
+      if (sleep > 0) {
+        try {
+          Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      double roll = random.nextDouble();
+      if (roll < throttleRate) {
+        sendLambdaError(exchange, 429, "TooManyRequestsException", "Rate exceeded");
+        return true;
+      }
+      if (roll < throttleRate + errorRate) {
+        sendLambdaError(exchange, 500, "ServiceException", "Injected fault");
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private static void sendLambdaError(HttpExchange exchange, int status, String type,
+      String message) throws IOException {
+    exchange.getResponseHeaders().add("x-amzn-ErrorType", type);
+    send(exchange, status, "application/json", new JSONObject()
+        .put("Type", status >= 500 ? "Service" : "User")
+        .put("message", message)
+        .toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  // --- S3 ---
+
+  private void handleS3(HttpExchange exchange, String path) throws IOException {
+    byte[] body = readBody(exchange);
+    int slash = path.indexOf('/', 1);
+    String bucket = slash < 0 ? path.substring(1) : path.substring(1, slash);
+    String key = slash < 0 ? "" : path.substring(slash + 1);
+    Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+    String method = exchange.getRequestMethod();
+
+    if (key.isEmpty()) {
+      if ("POST".equals(method) && query.containsKey("delete")) {
+        deleteObjects(exchange, bucket, new String(body, StandardCharsets.UTF_8));
+      } else if ("GET".equals(method)) {
+        listObjects(exchange, bucket, query);
+      } else if ("HEAD".equals(method)) {
+        // HeadBucket, used by warm-up probes
+        send(exchange, 200, null, null);
+      } else {
+        sendError(exchange, 501, "NotImplemented", method + " on a bucket");
+      }
+      return;
+    }
+
+    if (query.containsKey("uploads") || query.containsKey("uploadId")) {
+      handleMultipart(exchange, method, bucket, key, query, body);
+      return;
+    }
+
+    switch (method) {
+      case "PUT": {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        Map<String, String> metadata = new HashMap<>();
+        exchange.getRequestHeaders().forEach((name, values) -> {
+          if (name.toLowerCase(Locale.ROOT).startsWith(USER_METADATA)) {
+            metadata.put(name.substring(USER_METADATA.length()).toLowerCase(Locale.ROOT),
+                values.get(0));
+          }
+        });
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        ObjectStore.StoredObject stored;
+        if (ifNoneMatch == null && ifMatch == null) {
+          stored = store.put(bucket, key,
+              contentType == null ? "binary/octet-stream" : contentType, body, metadata);
+        } else {
+          // Conditional writes, as IdempotencyKeys claims records with: check and put as one
+          synchronized (conditionalWrites) {
+            ObjectStore.StoredObject current = store.head(bucket, key);
+            boolean failed = ("*".equals(ifNoneMatch) && current != null)
+                || (ifMatch != null
+                    && (current == null || !ifMatch.equals("\"" + current.etag + "\"")));
+            if (failed) {
+              sendError(exchange, 412, "PreconditionFailed",
+                  "At least one of the pre-conditions you specified did not hold");
+              return;
+            }
+            stored = store.put(bucket, key,
+                contentType == null ? "binary/octet-stream" : contentType, body, metadata);
+          }
+        }
+        exchange.getResponseHeaders().add("ETag", "\"" + stored.etag + "\"");
+        send(exchange, 200, null, null);
+        break;
+      }
+      case "GET":
+      case "HEAD": {
+        ObjectStore.StoredObject object = store.head(bucket, key);
+        if (object == null) {
+          if ("HEAD".equals(method)) {
+            send(exchange, 404, null, null);
+          } else {
+            sendError(exchange, 404, "NoSuchKey", "The specified key does not exist.");
+          }
+          return;
+        }
+        exchange.getResponseHeaders().add("ETag", "\"" + object.etag + "\"");
+        object.metadata.forEach((name, value) ->
+            exchange.getResponseHeaders().add(USER_METADATA + name, value));
+        exchange.getResponseHeaders().add("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME
+            .format(Instant.ofEpochMilli(object.lastModified).atOffset(ZoneOffset.UTC)));
+        if ("HEAD".equals(method)) {
+          exchange.getResponseHeaders().add("Content-Type", object.contentType);
+          exchange.getResponseHeaders().add("Content-Length", String.valueOf(object.size));
+          exchange.sendResponseHeaders(200, -1);
+          exchange.close();
+        } else {
+          send(exchange, 200, object.contentType, store.read(bucket, object));
+        }
+        break;
+      }
+      case "DELETE":
+        store.delete(bucket, key);
+        send(exchange, 204, null, null);
+        break;
+      default:
+        sendError(exchange, 501, "NotImplemented", method + " on an object");
+    }
+  }
+
+  // CreateMultipartUpload, UploadPart, CompleteMultipartUpload and AbortMultipartUpload
+  private void handleMultipart(HttpExchange exchange, String method, String bucket, String key,
+      Map<String, String> query, byte[] body) throws IOException {
+    if ("POST".equals(method) && query.containsKey("uploads")) {
+      String uploadId = UUID.randomUUID().toString();
+      String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+      uploads.put(uploadId, new Upload(contentType == null ? "binary/octet-stream" : contentType));
+      String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+          + "<InitiateMultipartUploadResult><Bucket>" + escape(bucket) + "</Bucket><Key>"
+          + escape(key) + "</Key><UploadId>" + uploadId + "</UploadId>"
+          + "</InitiateMultipartUploadResult>";
+      send(exchange, 200, "application/xml", xml.getBytes(StandardCharsets.UTF_8));
+      return;
+    }
+    String uploadId = query.get("uploadId");
+    Upload upload = "DELETE".equals(method) ? uploads.remove(uploadId) : uploads.get(uploadId);
+    if (upload == null) {
+      sendError(exchange, 404, "NoSuchUpload", "The specified upload does not exist.");
+      return;
+    }
+    switch (method) {
+      case "PUT": {
+        upload.parts.put(Integer.parseInt(query.get("partNumber")), body);
+        exchange.getResponseHeaders()
+            .add("ETag", "\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"");
+        send(exchange, 200, null, null);
+        break;
+      }
+      case "POST": {
+        uploads.remove(uploadId);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (byte[] part : upload.parts.values()) {
+          data.write(part);
+        }
+        ObjectStore.StoredObject stored =
+            store.put(bucket, key, upload.contentType, data.toByteArray());
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<CompleteMultipartUploadResult><Bucket>" + escape(bucket) + "</Bucket><Key>"
+            + escape(key) + "</Key><ETag>&quot;" + stored.etag + "&quot;</ETag>"
+            + "</CompleteMultipartUploadResult>";
+        send(exchange, 200, "application/xml", xml.getBytes(StandardCharsets.UTF_8));
+        break;
+      }
+      case "DELETE":
+        send(exchange, 204, null, null);
+        break;
+      default:
+        sendError(exchange, 501, "NotImplemented", method + " on an upload");
+    }
+  }
+
+  /** A multipart upload in progress: its parts by number. */
+  private static final class Upload {
+    final String contentType;
+    final Map<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
+
+    Upload(String contentType) {
+      this.contentType = contentType;
+    }
+  }
+
+  private void listObjects(HttpExchange exchange, String bucket, Map<String, String> query)
+      throws IOException {
+    String prefix = query.getOrDefault("prefix", "");
+    int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+    boolean v2 = "2".equals(query.get("list-type"));
+    List<ObjectStore.StoredObject> objects = store.list(bucket, prefix, maxKeys);
+
+    StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+        .append("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">")
+        .append("<Name>").append(escape(bucket)).append("</Name>")
+        .append("<Prefix>").append(escape(prefix)).append("</Prefix>")
+        .append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+    if (v2) {
+      xml.append("<KeyCount>").append(objects.size()).append("</KeyCount>");
+    } else {
+      xml.append("<Marker></Marker>");
+    }
+    // Pagination is not emulated; listings stop at max-keys
+    xml.append("<IsTruncated>false</IsTruncated>");
+    for (ObjectStore.StoredObject object : objects) {
+      xml.append("<Contents><Key>").append(escape(object.key)).append("</Key>")
+          .append("<LastModified>")
+          .append(ISO_MILLIS.format(Instant.ofEpochMilli(object.lastModified)))
+          .append("</LastModified>")
+          .append("<ETag>&quot;").append(object.etag).append("&quot;</ETag>")
+          .append("<Size>").append(object.size).append("</Size>")
+          .append("<StorageClass>STANDARD</StorageClass></Contents>");
+    }
+    xml.append("</ListBucketResult>");
+    send(exchange, 200, "application/xml", xml.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void deleteObjects(HttpExchange exchange, String bucket, String request)
+      throws IOException {
+    StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+        .append("<DeleteResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+    Matcher matcher = DELETE_KEY.matcher(request);
+    while (matcher.find()) {
+      String key = unescape(matcher.group(1));
+      store.delete(bucket, key);
+      xml.append("<Deleted><Key>").append(escape(key)).append("</Key></Deleted>");
+    }
+    xml.append("</DeleteResult>");
+    send(exchange, 200, "application/xml", xml.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Reads a request body, undoing the SDK's {@code aws-chunked} framing. Over plain HTTP the S3
+   * client streams uploads as {@code <hex size>[;chunk-signature=...]\r\n<data>\r\n} chunks
+   * followed by an empty chunk and optional checksum trailers.
+   */
+  private static byte[] readBody(HttpExchange exchange) throws IOException {
+    byte[] raw = exchange.getRequestBody().readAllBytes();
+    String sha = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+    String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+    boolean chunked = (sha != null && sha.startsWith("STREAMING-"))
+        || (encoding != null && encoding.contains("aws-chunked"));
+    if (!chunked) {
+      return raw;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+    int pos = 0;
+    while (pos < raw.length) {
+      int lineEnd = indexOfCrlf(raw, pos);
+      String header = new String(raw, pos, lineEnd - pos, StandardCharsets.US_ASCII);
+      int semicolon = header.indexOf(';');
+      int size = Integer.parseInt(
+          (semicolon < 0 ? header : header.substring(0, semicolon)).trim(), 16);
+      if (size == 0) {
+        break;
+      }
+      out.write(raw, lineEnd + 2, size);
+      pos = lineEnd + 2 + size + 2;
+    }
+    return out.toByteArray();
+  }
+
+  private static int indexOfCrlf(byte[] data, int from) {
+    for (int i = from; i < data.length - 1; i++) {
+      if (data[i] == '\r' && data[i + 1] == '\n') {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Malformed aws-chunked body");
+  }
+
+  // --- HELPERS ---
+
+  private static Map<String, String> query(String rawQuery) {
+    Map<String, String> query = new HashMap<>();
+    if (rawQuery == null || rawQuery.isEmpty()) {
+      return query;
+    }
+    for (String pair : rawQuery.split("&")) {
+      int eq = pair.indexOf('=');
+      String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+      String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+      query.put(name, value);
+    }
+    return query;
+  }
+
+  private static String escape(String text) {
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+        .replace("\"", "&quot;").replace("'", "&apos;");
+  }
+
+  private static String unescape(String text) {
+    return text.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"")
+        .replace("&apos;", "'").replace("&amp;", "&");
+  }
+
+  private static void sendError(HttpExchange exchange, int status, String code, String message)
+      throws IOException {
+    String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Error><Code>" + code
+        + "</Code><Message>" + escape(message) + "</Message></Error>";
+    send(exchange, status, "application/xml", xml.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException {
+    if (contentType != null) {
+      exchange.getResponseHeaders().add("Content-Type", contentType);
+    }
+    if (body == null || "HEAD".equals(exchange.getRequestMethod())) {
+      exchange.sendResponseHeaders(status, -1);
+      exchange.close();
+      return;
+    }
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static ThreadFactory daemonThreads() {
+    return runnable -> {
+      Thread thread = new Thread(runnable, "fake-aws");
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  @Override
+  public void close() {
+    aws.stop(0);
+    parameterStore.stop(0);
+    executor.shutdownNow();
+    asyncInvokes.shutdownNow();
+  }
+}
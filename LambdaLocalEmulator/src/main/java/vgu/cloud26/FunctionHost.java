@@ -0,0 +1,272 @@
+package vgu.cloud26;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * One deployed function: a handler jar in its own class loader plus a pool of handler instances.
+ *
+ * <p>Each instance stands in for a Lambda execution environment and serves one request at a time;
+ * when all are busy a new one is constructed, which counts as a cold start. Unlike real
+ * environments the instances share static state, since they share a class loader.
+ *
+ * <p>The handler's Lambda and event classes come from its own shaded jar, so everything here goes
+ * through reflection and events cross the boundary as the JSON the Lambda runtime would send.
+ *
+ * <p>Log lines in Embedded Metric Format (see {@code Metrics} in LambdaCommon) are parsed as they
+ * are written, and their millisecond metrics are kept per name for {@link #metricsReport}.
+ */
+public class FunctionHost {
+
+  private static final String EVENTS = "com.amazonaws.services.lambda.runtime.events.";
+  private static final String RUNTIME = "com.amazonaws.services.lambda.runtime.";
+  private static final int TIMEOUT_MILLIS = 900_000;
+
+  /** The handler threw; reported to callers the way Lambda reports an unhandled function error. */
+  public static class FunctionError extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public FunctionError(String message, Throwable cause) {
+      super(message, cause);
+    }
+  }
+
+  private final String name;
+  private final ClassLoader loader;
+  private final Class<?> handlerClass;
+  private final Class<?> requestClass;
+  private final Class<?> contextClass;
+  private final Class<?> loggerClass;
+  private final Method handleRequest;
+  private final boolean verbose;
+
+  private final ConcurrentLinkedDeque<Object> idle = new ConcurrentLinkedDeque<>();
+  private final AtomicInteger coldStarts = new AtomicInteger();
+  private final AtomicLong initNanos = new AtomicLong();
+  private final AtomicLong invocations = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final Map<String, LoadGenerator.RouteStats> timings = new ConcurrentHashMap<>();
+
+  public FunctionHost(String handlerClassName, Path jar, ClassLoader shared, boolean verbose)
+      throws Exception {
+    this.name = handlerClassName.substring(handlerClassName.lastIndexOf('.') + 1);
+    this.verbose = verbose;
+    this.loader = new URLClassLoader(name, new URL[] {jar.toUri().toURL()}, shared);
+    this.handlerClass = loader.loadClass(handlerClassName);
+    this.requestClass = loader.loadClass(EVENTS + "APIGatewayProxyRequestEvent");
+    this.contextClass = loader.loadClass(RUNTIME + "Context");
+    this.loggerClass = loader.loadClass(RUNTIME + "LambdaLogger");
+    this.handleRequest = handlerClass.getMethod("handleRequest", requestClass, contextClass);
+  }
+
+  public String name() {
+    return name;
+  }
+
+  /**
+   * Invokes the handler with a proxy integration event given as JSON, e.g. {@code {"body": "..."}},
+   * and returns its response in the same shape the Lambda runtime serializes it.
+   */
+  public JSONObject invoke(JSONObject event) throws FunctionError {
+    invocations.incrementAndGet();
+    Object instance = acquire();
+    Thread thread = Thread.currentThread();
+    ClassLoader previous = thread.getContextClassLoader();
+    thread.setContextClassLoader(loader);
+    try {
+      Object response = handleRequest.invoke(instance, toRequest(event), newContext());
+      return fromResponse(response);
+    } catch (InvocationTargetException e) {
+      errors.incrementAndGet();
+      Throwable cause = e.getCause();
+      throw new FunctionError(cause.getClass().getName() + ": " + cause.getMessage(), cause);
+    } catch (ReflectiveOperationException e) {
+      errors.incrementAndGet();
+      throw new FunctionError("Cannot call " + name + ": " + e, e);
+    } finally {
+      thread.setContextClassLoader(previous);
+      idle.push(instance);
+    }
+  }
+
+  public String stats() {
+    return String.format("%-32s invocations=%d errors=%d environments=%d avg_init_ms=%.1f",
+        name, invocations.get(), errors.get(), coldStarts.get(),
+        coldStarts.get() == 0 ? 0.0 : initNanos.get() / 1e6 / coldStarts.get());
+  }
+
+  /** p50/p99 of every millisecond metric the handler emitted since the last reset. */
+  public String metricsReport() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, LoadGenerator.RouteStats> entry : new TreeMap<>(timings).entrySet()) {
+      sb.append(entry.getValue().formatLatency(name + "." + entry.getKey()));
+    }
+    return sb.toString();
+  }
+
+  public void resetMetrics() {
+    timings.clear();
+  }
+
+  // --- HELPERS ---
+
+  private Object acquire() throws FunctionError {
+    Object instance = idle.poll();
+    if (instance != null) {
+      return instance;
+    }
+    Thread thread = Thread.currentThread();
+    ClassLoader previous = thread.getContextClassLoader();
+    thread.setContextClassLoader(loader);
+    long start = System.nanoTime();
+    try {
+      instance = handlerClass.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      errors.incrementAndGet();
+      Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+      throw new FunctionError("Init of " + name + " failed: " + cause, cause);
+    } finally {
+      thread.setContextClassLoader(previous);
+    }
+    initNanos.addAndGet(System.nanoTime() - start);
+    coldStarts.incrementAndGet();
+    return instance;
+  }
+
+  private Object toRequest(JSONObject event) throws ReflectiveOperationException {
+    Object request = requestClass.getDeclaredConstructor().newInstance();
+    set(request, "setHttpMethod", String.class, event.optString("httpMethod", "POST"));
+    set(request, "setPath", String.class, event.optString("path", "/" + name));
+    set(request, "setBody", String.class, event.optString("body", null));
+    set(request, "setIsBase64Encoded", Boolean.class, event.optBoolean("isBase64Encoded", false));
+    set(request, "setHeaders", Map.class, stringMap(event.optJSONObject("headers")));
+    set(request, "setQueryStringParameters", Map.class,
+        stringMap(event.optJSONObject("queryStringParameters")));
+    return request;
+  }
+
+  private static void set(Object target, String setter, Class<?> type, Object value)
+      throws ReflectiveOperationException {
+    target.getClass().getMethod(setter, type).invoke(target, value);
+  }
+
+  private static Map<String, String> stringMap(JSONObject json) {
+    if (json == null) {
+      return null;
+    }
+    Map<String, String> map = new HashMap<>();
+    for (String key : json.keySet()) {
+      map.put(key, String.valueOf(json.get(key)));
+    }
+    return map;
+  }
+
+  private static JSONObject fromResponse(Object response) throws ReflectiveOperationException {
+    JSONObject json = new JSONObject();
+    if (response == null) {
+      return json;
+    }
+    Class<?> type = response.getClass();
+    json.put("statusCode", type.getMethod("getStatusCode").invoke(response));
+    json.put("headers", type.getMethod("getHeaders").invoke(response));
+    json.put("body", type.getMethod("getBody").invoke(response));
+    Object base64 = type.getMethod("getIsBase64Encoded").invoke(response);
+    json.put("isBase64Encoded", Boolean.TRUE.equals(base64));
+    return json;
+  }
+
+  private Object newContext() {
+    String requestId = UUID.randomUUID().toString();
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    Object logger = Proxy.newProxyInstance(loader, new Class<?>[] {loggerClass}, loggerHandler());
+    InvocationHandler context = (proxy, method, args) -> {
+      switch (method.getName()) {
+        case "getAwsRequestId":
+          return requestId;
+        case "getFunctionName":
+          return name;
+        case "getFunctionVersion":
+          return "$LATEST";
+        case "getInvokedFunctionArn":
+          return "arn:aws:lambda:ap-southeast-2:000000000000:function:" + name;
+        case "getLogGroupName":
+          return "/aws/lambda/" + name;
+        case "getLogStreamName":
+          return "local";
+        case "getRemainingTimeInMillis":
+          return (int) Math.max(0, deadline - System.currentTimeMillis());
+        case "getMemoryLimitInMB":
+          return (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        case "getLogger":
+          return logger;
+        case "toString":
+          return "LocalContext[" + name + "]";
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          // getIdentity, getClientContext and anything added later
+          return null;
+      }
+    };
+    return Proxy.newProxyInstance(loader, new Class<?>[] {contextClass}, context);
+  }
+
+  private InvocationHandler loggerHandler() {
+    return (proxy, method, args) -> {
+      if (method.getName().equals("log") && args != null && args.length > 0) {
+        Object message = args[0];
+        String text = message instanceof byte[]
+            ? new String((byte[]) message, StandardCharsets.UTF_8)
+            : String.valueOf(message);
+        if (text.startsWith("{\"_aws\":")) {
+          recordMetrics(new JSONObject(text));
+        }
+        if (verbose) {
+          System.err.println("[" + name + "] " + text);
+        }
+        return null;
+      }
+      switch (method.getName()) {
+        case "toString":
+          return "LocalLogger[" + name + "]";
+        case "hashCode":
+          return System.identityHashCode(proxy);
+        case "equals":
+          return proxy == args[0];
+        default:
+          return null;
+      }
+    };
+  }
+
+  private void recordMetrics(JSONObject record) {
+    JSONArray metrics = record.getJSONObject("_aws").getJSONArray("CloudWatchMetrics")
+        .getJSONObject(0).getJSONArray("Metrics");
+    for (int i = 0; i < metrics.length(); i++) {
+      JSONObject metric = metrics.getJSONObject(i);
+      if (metric.getString("Unit").equals("Milliseconds")) {
+        String metricName = metric.getString("Name");
+        timings.computeIfAbsent(metricName, n -> new LoadGenerator.RouteStats())
+            .record((long) (record.getDouble(metricName) * 1e6), true);
+      }
+    }
+  }
+}
@@ -0,0 +1,332 @@
+package vgu.cloud26;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Drives a weighted mix of user-facing requests through the in-process handlers and reports
+ * throughput and latency percentiles per route.
+ *
+ * <p>Each route is the handler the browser would call for that action, so an upload or delete
+ * goes through its orchestrator and every nested invoke, S3 call and SQL statement behind it.
+ * Routes that need an existing photo fall back to an upload while none exist.
+ */
+public class LoadGenerator {
+
+  /** Route name to the front-door function it calls. */
+  public static final Map<String, String> ROUTES = new LinkedHashMap<>();
+
+  static {
+    ROUTES.put("upload", "LambdaOrchestrateUploadHandler");
+    // The same upload in async mode: timed to the 202, the work runs from the job queue
+    ROUTES.put("uploadAsync", "LambdaOrchestrateUploadHandler");
+    // BATCH_FILES uploads in one request, timed as one
+    ROUTES.put("uploadBatch", "LambdaOrchestrateUploadHandler");
+    ROUTES.put("list", "LambdaGetPhotosDB");
+    // The first page of the gallery view, with its S3 lookups
+    ROUTES.put("gallery", "LambdaGetPhotosDB");
+    // A search that matches every load test photo
+    ROUTES.put("search", "LambdaGetPhotosDB");
+    ROUTES.put("download", "LambdaGetObject");
+    ROUTES.put("thumbnail", "LambdaGetResizedImage");
+    // BATCH_FILES thumbnails in one request, as the gallery asks for them
+    ROUTES.put("thumbnails", "LambdaGetResizedImage");
+    ROUTES.put("listObjects", "LambdaGetListOfObjects");
+    ROUTES.put("delete", "LambdaOrchestrateDeleteHandler");
+    // One run of the scheduled collector, which removes what deletes have marked
+    ROUTES.put("collect", "LambdaCollectDeleted");
+    // BATCH_FILES known photos as one ZIP archive
+    ROUTES.put("zip", "LambdaBulkDownload");
+  }
+
+  // Photos per uploadBatch, zip and thumbnails request
+  private static final int BATCH_FILES = 4;
+
+  private final Map<String, FunctionHost> functions;
+  private final Map<String, Integer> mix;
+  private final String imageBase64;
+  private final double duplicateRate;
+  private final String email;
+  private final String token;
+  private final List<String> keys = new ArrayList<>();
+  private final AtomicLong keySequence = new AtomicLong();
+  private Map<String, RouteStats> stats = new LinkedHashMap<>();
+
+  public LoadGenerator(Map<String, FunctionHost> functions, Map<String, Integer> mix,
+      String imageBase64, double duplicateRate, String email) throws FunctionHost.FunctionError {
+    for (String route : mix.keySet()) {
+      if (!ROUTES.containsKey(route)) {
+        throw new IllegalArgumentException("Unknown route " + route + ", expected one of "
+            + ROUTES.keySet());
+      }
+      if (!functions.containsKey(ROUTES.get(route))) {
+        throw new IllegalArgumentException("Route " + route + " needs " + ROUTES.get(route)
+            + ", which is not deployed");
+      }
+    }
+    this.functions = functions;
+    this.mix = mix;
+    this.imageBase64 = imageBase64;
+    this.duplicateRate = duplicateRate;
+    this.email = email;
+    this.token = requestToken(email);
+  }
+
+  /** Parses {@code upload=1,list=4}; routes left out get no traffic. */
+  public static Map<String, Integer> parseMix(String spec) {
+    Map<String, Integer> mix = new LinkedHashMap<>();
+    for (String part : spec.split(",")) {
+      String[] kv = part.trim().split("=", 2);
+      mix.put(kv[0], kv.length > 1 ? Integer.parseInt(kv[1]) : 1);
+    }
+    return mix;
+  }
+
+  /**
+   * Runs until {@code durationMillis} has passed or {@code maxRequests} requests have been sent
+   * (0 means no limit), then returns the per-route results. Earlier results are discarded, so a
+   * short first run can serve as JIT warm-up.
+   */
+  public Map<String, RouteStats> run(int threads, long durationMillis, long maxRequests)
+      throws InterruptedException {
+    Map<String, RouteStats> fresh = new LinkedHashMap<>();
+    for (String route : ROUTES.keySet()) {
+      fresh.put(route, new RouteStats());
+    }
+    stats = fresh;
+    AtomicLong sent = new AtomicLong();
+    long deadline = System.currentTimeMillis() + durationMillis;
+
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread(() -> {
+        while (System.currentTimeMillis() < deadline
+            && (maxRequests <= 0 || sent.incrementAndGet() <= maxRequests)) {
+          send(pickRoute());
+        }
+      }, "load-" + i);
+      worker.start();
+      workers.add(worker);
+    }
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    return fresh;
+  }
+
+  public static String report(Map<String, RouteStats> results, long elapsedMillis) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format(Locale.ROOT, "%-12s %9s %7s %9s %9s %9s %9s%n",
+        "route", "requests", "errors", "req/s", "p50_ms", "p99_ms", "max_ms"));
+    RouteStats total = new RouteStats();
+    for (Map.Entry<String, RouteStats> entry : results.entrySet()) {
+      RouteStats route = entry.getValue();
+      if (route.count() == 0) {
+        continue;
+      }
+      sb.append(route.format(entry.getKey(), elapsedMillis));
+      total.merge(route);
+    }
+    sb.append(total.format("total", elapsedMillis));
+    return sb.toString();
+  }
+
+  // --- ROUTES ---
+
+  private String pickRoute() {
+    int totalWeight = mix.values().stream().mapToInt(Integer::intValue).sum();
+    int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+    for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+      pick -= entry.getValue();
+      if (pick < 0) {
+        return entry.getKey();
+      }
+    }
+    throw new IllegalStateException("Empty mix");
+  }
+
+  private void send(String route) {
+    JSONObject body = new JSONObject().put("email", email).put("token", token);
+    String key = null;
+    boolean upload = route.startsWith("upload");
+    List<String> uploaded = new ArrayList<>();
+    boolean listing = route.equals("list") || route.equals("gallery") || route.equals("search")
+        || route.equals("listObjects") || route.equals("collect");
+    if (!upload && !listing) {
+      key = route.equals("delete") ? takeKey() : anyKey();
+      if (key == null && functions.containsKey(ROUTES.get("upload"))) {
+        route = "upload";
+        upload = true;
+      } else if (key == null) {
+        return;
+      }
+    }
+    if (route.equals("gallery")) {
+      body.put("gallery", true);
+    } else if (route.equals("search")) {
+      body.put("search", "load test");
+    } else if (route.equals("zip") || route.equals("thumbnails")) {
+      JSONArray archive = new JSONArray().put(key);
+      for (int i = 1; i < BATCH_FILES; i++) {
+        archive.put(anyKey());
+      }
+      body.put("keys", archive);
+      key = null;
+    } else if (route.equals("uploadBatch")) {
+      JSONArray files = new JSONArray();
+      for (int i = 0; i < BATCH_FILES; i++) {
+        long sequence = keySequence.incrementAndGet();
+        uploaded.add("load-" + sequence + ".jpg");
+        files.put(new JSONObject().put("key", "load-" + sequence + ".jpg")
+            .put("content", content(sequence)).put("description", "load test"));
+      }
+      body.put("files", files);
+    } else if (upload) {
+      long sequence = keySequence.incrementAndGet();
+      key = "load-" + sequence + ".jpg";
+      uploaded.add(key);
+      body.put("content", content(sequence)).put("description", "load test");
+      if (route.equals("uploadAsync")) {
+        body.put("async", true);
+      }
+    }
+    if (key != null) {
+      body.put("key", key);
+    }
+
+    long start = System.nanoTime();
+    boolean ok;
+    try {
+      JSONObject response = functions.get(ROUTES.get(route))
+          .invoke(new JSONObject().put("body", body.toString()));
+      ok = succeeded(response);
+    } catch (FunctionHost.FunctionError e) {
+      ok = false;
+    }
+    stats.get(route).record(System.nanoTime() - start, ok);
+
+    if (ok) {
+      synchronized (keys) {
+        keys.addAll(uploaded);
+      }
+    }
+  }
+
+  /**
+   * The image, or with the upload's sequence number appended as trailing bytes after the JPEG
+   * end-of-image marker, which decoders ignore. The image's base64 is unpadded, so the encoded
+   * bytes can simply be concatenated.
+   */
+  private String content(long sequence) {
+    if (ThreadLocalRandom.current().nextDouble() < duplicateRate || imageBase64.endsWith("=")) {
+      return imageBase64;
+    }
+    return imageBase64 + Base64.getEncoder().encodeToString(
+        ByteBuffer.allocate(Long.BYTES + 1).put((byte) 0).putLong(sequence).array());
+  }
+
+  private static boolean succeeded(JSONObject response) {
+    int status = response.optInt("statusCode", 500);
+    if (status >= 300) {
+      return false;
+    }
+    // Orchestrators answer 200 with the workers' results inlined, so look for their errors too
+    String body = response.optString("body", "");
+    return response.optBoolean("isBase64Encoded") || !body.contains("error");
+  }
+
+  private String anyKey() {
+    synchronized (keys) {
+      return keys.isEmpty() ? null : keys.get(ThreadLocalRandom.current().nextInt(keys.size()));
+    }
+  }
+
+  private String takeKey() {
+    synchronized (keys) {
+      if (keys.isEmpty()) {
+        return null;
+      }
+      int index = ThreadLocalRandom.current().nextInt(keys.size());
+      String key = keys.get(index);
+      keys.set(index, keys.get(keys.size() - 1));
+      keys.remove(keys.size() - 1);
+      return key;
+    }
+  }
+
+  private String requestToken(String email) throws FunctionHost.FunctionError {
+    FunctionHost generator = functions.get("LambdaTokenGenerator");
+    if (generator == null) {
+      throw new IllegalArgumentException("LambdaTokenGenerator is needed to sign in");
+    }
+    JSONObject response = generator.invoke(new JSONObject()
+        .put("body", new JSONObject().put("email", email).toString()));
+    return new JSONObject(response.getString("body")).getString("token");
+  }
+
+  /** Latencies of one route, kept in full so percentiles are exact. */
+  public static class RouteStats {
+    private long[] nanos = new long[1024];
+    private int count;
+    private int errors;
+
+    synchronized void record(long elapsedNanos, boolean ok) {
+      if (count == nanos.length) {
+        nanos = Arrays.copyOf(nanos, count * 2);
+      }
+      nanos[count++] = elapsedNanos;
+      if (!ok) {
+        errors++;
+      }
+    }
+
+    synchronized void merge(RouteStats other) {
+      synchronized (other) {
+        for (int i = 0; i < other.count; i++) {
+          record(other.nanos[i], true);
+        }
+        errors += other.errors;
+      }
+    }
+
+    public synchronized int count() {
+      return count;
+    }
+
+    synchronized String format(String route, long elapsedMillis) {
+      long[] sorted = Arrays.copyOf(nanos, count);
+      Arrays.sort(sorted);
+      return String.format(Locale.ROOT, "%-12s %9d %7d %9.1f %9.1f %9.1f %9.1f%n",
+          route, count, errors, count * 1000.0 / Math.max(1, elapsedMillis),
+          percentile(sorted, 50), percentile(sorted, 99),
+          sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1e6);
+    }
+
+    synchronized String formatLatency(String label) {
+      long[] sorted = Arrays.copyOf(nanos, count);
+      Arrays.sort(sorted);
+      return String.format(Locale.ROOT, "  %-54s %7d %9.1f %9.1f %9.1f%n",
+          label, count, percentile(sorted, 50), percentile(sorted, 99),
+          sorted.length == 0 ? 0.0 : sorted[sorted.length - 1] / 1e6);
+    }
+
+    // Nearest-rank percentile, in milliseconds
+    private static double percentile(long[] sorted, int p) {
+      if (sorted.length == 0) {
+        return 0.0;
+      }
+      int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+      return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+  }
+}
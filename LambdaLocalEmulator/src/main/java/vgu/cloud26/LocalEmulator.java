@@ -0,0 +1,300 @@
+package vgu.cloud26;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import org.json.JSONObject;
+
+/**
+ * Runs every packaged handler in one JVM against local fakes and load-tests them end to end.
+ *
+ * <p>S3 and Lambda Invoke are served by {@link FakeAws}, the Photos table lives in an embedded H2
+ * database in MySQL mode, and the signing key comes from a local Parameter Store stand-in, so
+ * nothing leaves the machine. Each handler jar gets its own class loader (see {@link
+ * FunctionHost}), and Lambda invokes by function name are routed back into this JVM.
+ *
+ * <pre>
+ * java -jar target/LambdaLocalEmulator-1.0-SNAPSHOT.jar \
+ *     --threads 8 --duration 30 --mix upload=1,list=4,download=4,delete=1
+ * </pre>
+ *
+ * <p>Other options: {@code --jars <dir>} (default {@code ..}), {@code --requests <n>}, {@code
+ * --warmup-requests <n>}, {@code --image <w>x<h>}, {@code --s3-dir <dir>} to keep objects on disk,
+ * {@code --out <file>}, {@code --verbose} for handler logs, and {@code --serve} to skip the load
+ * run and keep the endpoints up for manual testing. {@code --fault <function>=<spec>}, repeatable,
+ * makes invokes of one function slow or failing, e.g. {@code --fault
+ * LambdaTokenVerifier=slow=0.05:800,throttle=0.02}; see {@link FakeAws.Fault} for the spec. {@code
+ * --concurrency <function>=<n>}, also repeatable, stands in for reserved concurrency, the
+ * bulkheads in front of LambdaAddPhotoDB and LambdaResizer in production. {@code --duplicates
+ * <fraction>} makes that share of uploads repeat the same bytes, which are stored and resized only
+ * once; the rest are unique (default 0).
+ *
+ * <p>The load run signs in as a single user, so the per-user upload limit is lifted unless {@code
+ * -Dcloud26.upload.ratePerMinute} is given.
+ */
+public class LocalEmulator {
+
+  private static final String JDBC_URL =
+      "jdbc:h2:mem:Cloud26;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1;"
+          // The handlers pass MySQL-only properties such as useSSL
+          + "IGNORE_UNKNOWN_SETTINGS=TRUE";
+  private static final String DB_USER = "cloud26";
+  private static final String DB_PASSWORD = "local";
+  private static final String SIGNING_KEY = "local-signing-key";
+
+  public static void main(String[] args) throws Exception {
+    Path jarsDir = Paths.get("..");
+    Path s3Dir = null;
+    Path out = null;
+    int threads = 8;
+    long durationSeconds = 30;
+    long requests = 0;
+    long warmupRequests = 50;
+    String mixSpec = "upload=1,list=4,download=4,delete=1";
+    String imageSize = "1024x768";
+    double duplicates = 0;
+    boolean verbose = false;
+    boolean serve = false;
+    Map<String, FakeAws.Fault> faults = new TreeMap<>();
+    Map<String, Integer> concurrency = new TreeMap<>();
+
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "--jars":
+          jarsDir = Paths.get(args[++i]);
+          break;
+        case "--s3-dir":
+          s3Dir = Paths.get(args[++i]);
+          break;
+        case "--out":
+          out = Paths.get(args[++i]);
+          break;
+        case "--threads":
+          threads = Integer.parseInt(args[++i]);
+          break;
+        case "--duration":
+          durationSeconds = Long.parseLong(args[++i]);
+          break;
+        case "--requests":
+          requests = Long.parseLong(args[++i]);
+          break;
+        case "--warmup-requests":
+          warmupRequests = Long.parseLong(args[++i]);
+          break;
+        case "--mix":
+          mixSpec = args[++i];
+          break;
+        case "--image":
+          imageSize = args[++i];
+          break;
+        case "--duplicates":
+          duplicates = Double.parseDouble(args[++i]);
+          break;
+        case "--verbose":
+          verbose = true;
+          break;
+        case "--serve":
+          serve = true;
+          break;
+        case "--fault":
+          String[] fault = args[++i].split("=", 2);
+          faults.put(fault[0], FakeAws.Fault.parse(fault.length > 1 ? fault[1] : ""));
+          break;
+        case "--concurrency":
+          String[] limit = args[++i].split("=", 2);
+          concurrency.put(limit[0], Integer.parseInt(limit[1]));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+
+    // 1. Fakes first: the handlers read their endpoints while they initialize
+    Map<String, FunctionHost> functions = new ConcurrentHashMap<>();
+    FakeAws aws = new FakeAws(new ObjectStore(s3Dir), functions, SIGNING_KEY);
+    faults.forEach(aws::fault);
+    concurrency.forEach(aws::reservedConcurrency);
+    configureSdk(aws.endpointUrl());
+    createDatabase();
+
+    // 2. Deploy every handler jar
+    ClassLoader shared = sharedLoader();
+    for (Map.Entry<String, Path> jar : findHandlerJars(jarsDir).entrySet()) {
+      FunctionHost function = new FunctionHost(jar.getKey(), jar.getValue(), shared, verbose);
+      functions.put(function.name(), function);
+    }
+    if (functions.isEmpty()) {
+      System.err.println("No handler jars under " + jarsDir.toAbsolutePath()
+          + ", run mvn package in the handler modules first");
+      System.exit(1);
+    }
+    System.out.println("Fake AWS endpoint " + aws.endpointUrl() + ", " + functions.size()
+        + " functions deployed");
+
+    // 3. First environment of every function, through the warm-up protocol
+    for (FunctionHost function : new TreeMap<>(functions).values()) {
+      JSONObject response = function.invoke(
+          new JSONObject().put("body", "{\"warmup\": true}"));
+      System.out.println("  " + function.name() + " warm-up: " + response.optString("body"));
+    }
+
+    if (serve) {
+      System.out.println("Serving until interrupted");
+      Thread.currentThread().join();
+    }
+
+    // 4. Load
+    LoadGenerator load = new LoadGenerator(functions, LoadGenerator.parseMix(mixSpec),
+        jpegBase64(imageSize), duplicates, "load@cloud26.local");
+    if (warmupRequests > 0) {
+      load.run(threads, durationSeconds * 1000, warmupRequests);
+    }
+    for (FunctionHost function : functions.values()) {
+      function.resetMetrics();
+    }
+    long start = System.currentTimeMillis();
+    Map<String, LoadGenerator.RouteStats> results =
+        load.run(threads, durationSeconds * 1000, requests);
+    long elapsed = System.currentTimeMillis() - start;
+
+    StringBuilder report = new StringBuilder()
+        .append(String.format("Load run: %d threads, %.1f s, mix %s, image %s%n%n",
+            threads, elapsed / 1000.0, mixSpec, imageSize))
+        .append(LoadGenerator.report(results, elapsed))
+        .append(String.format("%nPer function, including nested invokes and warm-up:%n"));
+    for (FunctionHost function : new TreeMap<>(functions).values()) {
+      report.append(function.stats()).append(System.lineSeparator());
+    }
+    report.append(String.format("%nPer hop, from the handlers' EMF lines (count, p50, p99, max ms):%n"));
+    for (FunctionHost function : new TreeMap<>(functions).values()) {
+      report.append(function.metricsReport());
+    }
+    System.out.println();
+    System.out.print(report);
+    if (out != null) {
+      Files.writeString(out, report, StandardCharsets.UTF_8);
+    }
+    aws.close();
+    // SDK clients inside the handlers leave non-daemon threads behind
+    System.exit(0);
+  }
+
+  // --- SETUP ---
+
+  private static void configureSdk(String endpointUrl) {
+    System.setProperty("aws.region", "ap-southeast-2");
+    System.setProperty("aws.accessKeyId", "local");
+    System.setProperty("aws.secretAccessKey", "local");
+    System.setProperty("aws.endpointUrl", endpointUrl);
+    System.setProperty("aws.disableEc2Metadata", "true");
+    // Plain uploads instead of aws-chunked bodies with checksum trailers
+    System.setProperty("aws.requestChecksumCalculation", "when_required");
+    System.setProperty("aws.responseChecksumValidation", "when_required");
+    System.setProperty("cloud26.jdbc.url", JDBC_URL);
+    System.setProperty("cloud26.jdbc.password", DB_PASSWORD);
+    // H2 has no MATCH ... AGAINST, so search uses the in-memory index
+    System.setProperty("cloud26.search.mode", "memory");
+    if (System.getProperty("cloud26.upload.ratePerMinute") == null) {
+      System.setProperty("cloud26.upload.ratePerMinute", "1000000");
+      System.setProperty("cloud26.upload.burst", "1000000");
+    }
+  }
+
+  private static void createDatabase() throws Exception {
+    String schema;
+    try (InputStream in = LocalEmulator.class.getResourceAsStream("/schema.sql")) {
+      schema = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    // The first connection creates the in-memory database with this user as its owner
+    try (Connection connection = DriverManager.getConnection(JDBC_URL, DB_USER, DB_PASSWORD);
+        Statement statement = connection.createStatement()) {
+      for (String sql : schema.split(";\\s*\\n")) {
+        String stripped = sql.replaceAll("(?m)^--.*$", "").trim();
+        if (!stripped.isEmpty()) {
+          statement.execute(stripped);
+        }
+      }
+    }
+  }
+
+  /**
+   * Parent of every handler class loader: the JDK plus this JVM's H2, so the handlers'
+   * DriverManager lookups find the same driver, and the same in-memory database, as the emulator.
+   */
+  private static ClassLoader sharedLoader() {
+    ClassLoader emulator = LocalEmulator.class.getClassLoader();
+    return new ClassLoader("emulator-shared", ClassLoader.getPlatformClassLoader()) {
+      @Override
+      protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (name.startsWith("org.h2.")) {
+          return emulator.loadClass(name);
+        }
+        return super.loadClass(name, resolve);
+      }
+    };
+  }
+
+  /** Maps handler class (the shaded jar's Main-Class) to jar, skipping shade's original-*.jar. */
+  static Map<String, Path> findHandlerJars(Path dir) throws IOException {
+    Map<String, Path> jars = new TreeMap<>();
+    try (Stream<Path> files = Files.walk(dir, 3)) {
+      for (Path path : (Iterable<Path>) files::iterator) {
+        String name = path.getFileName().toString();
+        if (!name.startsWith("Lambda") || !name.endsWith(".jar")) {
+          continue;
+        }
+        try (JarFile jar = new JarFile(path.toFile())) {
+          String main = jar.getManifest() == null
+              ? null
+              : jar.getManifest().getMainAttributes().getValue("Main-Class");
+          // Tool jars (this emulator, LambdaColdStartBench) have non-handler main classes
+          if (main != null && main.substring(main.lastIndexOf('.') + 1).startsWith("Lambda")) {
+            jars.put(main, path);
+          }
+        }
+      }
+    }
+    return jars;
+  }
+
+  /**
+   * A noisy JPEG, so upload sizes and resize costs are closer to a photo than a flat image. Padded
+   * after the end-of-image marker to a multiple of 3 bytes, so its base64 has no padding and
+   * LoadGenerator can append bytes to make each upload unique.
+   */
+  private static String jpegBase64(String size) throws IOException {
+    String[] wh = size.split("x");
+    int width = Integer.parseInt(wh[0]);
+    int height = Integer.parseInt(wh[1]);
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(26);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int shade = (x * 255 / width) ^ (y * 255 / height);
+        image.setRGB(x, y, (shade << 16) | (random.nextInt(64) << 8) | (255 - shade));
+      }
+    }
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpg", jpeg);
+    while (jpeg.size() % 3 != 0) {
+      jpeg.write(0);
+    }
+    return Base64.getEncoder().encodeToString(jpeg.toByteArray());
+  }
+}
@@ -0,0 +1,132 @@
+package vgu.cloud26;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Bucket and object storage behind the fake S3 endpoint.
+ *
+ * <p>Objects live in memory by default. With a root directory, object bytes are written to
+ * {@code <root>/<bucket>/o<url-encoded key>} instead, so large load runs do not fill the heap and
+ * the results can be inspected afterwards; metadata is always kept in memory.
+ */
+public class ObjectStore {
+
+  /** One stored object. {@code bytes} is null when the data is on disk. */
+  public static final class StoredObject {
+    final String key;
+    final String contentType;
+    final long size;
+    final String etag;
+    final long lastModified;
+    final byte[] bytes;
+    // x-amz-meta-* headers, names without the prefix
+    final Map<String, String> metadata;
+
+    StoredObject(String key, String contentType, long size, String etag, byte[] bytes,
+        Map<String, String> metadata) {
+      this.key = key;
+      this.contentType = contentType;
+      this.size = size;
+      this.etag = etag;
+      this.lastModified = System.currentTimeMillis();
+      this.bytes = bytes;
+      this.metadata = metadata;
+    }
+  }
+
+  private final Path root;
+  private final Map<String, NavigableMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+
+  public ObjectStore(Path root) {
+    this.root = root;
+  }
+
+  public StoredObject put(String bucket, String key, String contentType, byte[] data) {
+    return put(bucket, key, contentType, data, Map.of());
+  }
+
+  public StoredObject put(String bucket, String key, String contentType, byte[] data,
+      Map<String, String> metadata) {
+    String etag = Integer.toHexString(Arrays.hashCode(data));
+    byte[] kept = data;
+    if (root != null) {
+      try {
+        Path file = file(bucket, key);
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      kept = null;
+    }
+    StoredObject object =
+        new StoredObject(key, contentType, data.length, etag, kept, Map.copyOf(metadata));
+    bucket(bucket).put(key, object);
+    return object;
+  }
+
+  public StoredObject head(String bucket, String key) {
+    return bucket(bucket).get(key);
+  }
+
+  public byte[] read(String bucket, StoredObject object) {
+    if (object.bytes != null) {
+      return object.bytes;
+    }
+    try {
+      return Files.readAllBytes(file(bucket, object.key));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** Deleting a missing key is not an error, same as S3. */
+  public void delete(String bucket, String key) {
+    StoredObject removed = bucket(bucket).remove(key);
+    if (removed != null && root != null) {
+      try {
+        Files.deleteIfExists(file(bucket, key));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /** Keys in lexicographic order, like ListObjects. */
+  public List<StoredObject> list(String bucket, String prefix, int maxKeys) {
+    List<StoredObject> result = new ArrayList<>();
+    for (StoredObject object : bucket(bucket).tailMap(prefix, true).values()) {
+      if (!object.key.startsWith(prefix) || result.size() >= maxKeys) {
+        break;
+      }
+      result.add(object);
+    }
+    return result;
+  }
+
+  public int size(String bucket) {
+    return bucket(bucket).size();
+  }
+
+  private NavigableMap<String, StoredObject> bucket(String bucket) {
+    // Buckets spring into existence on first use; the handlers never create them
+    return buckets.computeIfAbsent(bucket, b -> new ConcurrentSkipListMap<>());
+  }
+
+  private Path file(String bucket, String key) {
+    // Prefixed so keys like ".." stay inside the bucket directory
+    return root.resolve(bucket).resolve("o" + URLEncoder.encode(key, StandardCharsets.UTF_8));
+  }
+}
@@ -0,0 +1,51 @@
+-- Local stand-in for the Cloud26 schema on RDS, loaded into the embedded database on start.
+-- Statements are separated by semicolons at the end of a line.
+CREATE TABLE IF NOT EXISTS Photos (
+  ID BIGINT AUTO_INCREMENT PRIMARY KEY,
+  S3Key VARCHAR(1024) NOT NULL,
+  Description VARCHAR(1024),
+  Email VARCHAR(255),
+  ContentHash CHAR(64),
+  -- Read from the image headers at upload, see ImageInfo in LambdaCommon
+  Width INT,
+  Height INT,
+  Format VARCHAR(16),
+  ByteSize BIGINT,
+  Orientation SMALLINT,
+  TakenAt TIMESTAMP,
+  -- Set by a delete; LambdaCollectDeleted removes the row and its objects later
+  DeletedAt TIMESTAMP
+);
+
+-- Gallery pages are read in (key, ID) order: keys are not unique
+CREATE INDEX IF NOT EXISTS PhotosByKey ON Photos (S3Key, ID);
+-- The collector finds rows marked deleted without scanning the table
+CREATE INDEX IF NOT EXISTS PhotosDeleted ON Photos (DeletedAt);
+
+-- References to each stored content hash, see ContentHash in LambdaCommon
+CREATE TABLE IF NOT EXISTS Blobs (
+  ContentHash CHAR(64) NOT NULL PRIMARY KEY,
+  RefCount INT NOT NULL
+);
+
+-- Objects LambdaCollectDeleted is to delete, see PendingDeletes in LambdaCommon
+CREATE TABLE IF NOT EXISTS PendingDeletes (
+  Name VARCHAR(1024) NOT NULL,
+  ClaimedBy VARCHAR(64),
+  ClaimedAt BIGINT
+);
+CREATE INDEX IF NOT EXISTS PendingByName ON PendingDeletes (Name);
+
+-- Upload token buckets, see RateLimiter in LambdaCommon
+CREATE TABLE IF NOT EXISTS RateLimits (
+  Email VARCHAR(255) NOT NULL PRIMARY KEY,
+  Tokens DOUBLE NOT NULL,
+  UpdatedAt BIGINT NOT NULL
+);
+
+-- Bumped by every write to a table, see TableVersion in LambdaCommon
+CREATE TABLE IF NOT EXISTS TableVersions (
+  Name VARCHAR(64) NOT NULL PRIMARY KEY,
+  Version BIGINT NOT NULL
+);
+MERGE INTO TableVersions (Name, Version) KEY (Name) VALUES ('Photos', 0);
@@ -2,40 +2,77 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.Map;
+import org.crac.Core;
+import org.crac.Resource;
 import org.json.JSONObject;
-import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
-import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+import vgu.cloud26.InvokeClient.Policy;
 
-public class LambdaOrchestrateDeleteHandler
-        implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaOrchestrateDeleteHandler
+        implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-    private final LambdaClient lambdaClient;
+    private InvokeClient invoker;
+    private S3Client s3Client;
+    private IdempotencyKeys idempotency;
     // 1. CONSTANT FOR VERIFIER
     private static final String VERIFIER_FUNCTION_NAME = "LambdaTokenVerifier";
 
     public LambdaOrchestrateDeleteHandler() {
-        this.lambdaClient = LambdaClient.builder().region(Region.AP_SOUTHEAST_2).build();
+        this.invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+        this.s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+        this.idempotency = new IdempotencyKeys(s3Client);
+        Core.getGlobalContext().register(this);
+    }
+
+    // --- SNAPSTART HOOKS ---
+
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        // Load and initialize the request path into the snapshot, then drop pooled
+        // connections: sockets captured in a snapshot are dead after restore
+        prime(LambdaRuntime.getLogger()).finish();
+        invoker.close();
+        s3Client.close();
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        // New clients resolve credentials from the restored environment and reconnect
+        invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+        s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+        idempotency = new IdempotencyKeys(s3Client);
+        prime(LambdaRuntime.getLogger()).finish();
     }
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Metrics metrics = Metrics.begin(context, event);
+        APIGatewayProxyResponseEvent response = null;
+        try {
+            response = handle(event, context, metrics);
+            return response;
+        } finally {
+            metrics.flush(response);
+        }
+    }
+
+    private APIGatewayProxyResponseEvent handle(
+        APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
+
+        Log logger = Log.begin(context);
 
-        // Warmer
-        if (event.getBody() != null && event.getBody().contains("warmer")) {
-            return createResponse(200, "Warmed");
+        if (Warmup.isWarmupEvent(event)) {
+            return prime(logger).toResponse();
         }
 
-        LambdaLogger logger = context.getLogger();
-        logger.log("Starting Delete Orchestration...");
+        logger.info("Starting Delete Orchestration...");
+        Trace trace = metrics.trace();
 
         try {
             // 2. PARSE & VALIDATE INPUT
@@ -50,7 +87,8 @@ public class LambdaOrchestrateDeleteHandler
             JSONObject verifierPayload = new JSONObject();
             verifierPayload.put("body", userRequestBody); // Pass email/token/key to verifier
 
-            String verificationResult = callLambda("LambdaTokenVerifier", verifierPayload.toString(), logger);
+            String verificationResult = metrics.time("VerifierLatency", () -> invoker.call(
+                    "LambdaTokenVerifier", verifierPayload.toString(), Policy.READ, trace, logger));
 
             // Check Verifier Result
             JSONObject verifyJson = new JSONObject(verificationResult);
@@ -61,60 +99,56 @@ public class LambdaOrchestrateDeleteHandler
                 return createResponse(401, "{\"error\": \"Unauthorized: Invalid Token\"}");
             }
 
-            // 4. EXECUTE DELETE ACTIVITIES
-            // We pass the same payload (which contains "key") to the workers
-            JSONObject workerPayloadJson = new JSONObject();
-            workerPayloadJson.put("body", userRequestBody);
-            String downstreamPayload = workerPayloadJson.toString();
-
-            JSONObject results = new JSONObject();
-
-            // Activity 1: Delete from DB
-            logger.log("Activity 1: Deleting from DB");
-            String dbResult = callLambda("LambdaDeletePhotoDB", downstreamPayload, logger);
-            results.put("Activity_1_DB_Delete", dbResult);
-
-            // Activity 2: Delete Original from S3
-            logger.log("Activity 2: Deleting Original S3");
-            String originalResult = callLambda("LambdaDeleteObject", downstreamPayload, logger);
-            results.put("Activity_2_Original_Delete", originalResult);
-
-            // Activity 3: Delete Resized from S3
-            logger.log("Activity 3: Deleting Resized S3");
-            String resizedResult = callLambda("LambdaDeleteResizedObject", downstreamPayload, logger);
-            results.put("Activity_3_Resized_Delete", resizedResult);
-
-            return createResponse(200, results.toString());
+            // 4. ONCE PER IDEMPOTENCY KEY: a retry gets the first attempt's answer, or waits for it
+            String idempotencyKey =
+                    IdempotencyKeys.keyOf(event, userJson.optString(IdempotencyKeys.FIELD, null));
+            return idempotency.once(idempotencyKey, "delete", userJson.getString("email"),
+                    userRequestBody, context, logger, metrics,
+                    () -> delete(userRequestBody, trace, logger, metrics));
 
         } catch (Exception e) {
-            logger.log("Orchestrator Error: " + e.getMessage());
+            logger.error("Orchestrator Error: {}", e.getMessage());
             return createResponse(500, "{\"error\": \"Orchestrator Failed: " + e.getMessage() + "\"}");
         }
     }
 
+    // The delete activity: mark the row, then the results and a timeline of every hop
+    private APIGatewayProxyResponseEvent delete(String userRequestBody, Trace trace, Log logger,
+            Metrics metrics) {
+        // We pass the same payload (which contains "key") to the worker
+        JSONObject workerPayloadJson = new JSONObject();
+        workerPayloadJson.put("body", userRequestBody);
+        String downstreamPayload = workerPayloadJson.toString();
+
+        JSONObject results = new JSONObject();
+
+        // Activity 1: Mark the row deleted. It is gone from every listing once this returns;
+        // the original, the thumbnail and content nothing else uses are removed later, in
+        // batches, by LambdaCollectDeleted
+        logger.info("Activity 1: Marking deleted in DB");
+        String dbResult = metrics.time("DbDeleteLatency",
+                () -> invoker.call("LambdaDeletePhotoDB", downstreamPayload, Policy.WRITE,
+                        trace, logger));
+        results.put("Activity_1_DB_Delete", dbResult);
+
+        // TIMELINE of every hop, for the logs and for the caller
+        JSONObject timeline = trace.timeline();
+        logger.info("Timeline: {}", timeline);
+        results.put("debug", new JSONObject().put("timeline", timeline));
+
+        return createResponse(200, results.toString());
+    }
+
     // --- HELPERS ---
 
-    public String callLambda(String functionName, String payload, LambdaLogger logger) {
-        try {
-            InvokeRequest invokeRequest = InvokeRequest.builder()
-                    .functionName(functionName)
-                    .payload(SdkBytes.fromUtf8String(payload))
-                    .invocationType("RequestResponse")
-                    .build();
-
-            InvokeResponse invokeResult = lambdaClient.invoke(invokeRequest);
-            ByteBuffer responsePayload = invokeResult.payload().asByteBuffer();
-            String jsonResponse = StandardCharsets.UTF_8.decode(responsePayload).toString();
-
-            JSONObject responseObject = new JSONObject(jsonResponse);
-            if (responseObject.has("body")) {
-                return responseObject.getString("body");
-            }
-            return jsonResponse;
-        } catch (Exception e) {
-            logger.log("Error invoking " + functionName + ": " + e.getMessage());
-            return "{\"error\": \"Invocation Failed: " + e.getMessage() + "\"}";
-        }
+    // DryRun exercises the client and IAM path without actually running the verifier
+    private Warmup prime(LambdaLogger logger) {
+        return new Warmup(logger)
+                .step("lambdaInvoke", () -> invoker.client().invoke(InvokeRequest.builder()
+                        .functionName(VERIFIER_FUNCTION_NAME)
+                        .invocationType("DryRun")
+                        .build()))
+                .step("json", () -> new JSONObject("{\"email\": \"warmup\", \"token\": \"warmup\"}").toString());
     }
 
     private APIGatewayProxyResponseEvent createResponse(int statusCode, String body) {
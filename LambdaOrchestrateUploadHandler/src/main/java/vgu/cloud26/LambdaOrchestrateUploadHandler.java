@@ -2,117 +2,670 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.crac.Core;
+import org.crac.Resource;
+import org.json.JSONArray;
 import org.json.JSONObject;
-import software.amazon.awssdk.core.SdkBytes;
 import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
-import software.amazon.awssdk.services.lambda.model.InvokeResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+import vgu.cloud26.InvokeClient.Policy;
 
-public class LambdaOrchestrateUploadHandler
-    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaOrchestrateUploadHandler
+    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
-  private final LambdaClient lambdaClient;
+  private InvokeClient invoker;
+  private S3Client s3Client;
+  private UploadJobs jobs;
+  private IdempotencyKeys idempotency;
   // CHANGE THIS to your actual Verifier Function Name (not the URL)
   private static final String VERIFIER_FUNCTION_NAME = "LambdaTokenVerifier";
+  // Lambda does not say when reserved concurrency frees up; invokes are short, so soon
+  private static final long THROTTLED_RETRY_AFTER_SECONDS = 1;
+  // {"job": id, "principal": ...} is a queued job to run; {"email", "token", "jobId": id} asks
+  // for its status
+  private static final String JOB_FIELD = "job";
+  private static final String JOB_ID_FIELD = "jobId";
+  // A job event's principal is signed for this plus the job id, by the request that queued it,
+  // for UploadJobs.EVENT_TTL_SECONDS
+  private static final String JOB_SUBJECT = "job:";
+  private static final String WARMUP_JOB_ID = "00000000-0000-0000-0000-000000000000";
+  // {"email", "token", "files": [{"key", "content", "description"}]} uploads an album at once.
+  // The whole request still has to fit Lambda's 6 MB payload limit
+  private static final String FILES_FIELD = "files";
+  private static final int MAX_BATCH_FILES = 50;
+  // Worker calls of a batch in flight at once: enough to overlap one file's resize with the next
+  // file's upload, few enough not to drain the workers' reserved concurrency
+  private static final int BATCH_PARALLELISM = 4;
+  private static final ExecutorService BATCH_CALLS =
+      Executors.newFixedThreadPool(BATCH_PARALLELISM, task -> {
+        Thread thread = new Thread(task, "batch-call");
+        thread.setDaemon(true);
+        return thread;
+      });
+  // Result name, worker, latency metric: once per upload, and per file of a batch
+  private static final String[] DB_ACTIVITY =
+      {"Activity_1_Database", "LambdaAddPhotoDB", "DbInsertLatency"};
+  private static final String[][] FILE_ACTIVITIES = {
+      {"Activity_2_Original_S3", "LambdaUploadObject", "OriginalUploadLatency"},
+      {"Activity_3_Resize_S3", "LambdaResizer", "ResizeUploadLatency"},
+  };
+
+  /**
+   * What an earlier run of a job did, and each worker's result as it comes in; {@code file} is
+   * null for single uploads.
+   */
+  private interface Progress {
+    /** The body of an earlier successful call of {@code activity}, or null to make the call. */
+    String succeeded(String file, String activity);
+
+    void record(String file, String activity, int statusCode, String result);
+  }
+
+  // Sync uploads: nothing done before, nothing to record
+  private static final Progress NO_PROGRESS = new Progress() {
+    @Override
+    public String succeeded(String file, String activity) {
+      return null;
+    }
+
+    @Override
+    public void record(String file, String activity, int statusCode, String result) {
+    }
+  };
 
   public LambdaOrchestrateUploadHandler() {
-    this.lambdaClient = LambdaClient.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+    this.s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.jobs = new UploadJobs(s3Client);
+    this.idempotency = new IdempotencyKeys(s3Client);
+    Core.getGlobalContext().register(this);
   }
 
+  // --- SNAPSTART HOOKS ---
+
   @Override
-  public APIGatewayProxyResponseEvent handleRequest(
-      APIGatewayProxyRequestEvent event, Context context) {
+  public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+    // Load and initialize the request path into the snapshot, then drop pooled
+    // connections: sockets captured in a snapshot are dead after restore
+    prime(LambdaRuntime.getLogger()).finish();
+    InternalPrincipal.forget();
+    invoker.close();
+    s3Client.close();
+  }
 
-    if (event.getBody() != null && event.getBody().contains("warmer")) {
-      context.getLogger().log("Warming event received. Exiting.");
-      return createResponse(200, "Warmed");
+  @Override
+  public void afterRestore(org.crac.Context<? extends Resource> context) {
+    // New clients resolve credentials from the restored environment and reconnect
+    invoker = new InvokeClient(Region.AP_SOUTHEAST_2);
+    s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    jobs = new UploadJobs(s3Client);
+    idempotency = new IdempotencyKeys(s3Client);
+    prime(LambdaRuntime.getLogger()).finish();
+  }
+
+  @Override
+  public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    Metrics metrics = Metrics.begin(context, event);
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = handle(event, context, metrics);
+      return response;
+    } finally {
+      metrics.flush(response);
     }
+  }
 
-    LambdaLogger logger = context.getLogger();
-    logger.log("DEBUG INCOMING BODY: " + event.getBody());
+  private APIGatewayProxyResponseEvent handle(
+      APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
+
+    Log logger = Log.begin(context);
+
+    if (Warmup.isWarmupEvent(event)) {
+      return prime(logger).toResponse();
+    }
+
+    Trace trace = metrics.trace();
+    String userRequestBody = event.getBody();
+
+    JsonEnvelope.Envelope userJson;
+    try {
+      // Indexes the fields without copying the multi-MB base64 content
+      userJson = JsonEnvelope.parse(userRequestBody);
+    } catch (IllegalArgumentException e) {
+      return createResponse(400, new JSONObject().put("error", e.getMessage()).toString());
+    }
+
+    // A job queued by an earlier async request, delivered by Lambda's async invoke queue.
+    // Outside the try below: a failed job has to throw for Lambda to deliver it again
+    if (userJson.has(JOB_FIELD)) {
+      return runJob(userJson.getString(JOB_FIELD),
+          userJson.optString(InternalPrincipal.FIELD, null), context, trace, logger, metrics);
+    }
 
     try {
-      String userRequestBody = event.getBody();
-      JSONObject userJson = new JSONObject(userRequestBody);
+      // Masks the token and cuts the base64 content short; nothing is built above DEBUG
+      logger.debug("Incoming body: {}", userRequestBody);
 
       if (!userJson.has("email") || !userJson.has("token")) {
         return createResponse(400, "{\"error\": \"Missing email or token in request\"}");
       }
+      if (ContentHash.isContentKey(userJson.optString("key", ""))) {
+        return createResponse(400, "{\"error\": \"Keys starting with sha256/ are reserved\"}");
+      }
+      if (userJson.has(FILES_FIELD)) {
+        String invalid = invalidBatch(userJson);
+        if (invalid != null) {
+          return createResponse(400, new JSONObject().put("error", invalid).toString());
+        }
+      }
 
-      // 1. VERIFY TOKEN (Using callLambda instead of HTTP)
+      // 1. VERIFY TOKEN (Lambda invoke instead of HTTP)
       // We wrap the body in another JSON object because the Verifier expects an event
-      // with a "body" field
+      // with a "body" field. It only needs the credentials, not the image.
+      JSONObject credentials = new JSONObject();
+      credentials.put("email", userJson.getString("email"));
+      credentials.put("token", userJson.getString("token"));
       JSONObject verifierPayload = new JSONObject();
-      verifierPayload.put("body", userRequestBody);
+      verifierPayload.put("body", credentials.toString());
 
-      String verificationResult = callLambda(VERIFIER_FUNCTION_NAME, verifierPayload.toString(), logger);
+      String verificationResult = metrics.time("VerifierLatency",
+          () -> invoker.call(VERIFIER_FUNCTION_NAME, verifierPayload.toString(), Policy.READ, trace, logger));
 
       // Parse the verification result (It returns JSON like {"valid": true})
       JSONObject verifyJson = new JSONObject(verificationResult);
+      if (verifyJson.optBoolean("throttled")) {
+        return tooManyRequests(THROTTLED_RETRY_AFTER_SECONDS, verificationResult, metrics);
+      }
       if (!verifyJson.has("valid") || !verifyJson.getBoolean("valid")) {
         return createResponse(401, "{\"error\": \"Invalid Token\"}");
       }
 
-      // 2. PREPARE PAYLOAD FOR WORKERS
-      JSONObject workerPayloadJson = new JSONObject();
-      workerPayloadJson.put("body", userRequestBody);
-      String downstreamPayload = workerPayloadJson.toString();
+      // 2. ASYNC MODE: status of an earlier upload; polling changes nothing, so it is not keyed
+      if (userJson.has(JOB_ID_FIELD) && !userJson.has("content")) {
+        return jobStatus(userJson.getString(JOB_ID_FIELD), userJson.getString("email"), metrics);
+      }
 
-      // 3. EXECUTE ACTIVITIES
-      JSONObject results = new JSONObject();
+      // 3. ONCE PER IDEMPOTENCY KEY: a retry gets the first attempt's answer, or waits for it,
+      // instead of adding another row, object and resize. Then queue the upload and answer
+      // right away, or run every activity before answering
+      String idempotencyKey =
+          IdempotencyKeys.keyOf(event, userJson.optString(IdempotencyKeys.FIELD, null));
+      return idempotency.once(idempotencyKey, "upload", userJson.getString("email"),
+          userRequestBody, context, logger, metrics, () -> {
+            if ("true".equals(userJson.optString("async", "false"))) {
+              return enqueue(context.getFunctionName(), userRequestBody, userJson, trace, logger,
+                  metrics);
+            }
+            return runSync(userRequestBody, userJson, trace, logger, metrics);
+          });
 
-      logger.log("Activity 1: DB Insert");
-      String dbResult = callLambda("LambdaAddPhotoDB", downstreamPayload, logger);
-      results.put("Activity_1_Database", dbResult);
+    } catch (Exception e) {
+      logger.error("Orchestrator Error: {}", e.getMessage());
+      return createResponse(500, "{\"error\": \"Orchestrator Failed: " + e.getMessage() + "\"}");
+    }
+  }
 
-      logger.log("Activity 2: Original Upload");
-      String originalResult = callLambda("LambdaUploadObject", downstreamPayload, logger);
-      results.put("Activity_2_Original_S3", originalResult);
+  // SYNC MODE: every activity, then the results and a timeline of every hop
+  private APIGatewayProxyResponseEvent runSync(String userRequestBody,
+      JsonEnvelope.Envelope userJson, Trace trace, Log logger, Metrics metrics) {
+    JSONObject results = run(userRequestBody, userJson, trace, logger, metrics, NO_PROGRESS);
+    if (results.has("retryAfter")) {
+      return tooManyRequests(results.getLong("retryAfter"),
+          results.getString("Activity_1_Database"), metrics);
+    }
 
-      logger.log("Activity 3: Resize Upload");
-      String resizeResult = callLambda("LambdaResizer", downstreamPayload, logger);
-      results.put("Activity_3_Resize_S3", resizeResult);
+    // For the logs and for the caller
+    JSONObject timeline = trace.timeline();
+    logger.info("Timeline: {}", timeline);
+    results.put("debug", new JSONObject().put("timeline", timeline));
 
-      return createResponse(200, results.toString());
+    return createResponse(200, results.toString());
+  }
 
-    } catch (Exception e) {
-      logger.log("Orchestrator Error: " + e.getMessage());
-      return createResponse(500, "{\"error\": \"Orchestrator Failed: " + e.getMessage() + "\"}");
+  private JSONObject run(String userRequestBody, JsonEnvelope.Envelope userJson,
+      Trace trace, Log logger, Metrics metrics, Progress progress) {
+    if (userJson.has(FILES_FIELD)) {
+      return runBatch(userJson, userJson.getObjects(FILES_FIELD), trace, logger, metrics, progress);
     }
+    return runActivities(userRequestBody, userJson, trace, logger, metrics, progress);
   }
 
-  // --- HELPERS ---
+  /**
+   * DB insert, original upload and resize, in that order, skipping any that {@code progress} says
+   * succeeded before. {@code progress} hears each result as it comes in. If the DB worker turns
+   * the upload away (rate limit, or its bulkhead is full), the other two do not run and the
+   * results carry {@code retryAfter}.
+   */
+  private JSONObject runActivities(String userRequestBody, JsonEnvelope.Envelope userJson,
+      Trace trace, Log logger, Metrics metrics, Progress progress) {
+    // The DB worker gets the metadata only; the S3 workers need the content, so the
+    // original body is escaped once, straight into the invoke payload bytes
+    JSONObject metadata = new JSONObject();
+    metadata.put("email", userJson.getString("email"));
+    metadata.put("token", userJson.getString("token"));
+    // The token is verified by now; the DB worker takes our word for the email
+    String principal =
+        InternalPrincipal.sign(userJson.getString("email"), trace.traceId(), logger);
+    metadata.put(InternalPrincipal.FIELD, principal);
+    metadata.put("key", userJson.optString("key", null));
+    metadata.put("description", userJson.optString("description", null));
+    // Decoded and hashed in one pass without keeping the bytes, so the DB worker can count
+    // references to them, and the image headers read on the way. The S3 workers hash what they
+    // decode themselves
+    if (userJson.has("content")) {
+      metrics.time("HashLatency", () -> describe(userJson, metadata, principal));
+    }
+    JSONObject dbPayloadJson = new JSONObject();
+    dbPayloadJson.put("body", metadata.toString());
+    byte[] dbPayload = dbPayloadJson.toString().getBytes(StandardCharsets.UTF_8);
+    byte[] downstreamPayload = JsonEnvelope.eventWithBody(userRequestBody);
+    metrics.put("PayloadBytes", downstreamPayload.length, Metrics.Unit.BYTES);
+
+    JSONObject results = new JSONObject();
+
+    logger.info("Activity 1: DB Insert");
+    String dbResult = activity(null, DB_ACTIVITY, dbPayload, trace, logger, metrics, progress);
+    results.put("Activity_1_Database", dbResult);
+    // Rate limited, or the DB bulkhead (the worker's reserved concurrency) is full. Nothing
+    // has been written yet, so the client can simply come back later
+    long retryAfter = retryAfter(dbResult);
+    if (retryAfter > 0) {
+      logger.warn("Upload rejected, retry in {} s: {}", retryAfter, dbResult);
+      return results.put("retryAfter", retryAfter);
+    }
+
+    logger.info("Activity 2: Original Upload");
+    String originalResult = activity(null, FILE_ACTIVITIES[0], downstreamPayload, trace, logger,
+        metrics, progress);
+    results.put("Activity_2_Original_S3", originalResult);
+
+    logger.info("Activity 3: Resize Upload");
+    String resizeResult = activity(null, FILE_ACTIVITIES[1], downstreamPayload, trace, logger,
+        metrics, progress);
+    // A full resize bulkhead shows up here as {"throttled": true} after a few quick retries.
+    // The metadata and original are stored by now, so it is reported rather than turned
+    // into a 429 that would have the client upload everything again
+    results.put("Activity_3_Resize_S3", resizeResult);
+    return results;
+  }
+
+  /**
+   * A batch upload: every Photos row in one DB call, which also admits the batch, then each
+   * file's original upload and resize, {@link #BATCH_PARALLELISM} worker calls at a time. Results
+   * are keyed by file under {@code files}, and {@code progress} hears each one as it comes in.
+   */
+  private JSONObject runBatch(JsonEnvelope.Envelope userJson, List<JsonEnvelope.Envelope> files,
+      Trace trace, Log logger, Metrics metrics, Progress progress) {
+    String principal =
+        InternalPrincipal.sign(userJson.getString("email"), trace.traceId(), logger);
+    JSONArray photos = new JSONArray();
+    long hashStart = System.nanoTime();
+    for (JsonEnvelope.Envelope file : files) {
+      photos.put(describe(file, new JSONObject()
+          .put("key", file.getString("key"))
+          .put("description", file.optString("description", null)), principal));
+    }
+    metrics.putMillisSince("HashLatency", hashStart);
+    metrics.put("BatchFiles", files.size(), Metrics.Unit.COUNT);
+    JSONObject rows = new JSONObject()
+        .put("email", userJson.getString("email"))
+        .put("token", userJson.getString("token"))
+        .put(InternalPrincipal.FIELD, principal)
+        .put("photos", photos);
+    byte[] dbPayload = new JSONObject().put("body", rows.toString()).toString()
+        .getBytes(StandardCharsets.UTF_8);
+
+    JSONObject results = new JSONObject();
+
+    logger.info("Activity 1: DB Insert of {} photos", files.size());
+    String dbResult = activity(null, DB_ACTIVITY, dbPayload, trace, logger, metrics, progress);
+    results.put("Activity_1_Database", dbResult);
+    long retryAfter = retryAfter(dbResult);
+    if (retryAfter > 0) {
+      logger.warn("Batch rejected, retry in {} s: {}", retryAfter, dbResult);
+      return results.put("retryAfter", retryAfter);
+    }
 
-  public String callLambda(String functionName, String payload, LambdaLogger logger) {
+    // Both calls of every file in one queue, so uploads and resizes of different files overlap.
+    // Each worker gets its file's object as sent, which has the key and content it reads
+    JSONObject fileResults = new JSONObject();
+    results.put(FILES_FIELD, fileResults);
+    List<Future<?>> calls = new ArrayList<>();
+    for (JsonEnvelope.Envelope file : files) {
+      String key = file.getString("key");
+      byte[] payload = JsonEnvelope.eventWithBody(file.raw());
+      metrics.put("PayloadBytes", payload.length, Metrics.Unit.BYTES);
+      for (String[] activity : FILE_ACTIVITIES) {
+        calls.add(BATCH_CALLS.submit(() -> {
+          String result = activity(key, activity, payload, trace, logger, metrics, progress);
+          synchronized (fileResults) {
+            if (!fileResults.has(key)) {
+              fileResults.put(key, new JSONObject());
+            }
+            fileResults.getJSONObject(key).put(activity[0], result);
+          }
+        }));
+      }
+    }
     try {
-      InvokeRequest invokeRequest = InvokeRequest.builder()
-          .functionName(functionName)
-          .payload(SdkBytes.fromUtf8String(payload))
-          .invocationType("RequestResponse") // Synchronous
-          .build();
-
-      InvokeResponse invokeResult = lambdaClient.invoke(invokeRequest);
-      ByteBuffer responsePayload = invokeResult.payload().asByteBuffer();
-      String jsonResponse = StandardCharsets.UTF_8.decode(responsePayload).toString();
-
-      // Parse the worker's JSON response (APIGatewayProxyResponseEvent structure)
-      // We want to return the inner "body" string
-      JSONObject responseObject = new JSONObject(jsonResponse);
-      if (responseObject.has("body")) {
-        return responseObject.getString("body");
-      }
-      return jsonResponse;
-    } catch (Exception e) {
-      logger.log("Error invoking " + functionName + ": " + e.getMessage());
-      // Return a valid JSON error structure so parsing doesn't fail
-      return "{\"error\": \"Invocation Failed: " + e.getMessage() + "\"}";
+      for (Future<?> call : calls) {
+        call.get();
+      }
+    } catch (InterruptedException e) {
+      calls.forEach(call -> call.cancel(true));
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for batch workers", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    return results;
+  }
+
+  /** Why a batch cannot run, or null if it can. */
+  private static String invalidBatch(JsonEnvelope.Envelope userJson) {
+    List<JsonEnvelope.Envelope> files;
+    try {
+      files = userJson.getObjects(FILES_FIELD);
+    } catch (IllegalArgumentException e) {
+      return e.getMessage();
     }
+    if (files.isEmpty() || files.size() > MAX_BATCH_FILES) {
+      return "A batch takes 1 to " + MAX_BATCH_FILES + " files, got " + files.size();
+    }
+    for (JsonEnvelope.Envelope file : files) {
+      if (!file.has("key") || !file.has("content")) {
+        return "Every file needs a key and content";
+      }
+      if (ContentHash.isContentKey(file.getString("key"))) {
+        return "Keys starting with sha256/ are reserved";
+      }
+    }
+    return null;
+  }
+
+  // Adds the content's hash and what its headers say (size, format, EXIF) to a Photos row. The
+  // DB worker takes a hash only with a principal; without one it gets the bytes and hashes them
+  private static JSONObject describe(JsonEnvelope.Envelope file, JSONObject row,
+      String principal) {
+    MessageDigest digest = ContentHash.newDigest();
+    ImageInfo.ofBase64(file, "content", digest).putInto(row);
+    return principal != null
+        ? row.put("contentHash", ContentHash.hex(digest))
+        : row.put("content", file.getString("content"));
+  }
+
+  /**
+   * One worker call of an upload, unless {@code progress} has it succeeding before: a job run
+   * again after a failure must not add another row, or count the content twice.
+   */
+  private String activity(String file, String[] activity, byte[] payload, Trace trace, Log logger,
+      Metrics metrics, Progress progress) {
+    String earlier = progress.succeeded(file, activity[0]);
+    if (earlier != null) {
+      logger.info("{} of {} already done", activity[0], file == null ? "the upload" : file);
+      return earlier;
+    }
+    WorkerAnswer answer =
+        metrics.time(activity[2], () -> callWorker(activity[1], payload, trace, logger));
+    progress.record(file, activity[0], answer.statusCode, answer.body);
+    return answer.body;
+  }
+
+  private static final class WorkerAnswer {
+    final int statusCode;
+    final String body;
+
+    WorkerAnswer(int statusCode, String body) {
+      this.statusCode = statusCode;
+      this.body = body;
+    }
+  }
+
+  // The worker's status code and body; 429 or 502 with InvokeClient.call's error body when it
+  // could not be invoked
+  private WorkerAnswer callWorker(String functionName, byte[] payload, Trace trace, Log logger) {
+    try {
+      JSONObject response = invoker.invoke(functionName, payload, Policy.WRITE, trace, logger);
+      return new WorkerAnswer(response.optInt("statusCode", 200),
+          response.has("body") ? response.getString("body") : response.toString());
+    } catch (InvokeClient.InvokeException e) {
+      logger.error("Error invoking {}: {}", functionName, e.getMessage());
+      JSONObject error = new JSONObject().put("error", "Invocation Failed: " + e.getMessage());
+      if (e.isThrottled()) {
+        error.put("throttled", true);
+      }
+      return new WorkerAnswer(e.isThrottled() ? 429 : 502, error.toString());
+    }
+  }
+
+  // --- ASYNC JOBS ---
+
+  // Stage the upload, queue a job that names it, answer 202. The job event is tiny: Lambda's
+  // async queue takes at most 1 MB, far less than a photo. It is signed, so that only events
+  // queued here run jobs; without the internal key there is no async mode
+  private APIGatewayProxyResponseEvent enqueue(String functionName, String userRequestBody,
+      JsonEnvelope.Envelope userJson, Trace trace, Log logger, Metrics metrics) throws Exception {
+    String jobId = UUID.randomUUID().toString();
+    String principal = InternalPrincipal.sign(
+        JOB_SUBJECT + jobId, trace.traceId(), UploadJobs.EVENT_TTL_SECONDS, logger);
+    if (principal == null) {
+      return createResponse(503, "{\"error\": \"Async uploads are unavailable, upload without"
+          + " async\"}");
+    }
+    JSONObject job = metrics.time("JobStageLatency", () -> jobs.create(jobId,
+        userJson.getString("email"), userJson.optString("key", null), userRequestBody));
+    byte[] jobEvent = JsonEnvelope.eventWithBody(new JSONObject()
+        .put(JOB_FIELD, jobId)
+        .put(InternalPrincipal.FIELD, principal)
+        .toString());
+    metrics.time("EnqueueLatency", () -> {
+      invoker.enqueue(functionName, jobEvent, trace, logger);
+      return null;
+    });
+    logger.info("Queued upload job {} for {}", jobId, job.optString("key"));
+    return createResponse(202, new JSONObject()
+        .put(JOB_ID_FIELD, jobId)
+        .put("state", job.getString("state"))
+        .toString());
+  }
+
+  // Lambda delivers async events at least once. A delivery runs the job only if it claims it
+  // (see UploadJobs.claim); a run that fails goes back to "queued" and throws, which makes Lambda
+  // deliver the event again, and the next run skips the activities that succeeded. The last
+  // attempt fails the job instead, and still throws for an on-failure destination to see
+  private APIGatewayProxyResponseEvent runJob(String jobId, String principal, Context context,
+      Trace trace, Log logger, Metrics metrics) {
+    try {
+      if (!UUID.fromString(jobId).toString().equals(jobId)) {
+        throw new IllegalArgumentException(jobId);
+      }
+    } catch (IllegalArgumentException e) {
+      return createResponse(400, "{\"error\": \"Invalid job id\"}");
+    }
+    if (!InternalPrincipal.verify(principal, JOB_SUBJECT + jobId, logger)) {
+      logger.warn("Refusing job {}: not queued by this orchestrator", jobId);
+      return createResponse(401, "{\"error\": \"Unsigned job\"}");
+    }
+    JSONObject job = jobs.claim(jobId,
+        System.currentTimeMillis() + context.getRemainingTimeInMillis());
+    if (job == null) {
+      logger.warn("Skipping job {}: missing, finished or running elsewhere", jobId);
+      return createResponse(200, "{\"skipped\": true}");
+    }
+    JSONObject activities = job.getJSONObject("activities");
+    Progress progress = new JobProgress(job, activities);
+    try {
+      String userRequestBody = metrics.time("JobLoadLatency", () -> jobs.request(jobId));
+      JSONObject results = run(userRequestBody, JsonEnvelope.parse(userRequestBody),
+          trace, logger, metrics, progress);
+
+      String state = UploadJobs.DONE;
+      if (results.has("retryAfter")) {
+        job.put("retryAfter", results.getLong("retryAfter"));
+        state = UploadJobs.REJECTED;
+      } else if (!succeeded(activities)) {
+        state = UploadJobs.FAILED;
+      }
+      jobs.finish(job.put("timeline", trace.timeline()), state);
+      logger.info("Job {} {}", jobId, state);
+      return createResponse(200, job.toString());
+    } catch (RuntimeException e) {
+      synchronized (job) {
+        job.remove("leaseUntil");
+        job.put("lastError", String.valueOf(e));
+        if (UploadJobs.lastAttempt(job)) {
+          logger.error("Job {} failed after {} attempts", jobId, job.getInt("attempts"));
+          jobs.finish(job.put("timeline", trace.timeline()), UploadJobs.FAILED);
+        } else {
+          jobs.save(job.put("state", UploadJobs.QUEUED));
+        }
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * A job's activities in its status. Batch files finish on several threads; each result is saved
+   * as it lands, so a poller sees the album fill in file by file.
+   */
+  private final class JobProgress implements Progress {
+    private final JSONObject job;
+    private final JSONObject activities;
+
+    JobProgress(JSONObject job, JSONObject activities) {
+      this.job = job;
+      this.activities = activities;
+    }
+
+    @Override
+    public String succeeded(String file, String activity) {
+      synchronized (job) {
+        JSONObject earlier = activitiesOf(file).optJSONObject(activity);
+        if (earlier == null || !isSuccess(earlier.optInt("statusCode"))) {
+          return null;
+        }
+        Object result = earlier.get("result");
+        return result instanceof JSONObject ? result.toString() : (String) result;
+      }
+    }
+
+    @Override
+    public void record(String file, String activity, int statusCode, String result) {
+      synchronized (job) {
+        activitiesOf(file).put(activity, new JSONObject()
+            .put("statusCode", statusCode)
+            .put("result", workerResult(result)));
+        jobs.save(job);
+      }
+    }
+
+    private JSONObject activitiesOf(String file) {
+      if (file == null) {
+        return activities;
+      }
+      JSONObject files = activities.optJSONObject(FILES_FIELD);
+      if (files == null) {
+        files = new JSONObject();
+        activities.put(FILES_FIELD, files);
+      }
+      JSONObject target = files.optJSONObject(file);
+      if (target == null) {
+        target = new JSONObject();
+        files.put(file, target);
+      }
+      return target;
+    }
+  }
+
+  // Whether every recorded worker call answered 2xx, those of batch files included
+  private static boolean succeeded(JSONObject activities) {
+    for (String name : activities.keySet()) {
+      JSONObject activity = activities.getJSONObject(name);
+      if (name.equals(FILES_FIELD)) {
+        for (String file : activity.keySet()) {
+          if (!succeeded(activity.getJSONObject(file))) {
+            return false;
+          }
+        }
+      } else if (!isSuccess(activity.optInt("statusCode"))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isSuccess(int statusCode) {
+    return statusCode >= 200 && statusCode < 300;
+  }
+
+  private APIGatewayProxyResponseEvent jobStatus(String jobId, String email, Metrics metrics) {
+    JSONObject job;
+    try {
+      job = metrics.time("JobStatusLatency", () -> jobs.status(jobId));
+    } catch (IllegalArgumentException e) {
+      job = null;
+    }
+    // Someone else's job is as good as no job
+    if (job == null || !email.equals(job.optString("email"))) {
+      return createResponse(404, "{\"error\": \"No such job\"}");
+    }
+    return createResponse(200, job.toString());
+  }
+
+  // Workers answer JSON or, for the S3 ones, base64 text; keep JSON as JSON in the status
+  private static Object workerResult(String result) {
+    return result.startsWith("{") ? new JSONObject(result) : result;
+  }
+
+  // --- HELPERS ---
+
+  // DryRun validates the call and permissions without running the target, so it
+  // warms the client, TLS session and signer without fanning out to the workers
+  private Warmup prime(LambdaLogger logger) {
+    return new Warmup(logger)
+        .step("lambdaInvoke", () -> invoker.client().invoke(InvokeRequest.builder()
+            .functionName(VERIFIER_FUNCTION_NAME)
+            .invocationType("DryRun")
+            .build()))
+        // A job that never exists: a signed S3 round trip with no side effects
+        .step("s3", () -> jobs.status(WARMUP_JOB_ID))
+        .step("principal", () -> InternalPrincipal.sign("warmup", WARMUP_JOB_ID, logger))
+        .step("json", () -> JsonEnvelope.eventWithBody(JsonEnvelope.parse(
+            "{\"email\": \"warmup\", \"token\": \"warmup\"}").getString("email")));
+  }
+
+  /** Seconds to wait if a worker turned the request away, from its answer; 0 if it did not. */
+  private static long retryAfter(String workerResult) {
+    if (!workerResult.startsWith("{")) {
+      return 0;
+    }
+    JSONObject json = new JSONObject(workerResult);
+    if (json.has("retryAfter")) {
+      return Math.max(1, json.optLong("retryAfter", 1));
+    }
+    return json.optBoolean("throttled") ? THROTTLED_RETRY_AFTER_SECONDS : 0;
+  }
+
+  private APIGatewayProxyResponseEvent tooManyRequests(
+      long retryAfter, String body, Metrics metrics) {
+    metrics.put("Throttled", 1, Metrics.Unit.COUNT);
+    return createResponse(429, body).withHeaders(Map.of(
+        "Content-Type", "application/json", "Retry-After", String.valueOf(retryAfter)));
   }
 
   private APIGatewayProxyResponseEvent createResponse(int statusCode, String body) {
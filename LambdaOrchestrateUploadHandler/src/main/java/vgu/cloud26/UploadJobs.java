@@ -0,0 +1,217 @@
+package vgu.cloud26;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONObject;
+import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+/**
+ * Upload jobs of the orchestrator's async mode, kept in their own bucket so they never show up in
+ * the gallery.
+ *
+ * <p>A job is two objects: {@code jobs/<id>/request.json}, the upload as the client sent it, staged
+ * until the job has run, and {@code jobs/<id>/status.json}, which the client polls:
+ *
+ * <pre>
+ * {"jobId": "...", "email": "...", "key": "cat.jpg", "state": "running",
+ *  "createdAt": 1760000000000, "updatedAt": 1760000000500, "leaseUntil": 1760000900500,
+ *  "activities": {"Activity_1_Database": {"statusCode": 200,
+ *                                         "result": {"message": "Metadata saved"}}}}
+ * </pre>
+ *
+ * <p>States go {@code queued -> running -> done | failed | rejected}; {@code rejected} means the
+ * upload was rate limited and carries {@code retryAfter}. A run that fails goes back to {@code
+ * queued} for Lambda to deliver the job again. Only one delivery runs a job at a time: {@link
+ * #claim} moves it to running with a conditional write and counts the {@code attempts}, and a run
+ * that died without finishing is taken over once its lease is up. A job no delivery will run
+ * again, because its last attempt died or its event expired, reads as failed. An expiry rule on
+ * the bucket cleans up old statuses.
+ */
+final class UploadJobs {
+
+  static final String BUCKET = System.getProperty("cloud26.jobs.bucket", "bucket-lam1303-jobs");
+
+  static final String QUEUED = "queued";
+  static final String RUNNING = "running";
+  static final String DONE = "done";
+  static final String FAILED = "failed";
+  static final String REJECTED = "rejected";
+
+  // Lambda's async deliveries of an event: the first plus MaximumRetryAttempts (2 by default)
+  static final int MAX_ATTEMPTS = Integer.parseInt(System.getProperty("cloud26.jobs.maxAttempts",
+      System.getenv().getOrDefault("JOB_MAX_ATTEMPTS", "3")));
+  // How long a job event is signed for; it outlives Lambda's async retries (6 hours at most)
+  static final long EVENT_TTL_SECONDS = 6 * 60 * 60;
+
+  private final S3Client s3;
+
+  UploadJobs(S3Client s3) {
+    this.s3 = s3;
+  }
+
+  /** Stages {@code requestBody} and records a queued job for it under {@code jobId}, a UUID. */
+  JSONObject create(String jobId, String email, String key, String requestBody) {
+    // Request first: a status without its request would be a job that can never run
+    s3.putObject(PutObjectRequest.builder()
+            .bucket(BUCKET)
+            .key(requestKey(jobId))
+            .contentType("application/json")
+            .build(),
+        RequestBody.fromString(requestBody, StandardCharsets.UTF_8));
+    long now = System.currentTimeMillis();
+    JSONObject status = new JSONObject()
+        .put("jobId", jobId)
+        .put("email", email)
+        .put("key", key)
+        .put("state", QUEUED)
+        .put("createdAt", now)
+        .put("activities", new JSONObject());
+    save(status.put("updatedAt", now));
+    return status;
+  }
+
+  /** The job's status, or null if there is no such job; an abandoned job is failed first. */
+  JSONObject status(String jobId) {
+    ResponseBytes<GetObjectResponse> object = get(jobId);
+    if (object == null) {
+      return null;
+    }
+    JSONObject status = new JSONObject(object.asUtf8String());
+    String reason = abandoned(status, System.currentTimeMillis());
+    if (reason == null) {
+      return status;
+    }
+    status.put("state", FAILED).put("lastError", reason).remove("leaseUntil");
+    if (!replace(status, object.response().eTag())) {
+      // A delivery got to it first, so it is running after all
+      return status(jobId);
+    }
+    dropRequest(jobId);
+    return status;
+  }
+
+  // Why no delivery will run the job any more, or null while one still may
+  private static String abandoned(JSONObject status, long now) {
+    String state = status.getString("state");
+    boolean idle = QUEUED.equals(state)
+        || RUNNING.equals(state) && status.optLong("leaseUntil", 0) < now;
+    if (!idle) {
+      return null;
+    }
+    if (RUNNING.equals(state) && status.optInt("attempts") >= MAX_ATTEMPTS) {
+      return "Attempt " + status.optInt("attempts") + " of " + MAX_ATTEMPTS
+          + " stopped without finishing";
+    }
+    if (status.getLong("createdAt") + TimeUnit.SECONDS.toMillis(EVENT_TTL_SECONDS) < now) {
+      return "Not run before its event expired";
+    }
+    return null;
+  }
+
+  /**
+   * Moves a queued job, or a running one whose lease is up, to running until {@code leaseUntil}.
+   *
+   * @return the claimed status, or null if there is no such job, it has finished, or another
+   *     delivery has it
+   */
+  JSONObject claim(String jobId, long leaseUntil) {
+    ResponseBytes<GetObjectResponse> object = get(jobId);
+    if (object == null) {
+      return null;
+    }
+    JSONObject status = new JSONObject(object.asUtf8String());
+    String state = status.getString("state");
+    long now = System.currentTimeMillis();
+    if (!QUEUED.equals(state)
+        && !(RUNNING.equals(state) && status.optLong("leaseUntil", 0) < now)) {
+      return null;
+    }
+    status.put("state", RUNNING)
+        .put("leaseUntil", leaseUntil)
+        .put("attempts", status.optInt("attempts") + 1);
+    // Over the status just read, and no other: two deliveries cannot both get here
+    return replace(status, object.response().eTag()) ? status : null;
+  }
+
+  /** Whether this run of the job is the last Lambda will deliver. */
+  static boolean lastAttempt(JSONObject status) {
+    return status.optInt("attempts") >= MAX_ATTEMPTS;
+  }
+
+  String request(String jobId) {
+    return read(requestKey(jobId));
+  }
+
+  void save(JSONObject status) {
+    status.put("updatedAt", System.currentTimeMillis());
+    s3.putObject(PutObjectRequest.builder()
+            .bucket(BUCKET)
+            .key(statusKey(status.getString("jobId")))
+            .contentType("application/json")
+            .build(),
+        RequestBody.fromString(status.toString(), StandardCharsets.UTF_8));
+  }
+
+  /** Records the final state and drops the staged request, image and token included. */
+  void finish(JSONObject status, String state) {
+    save(status.put("state", state));
+    dropRequest(status.getString("jobId"));
+  }
+
+  private void dropRequest(String jobId) {
+    s3.deleteObject(DeleteObjectRequest.builder().bucket(BUCKET).key(requestKey(jobId)).build());
+  }
+
+  private ResponseBytes<GetObjectResponse> get(String jobId) {
+    try {
+      return s3.getObjectAsBytes(
+          GetObjectRequest.builder().bucket(BUCKET).key(statusKey(jobId)).build());
+    } catch (NoSuchKeyException e) {
+      return null;
+    }
+  }
+
+  // Writes status over the version with eTag; false if another write got there first
+  private boolean replace(JSONObject status, String eTag) {
+    status.put("updatedAt", System.currentTimeMillis());
+    try {
+      s3.putObject(PutObjectRequest.builder()
+              .bucket(BUCKET)
+              .key(statusKey(status.getString("jobId")))
+              .contentType("application/json")
+              .ifMatch(eTag)
+              .build(),
+          RequestBody.fromString(status.toString(), StandardCharsets.UTF_8));
+      return true;
+    } catch (S3Exception e) {
+      // 412: the precondition failed. 409: a concurrent conditional write to the same key
+      if (e.statusCode() == 412 || e.statusCode() == 409) {
+        return false;
+      }
+      throw e;
+    }
+  }
+
+  private String read(String key) {
+    return s3.getObjectAsBytes(GetObjectRequest.builder().bucket(BUCKET).key(key).build())
+        .asUtf8String();
+  }
+
+  // Job IDs come back from clients; anything but a UUID would address other objects
+  private static String statusKey(String jobId) {
+    return "jobs/" + UUID.fromString(jobId) + "/status.json";
+  }
+
+  private static String requestKey(String jobId) {
+    return "jobs/" + UUID.fromString(jobId) + "/request.json";
+  }
+}
@@ -0,0 +1,297 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LambdaOrchestrateUploadHandlerTest {
+
+  private static final String EMAIL = "student@vgu.edu.vn";
+  private static final String SELF = "test";
+
+  private static FakeBackend backend;
+
+  @BeforeClass
+  public static void startBackend() throws Exception {
+    backend = FakeBackend.started();
+    backend.parameters.put("cloud26internalkey", "internal-test-key");
+  }
+
+  @AfterClass
+  public static void stopBackend() {
+    backend.close();
+  }
+
+  @Before
+  public void workersAnswer() {
+    InternalPrincipal.forget();
+    backend.queued.clear();
+    backend.functions.put("LambdaTokenVerifier", payload -> answer(200, "{\"valid\": true}"));
+    backend.functions.put("LambdaAddPhotoDB",
+        payload -> answer(200, "{\"message\": \"Metadata saved\"}"));
+    backend.functions.put("LambdaUploadObject", payload -> answer(200, "{\"message\": \"ok\"}"));
+    backend.functions.put("LambdaResizer", payload -> answer(200, "{\"message\": \"ok\"}"));
+  }
+
+  @Test
+  public void recreatesAndPrimesItsClientsOnRestore() throws Exception {
+    SnapStartContract.verify(LambdaOrchestrateUploadHandler::new,
+        "lambdaInvoke", "s3", "principal", "json");
+  }
+
+  // --- ASYNC JOBS ---
+
+  @Test
+  public void runsAQueuedJobOnce() {
+    LambdaOrchestrateUploadHandler handler = new LambdaOrchestrateUploadHandler();
+    String jobId = submit(handler);
+
+    APIGatewayProxyResponseEvent ran = deliver(handler, queuedEvent());
+    assertEquals(200, (int) ran.getStatusCode());
+    JSONObject job = status(jobId);
+    assertEquals("done", job.getString("state"));
+    assertEquals(200, job.getJSONObject("activities").getJSONObject("Activity_1_Database")
+        .getInt("statusCode"));
+
+    // Lambda delivers at least once: the duplicate finds the job done
+    assertTrue(deliver(handler, queuedEvent()).getBody().contains("skipped"));
+    assertEquals(1, backend.count("POST /2015-03-31/functions/LambdaAddPhotoDB/"));
+  }
+
+  @Test
+  public void refusesJobEventsItDidNotQueue() {
+    LambdaOrchestrateUploadHandler handler = new LambdaOrchestrateUploadHandler();
+    String jobId = submit(handler);
+    String otherJob = submit(handler);
+    JSONObject otherEvent = new JSONObject(backend.queued.get(SELF).get(1));
+
+    assertEquals(401, (int) deliver(handler, job(jobId, null)).getStatusCode());
+    assertEquals(401, (int) deliver(handler, job(jobId, "forged.principal")).getStatusCode());
+    // Signed, but for another job
+    assertEquals(401, (int) deliver(handler, job(jobId,
+        new JSONObject(otherEvent.getString("body")).getString("principal"))).getStatusCode());
+    assertEquals("queued", status(jobId).getString("state"));
+    assertEquals("queued", status(otherJob).getString("state"));
+    assertEquals(0, backend.count("POST /2015-03-31/functions/LambdaAddPhotoDB/"));
+  }
+
+  @Test
+  public void refusesMalformedJobIds() {
+    LambdaOrchestrateUploadHandler handler = new LambdaOrchestrateUploadHandler();
+    for (String id : new String[] {"../request", "", "1-1-1-1-1", UUID.randomUUID() + "x"}) {
+      assertEquals(id, 400, (int) deliver(handler, job(id, null)).getStatusCode());
+    }
+  }
+
+  @Test
+  public void retriedJobSkipsWhatAlreadySucceeded() {
+    LambdaOrchestrateUploadHandler handler = new LambdaOrchestrateUploadHandler();
+    String jobId = submit(handler);
+    // Not JSON: recording it fails the run after the DB row and the original are stored
+    backend.functions.put("LambdaResizer", payload -> answer(200, "{broken"));
+
+    try {
+      deliver(handler, queuedEvent());
+      fail("a failed run has to throw for Lambda to deliver the job again");
+    } catch (RuntimeException expected) {
+      // As Lambda sees it
+    }
+    JSONObject failed = status(jobId);
+    assertEquals("queued", failed.getString("state"));
+    assertTrue(failed.has("lastError"));
+
+    backend.functions.put("LambdaResizer", payload -> answer(200, "{\"message\": \"ok\"}"));
+    deliver(handler, queuedEvent());
+
+    assertEquals("done", status(jobId).getString("state"));
+    assertEquals(1, backend.count("POST /2015-03-31/functions/LambdaAddPhotoDB/"));
+    assertEquals(1, backend.count("POST /2015-03-31/functions/LambdaUploadObject/"));
+    assertEquals(2, backend.count("POST /2015-03-31/functions/LambdaResizer/"));
+  }
+
+  @Test
+  public void jobStateFollowsTheWorkersStatusCodes() {
+    LambdaOrchestrateUploadHandler handler = new LambdaOrchestrateUploadHandler();
+    // A successful answer that merely mentions an error
+    backend.functions.put("LambdaAddPhotoDB",
+        payload -> answer(200, "{\"message\": \"Saved \\\"error\\\" as the description\"}"));
+    String quoted = submit(handler);
+    deliver(handler, queuedEvent());
+    assertEquals("done", status(quoted).getString("state"));
+
+    // A failed answer without an "error" field
+    backend.functions.put("LambdaResizer",
+        payload -> answer(500, "{\"message\": \"out of memory\"}"));
+    backend.queued.clear();
+    String failed = submit(handler);
+    deliver(handler, queuedEvent());
+    JSONObject job = status(failed);
+    assertEquals("failed", job.getString("state"));
+    assertEquals(500, job.getJSONObject("activities").getJSONObject("Activity_3_Resize_S3")
+        .getInt("statusCode"));
+  }
+
+  @Test
+  public void concurrentDeliveriesRunTheJobOnce() throws Exception {
+    LambdaOrchestrateUploadHandler handler = new LambdaOrchestrateUploadHandler();
+    String jobId = submit(handler);
+    AtomicBoolean slow = new AtomicBoolean(true);
+    backend.functions.put("LambdaAddPhotoDB", payload -> {
+      if (slow.getAndSet(false)) {
+        try {
+          Thread.sleep(500);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return answer(200, "{\"message\": \"Metadata saved\"}");
+    });
+
+    Thread first = new Thread(() -> deliver(handler, queuedEvent()));
+    first.start();
+    Thread.sleep(200);
+    assertTrue(deliver(handler, queuedEvent()).getBody().contains("skipped"));
+    first.join();
+
+    assertEquals("done", status(jobId).getString("state"));
+    assertEquals(1, backend.count("POST /2015-03-31/functions/LambdaAddPhotoDB/"));
+  }
+
+  @Test
+  public void theLastAttemptFailsTheJob() {
+    LambdaOrchestrateUploadHandler handler = new LambdaOrchestrateUploadHandler();
+    String jobId = submit(handler);
+    backend.functions.put("LambdaResizer", payload -> answer(200, "{broken"));
+
+    for (int attempt = 1; attempt <= UploadJobs.MAX_ATTEMPTS; attempt++) {
+      try {
+        deliver(handler, queuedEvent());
+        fail("attempt " + attempt + " should have thrown");
+      } catch (RuntimeException expected) {
+        // Thrown on the last attempt too, for an on-failure destination
+      }
+      JSONObject job = status(jobId);
+      assertEquals(attempt, job.getInt("attempts"));
+      assertEquals(attempt < UploadJobs.MAX_ATTEMPTS ? "queued" : "failed",
+          job.getString("state"));
+    }
+
+    assertFalse(backend.hasObject(UploadJobs.BUCKET, "jobs/" + jobId + "/request.json"));
+    // Lambda has no more deliveries, and one would find the job finished
+    assertTrue(deliver(handler, queuedEvent()).getBody().contains("skipped"));
+  }
+
+  @Test
+  public void pollingFailsAJobWhoseLastAttemptDied() {
+    LambdaOrchestrateUploadHandler handler = new LambdaOrchestrateUploadHandler();
+    String died = submit(handler);
+    String retried = submit(handler);
+    long expired = System.currentTimeMillis() - 1;
+    // As a run that timed out leaves it: running, with its lease up
+    store(status(died).put("state", "running").put("leaseUntil", expired)
+        .put("attempts", UploadJobs.MAX_ATTEMPTS));
+    store(status(retried).put("state", "running").put("leaseUntil", expired)
+        .put("attempts", 1));
+
+    JSONObject failed = poll(handler, died);
+    assertEquals("failed", failed.getString("state"));
+    assertTrue(failed.getString("lastError"), failed.getString("lastError").contains("Attempt"));
+    assertEquals("failed", status(died).getString("state"));
+    assertFalse(backend.hasObject(UploadJobs.BUCKET, "jobs/" + died + "/request.json"));
+    // Lambda delivers a timed out event again, so this one may still run
+    assertEquals("running", poll(handler, retried).getString("state"));
+  }
+
+  @Test
+  public void pollingFailsAJobWhoseEventExpired() {
+    LambdaOrchestrateUploadHandler handler = new LambdaOrchestrateUploadHandler();
+    String jobId = submit(handler);
+    long createdAt = System.currentTimeMillis()
+        - UploadJobs.EVENT_TTL_SECONDS * 1000 - 60_000;
+    store(status(jobId).put("createdAt", createdAt));
+
+    assertEquals("failed", poll(handler, jobId).getString("state"));
+    // Queued just now: Lambda may still deliver it
+    String fresh = submit(handler);
+    assertEquals("queued", poll(handler, fresh).getString("state"));
+  }
+
+  // Queues an async upload and answers its job id; the job event lands in backend.queued
+  private static String submit(LambdaOrchestrateUploadHandler handler) {
+    backend.requests.clear();
+    APIGatewayProxyResponseEvent response = handler.handleRequest(
+        new APIGatewayProxyRequestEvent().withBody(new JSONObject()
+            .put("email", EMAIL)
+            .put("token", "token")
+            .put("key", "cat.jpg")
+            .put("content", "AAAA")
+            .put("async", true)
+            .toString()),
+        new TestContext());
+    assertEquals(response.getBody(), 202, (int) response.getStatusCode());
+    return new JSONObject(response.getBody()).getString("jobId");
+  }
+
+  private static APIGatewayProxyRequestEvent queuedEvent() {
+    List<String> events = backend.queued.get(SELF);
+    assertNotNull("nothing queued", events);
+    JSONObject event = new JSONObject(events.get(events.size() - 1));
+    return new APIGatewayProxyRequestEvent().withBody(event.getString("body"));
+  }
+
+  private static APIGatewayProxyRequestEvent job(String jobId, String principal) {
+    JSONObject body = new JSONObject().put("job", jobId);
+    if (principal != null) {
+      body.put("principal", principal);
+    }
+    return new APIGatewayProxyRequestEvent().withBody(body.toString());
+  }
+
+  private static APIGatewayProxyResponseEvent deliver(LambdaOrchestrateUploadHandler handler,
+      APIGatewayProxyRequestEvent event) {
+    return handler.handleRequest(event, new TestContext());
+  }
+
+  private static JSONObject poll(LambdaOrchestrateUploadHandler handler, String jobId) {
+    APIGatewayProxyResponseEvent response = handler.handleRequest(
+        new APIGatewayProxyRequestEvent().withBody(new JSONObject()
+            .put("email", EMAIL)
+            .put("token", "token")
+            .put("jobId", jobId)
+            .toString()),
+        new TestContext());
+    assertEquals(response.getBody(), 200, (int) response.getStatusCode());
+    return new JSONObject(response.getBody());
+  }
+
+  private static void store(JSONObject status) {
+    backend.putObject(UploadJobs.BUCKET, "jobs/" + status.getString("jobId") + "/status.json",
+        status.toString().getBytes(StandardCharsets.UTF_8), "application/json", Map.of());
+  }
+
+  private static JSONObject status(String jobId) {
+    String status = backend.readObject(UploadJobs.BUCKET, "jobs/" + jobId + "/status.json");
+    assertNotNull(status);
+    assertFalse(status.isEmpty());
+    return new JSONObject(status);
+  }
+
+  private static String answer(int statusCode, String body) {
+    return new JSONObject().put("statusCode", statusCode).put("body", body).toString();
+  }
+}
@@ -2,6 +2,7 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
@@ -11,50 +12,89 @@ import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.util.Base64;
-import java.util.HashMap;
+import java.security.MessageDigest;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.imageio.ImageIO;
-import org.json.JSONObject;
-import software.amazon.awssdk.core.sync.RequestBody;
+import org.crac.Core;
+import org.crac.Resource;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
-public class LambdaResizer
-    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaResizer
+    implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
 
   // Configuration
   private static final String RESIZED_BUCKET_NAME = "resizebucket-lam1303"; // Update this to your actual resize
   // bucket name
   private static final float MAX_DIMENSION = 100;
+  // "filter" in the upload picks how thumbnails are scaled: "lanczos" or "box" with Scaler,
+  // "graphics" for the Java2D bilinear draw. RESIZE_FILTER sets the default
+  private static final String GRAPHICS_FILTER = "graphics";
+  private static final Map<String, Scaler.Filter> FILTERS =
+      Map.of("lanczos", Scaler.Filter.LANCZOS3, "box", Scaler.Filter.BOX);
+  private static final String DEFAULT_FILTER =
+      System.getenv().getOrDefault("RESIZE_FILTER", "lanczos");
   private final String REGEX = ".*\\.([^\\.]*)";
   private final String JPG_TYPE = "jpg";
   private final String JPG_MIME = "image/jpeg";
   private final String PNG_TYPE = "png";
   private final String PNG_MIME = "image/png";
 
+  private S3Client s3Client;
+  private ContentStore store;
+
+  public LambdaResizer() {
+    this.s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    this.store = new ContentStore(s3Client, RESIZED_BUCKET_NAME);
+    Core.getGlobalContext().register(this);
+  }
+
+  // --- SNAPSTART HOOKS ---
+
   @Override
-  public APIGatewayProxyResponseEvent handleRequest(
-      APIGatewayProxyRequestEvent event, Context context) {
-    if (event.getBody() != null && event.getBody().contains("warmer")) {
-      context.getLogger().log("Warming event received. Exiting.");
-      return new APIGatewayProxyResponseEvent()
-          .withStatusCode(200)
-          .withBody("Warmed");
+  public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+    // Load and initialize the request path into the snapshot, then drop pooled
+    // connections: sockets captured in a snapshot are dead after restore
+    prime(LambdaRuntime.getLogger()).finish();
+    s3Client.close();
+  }
+
+  @Override
+  public void afterRestore(org.crac.Context<? extends Resource> context) {
+    // New clients resolve credentials from the restored environment and reconnect
+    s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
+    store = new ContentStore(s3Client, RESIZED_BUCKET_NAME);
+    prime(LambdaRuntime.getLogger()).finish();
+  }
+
+  @Override
+  public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    Metrics metrics = Metrics.begin(context, event);
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = handle(event, context, metrics);
+      return response;
+    } finally {
+      metrics.flush(response);
     }
-    LambdaLogger logger = context.getLogger();
-    logger.log("Resize Worker Started.");
+  }
+
+  private APIGatewayProxyResponseEvent handle(
+      APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
+    Log logger = Log.begin(context);
+    if (Warmup.isWarmupEvent(event)) {
+      return prime(logger).toResponse();
+    }
+    logger.info("Resize Worker Started, scaling with {}.", Scaler.kernelName());
 
     try {
       // 1. Parse Data from Orchestrator
       String requestBody = event.getBody();
-      JSONObject bodyJSON = new JSONObject(requestBody);
+      JsonEnvelope.Envelope bodyJSON = JsonEnvelope.parse(requestBody);
 
       String originalKey = bodyJSON.getString("key");
-      String contentBase64 = bodyJSON.getString("content");
 
       // Generate new filename
       String dstKey = "resized-" + originalKey;
@@ -68,31 +108,62 @@ public class LambdaResizer
       if (!(JPG_TYPE.equals(imageType)) && !(PNG_TYPE.equals(imageType))) {
         return createResponse(400, "Error: Skipping non-image " + originalKey);
       }
+      String filter = bodyJSON.optString("filter", DEFAULT_FILTER);
+      if (!GRAPHICS_FILTER.equals(filter) && !FILTERS.containsKey(filter)) {
+        return createResponse(400, "Error: Unknown filter " + filter);
+      }
 
-      // 3. Decode Base64 to InputStream (Memory)
-      byte[] imageBytes = Base64.getDecoder().decode(contentBase64);
+      // 3. Decode Base64 to InputStream (Memory), straight out of the request body, hashing
+      // it on the way. The thumbnail of the same bytes is the same thumbnail, so it is stored
+      // under the original's hash and made only once
+      MessageDigest digest = ContentHash.newDigest();
+      byte[] imageBytes = bodyJSON.getBase64("content", digest);
+      metrics.put("PayloadBytes", imageBytes.length, Metrics.Unit.BYTES);
+      String contentKey = ContentHash.contentKey(ContentHash.hex(digest), "." + imageType);
+      String mimeType = JPG_TYPE.equals(imageType) ? JPG_MIME : PNG_MIME;
+      if (metrics.time("S3HeadLatency", () -> store.exists(contentKey))) {
+        metrics.put("Deduplicated", 1, Metrics.Unit.COUNT);
+        store.alias(dstKey, contentKey, mimeType);
+        return createResponse(200, "Success: Already resized, linked " + dstKey);
+      }
+      metrics.put("Deduplicated", 0, Metrics.Unit.COUNT);
       ByteArrayInputStream inputStream = new ByteArrayInputStream(imageBytes);
 
       // 4. Resize Logic (Your Custom Logic)
-      BufferedImage srcImage = ImageIO.read(inputStream);
+      BufferedImage srcImage = metrics.time("DecodeLatency", () -> ImageIO.read(inputStream));
       if (srcImage == null) {
         return createResponse(400, "Error: Could not read image data.");
       }
-      BufferedImage newImage = resizeImage(srcImage);
+      BufferedImage newImage = metrics.time("ResizeLatency", () -> resizeImage(srcImage, filter));
+      // Latency follows the source area, so record both shapes to see which uploads cost
+      metrics.put("SourceWidth", srcImage.getWidth(), Metrics.Unit.COUNT)
+          .put("SourceHeight", srcImage.getHeight(), Metrics.Unit.COUNT)
+          .put("SourcePixels", (double) srcImage.getWidth() * srcImage.getHeight(),
+              Metrics.Unit.COUNT)
+          .put("TargetWidth", newImage.getWidth(), Metrics.Unit.COUNT)
+          .put("TargetHeight", newImage.getHeight(), Metrics.Unit.COUNT);
+      // From the 100 px thumbnail, not the original: a few thousand pixels instead of millions
+      String placeholder = metrics.time("PlaceholderLatency", () -> Placeholder.of(newImage));
 
       // 5. Re-encode image to bytes
       ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      ImageIO.write(newImage, imageType, outputStream);
+      metrics.time("EncodeLatency", () -> ImageIO.write(newImage, imageType, outputStream));
       byte[] resizedBytes = outputStream.toByteArray();
 
       // 6. Upload to Resized Bucket
-      S3Client s3Client = S3Client.builder().region(Region.AP_SOUTHEAST_2).build();
-      uploadToS3(s3Client, resizedBytes, RESIZED_BUCKET_NAME, dstKey, imageType, logger);
+      metrics.put("ResizedBytes", resizedBytes.length, Metrics.Unit.BYTES);
+      logger.info("Writing to: {}/{}", RESIZED_BUCKET_NAME, contentKey);
+      metrics.time("S3PutLatency", () -> {
+        store.putContent(contentKey, resizedBytes, mimeType,
+            Map.of(Placeholder.METADATA, placeholder));
+        store.alias(dstKey, contentKey, mimeType);
+        return null;
+      });
 
       return createResponse(200, "Success: Resized and uploaded " + dstKey);
 
     } catch (Exception e) {
-      logger.log("Error resizing: " + e.getMessage());
+      logger.error("Error resizing: {}", e.getMessage());
       e.printStackTrace();
       return createResponse(500, "Error resizing: " + e.getMessage());
     }
@@ -100,35 +171,38 @@ public class LambdaResizer
 
   // --- Helper Methods ---
 
-  private void uploadToS3(
-      S3Client s3Client,
-      byte[] data,
-      String bucket,
-      String key,
-      String imageType,
-      LambdaLogger logger) {
-    Map<String, String> metadata = new HashMap<>();
-    metadata.put("Content-Length", Integer.toString(data.length));
-
-    if (JPG_TYPE.equals(imageType)) {
-      metadata.put("Content-Type", JPG_MIME);
-    } else if (PNG_TYPE.equals(imageType)) {
-      metadata.put("Content-Type", PNG_MIME);
-    }
-
-    PutObjectRequest putRequest = PutObjectRequest.builder().bucket(bucket).key(key).metadata(metadata).build();
-
-    logger.log("Writing to: " + bucket + "/" + key);
-    s3Client.putObject(putRequest, RequestBody.fromBytes(data));
+  // Runs the real decode -> resize -> encode path on a tiny image so the ImageIO
+  // plugin registry, codecs and Java2D pipeline are loaded before the first upload
+  private Warmup prime(LambdaLogger logger) {
+    return new Warmup(logger)
+        .step("s3", () -> Warmup.headProbe(s3Client, RESIZED_BUCKET_NAME))
+        .step("json", () -> JsonEnvelope.parse("{\"key\": \"warmup\", \"content\": \"AAAA\"}")
+            .getBase64("content", ContentHash.newDigest()))
+        .step("imageio", () -> {
+          BufferedImage sample = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+          for (String type : new String[] {JPG_TYPE, PNG_TYPE}) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            ImageIO.write(sample, type, encoded);
+            BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(encoded.toByteArray()));
+            BufferedImage resized = resizeImage(decoded, DEFAULT_FILTER);
+            ImageIO.write(resized, type, new ByteArrayOutputStream());
+            Placeholder.of(resized);
+          }
+        });
   }
 
-  // (Kept your exact resizing logic)
-  private BufferedImage resizeImage(BufferedImage srcImage) {
+  /** Fits {@code srcImage} into MAX_DIMENSION square with the named filter, see FILTERS. */
+  static BufferedImage resizeImage(BufferedImage srcImage, String filter) {
     int srcHeight = srcImage.getHeight();
     int srcWidth = srcImage.getWidth();
     float scalingFactor = Math.min(MAX_DIMENSION / srcWidth, MAX_DIMENSION / srcHeight);
-    int width = (int) (scalingFactor * srcWidth);
-    int height = (int) (scalingFactor * srcHeight);
+    int width = Math.max(1, (int) (scalingFactor * srcWidth));
+    int height = Math.max(1, (int) (scalingFactor * srcHeight));
+    if (FILTERS.containsKey(filter)) {
+      return Scaler.scale(srcImage, width, height, FILTERS.get(filter));
+    }
+
+    // (Kept your exact resizing logic)
 
     BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
     Graphics2D graphics = resizedImage.createGraphics();
@@ -0,0 +1,113 @@
+package vgu.cloud26;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.UnaryOperator;
+import javax.imageio.ImageIO;
+
+/**
+ * Times thumbnail scaling the ways LambdaResizer can do it, on the same sources: the Java2D
+ * bilinear draw, and {@link Scaler} with each filter on plain loops and on the Vector API.
+ *
+ * <pre>
+ * java --add-modules jdk.incubator.vector -cp target/LambdaResizer-1.0-SNAPSHOT.jar \
+ *     vgu.cloud26.ResizeBench [--runs 20] [photo.jpg ...]
+ * </pre>
+ *
+ * <p>Without files it scales generated 1, 12 and 24 megapixel images. Each way is warmed up
+ * first, then the median of {@code --runs} is reported. Add {@code -XX:TieredStopAtLevel=1} to
+ * see what a Lambda runtime with default JVM options gets, and {@code
+ * -XX:ActiveProcessorCount=2} to pin the vCPUs of a given memory size.
+ */
+public class ResizeBench {
+
+  public static void main(String[] args) throws Exception {
+    int runs = 20;
+    List<BufferedImage> sources = new ArrayList<>();
+    List<String> names = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if ("--runs".equals(args[i])) {
+        runs = Integer.parseInt(args[++i]);
+      } else {
+        sources.add(ImageIO.read(new File(args[i])));
+        names.add(args[i]);
+      }
+    }
+    if (sources.isEmpty()) {
+      for (int[] size : new int[][] {{1200, 900}, {4000, 3000}, {6000, 4000}}) {
+        sources.add(generate(size[0], size[1]));
+        names.add(size[0] + "x" + size[1]);
+      }
+    }
+
+    Map<String, UnaryOperator<BufferedImage>> ways = new LinkedHashMap<>();
+    ways.put("graphics", image -> LambdaResizer.resizeImage(image, "graphics"));
+    Scaler.Kernel scalar = new Scaler.ScalarKernel();
+    for (Scaler.Filter filter : Scaler.Filter.values()) {
+      ways.put(filter + "/scalar", image -> scale(image, filter, scalar));
+      if (!(Scaler.BEST_KERNEL instanceof Scaler.ScalarKernel)) {
+        ways.put(filter + "/vector", image -> scale(image, filter, Scaler.BEST_KERNEL));
+      }
+    }
+
+    System.out.printf("%d vCPUs, best kernel %s, median of %d runs in ms%n",
+        Runtime.getRuntime().availableProcessors(), Scaler.kernelName(), runs);
+    System.out.printf("%-16s", "source");
+    ways.keySet().forEach(way -> System.out.printf("%16s", way));
+    System.out.println();
+    for (int s = 0; s < sources.size(); s++) {
+      System.out.printf("%-16s", names.get(s));
+      for (UnaryOperator<BufferedImage> way : ways.values()) {
+        System.out.printf("%16.1f", median(way, sources.get(s), runs));
+      }
+      System.out.println();
+    }
+  }
+
+  private static BufferedImage scale(BufferedImage image, Scaler.Filter filter,
+      Scaler.Kernel kernel) {
+    float factor = Math.min(100f / image.getWidth(), 100f / image.getHeight());
+    return Scaler.scale(image, Math.max(1, (int) (factor * image.getWidth())),
+        Math.max(1, (int) (factor * image.getHeight())), filter, kernel);
+  }
+
+  private static double median(UnaryOperator<BufferedImage> way, BufferedImage source,
+      int runs) {
+    for (int i = 0; i < Math.max(5, runs / 2); i++) {
+      way.apply(source);
+    }
+    double[] millis = new double[runs];
+    for (int i = 0; i < runs; i++) {
+      long start = System.nanoTime();
+      way.apply(source);
+      millis[i] = (System.nanoTime() - start) / 1e6;
+    }
+    Arrays.sort(millis);
+    return millis[runs / 2];
+  }
+
+  // What ImageIO decodes a JPEG to, with gradients and noise so no scaler gets an easy image
+  private static BufferedImage generate(int width, int height) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    Graphics2D graphics = image.createGraphics();
+    graphics.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height, Color.BLUE));
+    graphics.fillRect(0, 0, width, height);
+    Random random = new Random(26);
+    for (int i = 0; i < 2000; i++) {
+      graphics.setColor(new Color(random.nextInt(0x1000000)));
+      graphics.fillOval(random.nextInt(width), random.nextInt(height),
+          random.nextInt(width / 10 + 1), random.nextInt(height / 10 + 1));
+    }
+    graphics.dispose();
+    return image;
+  }
+}
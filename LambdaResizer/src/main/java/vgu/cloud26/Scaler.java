@@ -0,0 +1,355 @@
+package vgu.cloud26;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Separable image scaling on raw pixel arrays: every output pixel is a weighted sum of the source
+ * pixels under a filter, computed along rows and then along columns.
+ *
+ * <p>Drawing with bilinear interpolation samples only the 2 by 2 source pixels nearest each
+ * output pixel, so shrinking a 4000 px photo to 100 px reads one pixel in 40 and aliases. Here
+ * every source pixel contributes. Large factors first average whole blocks of pixels with integer
+ * adds, down to 2 to 4 times the target; the filter, stretched by what is left of the factor, does
+ * the rest. Its row pass turns each row into {@code width} floats per channel, and its column pass
+ * sums those rows into the output. All passes split their rows across a {@link ForkJoinPool} with
+ * one worker per vCPU, and the filter's inner sums run on a {@link Kernel}: {@link VectorKernel}
+ * when the incubating Vector API is there and C2 compiles it, plain loops otherwise.
+ *
+ * <p>Transparent pixels are composed over white, like the drawing path does. Sums are taken in
+ * sRGB, also like the drawing path, so thumbnails look the same apart from being sharper.
+ */
+final class Scaler {
+
+  /** Filters by reach in source pixels at scale 1. */
+  enum Filter {
+    /** The average of the source pixels each output pixel covers. */
+    BOX(0.5) {
+      @Override
+      double weight(double x) {
+        return x > -0.5 && x <= 0.5 ? 1 : 0;
+      }
+    },
+    /** Windowed sinc over three lobes: sharper than a box, with slight ringing at hard edges. */
+    LANCZOS3(3) {
+      @Override
+      double weight(double x) {
+        if (x == 0) {
+          return 1;
+        }
+        if (x <= -3 || x >= 3) {
+          return 0;
+        }
+        double px = Math.PI * x;
+        return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+      }
+    };
+
+    final double support;
+
+    Filter(double support) {
+      this.support = support;
+    }
+
+    abstract double weight(double x);
+  }
+
+  /** The inner loops, so they can run on vector instructions when the JVM offers them. */
+  interface Kernel {
+    /** Sum of {@code a[aOffset + i] * b[bOffset + i]} for i below {@code length}. */
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /** {@code y[i] += w * x[xOffset + i]} for i below {@code length}. */
+    void axpy(float w, float[] x, int xOffset, float[] y, int length);
+  }
+
+  static final class ScalarKernel implements Kernel {
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+      float sum = 0;
+      for (int i = 0; i < length; i++) {
+        sum += a[aOffset + i] * b[bOffset + i];
+      }
+      return sum;
+    }
+
+    @Override
+    public void axpy(float w, float[] x, int xOffset, float[] y, int length) {
+      for (int i = 0; i < length; i++) {
+        y[i] += w * x[xOffset + i];
+      }
+    }
+  }
+
+  static final Kernel BEST_KERNEL = bestKernel();
+  // Shrinking by more than this is done in two steps: averaging whole blocks of pixels, which
+  // reads each source pixel once with integer adds, then the filter for the last factor of 2 to 4
+  private static final int REDUCE_GAP = 2;
+  // Below this many source values read a pass runs on the calling thread: splitting costs more
+  private static final int PARALLEL_THRESHOLD = 64 * 1024;
+  // One worker per vCPU; they start on first use and, like all pool workers, are daemons
+  private static final ForkJoinPool POOL =
+      new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+  private Scaler() {}
+
+  /** {@code source} scaled to {@code width} by {@code height} with {@code filter}. */
+  static BufferedImage scale(BufferedImage source, int width, int height, Filter filter) {
+    return scale(source, width, height, filter, BEST_KERNEL);
+  }
+
+  static BufferedImage scale(BufferedImage source, int width, int height, Filter filter,
+      Kernel kernel) {
+    Planes planes = reduce(source,
+        Math.max(1, source.getWidth() / (width * REDUCE_GAP)),
+        Math.max(1, source.getHeight() / (height * REDUCE_GAP)));
+    Weights columns = new Weights(planes.width, width, filter);
+    Weights rows = new Weights(planes.height, height, filter);
+
+    // Row pass: every row becomes `width` values per channel
+    float[][] narrow = new float[3][width * planes.height];
+    forEachRow(planes.height, planes.width * 3, (from, to) -> {
+      for (int y = from; y < to; y++) {
+        for (int x = 0; x < width; x++) {
+          int start = y * planes.width + columns.starts[x];
+          int length = columns.lengths[x];
+          int offset = x * columns.stride;
+          for (int c = 0; c < 3; c++) {
+            narrow[c][y * width + x] =
+                kernel.dot(planes.values[c], start, columns.weights, offset, length);
+          }
+        }
+      }
+    });
+
+    // Column pass: each output row is a weighted sum of whole rows of the row pass
+    BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    int[] out = ((DataBufferInt) result.getRaster().getDataBuffer()).getData();
+    forEachRow(height, width * rows.stride * 3, (from, to) -> {
+      float[][] sums = new float[3][width];
+      for (int y = from; y < to; y++) {
+        for (int c = 0; c < 3; c++) {
+          Arrays.fill(sums[c], 0);
+          for (int k = 0; k < rows.lengths[y]; k++) {
+            float w = rows.weights[y * rows.stride + k];
+            kernel.axpy(w, narrow[c], (rows.starts[y] + k) * width, sums[c], width);
+          }
+        }
+        for (int x = 0; x < width; x++) {
+          out[y * width + x] =
+              clamp(sums[0][x]) << 16 | clamp(sums[1][x]) << 8 | clamp(sums[2][x]);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * The source as float channel planes, each value the average of a {@code blockWidth} by {@code
+   * blockHeight} block (smaller at the right and bottom edges). A 1 by 1 block just converts.
+   */
+  private static Planes reduce(BufferedImage source, int blockWidth, int blockHeight) {
+    int srcWidth = source.getWidth();
+    int srcHeight = source.getHeight();
+    Planes planes = new Planes((srcWidth + blockWidth - 1) / blockWidth,
+        (srcHeight + blockHeight - 1) / blockHeight);
+    boolean bgrSource = source.getType() == BufferedImage.TYPE_3BYTE_BGR;
+    forEachRow(planes.height, srcWidth * blockHeight, (from, to) -> {
+      int[][] sums = new int[3][planes.width];
+      int[] argb = new int[srcWidth];
+      byte[] rgb = bgrSource ? new byte[srcWidth * 3] : null;
+      for (int y = from; y < to; y++) {
+        int top = y * blockHeight;
+        int bottom = Math.min(srcHeight, top + blockHeight);
+        for (int c = 0; c < 3; c++) {
+          Arrays.fill(sums[c], 0);
+        }
+        for (int row = top; row < bottom; row++) {
+          addRow(source, row, argb, rgb, blockWidth, sums);
+        }
+        for (int x = 0; x < planes.width; x++) {
+          int blockPixels =
+              (Math.min(srcWidth, (x + 1) * blockWidth) - x * blockWidth) * (bottom - top);
+          for (int c = 0; c < 3; c++) {
+            planes.values[c][y * planes.width + x] = (float) sums[c][x] / blockPixels;
+          }
+        }
+      }
+    });
+    return planes;
+  }
+
+  /** Name of the kernel {@link #scale} uses, for logs. */
+  static String kernelName() {
+    return BEST_KERNEL.getClass().getSimpleName();
+  }
+
+  // Vector API code is only fast once C2 compiles it: under C1, which Lambda runtimes stop at by
+  // default, every vector operation allocates. Without --add-modules jdk.incubator.vector the
+  // class does not link at all. Runs once, for BEST_KERNEL
+  private static Kernel bestKernel() {
+    try {
+      HotSpotDiagnosticMXBean hotSpot =
+          ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+      if (Integer.parseInt(hotSpot.getVMOption("TieredStopAtLevel").getValue()) < 4) {
+        return new ScalarKernel();
+      }
+      Object vector = Class.forName("vgu.cloud26.VectorKernel")
+          .getDeclaredMethod("create").invoke(null);
+      return vector == null ? new ScalarKernel() : (Kernel) vector;
+    } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+      return new ScalarKernel();
+    }
+  }
+
+  @FunctionalInterface
+  private interface RowRange {
+    void run(int from, int to);
+  }
+
+  // Splits rows into ranges that read at least PARALLEL_THRESHOLD values, rowCost per row; each
+  // range allocates its scratch arrays once
+  private static void forEachRow(int rows, int rowCost, RowRange body) {
+    int grain = Math.max(1, PARALLEL_THRESHOLD / Math.max(1, rowCost));
+    if (rows <= grain || POOL.getParallelism() == 1) {
+      body.run(0, rows);
+      return;
+    }
+    POOL.invoke(new Rows(0, rows, grain, body));
+  }
+
+  private static final class Rows extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int from;
+    private final int to;
+    private final int grain;
+    private final RowRange body;
+
+    Rows(int from, int to, int grain, RowRange body) {
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+      this.body = body;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= grain) {
+        body.run(from, to);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new Rows(from, middle, grain, body), new Rows(middle, to, grain, body));
+    }
+  }
+
+  // Adds row y to the per-block sums of sRGB channel values 0 to 255, over white where
+  // transparent. What ImageIO decodes JPEGs and opaque PNGs to is read straight from the raster,
+  // with integer adds only; getRGB converts pixel by pixel. The raster hands out samples in band
+  // order, which is red first even though a 3BYTE_BGR buffer stores blue first
+  private static void addRow(BufferedImage source, int y, int[] argb, byte[] rgb, int blockWidth,
+      int[][] sums) {
+    int width = argb.length;
+    if (rgb != null) {
+      source.getRaster().getDataElements(0, y, width, 1, rgb);
+      for (int x = 0, block = 0; x < width; block++) {
+        int r = 0;
+        int g = 0;
+        int b = 0;
+        for (int end = Math.min(width, x + blockWidth); x < end; x++) {
+          r += rgb[3 * x] & 0xff;
+          g += rgb[3 * x + 1] & 0xff;
+          b += rgb[3 * x + 2] & 0xff;
+        }
+        sums[0][block] += r;
+        sums[1][block] += g;
+        sums[2][block] += b;
+      }
+      return;
+    }
+    source.getRGB(0, y, width, 1, argb, 0, width);
+    boolean alpha = source.getColorModel().hasAlpha();
+    for (int x = 0, block = 0; x < width; block++) {
+      int r = 0;
+      int g = 0;
+      int b = 0;
+      for (int end = Math.min(width, x + blockWidth); x < end; x++) {
+        int p = argb[x];
+        if (alpha) {
+          int a = p >>> 24;
+          int white = 255 * (255 - a);
+          r += (((p >> 16) & 0xff) * a + white + 127) / 255;
+          g += (((p >> 8) & 0xff) * a + white + 127) / 255;
+          b += ((p & 0xff) * a + white + 127) / 255;
+        } else {
+          r += (p >> 16) & 0xff;
+          g += (p >> 8) & 0xff;
+          b += p & 0xff;
+        }
+      }
+      sums[0][block] += r;
+      sums[1][block] += g;
+      sums[2][block] += b;
+    }
+  }
+
+  private static int clamp(float value) {
+    return value <= 0 ? 0 : value >= 255 ? 255 : (int) (value + 0.5f);
+  }
+
+  // Channel values of a whole image, row after row
+  private static final class Planes {
+    final int width;
+    final int height;
+    final float[][] values;
+
+    Planes(int width, int height) {
+      this.width = width;
+      this.height = height;
+      this.values = new float[3][width * height];
+    }
+  }
+
+  /**
+   * For each output pixel along one axis, the source pixels it sums and their normalized weights,
+   * {@code stride} apart in one array so a kernel reads them contiguously.
+   */
+  private static final class Weights {
+    final int[] starts;
+    final int[] lengths;
+    final float[] weights;
+    final int stride;
+
+    Weights(int srcSize, int dstSize, Filter filter) {
+      double scale = (double) dstSize / srcSize;
+      // Shrinking stretches the filter over all the source pixels an output pixel covers
+      double filterScale = Math.max(1, 1 / scale);
+      double support = filter.support * filterScale;
+      this.stride = (int) Math.ceil(support) * 2 + 1;
+      this.starts = new int[dstSize];
+      this.lengths = new int[dstSize];
+      this.weights = new float[dstSize * stride];
+      for (int i = 0; i < dstSize; i++) {
+        double center = (i + 0.5) / scale;
+        int start = Math.max(0, (int) (center - support + 0.5));
+        int end = Math.min(srcSize, (int) (center + support + 0.5));
+        double total = 0;
+        for (int s = start; s < end; s++) {
+          total += filter.weight((s - center + 0.5) / filterScale);
+        }
+        for (int s = start; s < end; s++) {
+          double weight = filter.weight((s - center + 0.5) / filterScale);
+          weights[i * stride + s - start] = (float) (total == 0 ? 0 : weight / total);
+        }
+        starts[i] = start;
+        lengths[i] = end - start;
+      }
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package vgu.cloud26;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Scaler.Kernel} on the widest float vectors the CPU has: 8 lanes with AVX2, 16 with
+ * AVX-512, 4 on Graviton. Needs {@code --add-modules jdk.incubator.vector} at compile and run
+ * time; {@link Scaler} loads it by name and falls back to plain loops if it does not link.
+ */
+final class VectorKernel implements Scaler.Kernel {
+
+  private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+  private VectorKernel() {}
+
+  /**
+   * The kernel, or null if the CPU's float vectors are too narrow to pay: with fewer than 4 lanes
+   * there is no vector unit to speak of, and plain loops are faster.
+   */
+  static VectorKernel create() {
+    return SPECIES.length() < 4 ? null : new VectorKernel();
+  }
+
+  @Override
+  public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+    FloatVector sums = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+      sums = FloatVector.fromArray(SPECIES, a, aOffset + i)
+          .fma(FloatVector.fromArray(SPECIES, b, bOffset + i), sums);
+    }
+    float sum = sums.reduceLanes(VectorOperators.ADD);
+    for (; i < length; i++) {
+      sum += a[aOffset + i] * b[bOffset + i];
+    }
+    return sum;
+  }
+
+  @Override
+  public void axpy(float w, float[] x, int xOffset, float[] y, int length) {
+    FloatVector weight = FloatVector.broadcast(SPECIES, w);
+    int i = 0;
+    for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+      FloatVector.fromArray(SPECIES, x, xOffset + i)
+          .fma(weight, FloatVector.fromArray(SPECIES, y, i))
+          .intoArray(y, i);
+    }
+    for (; i < length; i++) {
+      y[i] += w * x[xOffset + i];
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import org.junit.Test;
+
+public class ScalerTest {
+
+  private static final Scaler.Kernel SCALAR = new Scaler.ScalarKernel();
+
+  @Test
+  public void vectorKernelMatchesThePlainLoops() {
+    VectorKernel vector = VectorKernel.create();
+    assumeNotNull(vector);
+    Random random = new Random(26);
+    for (int length = 0; length < 70; length++) {
+      float[] a = values(random, length + 5);
+      float[] b = values(random, length + 3);
+      float bound = 0;
+      for (int i = 0; i < length; i++) {
+        bound += Math.abs(a[5 + i] * b[3 + i]);
+      }
+      // Lanes sum in another order, and fma rounds once; that is all that may differ
+      assertEquals("dot of " + length, SCALAR.dot(a, 5, b, 3, length),
+          vector.dot(a, 5, b, 3, length), 1e-5f * bound + 1e-6f);
+
+      float[] expected = values(random, length);
+      float[] actual = expected.clone();
+      SCALAR.axpy(0.37f, a, 5, expected, length);
+      vector.axpy(0.37f, a, 5, actual, length);
+      for (int i = 0; i < length; i++) {
+        assertEquals("axpy of " + length + " at " + i, expected[i], actual[i], 1e-4f);
+      }
+    }
+  }
+
+  @Test
+  public void vectorKernelScalesLikeThePlainLoops() {
+    VectorKernel vector = VectorKernel.create();
+    assumeNotNull(vector);
+    BufferedImage source = noise(640, 480);
+    for (Scaler.Filter filter : Scaler.Filter.values()) {
+      BufferedImage expected = Scaler.scale(source, 100, 75, filter, SCALAR);
+      BufferedImage actual = Scaler.scale(source, 100, 75, filter, vector);
+      for (int y = 0; y < 75; y++) {
+        for (int x = 0; x < 100; x++) {
+          assertClose(filter + " at " + x + "," + y, expected.getRGB(x, y), actual.getRGB(x, y), 1);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void aConstantImageStaysConstantAtEverySize() {
+    int color = 0x3c8ae1;
+    for (int type : new int[] {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR}) {
+      // Reduced by blocks first, filtered alone, and enlarged
+      for (int[] size : new int[][] {{1000, 700, 37, 23}, {300, 200, 100, 67}, {10, 10, 25, 25}}) {
+        BufferedImage source = filled(size[0], size[1], type, new Color(color));
+        for (Scaler.Filter filter : Scaler.Filter.values()) {
+          BufferedImage result = Scaler.scale(source, size[2], size[3], filter, SCALAR);
+          String name = filter + " " + size[0] + "x" + size[1] + " type " + type;
+          assertEquals(name, size[2], result.getWidth());
+          assertEquals(name, size[3], result.getHeight());
+          // Weights are renormalized where the filter runs off the image, so edges do not darken
+          for (int y = 0; y < size[3]; y++) {
+            for (int x = 0; x < size[2]; x++) {
+              assertClose(name + " at " + x + "," + y, color, result.getRGB(x, y), 0);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void edgePixelsKeepTheirOwnSide() {
+    // Black on the left, white on the right: the outer columns are far from where they meet
+    BufferedImage source = filled(400, 300, BufferedImage.TYPE_3BYTE_BGR, Color.BLACK);
+    Graphics2D graphics = source.createGraphics();
+    graphics.setColor(Color.WHITE);
+    graphics.fillRect(200, 0, 200, 300);
+    graphics.dispose();
+    for (Scaler.Filter filter : Scaler.Filter.values()) {
+      BufferedImage result = Scaler.scale(source, 100, 75, filter, SCALAR);
+      for (int y = 0; y < 75; y++) {
+        assertClose(filter + " left at " + y, 0x000000, result.getRGB(0, y), 0);
+        assertClose(filter + " right at " + y, 0xffffff, result.getRGB(99, y), 0);
+      }
+      // Where they meet is in between
+      int middle = result.getRGB(49, 37) & 0xff;
+      assertTrue(filter + " middle " + middle, middle < 255);
+    }
+  }
+
+  @Test
+  public void transparentPixelsComeOutWhite() {
+    BufferedImage source = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+    for (Scaler.Filter filter : Scaler.Filter.values()) {
+      BufferedImage result = Scaler.scale(source, 16, 16, filter, SCALAR);
+      assertClose(filter.toString(), 0xffffff, result.getRGB(0, 0), 0);
+      assertClose(filter.toString(), 0xffffff, result.getRGB(15, 15), 0);
+    }
+  }
+
+  private static void assertClose(String message, int expected, int actual, int tolerance) {
+    for (int shift = 0; shift <= 16; shift += 8) {
+      int e = (expected >> shift) & 0xff;
+      int a = (actual >> shift) & 0xff;
+      assertTrue(message + ": expected " + Integer.toHexString(expected & 0xffffff) + " but was "
+          + Integer.toHexString(actual & 0xffffff), Math.abs(e - a) <= tolerance);
+    }
+  }
+
+  private static float[] values(Random random, int length) {
+    float[] values = new float[length];
+    for (int i = 0; i < length; i++) {
+      values[i] = random.nextFloat() * 255;
+    }
+    return values;
+  }
+
+  private static BufferedImage filled(int width, int height, int type, Color color) {
+    BufferedImage image = new BufferedImage(width, height, type);
+    Graphics2D graphics = image.createGraphics();
+    graphics.setColor(color);
+    graphics.fillRect(0, 0, width, height);
+    graphics.dispose();
+    return image;
+  }
+
+  private static BufferedImage noise(int width, int height) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(1303);
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        image.setRGB(x, y, random.nextInt(0x1000000));
+      }
+    }
+    return image;
+  }
+}
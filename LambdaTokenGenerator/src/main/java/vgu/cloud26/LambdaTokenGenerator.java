@@ -2,10 +2,13 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
 import java.util.Base64;
+import org.crac.Core;
+import org.crac.Resource;
 import org.json.JSONObject; // Ensure you have this library (org.json)
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
@@ -18,21 +21,69 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
 
-public class LambdaTokenGenerator implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaTokenGenerator implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
+
+    // Built once per container; creating an HttpClient costs a selector thread and its pools
+    private static HttpClient httpClient = newHttpClient();
+
+    // The Parameter Store extension; tests and local runs point it elsewhere
+    private static final String PARAMETERS_URL =
+            System.getProperty("cloud26.parameters.url", "http://localhost:2773");
+    // Re-read after this long, so a rotated cloud26key reaches warm containers (KEY_TTL_SECONDS)
+    private static final long KEY_TTL_MILLIS =
+            (long) (1000 * setting("ttlSeconds", "KEY_TTL_SECONDS", 300));
+    // After a failed re-read the old key is kept, and the next read waits this long
+    private static final long KEY_RETRY_MILLIS = 10_000;
+
+    // Fetched from the parameter store on first use and every KEY_TTL_MILLIS after, cleared around
+    // SnapStart snapshots
+    private static volatile String signingKey;
+    private static volatile long signingKeyExpires;
+
+    public LambdaTokenGenerator() {
+        Core.getGlobalContext().register(this);
+    }
+
+    // --- SNAPSTART HOOKS ---
+
+    @Override
+    public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+        // Load and initialize the request path (HttpClient, Mac) into the snapshot
+        prime(LambdaRuntime.getLogger()).finish();
+        // Never keep the signing key in the snapshot image
+        signingKey = null;
+        signingKeyExpires = 0;
+    }
+
+    @Override
+    public void afterRestore(org.crac.Context<? extends Resource> context) {
+        // The parameter store extension is a new process after restore
+        httpClient = newHttpClient();
+        prime(LambdaRuntime.getLogger()).finish();
+    }
 
     @Override
     public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+        Metrics metrics = Metrics.begin(context, event);
+        APIGatewayProxyResponseEvent response = null;
+        try {
+            response = handle(event, context, metrics);
+            return response;
+        } finally {
+            metrics.flush(response);
+        }
+    }
+
+    private APIGatewayProxyResponseEvent handle(
+        APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
 
-        // --- WARMER CHECK ---
-        if (event.getBody() != null && event.getBody().contains("warmer")) {
-            context.getLogger().log("Warming event received. Exiting.");
-            return new APIGatewayProxyResponseEvent()
-                    .withStatusCode(200)
-                    .withBody("Warmed");
+        Log logger = Log.begin(context);
+
+        if (Warmup.isWarmupEvent(event)) {
+            return prime(logger).toResponse();
         }
 
-        LambdaLogger logger = context.getLogger();
-        logger.log("Starting Token Processing");
+        logger.info("Starting Token Processing");
 
         try {
             // System Manager parameter store
@@ -48,7 +99,7 @@ public class LambdaTokenGenerator implements RequestHandler<APIGatewayProxyReque
             }
 
             String email = bodyJSON.getString("email");
-            String key = getKey(logger);
+            String key = metrics.time("KeyLatency", () -> signingKey(logger));
             if (key == null) {
                 return createResponse(500, "Error accesing key");
             }
@@ -67,7 +118,7 @@ public class LambdaTokenGenerator implements RequestHandler<APIGatewayProxyReque
             return createResponse(200, responseBody.toString());
 
         } catch (Exception e) {
-            logger.log("Error processing token: " + e.getMessage());
+            logger.error("Error processing token: {}", e.getMessage());
             // Return JSON error
             return createResponse(500, "{\"error\": \"Internal Server Error\"}");
         }
@@ -81,6 +132,16 @@ public class LambdaTokenGenerator implements RequestHandler<APIGatewayProxyReque
                 .withIsBase64Encoded(false);
     }
 
+    private Warmup prime(LambdaLogger logger) {
+        return new Warmup(logger)
+                .step("parameterStore", () -> {
+                    if (signingKey(logger) == null) {
+                        throw new IllegalStateException("key not available");
+                    }
+                })
+                .step("hmac", () -> generateSecureToken("warmup", "warmup", logger));
+    }
+
     public static String generateSecureToken(String data, String key, LambdaLogger logger) {
         try {
             Mac mac = Mac.getInstance("HmacSHA256");
@@ -92,37 +153,71 @@ public class LambdaTokenGenerator implements RequestHandler<APIGatewayProxyReque
             return base64;
 
         } catch (NoSuchAlgorithmException | InvalidKeyException e) {
-            logger.log("Crypto Error: " + e.getMessage());
+            Log.of(logger).error("Crypto Error: {}", e.getMessage());
             return null;
         }
     }
 
+    private static String signingKey(LambdaLogger logger) {
+        String key = signingKey;
+        long now = System.currentTimeMillis();
+        if (key == null || now >= signingKeyExpires) {
+            // Concurrent callers may both re-read; either answer is the current key
+            String fresh = getKey(logger);
+            if (fresh != null) {
+                key = fresh;
+                signingKey = fresh;
+                signingKeyExpires = now + KEY_TTL_MILLIS;
+            } else if (key != null) {
+                // Parameter Store unreachable: keep using the key we have for a while
+                signingKeyExpires = now + KEY_RETRY_MILLIS;
+            }
+        }
+        return key;
+    }
+
+    private static double setting(String property, String env, double fallback) {
+        String value = System.getProperty("cloud26.key." + property, System.getenv(env));
+        try {
+            return value == null ? fallback : Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static HttpClient newHttpClient() {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1) // Use HTTP/1.1 (default might be HTTP/2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
     public static String getKey(LambdaLogger logger) {
         try {
 
-            HttpClient client = HttpClient.newBuilder()
-                    .version(HttpClient.Version.HTTP_1_1) // Use HTTP/1.1 (default might be HTTP/2)
-                    .followRedirects(HttpClient.Redirect.NORMAL)
-                    .connectTimeout(Duration.ofSeconds(10))
-                    .build();
             // 2. Create an HttpRequest instance
             HttpRequest requestParameter;
             requestParameter = HttpRequest.newBuilder()
                     .uri(URI.create(
-                            "http://localhost:2773/systemsmanager/parameters/get/?name=cloud26key"))
+                            PARAMETERS_URL + "/systemsmanager/parameters/get/?name=cloud26key"))
                     .header("Accept", "application/json") // Set request headers
                     .GET() // Specify GET method (default, but explicit is clear)
                     .build();
 
             // 3. Send the request synchronously and get the response
-            HttpResponse<String> responseParameter = client.send(requestParameter,
+            HttpResponse<String> responseParameter = httpClient.send(requestParameter,
                     HttpResponse.BodyHandlers.ofString());
 
-            // 4. Process the response
+            // 4. Process the response; an error body must never be taken, and cached, as the key
+            if (responseParameter.statusCode() != 200) {
+                Log.of(logger).error("Error accessing key: HTTP {}", responseParameter.statusCode());
+                return null;
+            }
             String key = responseParameter.body();
             return key;
         } catch (Exception e) {
-            logger.log("Error accessing key: " + e.getMessage());
+            Log.of(logger).error("Error accessing key: {}", e.getMessage());
             return null;
 
         }
@@ -0,0 +1,89 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LambdaTokenGeneratorTest {
+
+    private static final long TTL_MILLIS = 1000;
+    private static final String EMAIL = "student@vgu.edu.vn";
+
+    private static FakeBackend backend;
+
+    @BeforeClass
+    public static void startBackend() throws Exception {
+        backend = FakeBackend.started();
+        System.setProperty("cloud26.key.ttlSeconds", String.valueOf(TTL_MILLIS / 1000.0));
+    }
+
+    @AfterClass
+    public static void stopBackend() {
+        backend.close();
+    }
+
+    @Test
+    public void signsWithTheCurrentKey() throws Exception {
+        LambdaTokenGenerator generator = new LambdaTokenGenerator();
+        useKey(generator, "sign-key");
+
+        assertEquals(LambdaTokenGenerator.generateSecureToken(EMAIL, "sign-key", null),
+                generate(generator, EMAIL));
+    }
+
+    @Test
+    public void picksUpARotatedKeyAfterTheTtl() throws Exception {
+        LambdaTokenGenerator generator = new LambdaTokenGenerator();
+        useKey(generator, "old-key");
+        String old = generate(generator, EMAIL);
+
+        backend.parameters.put("cloud26key", "new-key");
+        assertEquals(old, generate(generator, EMAIL));
+        Thread.sleep(TTL_MILLIS + 100);
+        assertEquals(LambdaTokenGenerator.generateSecureToken(EMAIL, "new-key", null),
+                generate(generator, EMAIL));
+    }
+
+    @Test
+    public void restoreReadsTheKeyAgain() throws Exception {
+        LambdaTokenGenerator generator = new LambdaTokenGenerator();
+        CheckpointContext crac = new CheckpointContext();
+        crac.register(generator);
+        backend.parameters.put("cloud26key", "before-snapshot");
+        generate(generator, EMAIL);
+
+        crac.beforeCheckpoint(crac);
+        backend.parameters.put("cloud26key", "after-restore");
+        crac.afterRestore(crac);
+
+        assertEquals(LambdaTokenGenerator.generateSecureToken(EMAIL, "after-restore", null),
+                generate(generator, EMAIL));
+    }
+
+    @Test
+    public void recreatesAndPrimesItsClientsOnRestore() throws Exception {
+        backend.parameters.put("cloud26key", "warm-key");
+        SnapStartContract.verify(LambdaTokenGenerator::new, "parameterStore", "hmac");
+    }
+
+    // Sets the key, and drops whatever an earlier test left cached the way a snapshot does
+    private static void useKey(LambdaTokenGenerator generator, String key) throws Exception {
+        backend.parameters.put("cloud26key", key);
+        CheckpointContext crac = new CheckpointContext();
+        crac.register(generator);
+        crac.checkpointRestore();
+    }
+
+    private static String generate(LambdaTokenGenerator generator, String email) {
+        APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent()
+                .withBody(new JSONObject().put("email", email).toString());
+        APIGatewayProxyResponseEvent response = generator.handleRequest(event, new TestContext());
+        assertEquals(200, (int) response.getStatusCode());
+        return new JSONObject(response.getBody()).getString("token");
+    }
+}
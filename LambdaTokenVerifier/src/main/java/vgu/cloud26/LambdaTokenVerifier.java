@@ -2,10 +2,12 @@ package vgu.cloud26;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyResponseEvent;
-import org.json.JSONObject;
+import org.crac.Core;
+import org.crac.Resource;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
@@ -16,19 +18,66 @@ import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.time.Duration;
 
-public class LambdaTokenVerifier implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent> {
+public final class LambdaTokenVerifier implements RequestHandler<APIGatewayProxyRequestEvent, APIGatewayProxyResponseEvent>, Resource {
+
+  // Built once per container; creating an HttpClient costs a selector thread and its pools
+  private static HttpClient httpClient = newHttpClient();
+
+  // The Parameter Store extension; tests and local runs point it elsewhere
+  private static final String PARAMETERS_URL =
+      System.getProperty("cloud26.parameters.url", "http://localhost:2773");
+  // Re-read after this long, so a rotated cloud26key reaches warm containers (KEY_TTL_SECONDS)
+  private static final long KEY_TTL_MILLIS =
+      (long) (1000 * setting("ttlSeconds", "KEY_TTL_SECONDS", 300));
+  // After a failed re-read the old key is kept, and the next read waits this long
+  private static final long KEY_RETRY_MILLIS = 10_000;
+
+  // Fetched from the parameter store on first use and every KEY_TTL_MILLIS after, cleared around
+  // SnapStart snapshots
+  private static volatile String signingKey;
+  private static volatile long signingKeyExpires;
+
+  public LambdaTokenVerifier() {
+    Core.getGlobalContext().register(this);
+  }
+
+  // --- SNAPSTART HOOKS ---
+
+  @Override
+  public void beforeCheckpoint(org.crac.Context<? extends Resource> context) {
+    // Load and initialize the request path (HttpClient, Mac) into the snapshot
+    prime(LambdaRuntime.getLogger()).finish();
+    // Never keep the signing key in the snapshot image
+    signingKey = null;
+    signingKeyExpires = 0;
+  }
+
+  @Override
+  public void afterRestore(org.crac.Context<? extends Resource> context) {
+    // The parameter store extension is a new process after restore
+    httpClient = newHttpClient();
+    prime(LambdaRuntime.getLogger()).finish();
+  }
 
   @Override
   public APIGatewayProxyResponseEvent handleRequest(APIGatewayProxyRequestEvent event, Context context) {
+    Metrics metrics = Metrics.begin(context, event);
+    APIGatewayProxyResponseEvent response = null;
+    try {
+      response = handle(event, context, metrics);
+      return response;
+    } finally {
+      metrics.flush(response);
+    }
+  }
 
-    // Warmer
-    if (event.getBody() != null && event.getBody().contains("warmer")) {
-      context.getLogger().log("Warming event received. Exiting.");
-      return new APIGatewayProxyResponseEvent()
-          .withStatusCode(200)
-          .withBody("Warmed");
+  private APIGatewayProxyResponseEvent handle(
+      APIGatewayProxyRequestEvent event, Context context, Metrics metrics) {
+
+    Log logger = Log.begin(context);
+    if (Warmup.isWarmupEvent(event)) {
+      return prime(logger).toResponse();
     }
-    LambdaLogger logger = context.getLogger();
     // System Manager parameter store
 
     // get the value of a parameter (e.g., "keytokenhash") from system manager
@@ -36,7 +85,8 @@ public class LambdaTokenVerifier implements RequestHandler<APIGatewayProxyReques
 
     try {
 
-      JSONObject body = new JSONObject(event.getBody());
+      // Some callers forward their whole request body, upload content included
+      JsonEnvelope.Envelope body = JsonEnvelope.parse(event.getBody());
 
       if (!body.has("email") || !body.has("token")) {
         return createResponse(400, "{\"valid\": false, \"message\": \"Missing email or token\"}");
@@ -44,27 +94,41 @@ public class LambdaTokenVerifier implements RequestHandler<APIGatewayProxyReques
 
       String email = body.getString("email");
       String token = body.getString("token");
-      String key = getKey(logger);
+      String key = metrics.time("KeyLatency", () -> signingKey(logger));
       if (key == null) {
         return createResponse(500, "Error accesing key");
       }
 
       // VERIFY LOGIC
       if (isValidToken(email, token, key, logger)) {
-        logger.log("Token Verified for: " + email);
+        logger.info("Token Verified for: {}", email);
         return createResponse(200, "{\"valid\": true}");
       } else {
-        logger.log("Invalid Token for: " + email);
+        logger.info("Invalid Token for: {}", email);
         return createResponse(401, "{\"valid\": false, \"message\": \"Signature Mismatch\"}");
       }
 
     } catch (Exception e) {
-      logger.log("Error: " + e.getMessage());
+      logger.error("Error: {}", e.getMessage());
       return createResponse(500, "{\"valid\": false, \"error\": \"Internal Error\"}");
     }
   }
 
-  private boolean isValidToken(String email, String token, String key, LambdaLogger logger) {
+  private Warmup prime(LambdaLogger logger) {
+    return new Warmup(logger)
+        .step("parameterStore", () -> {
+          if (signingKey(logger) == null) {
+            throw new IllegalStateException("key not available");
+          }
+        })
+        .step("hmac", () -> {
+          Mac mac = Mac.getInstance("HmacSHA256");
+          mac.init(new SecretKeySpec("warmup".getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+          Base64.getEncoder().encodeToString(mac.doFinal("warmup".getBytes(StandardCharsets.UTF_8)));
+        });
+  }
+
+  private boolean isValidToken(String email, String token, String key, Log logger) {
     try {
       // Re-create the signature using the email and YOUR secret
       Mac mac = Mac.getInstance("HmacSHA256");
@@ -72,12 +136,8 @@ public class LambdaTokenVerifier implements RequestHandler<APIGatewayProxyReques
       mac.init(secretKeySpec);
       byte[] hmacBytes = mac.doFinal(email.getBytes(StandardCharsets.UTF_8));
       String expectedToken = Base64.getEncoder().encodeToString(hmacBytes);
-      logger.log("--- TOKEN DEBUG ---");
-      logger.log("Email Used:      [" + email + "]");
-      logger.log("Received Token:  [" + token + "]");
-      logger.log("Calculated Token:[" + expectedToken + "]");
-      logger.log("Match Result:    " + expectedToken.equals(token));
-      // -----------------------
+      // Masked: enough to tell a stale token from a wrong key, not enough to reuse one
+      logger.debug("Token check for {}: received {*}, expected {*}", email, token, expectedToken);
       return expectedToken.equals(token);
     } catch (Exception e) {
       return false;
@@ -91,32 +151,66 @@ public class LambdaTokenVerifier implements RequestHandler<APIGatewayProxyReques
         .withHeaders(java.util.Collections.singletonMap("Content-Type", "application/json"));
   }
 
+  private static String signingKey(LambdaLogger logger) {
+    String key = signingKey;
+    long now = System.currentTimeMillis();
+    if (key == null || now >= signingKeyExpires) {
+      // Concurrent callers may both re-read; either answer is the current key
+      String fresh = getKey(logger);
+      if (fresh != null) {
+        key = fresh;
+        signingKey = fresh;
+        signingKeyExpires = now + KEY_TTL_MILLIS;
+      } else if (key != null) {
+        // Parameter Store unreachable: keep using the key we have for a while
+        signingKeyExpires = now + KEY_RETRY_MILLIS;
+      }
+    }
+    return key;
+  }
+
+  private static double setting(String property, String env, double fallback) {
+    String value = System.getProperty("cloud26.key." + property, System.getenv(env));
+    try {
+      return value == null ? fallback : Double.parseDouble(value.trim());
+    } catch (NumberFormatException e) {
+      return fallback;
+    }
+  }
+
+  private static HttpClient newHttpClient() {
+    return HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1) // Use HTTP/1.1 (default might be HTTP/2)
+        .followRedirects(HttpClient.Redirect.NORMAL)
+        .connectTimeout(Duration.ofSeconds(10))
+        .build();
+  }
+
   public static String getKey(LambdaLogger logger) {
     try {
 
-      HttpClient client = HttpClient.newBuilder()
-          .version(HttpClient.Version.HTTP_1_1) // Use HTTP/1.1 (default might be HTTP/2)
-          .followRedirects(HttpClient.Redirect.NORMAL)
-          .connectTimeout(Duration.ofSeconds(10))
-          .build();
       // 2. Create an HttpRequest instance
       HttpRequest requestParameter;
       requestParameter = HttpRequest.newBuilder()
           .uri(URI.create(
-              "http://localhost:2773/systemsmanager/parameters/get/?name=cloud26key"))
+              PARAMETERS_URL + "/systemsmanager/parameters/get/?name=cloud26key"))
           .header("Accept", "application/json") // Set request headers
           .GET() // Specify GET method (default, but explicit is clear)
           .build();
 
       // 3. Send the request synchronously and get the response
-      HttpResponse<String> responseParameter = client.send(requestParameter,
+      HttpResponse<String> responseParameter = httpClient.send(requestParameter,
           HttpResponse.BodyHandlers.ofString());
 
-      // 4. Process the response
+      // 4. Process the response; an error body must never be taken, and cached, as the key
+      if (responseParameter.statusCode() != 200) {
+        Log.of(logger).error("Error accessing key: HTTP {}", responseParameter.statusCode());
+        return null;
+      }
       String key = responseParameter.body();
       return key;
     } catch (Exception e) {
-      logger.log("Error accessing key: " + e.getMessage());
+      Log.of(logger).error("Error accessing key: {}", e.getMessage());
       return null;
 
     }
@@ -0,0 +1,114 @@
+package vgu.cloud26;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.amazonaws.services.lambda.runtime.events.APIGatewayProxyRequestEvent;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class LambdaTokenVerifierTest {
+
+  private static final long TTL_MILLIS = 1000;
+  private static final String EMAIL = "student@vgu.edu.vn";
+
+  private static FakeBackend backend;
+
+  @BeforeClass
+  public static void startBackend() throws Exception {
+    backend = FakeBackend.started();
+    System.setProperty("cloud26.key.ttlSeconds", String.valueOf(TTL_MILLIS / 1000.0));
+    backend.parameters.put("cloud26key", "first-key");
+  }
+
+  @AfterClass
+  public static void stopBackend() {
+    backend.close();
+  }
+
+  @Test
+  public void acceptsOnlyTokensSignedWithTheKey() throws Exception {
+    LambdaTokenVerifier verifier = new LambdaTokenVerifier();
+    useKey(verifier, "accept-key");
+
+    assertEquals(200, verify(verifier, EMAIL, token(EMAIL, "accept-key")));
+    assertEquals(401, verify(verifier, EMAIL, token(EMAIL, "other-key")));
+    assertEquals(401, verify(verifier, "someone@vgu.edu.vn", token(EMAIL, "accept-key")));
+  }
+
+  @Test
+  public void picksUpARotatedKeyAfterTheTtl() throws Exception {
+    LambdaTokenVerifier verifier = new LambdaTokenVerifier();
+    useKey(verifier, "old-key");
+    assertEquals(200, verify(verifier, EMAIL, token(EMAIL, "old-key")));
+
+    backend.parameters.put("cloud26key", "new-key");
+    // Warm containers keep the key they read until it expires
+    assertEquals(200, verify(verifier, EMAIL, token(EMAIL, "old-key")));
+    Thread.sleep(TTL_MILLIS + 100);
+    assertEquals(200, verify(verifier, EMAIL, token(EMAIL, "new-key")));
+    assertEquals(401, verify(verifier, EMAIL, token(EMAIL, "old-key")));
+  }
+
+  @Test
+  public void keepsTheKeyWhileParameterStoreIsDown() throws Exception {
+    LambdaTokenVerifier verifier = new LambdaTokenVerifier();
+    useKey(verifier, "kept-key");
+    assertEquals(200, verify(verifier, EMAIL, token(EMAIL, "kept-key")));
+
+    backend.parameters.remove("cloud26key");
+    Thread.sleep(TTL_MILLIS + 100);
+    assertEquals(200, verify(verifier, EMAIL, token(EMAIL, "kept-key")));
+  }
+
+  @Test
+  public void restoreReadsTheKeyAgain() throws Exception {
+    LambdaTokenVerifier verifier = new LambdaTokenVerifier();
+    CheckpointContext crac = new CheckpointContext();
+    crac.register(verifier);
+    backend.parameters.put("cloud26key", "before-snapshot");
+    verify(verifier, EMAIL, "warm");
+
+    crac.beforeCheckpoint(crac);
+    // Rotated while the snapshot sat in storage; well inside the TTL of the key read before it
+    backend.parameters.put("cloud26key", "after-restore");
+    long reads = backend.count("GET /systemsmanager");
+    crac.afterRestore(crac);
+
+    assertTrue(backend.count("GET /systemsmanager") > reads);
+    assertEquals(200, verify(verifier, EMAIL, token(EMAIL, "after-restore")));
+    assertEquals(401, verify(verifier, EMAIL, token(EMAIL, "before-snapshot")));
+  }
+
+  @Test
+  public void recreatesAndPrimesItsClientsOnRestore() throws Exception {
+    backend.parameters.put("cloud26key", "warm-key");
+    SnapStartContract.verify(LambdaTokenVerifier::new, "parameterStore", "hmac");
+  }
+
+  // Sets the key, and drops whatever an earlier test left cached the way a snapshot does
+  private static void useKey(LambdaTokenVerifier verifier, String key) throws Exception {
+    backend.parameters.put("cloud26key", key);
+    CheckpointContext crac = new CheckpointContext();
+    crac.register(verifier);
+    crac.checkpointRestore();
+  }
+
+  private static int verify(LambdaTokenVerifier verifier, String email, String token) {
+    APIGatewayProxyRequestEvent event = new APIGatewayProxyRequestEvent()
+        .withBody(new JSONObject().put("email", email).put("token", token).toString());
+    return verifier.handleRequest(event, new TestContext()).getStatusCode();
+  }
+
+  private static String token(String email, String key) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(key.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+    return Base64.getEncoder().encodeToString(mac.doFinal(email.getBytes(StandardCharsets.UTF_8)));
+  }
+}